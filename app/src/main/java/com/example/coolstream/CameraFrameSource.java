@@ -0,0 +1,168 @@
+package com.example.coolstream;
+
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * FrameSource backed by android.hardware.Camera preview callbacks (NV21).
+ *
+ * - start() opens the camera, prefers 640x480, and rotates CALLBACK_BUFFERS preview
+ *   buffers through setPreviewCallbackWithBuffer. Call it on a thread with a Looper
+ *   (CameraService's camera thread): the callbacks arrive there
+ * - stop() releases the camera; called on that same thread, no callback follows it
+ * - setLowRate(true) drops the preview to the slowest frame rate the camera supports (warm
+ *   standby); setLowRate(false) restores the range the preview started with. Drivers that
+ *   refuse the change keep their rate
+ * - Buffers recycled after the preview stopped (or from a session of another size) are dropped
+ */
+final class CameraFrameSource implements FrameSource, Camera.PreviewCallback {
+    private static final String TAG = "CameraFrameSource";
+    // several buffers so the driver can keep capturing while earlier frames are encoded
+    static final int CALLBACK_BUFFERS = 5;
+
+    private final int cameraId;
+    private volatile Camera camera;
+    private volatile int bufferSize;
+    private SurfaceTexture surfaceTexture;
+    private Sink sink;
+    // fps range the preview ran at before setLowRate(true); camera thread only
+    private int[] fullFpsRange;
+
+    CameraFrameSource(int cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    @Override
+    public void start(Sink sink) throws IOException {
+        if (camera != null) return;
+        this.sink = sink;
+        try {
+            Log.i(TAG, "Opening camera id=" + cameraId);
+            camera = Camera.open(cameraId);
+
+            // Create and attach a dummy SurfaceTexture to satisfy camera drivers that require a surface.
+            try {
+                if (surfaceTexture == null) surfaceTexture = new SurfaceTexture(0);
+                camera.setPreviewTexture(surfaceTexture);
+            } catch (Exception e) {
+                Log.w(TAG, "setPreviewTexture failed (driver may require SurfaceHolder): " + e);
+                // continue — some devices may accept preview callbacks without texture
+            }
+
+            Camera.Parameters p = camera.getParameters();
+            Camera.Size best = choosePreviewSize(p);
+            p.setPreviewSize(best.width, best.height);
+            p.setPreviewFormat(ImageFormat.NV21);
+            camera.setParameters(p);
+
+            int bufSize = best.width * best.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            bufferSize = bufSize;
+            for (int i = 0; i < CALLBACK_BUFFERS; i++) camera.addCallbackBuffer(new byte[bufSize]);
+            camera.setPreviewCallbackWithBuffer(this);
+            camera.startPreview();
+
+            // report the actual preview size (driver may adjust); callbacks arrive on this
+            // thread, so none can run before this
+            Camera.Size actual = camera.getParameters().getPreviewSize();
+            sink.onFormat(Format.NV21, actual.width, actual.height);
+            Log.i(TAG, "Camera preview started: " + actual.width + "x" + actual.height);
+        } catch (Exception e) {
+            // cleanup if partially opened
+            stop();
+            throw new IOException("Camera open/startPreview failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        Camera c = camera;
+        camera = null;
+        fullFpsRange = null;
+        if (c != null) {
+            try {
+                c.setPreviewCallbackWithBuffer(null);
+                c.stopPreview();
+                c.release();
+            } catch (Exception ignored) {}
+        }
+        // release dummy surfaceTexture
+        try {
+            if (surfaceTexture != null) {
+                surfaceTexture.release();
+                surfaceTexture = null;
+            }
+        } catch (Exception ignored) {}
+    }
+
+    boolean isOpen() { return camera != null; }
+
+    // on the camera thread, like start() and stop()
+    void setLowRate(boolean low) {
+        Camera c = camera;
+        if (c == null || low == (fullFpsRange != null)) return;
+        try {
+            Camera.Parameters p = c.getParameters();
+            int[] range;
+            if (low) {
+                range = slowestFpsRange(p);
+                if (range == null) return;
+                int[] current = new int[2];
+                p.getPreviewFpsRange(current);
+                fullFpsRange = current;
+            } else {
+                range = fullFpsRange;
+                fullFpsRange = null;
+            }
+            p.setPreviewFpsRange(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+            c.setParameters(p);
+            Log.i(TAG, "Preview fps range " + range[0] / 1000 + "-" + range[1] / 1000);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot change the preview frame rate: " + e);
+        }
+    }
+
+    private static int[] slowestFpsRange(Camera.Parameters p) {
+        List<int[]> ranges = p.getSupportedPreviewFpsRange();
+        if (ranges == null) return null;
+        int[] slowest = null;
+        for (int[] r : ranges) {
+            int max = r[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            int min = r[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            if (slowest == null || max < slowest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    || (max == slowest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    && min < slowest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])) {
+                slowest = r;
+            }
+        }
+        return slowest;
+    }
+
+    private Camera.Size choosePreviewSize(Camera.Parameters p) {
+        for (Camera.Size s : p.getSupportedPreviewSizes()) {
+            if (s.width == 640 && s.height == 480) return s;
+        }
+        // fallback to first supported
+        return p.getSupportedPreviewSizes().get(0);
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        sink.onFrame(data, System.nanoTime());
+    }
+
+    // called from the encoder threads once a preview buffer has been compressed or dropped
+    @Override
+    public void recycle(byte[] data) {
+        Camera c = camera;
+        // buffers from a previous preview session (camera closed or size changed) are dropped
+        if (c == null || data.length != bufferSize) return;
+        try { c.addCallbackBuffer(data); } catch (Exception ignored) {}
+    }
+}
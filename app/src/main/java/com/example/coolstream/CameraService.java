@@ -6,9 +6,6 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
-import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -18,37 +15,114 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-public class CameraService extends Service implements Camera.PreviewCallback {
+public class CameraService extends Service {
     private static final String TAG = "CameraService";
-    private android.graphics.SurfaceTexture previewSurfaceTexture = null;
 
     // Actions / extras for control intents
     public static final String ACTION_START_SERVER = "com.example.ipcamera.action.START_SERVER";
     public static final String ACTION_STOP_SERVER  = "com.example.ipcamera.action.STOP_SERVER";
     public static final String ACTION_SET_CAMERA  = "com.example.ipcamera.action.SET_CAMERA";
+    public static final String ACTION_SET_VIEW    = "com.example.ipcamera.action.SET_VIEW";
     public static final String EXTRA_USE_FRONT   = "extra_use_front";
+    // ACTION_SET_VIEW: clockwise rotation in degrees, and an optional {x, y, width, height} crop
+    public static final String EXTRA_ROTATION    = "extra_rotation";
+    public static final String EXTRA_CROP        = "extra_crop";
+    public static final String ACTION_SET_RECORDING = "com.example.ipcamera.action.SET_RECORDING";
+    public static final String EXTRA_RECORDING   = "extra_recording";
+    // ACTION_SET_STANDBY: how long the camera stays on warm standby; 0 releases it at once
+    public static final String ACTION_SET_STANDBY = "com.example.ipcamera.action.SET_STANDBY";
+    public static final String EXTRA_STANDBY_MS  = "extra_standby_ms";
+    // ACTION_SET_ENCODER: true for the pure-Java StripJpegEncoder on every core, false for
+    // the platform's YuvImage encoder
+    public static final String ACTION_SET_ENCODER = "com.example.ipcamera.action.SET_ENCODER";
+    public static final String EXTRA_PARALLEL_ENCODER = "extra_parallel_encoder";
 
     // Idle timeout after last client disconnect (ms)
     private static final long IDLE_TIMEOUT_MS = 30_000L;
+    // then the camera idles at its slowest preview rate with encoding paused, so the next
+    // client gets live frames without a cold open, before it is released
+    private static final long DEFAULT_STANDBY_MS = 120_000L;
+
+    // JPEG buffers shared between the encoder and stream clients (all profiles)
+    private static final int FRAME_POOL_SIZE = 16;
+    private static final int FRAME_BUFFER_BYTES = 64 * 1024;
+
+    // capture -> encode pipeline: the camera rotates through CameraFrameSource.CALLBACK_BUFFERS
+    // preview buffers, up to ENCODE_QUEUE of them wait for one of ENCODER_THREADS encoders
+    // and one may be parked until a client wants it
+    private static final int ENCODE_QUEUE = 2;
+    private static final int ENCODER_THREADS = 2;
+    // pre-event buffer served as /clip.mjpg: the last PRE_EVENT_MS, at most PRE_EVENT_BYTES
+    private static final long PRE_EVENT_MS = 30_000L;
+    private static final long PRE_EVENT_BYTES = 24L * 1024 * 1024;
+    private static final int PRE_EVENT_FPS = 15;
+    // ladder for clients on slow links, best first; only tiers in use are encoded
+    private static final StreamProfile[] ADAPTIVE_TIERS = {StreamProfile.DEFAULT,
+            new StreamProfile(45, 0), new StreamProfile(40, 480), new StreamProfile(35, 320)};
+    // encode levels, best first: the EncodeBudget steps down while a frame takes longer to
+    // encode than the frame interval or the device is hot, and probes back up when it is not
+    private static final EncodeBudget.Level[] ENCODE_LEVELS = {
+            new EncodeBudget.Level(FrameEncoder.DEFAULT_QUALITY, 0, 30),
+            new EncodeBudget.Level(50, 0, 30),
+            new EncodeBudget.Level(50, 480, 20),
+            new EncodeBudget.Level(45, 480, 15),
+            new EncodeBudget.Level(40, 320, 15),
+            new EncodeBudget.Level(40, 320, 10)};
+    // HTTP admission: open connections in total and per viewer address, and how fast one
+    // address may reconnect (a burst of CONNECT_BURST, then CONNECTS_PER_SECOND)
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int MAX_CONNECTIONS_PER_ADDRESS = 8;
+    private static final double CONNECTS_PER_SECOND = 2;
+    private static final int CONNECT_BURST = 10;
+    // continuous recording (ACTION_SET_RECORDING), played back over HTTP; oldest segments
+    // are deleted beyond RECORDING_QUOTA_BYTES
+    private static final long RECORDING_QUOTA_BYTES = 1024L * 1024 * 1024;
+    private static final int RECORDING_FPS = 10;
 
     // State flags accessible to UI
     private static volatile boolean serverRunning = false;
     private static volatile boolean cameraActive = false;
+    // camera open at its slowest rate and nothing encoded; camera thread writes it
+    private volatile boolean standby = false;
+    private volatile long standbyMs = DEFAULT_STANDBY_MS;
 
     // Camera & frame storage
-    private Camera camera;
-    private final Object frameLock = new Object();
-    private volatile byte[] latestJpeg = null;
-
-    // HTTP MJPEG server
+    private volatile CameraFrameSource cameraSource;
+    private final FrameSlot frameSlot = new FrameSlot();
+    // per-profile variants requested with ?quality=&width=, plus the adaptive tiers below
+    private final FrameVariants frameVariants =
+            new FrameVariants(frameSlot, 6, FrameVariants.DEFAULT_IDLE_EVICT_MS);
+    private final FramePool framePool = new FramePool(FRAME_POOL_SIZE, FRAME_BUFFER_BYTES);
+    private final YuvImageJpegEncoder jpegEncoder = new YuvImageJpegEncoder();
+    // created on first use by ACTION_SET_ENCODER; its pool runs one strip per core
+    private StripJpegEncoder stripEncoder;
+    private final FrameEncoder frameEncoder = new FrameEncoder(frameSlot, framePool, jpegEncoder);
+    private final EncodePipeline encodePipeline =
+            new EncodePipeline(frameEncoder, ENCODER_THREADS, ENCODE_QUEUE, this::returnCallbackBuffer);
+    private final CaptureSink captureSink = new CaptureSink(frameEncoder, encodePipeline);
+    private final EncodeBudget encodeBudget = new EncodeBudget(ENCODE_LEVELS, ENCODER_THREADS);
+    // API 29+: feeds PowerManager's thermal status to the encodeBudget
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    // full frame rate while something moves, MotionDetector.DEFAULT_IDLE_FPS otherwise
+    private final MotionDetector motionDetector = new MotionDetector();
+    private final FrameRing preEventBuffer = new FrameRing(PRE_EVENT_MS, PRE_EVENT_BYTES);
+    private SegmentRecorder recorder;
+    private volatile boolean recording = false;
+    // served as /metrics; outlives server restarts so counters keep increasing
+    private final StreamMetrics metrics = new StreamMetrics();
+
+    // HTTP MJPEG server, and RTSP (RTP/JPEG) on RtspServer.DEFAULT_PORT next to it
     private MjpegHttpServer server;
+    private RtspServer rtspServer;
     private int cameraId = 0; // chosen camera id
     private boolean useFront = false;
 
@@ -77,6 +151,32 @@ public class CameraService extends Service implements Camera.PreviewCallback {
         handlerThread = new HandlerThread("camera-thread");
         handlerThread.start();
         cameraHandler = new Handler(handlerThread.getLooper());
+        frameEncoder.setVariants(frameVariants);
+        encodePipeline.setMotionDetector(motionDetector);
+        encodePipeline.setMetrics(metrics);
+        encodeBudget.setListener((from, to, reason) ->
+                Log.i(TAG, "Encode level " + from + " -> " + to + " (" + reason + ")"));
+        encodeBudget.setMetrics(metrics);
+        encodePipeline.setBudget(encodeBudget);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+                encodeBudget.setThermalStatus(pm.getCurrentThermalStatus());
+                thermalListener = encodeBudget::setThermalStatus;
+                pm.addThermalStatusListener(thermalListener);
+            } catch (Exception e) {
+                Log.w(TAG, "Thermal status unavailable: " + e);
+            }
+        }
+        Metrics registry = metrics.registry();
+        registry.counter("coolstream_pool_hits_total", "JPEG buffers handed out by the frame pool", framePool::hits);
+        registry.counter("coolstream_pool_misses_total", "Frames dropped because every pooled buffer was in use", framePool::misses);
+        registry.gauge("coolstream_clients", "Stream clients keeping the camera on (HTTP and RTSP)", clientCount::get);
+        encodePipeline.start();
+        preEventBuffer.attach(frameSlot, PRE_EVENT_FPS);
+        File storage = getExternalFilesDir(null);
+        recorder = new SegmentRecorder(new File(storage != null ? storage : getFilesDir(), "recordings"),
+                SegmentRecorder.DEFAULT_SEGMENT_BYTES, RECORDING_QUOTA_BYTES);
         // don't start MJPEG server here - server starts when ACTION_START_SERVER received
     }
 
@@ -139,6 +239,18 @@ public class CameraService extends Service implements Camera.PreviewCallback {
                 boolean useFrontNow = intent.getBooleanExtra(EXTRA_USE_FRONT, false);
                 setUseFrontCamera(useFrontNow);
                 break;
+            case ACTION_SET_VIEW:
+                setView(intent.getIntExtra(EXTRA_ROTATION, 0), intent.getIntArrayExtra(EXTRA_CROP));
+                break;
+            case ACTION_SET_RECORDING:
+                setRecording(intent.getBooleanExtra(EXTRA_RECORDING, false));
+                break;
+            case ACTION_SET_STANDBY:
+                setStandbyWindow(intent.getLongExtra(EXTRA_STANDBY_MS, DEFAULT_STANDBY_MS));
+                break;
+            case ACTION_SET_ENCODER:
+                setParallelEncoder(intent.getBooleanExtra(EXTRA_PARALLEL_ENCODER, false));
+                break;
             default:
                 // ignore unknown
         }
@@ -148,14 +260,30 @@ public class CameraService extends Service implements Camera.PreviewCallback {
     // Start MJPEG server (listening). Does not open camera until a client connects.
     private synchronized void startMjpegServer() {
         if (serverRunning) return;
-        server = new MjpegHttpServer(8080, this::getLatestJpeg);
+        server = new MjpegHttpServer(8080, frameSlot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.setVariants(frameVariants);
+        server.setAdaptiveTiers(ADAPTIVE_TIERS);
+        server.setAdmissionLimits(MAX_CONNECTIONS, MAX_CONNECTIONS_PER_ADDRESS, CONNECTS_PER_SECOND, CONNECT_BURST);
+        server.setClipBuffer(preEventBuffer);
+        server.setRecorder(recorder);
+        server.setMetrics(metrics);
         server.setClientListener(new MjpegHttpServer.ClientListener() {
             @Override public void onClientConnected() { clientConnected(); }
             @Override public void onClientDisconnected() { clientDisconnected(); }
+            @Override public void onClientEvicted(String remote, String reason) {
+                Log.w(TAG, "Evicting slow client " + remote + ": " + reason);
+            }
+            @Override public void onSnapshotWanted() { snapshotWanted(); }
         });
         server.start();
+        rtspServer = new RtspServer(RtspServer.DEFAULT_PORT, frameSlot);
+        rtspServer.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { clientConnected(); }
+            @Override public void onClientDisconnected() { clientDisconnected(); }
+        });
+        rtspServer.start();
         serverRunning = true;
-        updateNotification("Server running on port 8080");
+        updateNotification("Server running on port 8080 (RTSP " + RtspServer.DEFAULT_PORT + ")");
         Log.i(TAG, "MJPEG server started");
     }
 
@@ -166,6 +294,12 @@ public class CameraService extends Service implements Camera.PreviewCallback {
             server.shutdown();
             server = null;
         }
+        if (rtspServer != null) {
+            Log.i(TAG, "RTSP stats: frames=" + rtspServer.getFramesSent() + ", packets=" + rtspServer.getPacketsSent()
+                    + ", unsupported=" + rtspServer.getFramesUnsupported());
+            rtspServer.shutdown();
+            rtspServer = null;
+        }
         serverRunning = false;
         updateNotification("Server stopped");
         Log.i(TAG, "MJPEG server stopped");
@@ -219,100 +353,102 @@ public class CameraService extends Service implements Camera.PreviewCallback {
         if (now <= 0) scheduleIdleShutdown();
     }
 
+    // A /snapshot.jpg request found no recent frame. Pollers are not clients: if the camera
+    // is off (or on standby) it runs for one idle timeout, and later snapshots do not extend that.
+    private void snapshotWanted() {
+        if (clientCount.get() > 0 || (cameraActive && !standby)) return;
+        Log.i(TAG, "Snapshot requested with camera idle, starting preview");
+        startPreviewAsync();
+        scheduleIdleShutdown();
+    }
+
+    // opens the camera, or brings it back from standby
     private void startPreviewAsync() {
         cameraHandler.post(() -> openCameraAndStartPreviewWithId(cameraId));
     }
 
     private void openCameraAndStartPreviewWithId(int camId) {
-        if (camera != null) return;
+        if (cameraSource != null) {
+            exitStandby();
+            return;
+        }
+        acquireLocks();
+        CameraFrameSource source = new CameraFrameSource(camId);
+        cameraSource = source;
         try {
-            Log.i(TAG, "Opening camera id=" + camId);
-            acquireLocks();
-            camera = Camera.open(camId);
-
-            // Create and attach a dummy SurfaceTexture to satisfy camera drivers that require a surface.
-            try {
-                if (previewSurfaceTexture == null) previewSurfaceTexture = new android.graphics.SurfaceTexture(0);
-                camera.setPreviewTexture(previewSurfaceTexture);
-            } catch (Exception e) {
-                Log.w(TAG, "setPreviewTexture failed (driver may require SurfaceHolder): " + e);
-                // continue — some devices may accept preview callbacks without texture
-            }
-
-            Camera.Parameters p = camera.getParameters();
-            Camera.Size best = choosePreviewSize(p);
-            p.setPreviewSize(best.width, best.height);
-            p.setPreviewFormat(ImageFormat.NV21);
-            camera.setParameters(p);
-
-            int bufSize = best.width * best.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
-            byte[] buffer = new byte[bufSize];
-            camera.addCallbackBuffer(buffer);
-            camera.setPreviewCallbackWithBuffer(this);
-            camera.startPreview();
-
-            // log actual preview size (driver may adjust)
-            Camera.Size actual = camera.getParameters().getPreviewSize();
-            Log.i(TAG, "Camera preview started: " + actual.width + "x" + actual.height);
+            source.start(captureSink);
             cameraActive = true;
-        } catch (Exception e) {
+        } catch (IOException e) {
             Log.e(TAG, "Camera open/startPreview failed", e);
+            cameraSource = null;
             releaseLocks();
             cameraActive = false;
-            // cleanup if partially opened
-            try {
-                if (camera != null) {
-                    camera.setPreviewCallbackWithBuffer(null);
-                    camera.stopPreview();
-                    camera.release();
-                    camera = null;
-                }
-            } catch (Exception ignored) {}
-        }
-    }
-
-
-    private Camera.Size choosePreviewSize(Camera.Parameters p) {
-        for (Camera.Size s : p.getSupportedPreviewSizes()) {
-            if (s.width == 640 && s.height == 480) return s;
         }
-        // fallback to first supported
-        return p.getSupportedPreviewSizes().get(0);
     }
 
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        Camera.Size s = camera.getParameters().getPreviewSize();
-        try {
-            YuvImage yuv = new YuvImage(data, ImageFormat.NV21, s.width, s.height, null);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            yuv.compressToJpeg(new Rect(0,0,s.width,s.height), 60, baos);
-            byte[] jpeg = baos.toByteArray();
-            synchronized (frameLock) { latestJpeg = jpeg; }
-        } catch (Exception e) {
-            Log.e(TAG, "preview->jpeg failed", e);
-        } finally {
-            // recycle buffer
-            try { camera.addCallbackBuffer(data); } catch (Exception ignored) {}
-        }
-    }
-
-    private byte[] getLatestJpeg() {
-        synchronized (frameLock) { return latestJpeg; }
+    // called from the encoder threads once a preview buffer has been compressed or dropped
+    private void returnCallbackBuffer(byte[] data) {
+        CameraFrameSource source = cameraSource;
+        if (source != null) source.recycle(data);
     }
 
+    // after IDLE_TIMEOUT_MS the camera goes on standby, standbyMs later it is released
     private void scheduleIdleShutdown() {
         cancelIdleShutdown();
         idleShutdownFuture = scheduler.schedule(() -> {
-            if (clientCount.get() == 0) {
+            if (clientCount.get() != 0 || recording) {
+                Log.i(TAG, "Idle shutdown cancelled: clients reconnected");
+                return;
+            }
+            long window = standbyMs;
+            if (window <= 0) {
                 Log.i(TAG, "Idle timeout reached, stopping camera");
                 cameraHandler.post(this::stopPreviewInternal);
-            } else {
-                Log.i(TAG, "Idle shutdown cancelled: clients reconnected");
+                return;
             }
+            Log.i(TAG, "Idle timeout reached, camera on standby for " + window + " ms");
+            cameraHandler.post(this::enterStandby);
+            idleShutdownFuture = scheduler.schedule(() -> {
+                if (clientCount.get() == 0 && !recording) {
+                    Log.i(TAG, "Standby over, stopping camera");
+                    cameraHandler.post(this::stopPreviewInternal);
+                }
+            }, window, TimeUnit.MILLISECONDS);
         }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
 
+    // camera thread: keep the camera open at its slowest rate, encode nothing, and keep the
+    // last frame for the next client
+    private void enterStandby() {
+        CameraFrameSource source = cameraSource;
+        if (source == null || standby || clientCount.get() > 0 || recording) return;
+        standby = true;
+        encodePipeline.setPaused(true);
+        source.setLowRate(true);
+        frameSlot.markStale();
+        // the wake lock stays: the camera keeps delivering (and recycling) preview buffers
+        try { if (wifiLock != null && wifiLock.isHeld()) wifiLock.release(); } catch (Exception ignored) {}
+        Log.i(TAG, "Camera on standby: " + encodePipeline);
+    }
+
+    // camera thread
+    private void exitStandby() {
+        CameraFrameSource source = cameraSource;
+        if (source == null || !standby) return;
+        acquireLocks();
+        source.setLowRate(false);
+        encodePipeline.setPaused(false);
+        standby = false;
+        Log.i(TAG, "Camera back from standby");
+    }
+
+    private void setStandbyWindow(long ms) {
+        standbyMs = Math.max(0, ms);
+        Log.i(TAG, "Standby window set to " + standbyMs + " ms");
+        // a standby that is no longer wanted ends now
+        if (standbyMs == 0 && standby) scheduleCameraShutdownImmediate();
+    }
+
     private void cancelIdleShutdown() {
         if (idleShutdownFuture != null && !idleShutdownFuture.isDone()) {
             idleShutdownFuture.cancel(false);
@@ -327,24 +463,24 @@ public class CameraService extends Service implements Camera.PreviewCallback {
     }
 
     private void stopPreviewInternal() {
-        if (camera == null) return;
-        try {
-            camera.setPreviewCallbackWithBuffer(null);
-            camera.stopPreview();
-            camera.release();
-        } catch (Exception e) { /* ignore */ }
-        camera = null;
-        latestJpeg = null;
+        CameraFrameSource source = cameraSource;
+        if (source == null) return;
+        source.stop();
+        cameraSource = null;
+        standby = false;
+        encodePipeline.setPaused(false);
+        encodePipeline.drain();
+        Log.i(TAG, "Encoder stats: " + encodePipeline + ", failed=" + frameEncoder.framesFailed());
+        Log.i(TAG, "Motion stats: " + motionDetector);
+        Log.i(TAG, "Metrics: " + metrics);
+        Log.i(TAG, "Encode budget: " + encodeBudget);
+        Log.i(TAG, "Pre-event buffer: " + preEventBuffer);
+        // the next session may point somewhere else; learn its background from scratch
+        motionDetector.reset();
+        // new clients get the last frame, flagged stale, until the camera is back
+        frameSlot.markStale();
+        jpegEncoder.reset();
         cameraActive = false;
-
-        // release dummy surfaceTexture
-        try {
-            if (previewSurfaceTexture != null) {
-                previewSurfaceTexture.release();
-                previewSurfaceTexture = null;
-            }
-        } catch (Exception ignored) {}
-
         releaseLocks();
         Log.i(TAG, "Camera stopped");
     }
@@ -375,6 +511,15 @@ public class CameraService extends Service implements Camera.PreviewCallback {
         try { if (wifiLock != null && wifiLock.isHeld()) wifiLock.release(); } catch (Exception ignored) {}
     }
 
+    // takes effect from the next capture; the strip encoder's threads stay up once started
+    private synchronized void setParallelEncoder(boolean parallel) {
+        if (parallel && stripEncoder == null) {
+            stripEncoder = new StripJpegEncoder(Runtime.getRuntime().availableProcessors());
+        }
+        frameEncoder.setJpegEncoder(parallel ? stripEncoder : jpegEncoder);
+        Log.i(TAG, "JPEG encoder: " + frameEncoder.getJpegEncoder());
+    }
+
     // switch camera preference; restarts preview if active
     private void setUseFrontCamera(boolean useFrontNow) {
         this.useFront = useFrontNow;
@@ -386,6 +531,41 @@ public class CameraService extends Service implements Camera.PreviewCallback {
         }
     }
 
+    // rotation / region of interest, applied in Java before compressToJpeg
+    private void setView(int rotation, int[] crop) {
+        try {
+            frameEncoder.setRotation(rotation);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring rotation " + rotation);
+        }
+        if (crop != null && crop.length == 4) frameEncoder.setCrop(crop[0], crop[1], crop[2], crop[3]);
+        else frameEncoder.clearCrop();
+        Log.i(TAG, "View set: rotation=" + rotation + " crop=" + (crop != null ? Arrays.toString(crop) : "none"));
+    }
+
+    // Recording keeps the camera running without clients; segments stay playable after it stops.
+    private synchronized void setRecording(boolean on) {
+        if (on == recording) return;
+        if (on) {
+            try {
+                recorder.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start recording", e);
+                return;
+            }
+            recorder.attach(frameSlot, RECORDING_FPS);
+            recording = true;
+            cancelIdleShutdown();
+            if (!cameraActive || standby) startPreviewAsync();
+        } else {
+            recording = false;
+            recorder.detach();
+            recorder.stop();
+            if (clientCount.get() == 0) scheduleIdleShutdown();
+        }
+        Log.i(TAG, "Recording " + (on ? "started" : "stopped") + ": " + recorder);
+    }
+
     private int findCameraId(boolean front) {
         int cameraCount = Camera.getNumberOfCameras();
         Camera.CameraInfo info = new Camera.CameraInfo();
@@ -412,10 +592,24 @@ public class CameraService extends Service implements Camera.PreviewCallback {
             stopMjpegServer();
         } catch (Exception ignored) {}
         cancelIdleShutdown();
+        if (thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                ((PowerManager) getSystemService(POWER_SERVICE)).removeThermalStatusListener(thermalListener);
+            } catch (Exception ignored) {}
+        }
         try { if (scheduler != null) scheduler.shutdownNow(); } catch (Exception ignored) {}
         cameraHandler.post(this::stopPreviewInternal);
         try { if (handlerThread != null) handlerThread.quitSafely(); } catch (Exception ignored) {}
+        encodePipeline.stop();
+        preEventBuffer.detach();
+        if (recorder != null) {
+            recorder.detach();
+            recorder.stop();
+        }
         releaseLocks();
+        synchronized (this) {
+            if (stripEncoder != null) stripEncoder.shutdown();
+        }
     }
 
     @Override
@@ -0,0 +1,41 @@
+package com.example.coolstream;
+
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JpegEncoder backed by android.graphics.YuvImage.
+ *
+ * The camera cycles through a fixed set of callback buffers, so one YuvImage (and one Rect)
+ * is kept per buffer and size instead of being created for every frame.
+ * Safe for concurrent use as long as each call has its own input buffer.
+ */
+final class YuvImageJpegEncoder implements JpegEncoder {
+    // callback buffers plus scaled variant buffers; anything beyond this is stale
+    private static final int MAX_CACHED_IMAGES = 32;
+    // arrays hash and compare by identity
+    private final Map<byte[], YuvImage> images = new ConcurrentHashMap<>();
+    private volatile Rect rect = new Rect();
+
+    @Override
+    public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) {
+        YuvImage yuv = images.get(nv21);
+        if (yuv == null || yuv.getWidth() != width || yuv.getHeight() != height) {
+            yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+            if (images.size() >= MAX_CACHED_IMAGES) images.clear();
+            images.put(nv21, yuv);
+        }
+        Rect r = rect;
+        if (r.right != width || r.bottom != height) rect = r = new Rect(0, 0, width, height);
+        yuv.compressToJpeg(r, quality, out);
+    }
+
+    /** Forget cached images (callback buffers were replaced). */
+    void reset() { images.clear(); }
+}
@@ -0,0 +1,53 @@
+// Android-independent streaming core (server, frame handoff, buffers, codecs): a plain Java
+// library the app depends on, so it can be tested and benchmarked on any JVM.
+plugins {
+    `java-library`
+    id("me.champeau.jmh")
+}
+
+// the app targets Java 8 on Android (minSdk 24); --release also compiles against the Java 8
+// API, so calls like ByteBuffer.flip() don't link to the covariant overloads Android lacks.
+// Sources and tests contain non-ASCII text; don't depend on the platform default charset.
+tasks.withType<JavaCompile>().configureEach {
+    options.release.set(8)
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+// ./gradlew :core:jmh writes build/results/jmh/results.json; keep it to compare runs
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+    // -Pjmh.includes=Fanout runs a subset
+    providers.gradleProperty("jmh.includes").orNull?.let { includes.set(listOf(it)) }
+}
+
+// long load/soak run of MjpegHttpServer; exits non-zero if a threshold is missed:
+// ./gradlew :core:soak -Pargs="--clients 300 --seconds 600 --io THREAD_PER_CLIENT"
+tasks.register<JavaExec>("soak") {
+    group = "verification"
+    description = "Runs LoadGenerator against a loopback MjpegHttpServer and prints its report."
+    classpath = sourceSets["test"].runtimeClasspath
+    mainClass.set("com.example.coolstream.LoadGenerator")
+    args = (providers.gradleProperty("args").orNull ?: "").split(" ").filter { it.isNotEmpty() }
+}
+
+// the streaming stack without a device, fed by a synthetic pattern or a recorded MJPEG file:
+// ./gradlew :core:headless -Pargs="--source synthetic --size 1280x720 --fps 30"
+// ./gradlew :core:headless -Pargs="--source recording.mjpg --realtime false"
+tasks.register<JavaExec>("headless") {
+    group = "application"
+    description = "Serves a FrameSource through EncodePipeline and MjpegHttpServer on port 8080."
+    classpath = sourceSets["test"].runtimeClasspath
+    mainClass.set("com.example.coolstream.HeadlessServer")
+    args = (providers.gradleProperty("args").orNull ?: "").split(" ").filter { it.isNotEmpty() }
+}
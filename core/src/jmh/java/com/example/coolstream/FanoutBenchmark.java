@@ -0,0 +1,124 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * End-to-end fan-out: frames per second a MjpegHttpServer delivers to every one of 1, 10
+ * or 100 loopback clients, in both IoModes.
+ *
+ * Each operation publishes one synthetic JPEG through the server's FrameProvider (a
+ * FrameSlot) and waits until every client has read the whole part, so no client ever
+ * skips a frame and the score is frames fully delivered per second. Clients only count
+ * bytes; parsing the stream is the load generator's job, not the server's cost. With one
+ * client the inverse of the score is the loopback latency from publish() to the last byte
+ * read, which should stay in single-digit milliseconds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FanoutBenchmark {
+    private static final long DELIVERY_TIMEOUT_MS = 10_000;
+
+    @Param({"1", "10", "100"})
+    public int clients;
+
+    @Param({"SELECTOR", "THREAD_PER_CLIENT"})
+    public MjpegHttpServer.IoMode ioMode;
+
+    @Param({"60000"})
+    public int jpegSize;
+
+    private final FrameSlot slot = new FrameSlot();
+    private MjpegHttpServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<Thread> readers = new ArrayList<>();
+    private AtomicLongArray received;
+    private byte[][] payloads;
+    private int next;
+    // bytes every client must have read once the last published frame is delivered
+    private long target;
+
+    @Setup
+    public void setUp() throws Exception {
+        payloads = Payloads.set(jpegSize, 8);
+        server = new MjpegHttpServer(0, slot, ioMode, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        if (port < 0) throw new IllegalStateException("server did not start");
+        received = new AtomicLongArray(clients);
+        byte[] request = "GET /stream.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < clients; i++) {
+            Socket s = new Socket("127.0.0.1", port);
+            s.getOutputStream().write(request);
+            sockets.add(s);
+            final int k = i;
+            Thread t = new Thread(() -> drain(s, k), "fanout-reader-" + i);
+            t.setDaemon(true);
+            t.start();
+            readers.add(t);
+        }
+        target = MjpegHttpServer.STREAM_HEADER.length();
+        awaitDelivery();
+        if (server.getClientStats().size() != clients) throw new IllegalStateException("clients missing");
+    }
+
+    private void drain(Socket s, int k) {
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = s.getInputStream()) {
+            int n;
+            while ((n = in.read(buf)) > 0) received.addAndGet(k, n);
+        } catch (IOException ignored) {
+            // closed by tearDown
+        }
+    }
+
+    private void awaitDelivery() {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        for (int i = 0; i < clients; i++) {
+            while (received.get(i) < target) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("client " + i + " stuck at " + received.get(i) + " of " + target);
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    @Benchmark
+    public long publishToAll() {
+        byte[] jpeg = payloads[next];
+        next = (next + 1) & 7;
+        target += MjpegHttpServer.partHeaderLength(jpeg.length) + jpeg.length;
+        long seq = slot.publish(jpeg);
+        awaitDelivery();
+        return seq;
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        for (Thread t : readers) t.join(1000);
+        server.join(1000);
+    }
+}
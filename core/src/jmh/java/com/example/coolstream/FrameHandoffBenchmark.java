@@ -0,0 +1,93 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameSlot handoff under contention: one encoder thread publishes pooled frames while
+ * stream-client threads take them.
+ *
+ * - poll: readers take the latest frame without blocking (selector loops, snapshots);
+ *   measures the slot lock and the reference counting against a busy publisher
+ * - wakeup: readers block in awaitNewer() like thread-per-client streams; the publisher's
+ *   rate is how fast frames can be handed to 4 waiting clients
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameHandoffBenchmark {
+    private static final int READERS = 4;
+
+    private FrameSlot slot;
+    private FramePool pool;
+    private byte[] jpeg;
+
+    /** Last frame a blocking reader got. */
+    @State(Scope.Thread)
+    public static class Reader {
+        long lastSeq;
+    }
+
+    @Setup
+    public void setUp() {
+        slot = new FrameSlot();
+        jpeg = Payloads.jpeg(60_000, 1);
+        // every reader holds at most one frame, the slot one and the publisher one
+        pool = new FramePool(READERS + 4, jpeg.length);
+    }
+
+    private long publish() throws IOException {
+        FrameSlot.Frame f = pool.acquire();
+        if (f == null) return -1;
+        f.output().write(jpeg, 0, jpeg.length);
+        return slot.publish(f, System.nanoTime());
+    }
+
+    @Benchmark
+    @Group("poll")
+    @GroupThreads(1)
+    public long pollPublish() throws IOException {
+        return publish();
+    }
+
+    @Benchmark
+    @Group("poll")
+    @GroupThreads(READERS)
+    public long pollRead() {
+        FrameSlot.Frame f = slot.acquireLatest();
+        if (f == null) return 0;
+        long seq = f.seq();
+        f.release();
+        return seq;
+    }
+
+    @Benchmark
+    @Group("wakeup")
+    @GroupThreads(1)
+    public long wakeupPublish() throws IOException {
+        return publish();
+    }
+
+    @Benchmark
+    @Group("wakeup")
+    @GroupThreads(READERS)
+    public long wakeupRead(Reader r) throws InterruptedException {
+        // short timeout so readers finish promptly when the publisher stops at the end of an iteration
+        FrameSlot.Frame f = slot.awaitNewer(r.lastSeq, 10);
+        if (f == null) return 0;
+        r.lastSeq = f.seq();
+        f.release();
+        return r.lastSeq;
+    }
+}
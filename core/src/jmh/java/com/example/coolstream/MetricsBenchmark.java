@@ -0,0 +1,62 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost of recording one event: a histogram record() plus a counter increment, the work a
+ * stream client does per frame. Should stay well below 100 ns, uncontended and with
+ * several recording threads.
+ *
+ * - record: one thread
+ * - recordContended: 4 threads on the same histogram and counter; shows whether the
+ *   stripes keep them off each other's cache lines
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private Metrics.Histogram histogram;
+    private LongAdder counter;
+
+    /** Next value a recording thread uses. */
+    @State(Scope.Thread)
+    public static class Values {
+        long i;
+
+        // spread values over many buckets like real latencies
+        long next() {
+            return (i++ * 2654435761L) & 0xFFFFFFL;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Metrics m = new Metrics();
+        histogram = m.histogram("bench_seconds", "bench");
+        counter = m.counter("bench_total", "bench");
+    }
+
+    @Benchmark
+    public void record(Values v) {
+        histogram.record(v.next());
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Values v) {
+        histogram.record(v.next());
+        counter.increment();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time MotionDetector.analyze() takes per NV21 frame; it runs on the camera thread for
+ * every frame, so at 640x480 it should stay well under a millisecond.
+ *
+ * - Four frames in turn: a still scene, a bright square in two places and a brightness
+ *   change, so both the idle and the motion paths are measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MotionDetectorBenchmark {
+    private static final long FRAME_NANOS = 33_333_333L;
+
+    @Param({"640x480", "1280x720"})
+    public String size;
+
+    private MotionDetector detector;
+    private byte[][] frames;
+    private int width;
+    private int height;
+    private int next;
+    private long nanos;
+
+    @Setup
+    public void setUp() {
+        int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        height = Integer.parseInt(size.substring(x + 1));
+        frames = new byte[][] {frame(-1, 0, 0), frame(100, 100, 0), frame(200, 100, 0), frame(-1, 0, 10)};
+        detector = new MotionDetector();
+    }
+
+    // textured scene with sensor noise, an optional bright square and a global brightness offset
+    private byte[] frame(int squareX, int squareY, int brightness) {
+        byte[] nv21 = new byte[Nv21.size(width, height)];
+        Random rnd = new Random(5);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = 70 + (x * 7 + y * 3) % 60 + ((x / 40 + y / 40) % 2) * 30 + brightness + rnd.nextInt(7) - 3;
+                if (squareX >= 0 && x >= squareX && x < squareX + 48 && y >= squareY && y < squareY + 48) v = 240;
+                nv21[y * width + x] = (byte) Math.max(0, Math.min(255, v));
+            }
+        }
+        for (int i = width * height; i < nv21.length; i++) nv21[i] = (byte) 128;
+        return nv21;
+    }
+
+    @Benchmark
+    public int analyze() {
+        nanos += FRAME_NANOS;
+        return detector.analyze(frames[next++ & 3], width, height, nanos);
+    }
+}
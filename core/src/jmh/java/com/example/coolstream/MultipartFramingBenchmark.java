@@ -0,0 +1,68 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one JPEG into the multipart part every stream client is sent.
+ *
+ * - partHeader: boundary and headers written into a frame's headroom
+ * - publishPooled: the encoder's path; JPEG copied into a pooled frame, part header
+ *   stamped on publish, previous frame recycled
+ * - wireCallerOwned: a FrameProvider's byte[]; the first wireData() copies the JPEG
+ *   behind a freshly built header
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MultipartFramingBenchmark {
+    @Param({"25000", "60000", "150000"})
+    public int jpegSize;
+
+    private byte[][] payloads;
+    private int next;
+    private final byte[] headroom = new byte[FrameSlot.Frame.HEADROOM];
+    private FrameSlot slot;
+    private FramePool pool;
+
+    @Setup
+    public void setUp() {
+        payloads = Payloads.set(jpegSize, 8);
+        slot = new FrameSlot();
+        pool = new FramePool(4, jpegSize * 2);
+    }
+
+    private byte[] nextPayload() {
+        byte[] p = payloads[next];
+        next = (next + 1) & 7;
+        return p;
+    }
+
+    @Benchmark
+    public int partHeader() {
+        return MjpegHttpServer.writePartHeader(headroom, 0, nextPayload().length);
+    }
+
+    @Benchmark
+    public long publishPooled() throws IOException {
+        byte[] jpeg = nextPayload();
+        FrameSlot.Frame f = pool.acquire();
+        f.output().write(jpeg, 0, jpeg.length);
+        return slot.publish(f, System.nanoTime());
+    }
+
+    @Benchmark
+    public byte[] wireCallerOwned() {
+        return new FrameSlot.Frame(nextPayload()).wireData();
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nv21 transforms on a 1280x720 camera frame, each a linear pass: divide by the pixels
+ * written (given per method) for the cost per pixel.
+ *
+ * - scaleNearest, scaleBox: half size, 640x360 pixels written; scaleBoxThird 426x240
+ * - crop: a 640x480 region
+ * - rotate90, grayscale: the whole frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Nv21Benchmark {
+    private static final int W = 1280, H = 720;
+
+    private byte[] src;
+    private byte[] half;
+    private byte[] third;
+    private byte[] roi;
+    private byte[] full;
+
+    @Setup
+    public void setUp() {
+        // gradients with a different slope per channel, like Nv21Test's reference image
+        src = new byte[Nv21.size(W, H)];
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) src[y * W + x] = (byte) (x * 7 + y * 13);
+        }
+        for (int cy = 0; cy < H / 2; cy++) {
+            for (int cx = 0; cx < W / 2; cx++) {
+                src[W * H + cy * W + 2 * cx] = (byte) (cx * 5 + cy * 3 + 40);
+                src[W * H + cy * W + 2 * cx + 1] = (byte) (cx * 11 + cy * 2 + 90);
+            }
+        }
+        half = new byte[Nv21.size(640, 360)];
+        third = new byte[Nv21.size(426, 240)];
+        roi = new byte[Nv21.size(640, 480)];
+        full = new byte[src.length];
+    }
+
+    @Benchmark
+    public byte[] scaleNearest() {
+        Nv21.scaleNearest(src, W, H, half, 640, 360);
+        return half;
+    }
+
+    @Benchmark
+    public byte[] scaleBox() {
+        Nv21.scaleBox(src, W, H, half, 640, 360);
+        return half;
+    }
+
+    @Benchmark
+    public byte[] scaleBoxThird() {
+        Nv21.scaleBox(src, W, H, third, 426, 240);
+        return third;
+    }
+
+    @Benchmark
+    public byte[] crop() {
+        Nv21.crop(src, W, H, 320, 120, 640, 480, roi);
+        return roi;
+    }
+
+    @Benchmark
+    public byte[] rotate90() {
+        Nv21.rotate(src, W, H, full, 90);
+        return full;
+    }
+
+    @Benchmark
+    public byte[] grayscale() {
+        Nv21.grayscale(src, W, H, full);
+        return full;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.coolstream;
+
+
+import java.util.Random;
+
+/**
+ * Synthetic JPEG-shaped payloads for the benchmarks: SOI, random entropy-like bytes, EOI.
+ *
+ * Sizes are what the camera produces: about 25 KB for 640x480 at quality 60, 60 KB at
+ * quality 80 and 150 KB for 1280x720 at quality 80. A set of several payloads of slightly
+ * different lengths is rotated so Content-Length and buffer positions keep changing.
+ */
+final class Payloads {
+    private Payloads() {}
+
+    static byte[] jpeg(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        b[0] = (byte) 0xFF;
+        b[1] = (byte) 0xD8;
+        b[size - 2] = (byte) 0xFF;
+        b[size - 1] = (byte) 0xD9;
+        return b;
+    }
+
+    /** n payloads within +-5% of size. */
+    static byte[][] set(int size, int n) {
+        byte[][] set = new byte[n][];
+        Random r = new Random(size);
+        for (int i = 0; i < n; i++) set[i] = jpeg(size - size / 20 + r.nextInt(size / 10 + 1), i);
+        return set;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.coolstream;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to encode one NV21 frame with StripJpegEncoder on 1..8 threads: how far a frame's
+ * restart-interval strips scale across cores. Compare the threads = 1 line with the rest;
+ * results above the machine's core count only show the scheduling overhead.
+ *
+ * - The frame is a smooth pattern with noise, so it codes to a realistic 60-90 KB at 720p
+ * - quality 60 is FrameEncoder's default
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StripJpegEncoderBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"640x480", "1280x720"})
+    public String size;
+
+    private StripJpegEncoder encoder;
+    private byte[] nv21;
+    private int width;
+    private int height;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+        int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        height = Integer.parseInt(size.substring(x + 1));
+        nv21 = new byte[Nv21.size(width, height)];
+        Random rnd = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < width; i++) {
+                double l = 128 + 80 * Math.sin(i / 7.0) * Math.cos(y / 11.0);
+                nv21[y * width + i] = (byte) (l + rnd.nextInt(9) - 4);
+            }
+        }
+        for (int i = width * height; i < nv21.length; i++) nv21[i] = (byte) (128 + rnd.nextInt(17) - 8);
+        encoder = new StripJpegEncoder(threads);
+        out = new ByteArrayOutputStream(width * height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.shutdown();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        encoder.compress(nv21, width, height, FrameEncoder.DEFAULT_QUALITY, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.coolstream;
+
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides right after accept() whether a connection is served, before it costs a thread,
+ * a selector registration, a request buffer or a camera session.
+ *
+ * - maxConnections caps open connections in total and maxPerAddress those from one remote
+ *   address; streams, snapshot pollers and downloads all count
+ * - Each address has a token bucket of connectBurst connections refilled at
+ *   connectsPerSecond, so a client reconnecting in a tight loop (or a scanner) is turned
+ *   away while connections that are already open keep being served
+ * - A refused connection gets a canned 503 with Retry-After (when the address gets its next
+ *   token, else RETRY_AFTER_S) and is closed without reading its request
+ * - Addresses with no open connection and a full bucket are forgotten (at most once per
+ *   SWEEP_MS), so the table only holds recently active peers
+ *
+ * A limit of 0 turns that check off. admit() runs on the accept thread, release() on
+ * whichever thread closes the connection.
+ */
+final class AdmissionControl {
+    static final int RETRY_AFTER_S = 5;
+    static final int MAX_RETRY_AFTER_S = 60;
+    static final long SWEEP_MS = 1000;
+
+    // 503 responses by Retry-After seconds, built once
+    private static final byte[][] BUSY = new byte[MAX_RETRY_AFTER_S + 1][];
+
+    static {
+        for (int s = 1; s <= MAX_RETRY_AFTER_S; s++) {
+            BUSY[s] = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Retry-After: " + s + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // one remote address; guarded by the AdmissionControl
+    private static final class Peer {
+        int open;
+        double tokens;
+        long refilledNanos;
+    }
+
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final double connectsPerSecond;
+    private final int connectBurst;
+    private final Map<InetAddress, Peer> peers = new HashMap<>();
+    private int open;
+    private long lastSweepNanos;
+
+    private final AtomicLong rejectedFull = new AtomicLong();
+    private final AtomicLong rejectedPerAddress = new AtomicLong();
+    private final AtomicLong rejectedRate = new AtomicLong();
+
+    AdmissionControl(int maxConnections, int maxPerAddress, double connectsPerSecond, int connectBurst) {
+        if (maxConnections < 0 || maxPerAddress < 0 || connectsPerSecond < 0 || connectBurst < 0) {
+            throw new IllegalArgumentException("limits must be >= 0");
+        }
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.connectsPerSecond = connectsPerSecond;
+        this.connectBurst = connectsPerSecond > 0 ? Math.max(1, connectBurst) : 0;
+    }
+
+    /**
+     * Count a new connection from address in if the limits allow it.
+     * @return 0 if admitted (release() it when it closes), else the Retry-After seconds
+     */
+    synchronized int admit(InetAddress address, long nowNanos) {
+        if (nowNanos - lastSweepNanos > SWEEP_MS * 1_000_000L) sweep(nowNanos);
+        if (maxConnections > 0 && open >= maxConnections) {
+            rejectedFull.incrementAndGet();
+            return RETRY_AFTER_S;
+        }
+        Peer p = peers.get(address);
+        if (p == null) {
+            p = new Peer();
+            p.tokens = connectBurst;
+            p.refilledNanos = nowNanos;
+            peers.put(address, p);
+        }
+        if (maxPerAddress > 0 && p.open >= maxPerAddress) {
+            rejectedPerAddress.incrementAndGet();
+            return RETRY_AFTER_S;
+        }
+        if (connectsPerSecond > 0) {
+            refill(p, nowNanos);
+            if (p.tokens < 1) {
+                rejectedRate.incrementAndGet();
+                double wait = Math.ceil((1 - p.tokens) / connectsPerSecond);
+                return (int) Math.max(1, Math.min(MAX_RETRY_AFTER_S, wait));
+            }
+            p.tokens -= 1;
+        }
+        p.open++;
+        open++;
+        return 0;
+    }
+
+    /** An admitted connection from address closed. */
+    synchronized void release(InetAddress address) {
+        open--;
+        Peer p = peers.get(address);
+        if (p == null) return;
+        p.open--;
+        if (p.open == 0 && connectsPerSecond == 0) peers.remove(address);
+    }
+
+    private void refill(Peer p, long nowNanos) {
+        p.tokens = Math.min(connectBurst, p.tokens + (nowNanos - p.refilledNanos) * connectsPerSecond / 1e9);
+        p.refilledNanos = nowNanos;
+    }
+
+    private void sweep(long nowNanos) {
+        lastSweepNanos = nowNanos;
+        for (Iterator<Peer> it = peers.values().iterator(); it.hasNext(); ) {
+            Peer p = it.next();
+            if (p.open > 0) continue;
+            refill(p, nowNanos);
+            if (p.tokens >= connectBurst) it.remove();
+        }
+    }
+
+    /** Complete 503 response telling the client to come back in retryAfterSeconds. */
+    static byte[] busyResponse(int retryAfterSeconds) {
+        return BUSY[Math.max(1, Math.min(MAX_RETRY_AFTER_S, retryAfterSeconds))];
+    }
+
+    synchronized int openConnections() { return open; }
+    synchronized int trackedAddresses() { return peers.size(); }
+    /** Refused because maxConnections were open. */
+    long rejectedFull() { return rejectedFull.get(); }
+    /** Refused because the address had maxPerAddress connections open. */
+    long rejectedPerAddress() { return rejectedPerAddress.get(); }
+    /** Refused because the address ran out of connect tokens. */
+    long rejectedRate() { return rejectedRate.get(); }
+    long rejected() { return rejectedFull.get() + rejectedPerAddress.get() + rejectedRate.get(); }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl{open=" + openConnections() + ", addresses=" + trackedAddresses() +
+                ", rejectedFull=" + rejectedFull.get() + ", rejectedPerAddress=" + rejectedPerAddress.get() +
+                ", rejectedRate=" + rejectedRate.get() + "}";
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.coolstream;
+
+
+/**
+ * Picks one stream client's rung on MjpegHttpServer's ladder of profiles (setAdaptiveTiers)
+ * from how its socket takes frames.
+ *
+ * - Every completed frame reports its bytes, how long the write took and how long after
+ *   publishing it completed (queueing delay: time waiting for the client plus the write)
+ * - Per WINDOW_MS the controller derives the busy fraction (time spent writing / window)
+ *   and the delivered throughput. While the socket is busy most of the window that is the
+ *   link rate and the bandwidth estimate follows it; otherwise the client took everything
+ *   offered, so the estimate is only raised to at least what was delivered
+ * - Congestion (smoothed delay above HIGH_DELAY_MS, or the socket busy most of the window)
+ *   steps down one tier, at most once per HOLD_MS so a step can take effect first
+ * - A clear window (low delay, socket mostly idle) probes one tier up once the current
+ *   tier has held for the probe interval. A probe that congests within that interval is
+ *   undone and doubles the interval (up to MAX_PROBE_MS); one that holds resets it
+ *
+ * Tier 0 is the best. The controller only decides; the serving thread moves the client to
+ * the new tier's slot between frames (takeChange()). Written by that thread only, readable
+ * from any thread.
+ */
+final class BitrateController {
+    static final long WINDOW_MS = 500;
+    static final long HIGH_DELAY_MS = 250;
+    static final long LOW_DELAY_MS = 100;
+    static final double BUSY_HIGH = 0.8;
+    static final double BUSY_LOW = 0.5;
+    static final long HOLD_MS = 1000;
+    static final long PROBE_MS = 4000;
+    static final long MAX_PROBE_MS = 60_000;
+    // socket send buffer for adaptive clients: bytes queued in the kernel are invisible to
+    // write timings and add to the viewer's latency
+    static final int SEND_BUFFER = 32 * 1024;
+
+    private final int tiers;
+    private volatile int tier;
+    private volatile long bandwidthBps;
+    private volatile long delayNanos;
+    private boolean changed;
+
+    private long windowStartNanos;
+    private long windowBytes;
+    private long windowBusyNanos;
+    private long lastChangeNanos;
+    private boolean probing;
+    private long probeNanos = PROBE_MS * 1_000_000L;
+
+    BitrateController(int tiers, long nowNanos) {
+        this.tiers = tiers;
+        this.windowStartNanos = nowNanos;
+        this.lastChangeNanos = nowNanos;
+    }
+
+    /**
+     * One frame finished.
+     * @param writeNanos from the start of its write to the end
+     * @param delayNanos from FrameSlot.publish() to the end of its write
+     */
+    void frameSent(long bytes, long writeNanos, long delayNanos, long nowNanos) {
+        windowBytes += bytes;
+        windowBusyNanos += writeNanos;
+        long d = this.delayNanos;
+        this.delayNanos = d == 0 ? delayNanos : d + (delayNanos - d) / 4;
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed < WINDOW_MS * 1_000_000L) return;
+        evaluate(elapsed, nowNanos);
+        windowStartNanos = nowNanos;
+        windowBytes = 0;
+        windowBusyNanos = 0;
+    }
+
+    private void evaluate(long elapsedNanos, long nowNanos) {
+        double busy = Math.min(1.0, (double) windowBusyNanos / elapsedNanos);
+        long delivered = (long) (windowBytes * 8 * 1e9 / elapsedNanos);
+        long bw = bandwidthBps;
+        if (busy > BUSY_HIGH) bandwidthBps = bw == 0 ? delivered : bw + (delivered - bw) / 2;
+        else if (delivered > bw) bandwidthBps = delivered;
+        long delayMs = delayNanos / 1_000_000L;
+        long held = nowNanos - lastChangeNanos;
+        if (delayMs > HIGH_DELAY_MS || busy > BUSY_HIGH) {
+            if (tier == tiers - 1 || held < HOLD_MS * 1_000_000L) return;
+            if (probing && held < probeNanos) {
+                // the tier we probed for does not fit: wait longer before the next try
+                probeNanos = Math.min(MAX_PROBE_MS * 1_000_000L, probeNanos * 2);
+            }
+            probing = false;
+            step(tier + 1, nowNanos);
+        } else if (delayMs < LOW_DELAY_MS && busy < BUSY_LOW) {
+            if (probing && held >= probeNanos) {
+                probing = false;
+                probeNanos = PROBE_MS * 1_000_000L;
+            }
+            if (tier == 0 || held < probeNanos) return;
+            probing = true;
+            step(tier - 1, nowNanos);
+        }
+    }
+
+    private void step(int to, long nowNanos) {
+        tier = to;
+        changed = true;
+        lastChangeNanos = nowNanos;
+        // the new tier's frames differ in size; judge them on their own
+        delayNanos = 0;
+    }
+
+    /** True (once) if the tier changed since the last call. */
+    boolean takeChange() {
+        boolean c = changed;
+        changed = false;
+        return c;
+    }
+
+    int tier() { return tier; }
+
+    /** Estimated link rate in bits per second: measured under congestion, else a lower bound. */
+    long bandwidthBps() { return bandwidthBps; }
+
+    /** Smoothed publish-to-sent delay. */
+    long delayMs() { return delayNanos / 1_000_000L; }
+
+    @Override
+    public String toString() {
+        return "tier=" + tier + " bw=" + bandwidthBps / 1000 + "kbps delayMs=" + delayMs();
+    }
+}
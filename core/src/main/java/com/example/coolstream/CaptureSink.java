@@ -0,0 +1,36 @@
+package com.example.coolstream;
+
+
+/**
+ * Feeds a FrameSource into the encode and serve path.
+ *
+ * - NV21 captures are submitted to the EncodePipeline (demand-driven, motion-aware); the
+ *   source's frame size is passed to the FrameEncoder before the first of them
+ * - JPEG frames are published to the encoder's FrameSlot as they are, so a replay is
+ *   served byte for byte. They are not re-encoded: stream profiles other than the default,
+ *   adaptive tiers and the MotionDetector only work with NV21 sources
+ *
+ * The pipeline's BufferRecycler must hand buffers back to the source (source::recycle).
+ */
+public final class CaptureSink implements FrameSource.Sink {
+    private final FrameEncoder encoder;
+    private final EncodePipeline pipeline;
+    private volatile FrameSource.Format format = FrameSource.Format.NV21;
+
+    public CaptureSink(FrameEncoder encoder, EncodePipeline pipeline) {
+        this.encoder = encoder;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public void onFormat(FrameSource.Format format, int width, int height) {
+        if (format == FrameSource.Format.NV21) encoder.setSize(width, height);
+        this.format = format;
+    }
+
+    @Override
+    public void onFrame(byte[] data, long captureNanos) {
+        if (format == FrameSource.Format.JPEG) encoder.frameSlot().publish(data, captureNanos);
+        else pipeline.submit(data, captureNanos);
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.coolstream;
+
+
+/**
+ * Live counters for one stream client.
+ *
+ * Written only by the thread serving the client, readable from any thread through
+ * MjpegHttpServer.getClientStats().
+ *
+ * - framesDropped counts frames the client missed because it was still writing an
+ *   earlier one (frames skipped by a "?fps=" cap are not drops)
+ * - stallMillis is the time spent waiting for the client's socket to take frame data
+ * - With a StreamMetrics, every frame, byte and drop is also recorded there
+ * - A stale frame (FrameSlot.markStale()) counts as sent but not towards publish-to-send
+ *   latency or the BitrateController; time-to-first-frame runs from connecting until the
+ *   first live frame is written
+ * - An adaptive client (MjpegHttpServer.setAdaptiveTiers) feeds each frame's size and
+ *   timings to its BitrateController; getTier() and getBandwidthBps() report its state
+ */
+public final class ClientStats {
+    private final String remote;
+    private final long connectedAtMs;
+    private final long connectedNanos;
+    private final StreamMetrics metrics;
+
+    private volatile long framesSent;
+    private volatile long framesDropped;
+    private volatile long bytesSent;
+    private volatile long stallNanos;
+    private volatile long staleFramesSent;
+    private volatile long firstFrameNanos = -1;
+
+    // frame in flight; read by the slow-client check
+    volatile long writeStartNanos;
+    volatile long inFlightOffset;
+
+    // demand, read by the encoder through MjpegHttpServer's FrameSlot.Demand:
+    // when the client will take its next frame (Long.MAX_VALUE while busy) and its fps cap
+    volatile long wantsFrameAtNanos = Long.MAX_VALUE;
+    volatile int maxFps = -1;
+    // slot the client streams from (the primary slot or its profile's variant)
+    volatile FrameSlot slot;
+    // set while the client's profile follows its measured throughput
+    volatile BitrateController bitrate;
+
+    private long lastSeq;
+    private long countedUpTo;
+    private long lastCaptureNanos = Long.MIN_VALUE;
+    private long publishNanos;
+    private long frameBytes;
+    private boolean stale;
+
+    ClientStats(String remote) {
+        this(remote, null);
+    }
+
+    /** @param metrics where frames, bytes and drops are recorded as well; may be null */
+    ClientStats(String remote, StreamMetrics metrics) {
+        this.remote = remote;
+        this.connectedAtMs = System.currentTimeMillis();
+        this.connectedNanos = System.nanoTime();
+        this.metrics = metrics;
+    }
+
+    /** Stream started; maxFps is the "?fps=" cap or 0 for unlimited. */
+    void streamStarted(int maxFps) { this.maxFps = maxFps; }
+
+    void wantsFrameAt(long nanos) { wantsFrameAtNanos = nanos; }
+
+    void frameStarted(FrameSlot.Frame f, long nowNanos) {
+        wantsFrameAtNanos = Long.MAX_VALUE;
+        lastSeq = f.seq();
+        lastCaptureNanos = f.captureNanos();
+        publishNanos = f.publishNanos();
+        stale = f.isStale();
+        inFlightOffset = f.streamOffset();
+        writeStartNanos = nowNanos;
+        frameBytes = 0;
+    }
+
+    /**
+     * The stream moved to another slot (see MjpegHttpServer.restream). Each slot numbers its
+     * frames on its own, so drops are counted from resumeSeq, the new slot's seq the stream
+     * continues after, and not from anything seen on the old slot.
+     */
+    void slotChanged(long resumeSeq) {
+        lastSeq = resumeSeq;
+        countedUpTo = resumeSeq;
+    }
+
+    /** Seq of the last frame started, or where the stream resumes after slotChanged(). */
+    long lastSeq() { return lastSeq; }
+
+    /** Capture time of the last frame started; Long.MIN_VALUE before the first. */
+    long lastCaptureNanos() { return lastCaptureNanos; }
+
+    /**
+     * Called while a frame is in flight: everything published after it, except the newest
+     * (which the client may still get), has been superseded and counts as dropped.
+     */
+    void supersededBy(long latestSeq) {
+        long from = Math.max(countedUpTo, lastSeq);
+        if (latestSeq - 1 > from) {
+            framesDropped += latestSeq - 1 - from;
+            if (metrics != null) metrics.framesDropped.add(latestSeq - 1 - from);
+            countedUpTo = latestSeq - 1;
+        }
+    }
+
+    /** @param latestSeq newest published seq when the write completed */
+    void frameFinished(long latestSeq, long stalledNanos) {
+        supersededBy(latestSeq);
+        framesSent++;
+        stallNanos += stalledNanos;
+        long now = System.nanoTime();
+        if (stale) {
+            staleFramesSent++;
+            if (metrics != null) {
+                metrics.clientWrite.record(now - writeStartNanos);
+                metrics.staleFramesSent.increment();
+                metrics.framesSent.increment();
+            }
+            writeStartNanos = 0;
+            return;
+        }
+        if (firstFrameNanos < 0) {
+            firstFrameNanos = now - connectedNanos;
+            if (metrics != null) metrics.timeToFirstFrame.record(firstFrameNanos);
+        }
+        BitrateController b = bitrate;
+        if (b != null) {
+            int before = b.tier();
+            b.frameSent(frameBytes, now - writeStartNanos, now - publishNanos, now);
+            if (metrics != null && b.tier() != before) {
+                (b.tier() > before ? metrics.tierStepsDown : metrics.tierStepsUp).increment();
+            }
+        }
+        if (metrics != null) {
+            metrics.clientWrite.record(now - writeStartNanos);
+            metrics.publishToSend.record(now - publishNanos);
+            metrics.framesSent.increment();
+        }
+        writeStartNanos = 0;
+    }
+
+    void bytesWritten(long n) {
+        bytesSent += n;
+        frameBytes += n;
+        if (metrics != null) metrics.bytesSent.add(n);
+    }
+
+    public String getRemote() { return remote; }
+    public long getConnectedAtMs() { return connectedAtMs; }
+    public long getFramesSent() { return framesSent; }
+    public long getFramesDropped() { return framesDropped; }
+    public long getBytesSent() { return bytesSent; }
+    public long getStallMillis() { return stallNanos / 1_000_000L; }
+    /** Stale frames sent; normally one at most, right after connecting. */
+    public long getStaleFramesSent() { return staleFramesSent; }
+    /** Time from connecting until the first live frame was written, or -1 if none was yet. */
+    public long getTimeToFirstFrameMs() {
+        long n = firstFrameNanos;
+        return n < 0 ? -1 : n / 1_000_000L;
+    }
+    /** Adaptive tier (0 is the best), or -1 if the client's profile is fixed. */
+    public int getTier() {
+        BitrateController b = bitrate;
+        return b != null ? b.tier() : -1;
+    }
+    /** Estimated bandwidth to an adaptive client in bits per second; 0 if not measured. */
+    public long getBandwidthBps() {
+        BitrateController b = bitrate;
+        return b != null ? b.bandwidthBps() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return remote + " sent=" + framesSent + " dropped=" + framesDropped +
+                " bytes=" + bytesSent + " stallMs=" + getStallMillis() +
+                (bitrate != null ? " " + bitrate : "");
+    }
+}
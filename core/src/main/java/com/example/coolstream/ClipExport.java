@@ -0,0 +1,110 @@
+package com.example.coolstream;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One GET /clip.mjpg response: a range of the FrameRing as a finite multipart stream.
+ *
+ * - "?seconds=N" selects the last N seconds (default: everything retained) up to the
+ *   newest frame at request time, so the response ends even while capture continues
+ * - Each part carries Content-Length and X-Timestamp (capture time, epoch ms), which is
+ *   enough to index or re-time the frames
+ * - JPEG bytes are written straight from the ring's chunks; only the part headers are
+ *   formatted, into one reused array
+ *
+ * nextBuffer() yields the response piece by piece (part header, JPEG, ..., closing
+ * boundary) for both IoModes; close() releases the chunk being read.
+ */
+final class ClipExport implements AutoCloseable {
+    static final String PATH = "/clip.mjpg";
+
+    static final byte[] HEAD = ("HTTP/1.1 200 OK\r\n" +
+            "Content-Type: multipart/x-mixed-replace; boundary=ipcam\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PART_PREFIX = ("\r\n--ipcam\r\n" +
+            "Content-Type: image/jpeg\r\n" +
+            "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP = "\r\nX-Timestamp: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final FrameRing.Clip clip;
+    // capture nanos -> epoch ms
+    private final long wallOffsetMs = System.currentTimeMillis() - System.nanoTime() / 1_000_000L;
+    // longest part header: 10-digit length, 19-digit timestamp
+    static final int MAX_PART_HEADER = PART_PREFIX.length + 10 + TIMESTAMP.length + 19 + 4;
+    static final byte[] END = "\r\n--ipcam--\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] partHeader = new byte[MAX_PART_HEADER];
+    private final ByteBuffer header = ByteBuffer.wrap(partHeader);
+    private ByteBuffer body;
+    private boolean bodyPending;
+    private boolean ended;
+    private int frames;
+
+    ClipExport(FrameRing ring, HttpRequest request) {
+        int seconds = request.queryInt("seconds");
+        clip = seconds > 0 ? ring.clipOfLast(seconds * 1000L) : ring.clip(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** The next piece of the body, or null once the closing boundary has been handed out. */
+    ByteBuffer nextBuffer() {
+        if (bodyPending) {
+            bodyPending = false;
+            return body;
+        }
+        if (clip.next()) {
+            frames++;
+            byte[] a = clip.array();
+            if (body == null || body.array() != a) body = ByteBuffer.wrap(a);
+            body.limit(clip.offset() + clip.length()).position(clip.offset());
+            bodyPending = true;
+            int n = writePartHeader(partHeader, 0, clip.length(), wallOffsetMs + clip.captureNanos() / 1_000_000L);
+            header.limit(n).position(0);
+            return header;
+        }
+        if (ended) return null;
+        ended = true;
+        return ByteBuffer.wrap(END);
+    }
+
+    /**
+     * Writes the boundary and headers of one part (also the on-disk format of
+     * SegmentRecorder); at most MAX_PART_HEADER bytes.
+     * @return bytes written
+     */
+    static int writePartHeader(byte[] dst, int off, int jpegLength, long epochMs) {
+        int n = off;
+        System.arraycopy(PART_PREFIX, 0, dst, n, PART_PREFIX.length);
+        n += PART_PREFIX.length;
+        n = writeDecimal(dst, n, jpegLength);
+        System.arraycopy(TIMESTAMP, 0, dst, n, TIMESTAMP.length);
+        n += TIMESTAMP.length;
+        n = writeDecimal(dst, n, epochMs);
+        dst[n++] = '\r';
+        dst[n++] = '\n';
+        dst[n++] = '\r';
+        dst[n++] = '\n';
+        return n - off;
+    }
+
+    private static int writeDecimal(byte[] dst, int off, long v) {
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        int p = off + digits;
+        do {
+            dst[--p] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        return off + digits;
+    }
+
+    /** Frames handed out so far. */
+    int frames() { return frames; }
+
+    @Override
+    public void close() {
+        clip.close();
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.coolstream;
+
+
+import java.util.Locale;
+
+/**
+ * Keeps JPEG encoding within the device's CPU and thermal headroom by moving along a ladder
+ * of encode levels (quality, output width, frame rate), best first.
+ *
+ * - EncodePipeline reports every encode's time together with the capture interval; per
+ *   WINDOW_MS the controller compares the mean encode time against the level's frame
+ *   interval (the longer of 1/fps and the camera's actual interval) times the number of
+ *   encoder workers, which encode consecutive frames side by side
+ * - A load above HIGH_LOAD (the workers together encode fewer frames than arrive, so
+ *   frames queue up and go out late) steps one level down, at most once per HOLD_MS so
+ *   the step can take effect first
+ * - Below LOW_LOAD for the whole probe interval the controller probes one level up. A
+ *   probe that overloads within the probe interval is undone and doubles the interval (up
+ *   to MAX_PROBE_MS); one that holds resets it. The gap between the two thresholds is wider
+ *   than one step's saving, so a level that just fits does not flap
+ * - setThermalStatus() (PowerManager.THERMAL_STATUS_* values): from LIGHT up there are no
+ *   probes, only steps down. MODERATE also caps the level one below the top, SEVERE in the
+ *   lower half of the ladder and CRITICAL or worse at the bottom, at once
+ * - Windows without encodes (no client wanted a frame) change nothing
+ *
+ * The controller only decides: EncodePipeline applies level() to the FrameEncoder (quality,
+ * width) and its own capture rate (fps) after takeChange(). Thread-safe; the Listener is
+ * called on the thread that caused the change.
+ */
+public final class EncodeBudget {
+    public static final long WINDOW_MS = 1000;
+    public static final double HIGH_LOAD = 1.0;
+    public static final double LOW_LOAD = 0.5;
+    public static final long HOLD_MS = 2000;
+    public static final long PROBE_MS = 10_000;
+    public static final long MAX_PROBE_MS = 120_000;
+
+    // same values as android.os.PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+
+    /** One rung of the ladder. */
+    public static final class Level {
+        final int quality;
+        final int width;
+        final int fps;
+
+        /**
+         * @param quality JPEG quality 1..100
+         * @param width   output width in pixels, 0 for the camera's native size
+         * @param fps     most captures per second that are encoded
+         */
+        public Level(int quality, int width, int fps) {
+            if (quality < 1 || quality > 100 || width < 0 || fps < 1) {
+                throw new IllegalArgumentException("bad level q" + quality + " " + width + "px " + fps + "fps");
+            }
+            this.quality = quality;
+            this.width = width;
+            this.fps = fps;
+        }
+
+        public int quality() { return quality; }
+        public int width() { return width; }
+        public int fps() { return fps; }
+
+        @Override
+        public String toString() {
+            return "q" + quality + " " + (width == 0 ? "native" : width + "px") + " " + fps + "fps";
+        }
+    }
+
+    /** Told about every level change, e.g. to log it. */
+    public interface Listener {
+        void onLevelChanged(Level from, Level to, String reason);
+    }
+
+    private final Level[] levels;
+    private final int workers;
+    private volatile int level;
+    private volatile Listener listener;
+    private boolean changed;
+    private volatile int thermalStatus;
+    // best level the thermal status allows
+    private int ceiling;
+
+    private long windowStartNanos;
+    private long windowEncodeNanos;
+    private int windowFrames;
+    private long intervalNanos;
+    private volatile double load;
+    private long lastChangeNanos;
+    // since when every window was below LOW_LOAD
+    private long clearSinceNanos = -1;
+    private boolean probing;
+    private long probeNanos = PROBE_MS * 1_000_000L;
+    private long stepsDown;
+    private long stepsUp;
+
+    /** @param workers EncodePipeline threads the encodes are spread over */
+    public EncodeBudget(Level[] levels, int workers) {
+        this(levels, workers, System.nanoTime());
+    }
+
+    EncodeBudget(Level[] levels, int workers, long nowNanos) {
+        if (levels.length == 0) throw new IllegalArgumentException("no levels");
+        if (workers < 1) throw new IllegalArgumentException("workers must be >= 1");
+        this.levels = levels.clone();
+        this.workers = workers;
+        this.windowStartNanos = nowNanos;
+        this.lastChangeNanos = nowNanos;
+    }
+
+    public void setListener(Listener listener) { this.listener = listener; }
+
+    /**
+     * One capture was encoded (for every slot and variant that wanted it).
+     * @param encodeNanos     how long that took
+     * @param captureInterval the camera's current interval between captures, 0 if unknown
+     */
+    public void frameEncoded(long encodeNanos, long captureInterval, long nowNanos) {
+        Level from, to;
+        String reason;
+        synchronized (this) {
+            windowEncodeNanos += encodeNanos;
+            windowFrames++;
+            if (captureInterval > 0) intervalNanos = captureInterval;
+            if (nowNanos - windowStartNanos < WINDOW_MS * 1_000_000L) return;
+            from = levels[level];
+            reason = evaluate(nowNanos);
+            windowStartNanos = nowNanos;
+            windowEncodeNanos = 0;
+            windowFrames = 0;
+            if (reason == null) return;
+            to = levels[level];
+        }
+        notifyListener(from, to, reason);
+    }
+
+    // returns why the level changed, or null
+    private String evaluate(long nowNanos) {
+        long interval = Math.max(intervalNanos, 1_000_000_000L / levels[level].fps);
+        double l = (double) windowEncodeNanos / windowFrames / interval / workers;
+        load = l;
+        long held = nowNanos - lastChangeNanos;
+        if (l > HIGH_LOAD) {
+            clearSinceNanos = -1;
+            if (level == levels.length - 1 || held < HOLD_MS * 1_000_000L) return null;
+            if (probing && held < probeNanos) {
+                // the level we probed for is too expensive: wait longer before the next try
+                probeNanos = Math.min(MAX_PROBE_MS * 1_000_000L, probeNanos * 2);
+            }
+            probing = false;
+            step(level + 1, nowNanos);
+            return String.format(Locale.US, "load %.2f", l);
+        }
+        if (l >= LOW_LOAD) {
+            clearSinceNanos = -1;
+            return null;
+        }
+        if (clearSinceNanos < 0) clearSinceNanos = windowStartNanos;
+        if (probing && held >= probeNanos) {
+            probing = false;
+            probeNanos = PROBE_MS * 1_000_000L;
+        }
+        if (level <= ceiling || thermalStatus >= THERMAL_LIGHT) return null;
+        if (held < probeNanos || nowNanos - clearSinceNanos < probeNanos) return null;
+        probing = true;
+        step(level - 1, nowNanos);
+        return String.format(Locale.US, "load %.2f, probing", l);
+    }
+
+    private void step(int to, long nowNanos) {
+        if (to > level) stepsDown++;
+        else stepsUp++;
+        level = to;
+        changed = true;
+        lastChangeNanos = nowNanos;
+        clearSinceNanos = -1;
+    }
+
+    /** Device thermal status, one of the THERMAL_* (PowerManager.THERMAL_STATUS_*) values. */
+    public void setThermalStatus(int status) {
+        setThermalStatus(status, System.nanoTime());
+    }
+
+    void setThermalStatus(int status, long nowNanos) {
+        Level from, to;
+        synchronized (this) {
+            thermalStatus = status;
+            int n = levels.length;
+            ceiling = status <= THERMAL_LIGHT ? 0
+                    : status == THERMAL_MODERATE ? Math.min(1, n - 1)
+                    : status == THERMAL_SEVERE ? n / 2
+                    : n - 1;
+            if (level >= ceiling) return;
+            from = levels[level];
+            probing = false;
+            step(ceiling, nowNanos);
+            to = levels[level];
+        }
+        notifyListener(from, to, "thermal status " + status);
+    }
+
+    private void notifyListener(Level from, Level to, String reason) {
+        Listener l = listener;
+        if (l != null) l.onLevelChanged(from, to, reason);
+    }
+
+    /** True (once) if the level changed since the last call. */
+    public synchronized boolean takeChange() {
+        boolean c = changed;
+        changed = false;
+        return c;
+    }
+
+    public Level level() { return levels[level]; }
+    /** Index of the current level, 0 being the best. */
+    public int levelIndex() { return level; }
+    public int levels() { return levels.length; }
+    public int thermalStatus() { return thermalStatus; }
+    /** Mean encode time over the frame interval and workers in the last complete window. */
+    public double load() { return load; }
+    public synchronized long stepsDown() { return stepsDown; }
+    public synchronized long stepsUp() { return stepsUp; }
+
+    /** Export the level, load, thermal status and step counts as metrics. */
+    public void setMetrics(StreamMetrics metrics) {
+        Metrics r = metrics.registry();
+        r.gauge("coolstream_encode_level", "Encode budget level, 0 being the best", this::levelIndex);
+        r.gauge("coolstream_encode_quality", "JPEG quality of the current encode level", () -> level().quality);
+        r.gauge("coolstream_encode_width", "Output width of the current encode level, 0 for native", () -> level().width);
+        r.gauge("coolstream_encode_fps", "Frame rate cap of the current encode level", () -> level().fps);
+        r.gauge("coolstream_encode_load_permille", "Mean encode time over the frame interval and workers, in permille",
+                () -> (long) (load * 1000));
+        r.gauge("coolstream_thermal_status", "Device thermal status (PowerManager.THERMAL_STATUS_*)", this::thermalStatus);
+        r.counter("coolstream_encode_level_steps_down_total", "Encode budget steps to a cheaper level", this::stepsDown);
+        r.counter("coolstream_encode_level_steps_up_total", "Encode budget probes of a better level", this::stepsUp);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "EncodeBudget{level=%d (%s), load=%.2f, thermal=%d, down=%d, up=%d}",
+                level, level(), load, thermalStatus, stepsDown(), stepsUp());
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.coolstream;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture → encode pipeline that keeps JPEG compression off the camera callback.
+ *
+ * - submit() queues a filled NV21 buffer and returns immediately; it never waits for an encoder
+ * - The handoff queue is bounded and latest-wins: when it is full the oldest queued capture
+ *   is dropped and its buffer handed straight back to the camera
+ * - A configurable number of "mjpeg-encode-N" workers run FrameEncoder.encode() and return
+ *   each buffer through the BufferRecycler once it has been compressed
+ * - Queue depth, queue wait and encode time are tracked per stage
+ * - Demand-driven: a capture is only encoded if a consumer of the FrameSlot will take a new
+ *   frame by the time it is ready (see FrameSlot.Demand). Otherwise it is parked; when a
+ *   consumer starts waiting (FrameSlot.requestFrame()) the parked capture is encoded if it is
+ *   still within the staleness window, else it is skipped and the next capture is used
+ * - With a MotionDetector set, every capture is analysed on the capture thread; while the
+ *   scene is idle only its trickle (idleFps) reaches the encoder, and published frames carry
+ *   the capture's motion metadata
+ * - With an EncodeBudget set, every encode's time is reported to it and its level is applied:
+ *   quality and width to the FrameEncoder, and captures arriving faster than the level's
+ *   fps are handed straight back (throttled)
+ * - setPaused(true) (camera on standby) hands every capture straight back without
+ *   analysing or encoding it, until setPaused(false)
+ * - With setMetrics(), the capture interval, queue wait and encode time also go into
+ *   StreamMetrics histograms, and the counters below are exported with them
+ */
+public class EncodePipeline {
+    public static final long DEFAULT_STALENESS_MS = 100;
+
+    /** Gives a capture buffer back to its source (the camera's addCallbackBuffer). */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    /** Count, mean and max of one stage's per-frame time. */
+    public static final class StageTiming {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) { }
+        }
+
+        public long count() { return count.get(); }
+
+        public double meanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / (n * 1e6);
+        }
+
+        public double maxMillis() { return maxNanos.get() / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%.2fms max=%.2fms", count(), meanMillis(), maxMillis());
+        }
+    }
+
+    // one queued capture; recycled through a free list so submit() doesn't allocate
+    private static final class Capture {
+        byte[] nv21;
+        long captureNanos;
+        long queuedNanos;
+        int motion;
+    }
+
+    private final FrameEncoder encoder;
+    private final BufferRecycler recycler;
+    private final int workerCount;
+    private final ArrayBlockingQueue<Capture> queue;
+    private final ArrayBlockingQueue<Capture> free;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running;
+    private final FrameSlot slot;
+    private final Runnable onDemand = this::encodeParked;
+    private volatile long stalenessNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALENESS_MS);
+    // newest capture nobody wanted yet; guarded by this lock
+    private final Object parkLock = new Object();
+    private Capture parked;
+    private volatile MotionDetector motionDetector;
+    private volatile StreamMetrics metrics;
+    private volatile boolean paused;
+    private volatile EncodeBudget budget;
+    // smoothed interval between captures, for the budget
+    private volatile long captureIntervalNanos;
+    // capture time of the last capture the budget's fps let through; capture thread only
+    private long lastAdmittedNanos;
+    // previous submit()'s capture time; capture thread only
+    private long lastCaptureNanos;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong displaced = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong idle = new AtomicLong();
+    private final AtomicLong standby = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile int maxQueueDepth;
+    private final StageTiming submitTiming = new StageTiming();
+    private final StageTiming waitTiming = new StageTiming();
+    private final StageTiming encodeTiming = new StageTiming();
+
+    /**
+     * @param workers       encoder threads
+     * @param queueCapacity captures that may wait for an encoder; keep this below the number
+     *                      of camera callback buffers so the camera always has one to fill
+     */
+    public EncodePipeline(FrameEncoder encoder, int workers, int queueCapacity, BufferRecycler recycler) {
+        if (workers < 1 || queueCapacity < 1) throw new IllegalArgumentException("workers and queueCapacity must be >= 1");
+        this.encoder = encoder;
+        this.slot = encoder.frameSlot();
+        this.recycler = recycler;
+        this.workerCount = workers;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        // every capture is either queued, being encoded, parked, or being submitted
+        this.free = new ArrayBlockingQueue<>(queueCapacity + workers + 2);
+        for (int i = 0; i < queueCapacity + workers + 2; i++) free.offer(new Capture());
+    }
+
+    /** How old a parked capture may be and still be encoded when a consumer asks for a frame. */
+    public void setStalenessWindowMs(long ms) {
+        stalenessNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    /**
+     * Return captures to the recycler without encoding them (true) or encode them again
+     * (false). Pausing drops whatever is queued or parked.
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (paused) drain();
+    }
+
+    public boolean isPaused() { return paused; }
+
+    /** Adapt quality, width and frame rate to this budget's level; null keeps them as they are. */
+    public void setBudget(EncodeBudget budget) {
+        this.budget = budget;
+        if (budget != null) apply(budget.level());
+    }
+
+    private void apply(EncodeBudget.Level level) {
+        encoder.setQuality(level.quality());
+        encoder.setMaxWidth(level.width());
+    }
+
+    /** Analyse captures for motion and encode only a trickle of them while idle; null disables. */
+    public void setMotionDetector(MotionDetector detector) {
+        motionDetector = detector;
+    }
+
+    public MotionDetector motionDetector() { return motionDetector; }
+
+    /** Record stage timings in these metrics and export this pipeline's counters; null disables. */
+    public void setMetrics(StreamMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics == null) return;
+        Metrics r = metrics.registry();
+        r.counter("coolstream_captures_submitted_total", "Captures handed to the encoder stage", submitted::get);
+        r.counter("coolstream_captures_displaced_total", "Captures dropped from a full encode queue", displaced::get);
+        r.counter("coolstream_captures_skipped_total", "Captures not encoded because no client was waiting", skipped::get);
+        r.counter("coolstream_captures_idle_total", "Captures held back while the scene was idle", idle::get);
+        r.counter("coolstream_captures_standby_total", "Captures returned unencoded while paused", standby::get);
+        r.counter("coolstream_captures_throttled_total", "Captures over the encode budget's frame rate", throttled::get);
+        r.counter("coolstream_frames_encoded_total", "Frames compressed and published", encoder::framesEncoded);
+        r.gauge("coolstream_encode_queue_depth", "Captures waiting for an encoder", queue::size);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        slot.addDemandListener(onDemand);
+        for (int i = 0; i < workerCount; i++) {
+            Thread t = new Thread(this::runWorker, "mjpeg-encode-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    /** Stop the workers; queued captures are recycled without being encoded. */
+    public synchronized void stop() {
+        running = false;
+        slot.removeDemandListener(onDemand);
+        for (Thread t : workers) t.interrupt();
+        for (Thread t : workers) {
+            try { t.join(1000); } catch (InterruptedException ignored) {}
+        }
+        workers.clear();
+        drain();
+    }
+
+    /** Recycle every queued or parked capture (camera stopped; its buffers are no longer wanted). */
+    public void drain() {
+        Capture c;
+        while ((c = queue.poll()) != null) finish(c);
+        synchronized (parkLock) {
+            c = parked;
+            parked = null;
+        }
+        if (c != null) finish(c);
+    }
+
+    /**
+     * Hand a filled NV21 buffer to the encoder stage. The buffer comes back through the
+     * BufferRecycler after encoding, when a newer capture displaces it, or when it is
+     * skipped for lack of demand. Call from the capture thread only.
+     */
+    public void submit(byte[] nv21, long captureNanos) {
+        long start = System.nanoTime();
+        if (paused) {
+            standby.incrementAndGet();
+            // the capture interval restarts after the pause
+            lastCaptureNanos = 0;
+            captureIntervalNanos = 0;
+            try { recycler.recycle(nv21); } catch (Exception ignored) {}
+            return;
+        }
+        StreamMetrics m = metrics;
+        if (lastCaptureNanos != 0) {
+            long interval = captureNanos - lastCaptureNanos;
+            if (m != null) m.captureInterval.record(interval);
+            long avg = captureIntervalNanos;
+            captureIntervalNanos = avg == 0 ? interval : avg + (interval - avg) / 8;
+        }
+        lastCaptureNanos = captureNanos;
+        EncodeBudget b = budget;
+        if (b != null) {
+            // a little slack so captures a few ms early are not all dropped
+            long minGap = 1_000_000_000L / b.level().fps() * 9 / 10;
+            if (captureNanos - lastAdmittedNanos < minGap) {
+                throttled.incrementAndGet();
+                try { recycler.recycle(nv21); } catch (Exception ignored) {}
+                return;
+            }
+            lastAdmittedNanos = captureNanos;
+        }
+        submitted.incrementAndGet();
+        int motion = MotionDetector.UNKNOWN;
+        MotionDetector md = motionDetector;
+        if (md != null) {
+            motion = md.analyze(nv21, encoder.getWidth(), encoder.getHeight(), captureNanos);
+            if (motion != MotionDetector.UNKNOWN && !md.shouldEncode(captureNanos)) {
+                idle.incrementAndGet();
+                try { recycler.recycle(nv21); } catch (Exception ignored) {}
+                submitTiming.record(System.nanoTime() - start);
+                return;
+            }
+        }
+        Capture c = free.poll();
+        if (c == null) c = new Capture();
+        c.nv21 = nv21;
+        c.captureNanos = captureNanos;
+        c.motion = motion;
+        // wanted if someone will be waiting by the time an encode would finish
+        boolean wanted = encoder.hasDemand(start);
+        Capture old;
+        synchronized (parkLock) {
+            old = parked;
+            parked = wanted ? null : c;
+        }
+        if (old != null) {
+            skipped.incrementAndGet();
+            finish(old);
+        }
+        if (wanted) {
+            enqueue(c);
+        } else if (encoder.hasDemand(System.nanoTime())) {
+            // a consumer started waiting while we parked
+            encodeParked();
+        }
+        submitTiming.record(System.nanoTime() - start);
+    }
+
+    // a consumer started waiting: encode the parked capture unless it is too old
+    private void encodeParked() {
+        Capture c;
+        synchronized (parkLock) {
+            c = parked;
+            parked = null;
+        }
+        if (c == null) return;
+        if (System.nanoTime() - c.captureNanos <= stalenessNanos) {
+            enqueue(c);
+        } else {
+            skipped.incrementAndGet();
+            finish(c);
+        }
+    }
+
+    private void enqueue(Capture c) {
+        c.queuedNanos = System.nanoTime();
+        while (!queue.offer(c)) {
+            Capture old = queue.poll();
+            if (old != null) {
+                displaced.incrementAndGet();
+                finish(old);
+            }
+        }
+        int depth = queue.size();
+        if (depth > maxQueueDepth) maxQueueDepth = depth;
+    }
+
+    private void runWorker() {
+        while (running) {
+            Capture c;
+            try {
+                c = queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (c == null) continue;
+            long start = System.nanoTime();
+            waitTiming.record(start - c.queuedNanos);
+            boolean published = false;
+            try {
+                published = encoder.encode(c.nv21, c.captureNanos, c.motion);
+            } catch (Exception ignored) {
+                // counted by FrameEncoder.framesFailed()
+            }
+            long encodeNanos = System.nanoTime() - start;
+            encodeTiming.record(encodeNanos);
+            StreamMetrics m = metrics;
+            if (m != null) {
+                m.encodeWait.record(start - c.queuedNanos);
+                m.encodeTime.record(encodeNanos);
+            }
+            EncodeBudget b = budget;
+            // a capture nobody wanted by the time it was dequeued was not encoded at all
+            if (b != null && published) {
+                b.frameEncoded(encodeNanos, captureIntervalNanos, System.nanoTime());
+                if (b.takeChange()) apply(b.level());
+            }
+            finish(c);
+        }
+    }
+
+    private void finish(Capture c) {
+        byte[] buf = c.nv21;
+        c.nv21 = null;
+        free.offer(c);
+        try { recycler.recycle(buf); } catch (Exception ignored) {}
+    }
+
+    public int workers() { return workerCount; }
+    public int queueDepth() { return queue.size(); }
+    public int maxQueueDepth() { return maxQueueDepth; }
+    public long framesSubmitted() { return submitted.get(); }
+    /** Captures dropped from a full queue in favour of a newer one. */
+    public long framesDisplaced() { return displaced.get(); }
+    /** Captures not encoded because no consumer was waiting for a frame. */
+    public long framesSkipped() { return skipped.get(); }
+    /** Captures held back by the MotionDetector's idle trickle. */
+    public long framesIdle() { return idle.get(); }
+    /** Captures returned unencoded while paused. */
+    public long framesStandby() { return standby.get(); }
+    /** Captures over the EncodeBudget's frame rate. */
+    public long framesThrottled() { return throttled.get(); }
+
+    /** Time the capture thread spends in submit(). */
+    public StageTiming submitTiming() { return submitTiming; }
+    /** Time a capture waits in the queue for an encoder. */
+    public StageTiming waitTiming() { return waitTiming; }
+    /** Time spent compressing and publishing one frame. */
+    public StageTiming encodeTiming() { return encodeTiming; }
+
+    @Override
+    public String toString() {
+        return "EncodePipeline{workers=" + workerCount +
+                ", submitted=" + submitted.get() +
+                ", displaced=" + displaced.get() +
+                ", encoded=" + encoder.framesEncoded() +
+                ", skipped=" + skipped.get() +
+                ", idle=" + idle.get() +
+                ", standby=" + standby.get() +
+                ", throttled=" + throttled.get() +
+                ", neededFps=" + (slot.neededFps() == FrameSlot.UNLIMITED_FPS ? "max" : String.valueOf(slot.neededFps())) +
+                ", late=" + encoder.framesLate() +
+                ", queue=" + queue.size() + "/max " + maxQueueDepth +
+                ", submit[" + submitTiming + "]" +
+                ", wait[" + waitTiming + "]" +
+                ", encode[" + encodeTiming + "]}";
+    }
+}
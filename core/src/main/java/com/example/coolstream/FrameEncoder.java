@@ -0,0 +1,274 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NV21 → JPEG stage between the camera callback and the FrameSlot.
+ *
+ * - Encodes straight into a pooled frame buffer (no intermediate stream, no exact-size copy)
+ * - Publishes the frame as a (buffer, length) view with the multipart header written in
+ *   front of it, so steady-state encoding allocates nothing on the Java side
+ * - When every pooled buffer is still held by clients the camera frame is dropped
+ * - Optional region-of-interest crop and rotation are applied to the capture once, before
+ *   any encode (Nv21, pure Java, into per-thread reusable buffers); so is setMaxWidth()'s
+ *   downscale, which every slot and variant then sees as the native size
+ * - With FrameVariants set, each capture is also encoded once per stream profile in use
+ *   (scaled, grey and/or at another quality); the primary slot and every variant are only
+ *   encoded while one of their consumers is waiting
+ *
+ * encode() may run on several threads at once (see EncodePipeline); a frame that finishes
+ * after a newer capture was already published is discarded rather than published out of order.
+ */
+public class FrameEncoder {
+    public static final int DEFAULT_QUALITY = 60;
+
+    private final FrameSlot slot;
+    private final FramePool pool;
+    private volatile JpegEncoder encoder;
+    private final FrameVariants.Variant primary;
+    private volatile FrameVariants variants;
+    private volatile int width;
+    private volatile int height;
+    private volatile int quality = DEFAULT_QUALITY;
+    private volatile int rotation;
+    // {x, y, width, height} or null for the full frame
+    private volatile int[] crop;
+    // 0 for the capture's own width (see setMaxWidth)
+    private volatile int maxWidth;
+    // capture after crop/rotation, per encoder thread
+    private final ThreadLocal<Source> sources = new ThreadLocal<Source>() {
+        @Override protected Source initialValue() { return new Source(); }
+    };
+    // moving average of one encode, used to start encoding just before a consumer is due
+    private volatile long avgEncodeNanos;
+
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    // the NV21 image fed to the variants, and the buffers it is built in
+    private static final class Source {
+        byte[] data;
+        int width;
+        int height;
+        byte[] cropped;
+        byte[] rotated;
+        byte[] scaled;
+    }
+
+    public FrameEncoder(FrameSlot slot, FramePool pool, JpegEncoder encoder) {
+        this.slot = slot;
+        this.pool = pool;
+        this.encoder = encoder;
+        this.primary = new FrameVariants.Variant(StreamProfile.DEFAULT, slot);
+    }
+
+    /**
+     * Encode with another JpegEncoder from the next capture on; encodes already running
+     * finish with the old one.
+     */
+    public void setJpegEncoder(JpegEncoder encoder) {
+        if (encoder == null) throw new IllegalArgumentException("encoder");
+        this.encoder = encoder;
+    }
+
+    public JpegEncoder getJpegEncoder() { return encoder; }
+
+    /** Also encode the variants requested by stream clients; variants.primary() must be our slot. */
+    public void setVariants(FrameVariants variants) {
+        if (variants != null && variants.primary() != slot) {
+            throw new IllegalArgumentException("variants belong to another FrameSlot");
+        }
+        this.variants = variants;
+    }
+
+    /** Preview size, cached once when preview starts. */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setQuality(int quality) { this.quality = quality; }
+
+    /** Rotate every frame clockwise by 0, 90, 180 or 270 degrees before encoding. */
+    public void setRotation(int degrees) {
+        if (degrees % 90 != 0) throw new IllegalArgumentException("rotation must be a multiple of 90: " + degrees);
+        this.rotation = ((degrees % 360) + 360) % 360;
+    }
+
+    /**
+     * Encode only this region of the preview (before rotation); it is clipped to the frame
+     * and rounded to even coordinates.
+     */
+    public void setCrop(int x, int y, int width, int height) {
+        this.crop = new int[]{x, y, width, height};
+    }
+
+    public void clearCrop() { this.crop = null; }
+
+    /**
+     * Shrink captures (after crop and rotation) to at most this width before encoding,
+     * keeping the aspect ratio; 0 encodes them at their own size. Used by EncodeBudget.
+     */
+    public void setMaxWidth(int width) {
+        this.maxWidth = width <= 0 ? 0 : Math.max(StreamProfile.MIN_WIDTH, width & ~1);
+    }
+
+    public int getQuality() { return quality; }
+    public int getMaxWidth() { return maxWidth; }
+
+    FrameSlot frameSlot() { return slot; }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /** True if the primary slot or any variant will have a consumer waiting within one encode time. */
+    boolean hasDemand(long nowNanos) {
+        long horizon = nowNanos + avgEncodeNanos;
+        if (slot.nextDemandNanos() <= horizon) return true;
+        FrameVariants vs = variants;
+        if (vs == null) return false;
+        FrameVariants.Variant[] ts = vs.targets();
+        for (int i = 0; i < ts.length; i++) {
+            if (ts[i].slot.nextDemandNanos() <= horizon) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encode one NV21 frame for the primary slot and every wanted variant, and publish.
+     * @return false if nothing was published (no buffer free, nobody waiting, or a newer
+     *         capture was published first)
+     */
+    public boolean encode(byte[] nv21, long captureNanos) throws IOException {
+        return encode(nv21, captureNanos, MotionDetector.UNKNOWN);
+    }
+
+    /** As encode(nv21, captureNanos), tagging the published frames with MotionDetector metadata. */
+    public boolean encode(byte[] nv21, long captureNanos, int motion) throws IOException {
+        FrameVariants vs = variants;
+        // without variants the primary is always encoded; the pipeline already checked demand
+        if (vs == null) return encode(primary, prepare(nv21), captureNanos, motion);
+        long horizon = System.nanoTime() + avgEncodeNanos;
+        boolean published = false;
+        Source src = null;
+        if (slot.nextDemandNanos() <= horizon) {
+            src = prepare(nv21);
+            published = encode(primary, src, captureNanos, motion);
+        }
+        FrameVariants.Variant[] ts = vs.targets();
+        for (int i = 0; i < ts.length; i++) {
+            if (ts[i].slot.nextDemandNanos() > horizon) continue;
+            if (src == null) src = prepare(nv21);
+            published |= encode(ts[i], src, captureNanos, motion);
+        }
+        return published;
+    }
+
+    // applies crop, rotation and the width cap to the capture
+    private Source prepare(byte[] nv21) {
+        Source src = sources.get();
+        int w = width, h = height;
+        byte[] data = nv21;
+        int[] c = crop;
+        if (c != null) {
+            int x = Math.max(0, Math.min(c[0], w - 2)) & ~1;
+            int y = Math.max(0, Math.min(c[1], h - 2)) & ~1;
+            int cw = Math.max(2, Math.min(c[2], w - x)) & ~1;
+            int ch = Math.max(2, Math.min(c[3], h - y)) & ~1;
+            if (cw != w || ch != h) {
+                src.cropped = reuse(src.cropped, Nv21.size(cw, ch));
+                Nv21.crop(data, w, h, x, y, cw, ch, src.cropped);
+                data = src.cropped;
+                w = cw;
+                h = ch;
+            }
+        }
+        int r = rotation;
+        if (r != 0) {
+            src.rotated = reuse(src.rotated, Nv21.size(w, h));
+            Nv21.rotate(data, w, h, src.rotated, r);
+            data = src.rotated;
+            if (r != 180) {
+                int t = w;
+                w = h;
+                h = t;
+            }
+        }
+        int mw = maxWidth;
+        if (mw > 0 && mw < w) {
+            int sh = Math.max(2, (int) ((long) h * mw / w) & ~1);
+            src.scaled = reuse(src.scaled, Nv21.size(mw, sh));
+            if (w >= 2 * mw) Nv21.scaleBox(data, w, h, src.scaled, mw, sh);
+            else Nv21.scaleNearest(data, w, h, src.scaled, mw, sh);
+            data = src.scaled;
+            w = mw;
+            h = sh;
+        }
+        src.data = data;
+        src.width = w;
+        src.height = h;
+        return src;
+    }
+
+    private static byte[] reuse(byte[] buf, int size) {
+        return buf != null && buf.length == size ? buf : new byte[size];
+    }
+
+    private boolean encode(FrameVariants.Variant target, Source src, long captureNanos, int motion) throws IOException {
+        int w = src.width, h = src.height;
+        int ow = target.profile.outputWidth(w);
+        int oh = target.profile.outputHeight(w, h);
+        boolean gray = target.profile.gray();
+        FrameSlot.Frame out = pool.acquire();
+        if (out == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            byte[] input = src.data;
+            if (ow != w || gray) {
+                input = reuse(target.scratch.get(), Nv21.size(ow, oh));
+                target.scratch.set(input);
+                // box filter once shrinking by 2x or more, where nearest-neighbour aliases badly
+                if (ow == w) System.arraycopy(src.data, 0, input, 0, w * h);
+                else if (w >= 2 * ow) Nv21.scaleBox(src.data, w, h, input, ow, oh);
+                else Nv21.scaleNearest(src.data, w, h, input, ow, oh);
+                if (gray) Nv21.grayscale(input, ow, oh, input);
+            }
+            encoder.compress(input, ow, oh, target.profile.qualityOr(quality), out.output());
+            ok = true;
+        } finally {
+            if (!ok) {
+                out.release();
+                failed.incrementAndGet();
+            }
+        }
+        long took = System.nanoTime() - start;
+        long avg = avgEncodeNanos;
+        avgEncodeNanos = avg == 0 ? took : avg + (took - avg) / 8;
+        encoded.incrementAndGet();
+        synchronized (target) {
+            if (!target.evicted && captureNanos >= target.lastPublishedNanos) {
+                target.lastPublishedNanos = captureNanos;
+                out.setMotion(motion);
+                target.slot.publish(out, captureNanos);
+                return true;
+            }
+        }
+        out.release();
+        late.incrementAndGet();
+        return false;
+    }
+
+    public long framesEncoded() { return encoded.get(); }
+    public long framesDropped() { return dropped.get(); }
+    public long framesFailed() { return failed.get(); }
+    /** Frames encoded but discarded because a newer capture finished first. */
+    public long framesLate() { return late.get(); }
+}
@@ -0,0 +1,70 @@
+package com.example.coolstream;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of pre-sized JPEG frame buffers.
+ *
+ * - acquire() hands out a free frame (creating one until maxFrames exist) or null when
+ *   every frame is still referenced; the caller then drops the camera frame
+ * - A frame returns here automatically when its last reference is released, so a buffer
+ *   that a client is still sending is never handed out again
+ */
+public final class FramePool {
+    private final int maxFrames;
+    private final int initialCapacity;
+    private final ArrayBlockingQueue<FrameSlot.Frame> free;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param initialCapacity expected JPEG size; a frame that outgrows it keeps its larger buffer
+     */
+    public FramePool(int maxFrames, int initialCapacity) {
+        this.maxFrames = maxFrames;
+        this.initialCapacity = initialCapacity;
+        this.free = new ArrayBlockingQueue<>(maxFrames);
+    }
+
+    /** A frame owned by the caller (one reference), or null if the pool is exhausted. */
+    public FrameSlot.Frame acquire() {
+        FrameSlot.Frame f = free.poll();
+        if (f == null) {
+            int n = created.get();
+            while (n < maxFrames) {
+                if (created.compareAndSet(n, n + 1)) {
+                    f = new FrameSlot.Frame(this, n, initialCapacity);
+                    break;
+                }
+                n = created.get();
+            }
+            if (f == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        hits.incrementAndGet();
+        f.resetRefs(1);
+        return f;
+    }
+
+    void recycle(FrameSlot.Frame f) {
+        free.offer(f);
+    }
+
+    public int maxFrames() { return maxFrames; }
+
+    public int created() { return created.get(); }
+
+    public int available() { return free.size() + maxFrames - created.get(); }
+
+    /** Number of acquire() calls that got a frame. */
+    public long hits() { return hits.get(); }
+
+    /** Number of acquire() calls that found every frame in use. */
+    public long misses() { return misses.get(); }
+}
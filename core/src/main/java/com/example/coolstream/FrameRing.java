@@ -0,0 +1,339 @@
+package com.example.coolstream;
+
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-event buffer: the last few seconds of encoded frames, kept for clip export.
+ *
+ * - JPEGs are appended back to back into large chunks (chunkBytes each, allocated on
+ *   first use and then reused), not kept as one object per frame; a small index of
+ *   parallel arrays holds each frame's seq, capture time and position
+ * - Retention is capped by duration (frames older than maxDuration before the newest are
+ *   evicted) and by bytes: at most maxBytes of chunks ever exist. When capture needs a
+ *   chunk it takes the oldest one and evicts every frame in it, so frames always leave in
+ *   capture order
+ * - Clips read frame bytes straight out of the chunks. A clip pins the chunk it is reading;
+ *   a pinned chunk is never reused, so capture continues into a spare chunk meanwhile (one
+ *   chunk is always kept out of the ring for this). If capture finds no free chunk at all
+ *   the frame is dropped rather than exceeding maxBytes
+ * - attach() records every frame a FrameSlot publishes (up to maxFps) and registers a
+ *   Demand so the encoder produces them even when nobody is streaming
+ *
+ * Thread-safe: record() and clips may run on any threads.
+ */
+public final class FrameRing {
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 20;
+    public static final int DEFAULT_MAX_FRAMES = 4096;
+
+    private static final class Chunk {
+        final byte[] data;
+        int used;
+        // clips reading from this chunk; it is only reused once this drops to 0
+        int pins;
+        // evicted from the ring while pinned: goes to the free list on the last unpin
+        boolean retired;
+
+        Chunk(int bytes) { data = new byte[bytes]; }
+    }
+
+    private final long maxDurationNanos;
+    private final int chunkBytes;
+    private final int maxChunks;
+    private final int capacity;
+
+    // frame index, a circular buffer over [first, end) in capture order
+    private final long[] seqs;
+    private final long[] captureNanos;
+    private final Chunk[] chunkOf;
+    private final int[] offsets;
+    private final int[] lengths;
+    private long first;
+    private long end;
+    private long retainedBytes;
+
+    // chunks holding indexed frames, oldest first; the last one is being filled
+    private final ArrayDeque<Chunk> ring = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+    private int allocated;
+
+    private long lastSeq;
+    private long lastRecordedNanos = Long.MIN_VALUE;
+    private long recorded;
+    private long evicted;
+    private long dropped;
+
+    private volatile long minGapNanos;
+    private FrameSlot source;
+    private final Runnable onPublish = this::recordLatest;
+    private final FrameSlot.Demand demand = new FrameSlot.Demand() {
+        @Override
+        public long nextDemandNanos() {
+            synchronized (FrameRing.this) {
+                return lastRecordedNanos == Long.MIN_VALUE ? Long.MIN_VALUE : lastRecordedNanos + minGapNanos;
+            }
+        }
+
+        @Override
+        public int neededFps() {
+            long gap = minGapNanos;
+            return gap == 0 ? FrameSlot.UNLIMITED_FPS : (int) (1_000_000_000L / gap);
+        }
+    };
+
+    public FrameRing(long maxDurationMs, long maxBytes) {
+        this(maxDurationMs, maxBytes, DEFAULT_CHUNK_BYTES, DEFAULT_MAX_FRAMES);
+    }
+
+    /**
+     * @param maxBytes   memory for frame data, rounded down to whole chunks (at least 2)
+     * @param chunkBytes size of one pooled array; frames larger than this are not recorded
+     * @param maxFrames  size of the frame index
+     */
+    public FrameRing(long maxDurationMs, long maxBytes, int chunkBytes, int maxFrames) {
+        if (chunkBytes <= 0 || maxFrames <= 0) throw new IllegalArgumentException("chunkBytes and maxFrames must be > 0");
+        this.maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxDurationMs);
+        this.chunkBytes = chunkBytes;
+        this.maxChunks = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / chunkBytes));
+        this.capacity = maxFrames;
+        this.seqs = new long[maxFrames];
+        this.captureNanos = new long[maxFrames];
+        this.chunkOf = new Chunk[maxFrames];
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+    }
+
+    /**
+     * Record the frames published to slot, at most maxFps per second (0: every frame), and
+     * ask its encoder for them. Replaces any previous source.
+     */
+    public synchronized void attach(FrameSlot slot, int maxFps) {
+        detach();
+        minGapNanos = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+        source = slot;
+        slot.addListener(onPublish);
+        slot.addDemand(demand);
+    }
+
+    public synchronized void detach() {
+        if (source == null) return;
+        source.removeListener(onPublish);
+        source.removeDemand(demand);
+        source = null;
+    }
+
+    private void recordLatest() {
+        FrameSlot s = source;
+        if (s == null) return;
+        FrameSlot.Frame f = s.acquireLatest();
+        if (f == null) return;
+        try {
+            record(f);
+        } finally {
+            f.release();
+        }
+    }
+
+    /**
+     * Copy a published frame into the ring. Frames not newer than the last one recorded,
+     * or arriving sooner than the maxFps gap allows, are ignored.
+     * @return true if the frame was recorded
+     */
+    public synchronized boolean record(FrameSlot.Frame f) {
+        long t = f.captureNanos();
+        // a quarter gap of slack so a source running right at maxFps is not halved by jitter
+        long gap = minGapNanos;
+        if (f.seq() <= lastSeq || (gap > 0 && lastRecordedNanos != Long.MIN_VALUE && t - lastRecordedNanos < gap - gap / 4)) {
+            return false;
+        }
+        int len = f.jpegLength();
+        if (len > chunkBytes) {
+            dropped++;
+            return false;
+        }
+        while (first < end && t - captureNanos[index(first)] > maxDurationNanos) evictFirst();
+        if (end - first == capacity) evictFirst();
+        Chunk c = ring.peekLast();
+        if (c == null || c.used + len > chunkBytes) {
+            c = nextChunk();
+            if (c == null) {
+                dropped++;
+                return false;
+            }
+        }
+        System.arraycopy(f.data(), f.jpegOffset(), c.data, c.used, len);
+        int i = index(end++);
+        seqs[i] = f.seq();
+        captureNanos[i] = t;
+        chunkOf[i] = c;
+        offsets[i] = c.used;
+        lengths[i] = len;
+        c.used += len;
+        retainedBytes += len;
+        lastSeq = f.seq();
+        lastRecordedNanos = t;
+        recorded++;
+        return true;
+    }
+
+    private int index(long n) {
+        return (int) (n % capacity);
+    }
+
+    private void evictFirst() {
+        int i = index(first++);
+        retainedBytes -= lengths[i];
+        chunkOf[i] = null;
+        evicted++;
+    }
+
+    // an empty chunk appended to the ring, or null if every chunk is pinned or in use
+    private Chunk nextChunk() {
+        // one chunk stays out of the ring, so a pinned oldest chunk never stops capture
+        if (ring.size() >= maxChunks - 1) retireOldest();
+        Chunk c = free.poll();
+        if (c == null && allocated < maxChunks) {
+            c = new Chunk(chunkBytes);
+            allocated++;
+        }
+        if (c == null) return null;
+        c.used = 0;
+        ring.addLast(c);
+        return c;
+    }
+
+    private void retireOldest() {
+        Chunk old = ring.pollFirst();
+        if (old == null) return;
+        while (first < end && chunkOf[index(first)] == old) evictFirst();
+        if (old.pins == 0) free.addLast(old);
+        else old.retired = true;
+    }
+
+    private void unpin(Chunk c) {
+        if (--c.pins == 0 && c.retired) {
+            c.retired = false;
+            free.addLast(c);
+        }
+    }
+
+    /**
+     * Frames captured at or after fromNanos and no later than toNanos, as they are at this
+     * moment; frames evicted before the clip reaches them are skipped. close() the clip.
+     */
+    public synchronized Clip clip(long fromNanos, long toNanos) {
+        long start = first;
+        while (start < end && captureNanos[index(start)] < fromNanos) start++;
+        long stop = start;
+        while (stop < end && captureNanos[index(stop)] <= toNanos) stop++;
+        return new Clip(start, stop);
+    }
+
+    /** The last ms milliseconds, up to the newest frame recorded so far. */
+    public synchronized Clip clipOfLast(long ms) {
+        if (first == end) return new Clip(end, end);
+        long newest = captureNanos[index(end - 1)];
+        return clip(newest - TimeUnit.MILLISECONDS.toNanos(ms), newest);
+    }
+
+    /**
+     * Reads a range of frames in capture order without copying them. The bytes returned
+     * by array()/offset()/length() stay valid until the next call to next() or close().
+     */
+    public final class Clip implements AutoCloseable {
+        private long next;
+        private final long stop;
+        private Chunk pinned;
+        private int offset;
+        private int length;
+        private long seq;
+        private long nanos;
+        private int skipped;
+
+        Clip(long start, long stop) {
+            this.next = start;
+            this.stop = stop;
+        }
+
+        /** Advance to the next frame; false when the range is done (or the clip closed). */
+        public boolean next() {
+            synchronized (FrameRing.this) {
+                if (pinned != null) {
+                    unpin(pinned);
+                    pinned = null;
+                }
+                if (next < first) {
+                    skipped += (int) (Math.min(first, stop) - next);
+                    next = first;
+                }
+                if (next >= stop) return false;
+                int i = index(next++);
+                pinned = chunkOf[i];
+                pinned.pins++;
+                offset = offsets[i];
+                length = lengths[i];
+                seq = seqs[i];
+                nanos = captureNanos[i];
+                return true;
+            }
+        }
+
+        /** Frames still to come, including ones that may be evicted before they are read. */
+        public int remaining() {
+            return (int) Math.max(0, stop - next);
+        }
+
+        public byte[] array() { return pinned.data; }
+        public int offset() { return offset; }
+        public int length() { return length; }
+        public long seq() { return seq; }
+        public long captureNanos() { return nanos; }
+        /** Frames of the range that were evicted before the clip reached them. */
+        public int skipped() { return skipped; }
+
+        @Override
+        public void close() {
+            synchronized (FrameRing.this) {
+                if (pinned != null) {
+                    unpin(pinned);
+                    pinned = null;
+                }
+                next = stop;
+            }
+        }
+    }
+
+    public synchronized int retainedFrames() { return (int) (end - first); }
+    /** JPEG bytes of the frames currently retained. */
+    public synchronized long retainedBytes() { return retainedBytes; }
+    /** Bytes of chunk arrays allocated so far; never more than maxBytes(). */
+    public synchronized long allocatedBytes() { return (long) allocated * chunkBytes; }
+    public long maxBytes() { return (long) maxChunks * chunkBytes; }
+
+    /** Capture time span from the oldest to the newest retained frame. */
+    public synchronized long retainedMs() {
+        if (first == end) return 0;
+        return TimeUnit.NANOSECONDS.toMillis(captureNanos[index(end - 1)] - captureNanos[index(first)]);
+    }
+
+    /** Seq of the oldest retained frame, or 0 if empty. */
+    public synchronized long oldestSeq() { return first == end ? 0 : seqs[index(first)]; }
+    /** Seq of the newest retained frame, or 0 if empty. */
+    public synchronized long newestSeq() { return first == end ? 0 : seqs[index(end - 1)]; }
+
+    public synchronized long framesRecorded() { return recorded; }
+    public synchronized long framesEvicted() { return evicted; }
+    /** Frames not recorded: larger than a chunk, or no chunk free because clips pinned them. */
+    public synchronized long framesDropped() { return dropped; }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameRing{frames=" + (end - first) +
+                ", retainedMs=" + retainedMs() +
+                ", bytes=" + retainedBytes + "/" + maxBytes() +
+                ", recorded=" + recorded +
+                ", evicted=" + evicted +
+                ", dropped=" + dropped + "}";
+    }
+}
@@ -0,0 +1,472 @@
+package com.example.coolstream;
+
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Versioned single-frame handoff between the camera and the streaming clients.
+ *
+ * - publish() replaces the current frame and bumps a sequence number
+ * - awaitNewer(seq) blocks until a frame newer than seq exists, so each waiter wakes
+ *   exactly once per new frame and never sees the same frame twice
+ * - Listeners are run after every publish (used by the selector loops to wake up)
+ *
+ * Frames may come from a FramePool. Ownership is reference counted: the slot holds one
+ * reference to the current frame, awaitNewer()/acquireLatest() hand out another, and a
+ * pooled frame only goes back to its pool (and is overwritten) once every holder has
+ * called release().
+ *
+ * markStale() keeps the current frame for consumers that have none yet (a client that
+ * connects while the camera is off or on standby gets it at once), flagged as stale; it is
+ * not a new frame, so consumers that already had it are not sent it again.
+ *
+ * Consumers that register a Demand tell the producer when the next frame is actually
+ * wanted, so it can skip encoding frames nobody would receive (see EncodePipeline). With
+ * no Demand registered every frame counts as wanted.
+ *
+ * Also usable as a plain FrameProvider for code that only wants the latest JPEG.
+ */
+public class FrameSlot implements MjpegHttpServer.FrameProvider {
+
+    /** neededFps() of a consumer that takes every frame it can get. */
+    public static final int UNLIMITED_FPS = Integer.MAX_VALUE;
+
+    /** What a set of consumers (e.g. one server's clients) currently needs. */
+    public interface Demand {
+        /**
+         * Earliest System.nanoTime() at which one of the consumers will take a new frame,
+         * or Long.MAX_VALUE if none is waiting (no consumers, or all still busy).
+         */
+        long nextDemandNanos();
+
+        /** Highest rate any consumer wants, UNLIMITED_FPS if one is uncapped, 0 if none. */
+        int neededFps();
+    }
+
+    public static final class Frame {
+        // room in front of the JPEG for the multipart part header
+        static final int HEADROOM = 96;
+        // extra part header of a stale frame
+        static final byte[] STALE_HEADER = "X-Stale: 1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final FramePool pool;
+        final int poolIndex;
+        private final AtomicInteger refs = new AtomicInteger();
+        private final Output output;
+
+        private byte[] data;
+        private int jpegOffset;
+        private int jpegLength;
+        private int wireOffset;
+        private volatile byte[] wire;
+
+        private long seq;
+        private long captureNanos;
+        private long publishNanos;
+        private long streamOffset;
+        private int motion = MotionDetector.UNKNOWN;
+        private boolean stale;
+
+        // wraps a caller-owned JPEG; the multipart part is built lazily on first use
+        Frame(byte[] jpeg) {
+            this.pool = null;
+            this.poolIndex = -1;
+            this.output = null;
+            this.data = jpeg;
+            this.jpegLength = jpeg.length;
+        }
+
+        Frame(FramePool pool, int poolIndex, int capacity) {
+            this.pool = pool;
+            this.poolIndex = poolIndex;
+            this.output = new Output();
+            this.data = new byte[HEADROOM + capacity];
+            this.jpegOffset = HEADROOM;
+        }
+
+        public long seq() { return seq; }
+        public long captureNanos() { return captureNanos; }
+        /** System.nanoTime() at which the slot published this frame. */
+        public long publishNanos() { return publishNanos; }
+        /**
+         * Total JPEG bytes published up to and including this frame; the difference between
+         * two frames' offsets is how far behind a client still sending the older one is.
+         */
+        public long streamOffset() { return streamOffset; }
+
+        /** Motion score of the capture (permille of changed blocks), or MotionDetector.UNKNOWN. */
+        public int motionScore() { return MotionDetector.score(motion); }
+        /** True if the scene was in motion when this frame was captured. */
+        public boolean hasMotion() { return MotionDetector.isActive(motion); }
+
+        /**
+         * True for the last frame of a stopped (or standby) capture, kept by markStale();
+         * the picture may be far older than the stream's usual latency.
+         */
+        public boolean isStale() { return stale; }
+
+        // packed MotionDetector metadata; set by the encoder before publishing
+        void setMotion(int motion) { this.motion = motion; }
+
+        public byte[] data() { return data; }
+        public int jpegOffset() { return jpegOffset; }
+        public int jpegLength() { return jpegLength; }
+
+        /** Exact-size copy of the JPEG (caller-owned frames return their array as is). */
+        public byte[] jpegCopy() {
+            if (pool == null) return data;
+            return Arrays.copyOfRange(data, jpegOffset, jpegOffset + jpegLength);
+        }
+
+        /**
+         * Array holding the complete multipart part (boundary, headers, JPEG) as sent to
+         * stream clients, starting at wireOffset(). Built once and shared by every client;
+         * callers must not modify it.
+         */
+        public byte[] wireData() {
+            if (pool != null) return data;
+            byte[] w = wire;
+            if (w == null) {
+                synchronized (this) {
+                    w = wire;
+                    if (w == null) {
+                        int h = MjpegHttpServer.partHeaderLength(jpegLength);
+                        int extra = stale ? STALE_HEADER.length : 0;
+                        w = new byte[h + extra + jpegLength];
+                        MjpegHttpServer.writePartHeader(w, 0, jpegLength);
+                        if (stale) {
+                            // in front of the blank line that ends the part headers
+                            System.arraycopy(STALE_HEADER, 0, w, h - 2, extra);
+                            w[h + extra - 2] = '\r';
+                            w[h + extra - 1] = '\n';
+                            h += extra;
+                        }
+                        System.arraycopy(data, 0, w, h, jpegLength);
+                        wire = w;
+                    }
+                }
+            }
+            return w;
+        }
+
+        public int wireOffset() { return pool != null ? wireOffset : 0; }
+
+        public int wireLength() {
+            return pool != null ? jpegOffset + jpegLength - wireOffset : wireData().length;
+        }
+
+        /** Read-only view of the wire bytes; each call returns an independent position/limit. */
+        public ByteBuffer wireBuffer() {
+            return ByteBuffer.wrap(wireData(), wireOffset(), wireLength()).slice().asReadOnlyBuffer();
+        }
+
+        /** True if this frame's buffer is recycled through a FramePool. */
+        public boolean isPooled() { return pool != null; }
+
+        public Frame retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            if (refs.decrementAndGet() == 0 && pool != null) pool.recycle(this);
+        }
+
+        /**
+         * Stream that writes the JPEG into this (pooled, unpublished) frame's buffer.
+         * Each call starts a new JPEG; the buffer grows only if a frame outgrows it.
+         */
+        public OutputStream output() {
+            jpegLength = 0;
+            return output;
+        }
+
+        // prepares a frame for publishing; pooled frames get the part header in their headroom
+        void stamp(long seq, long captureNanos, long publishNanos, long streamOffset) {
+            this.seq = seq;
+            this.captureNanos = captureNanos;
+            this.publishNanos = publishNanos;
+            this.streamOffset = streamOffset;
+            if (pool != null) {
+                wireOffset = jpegOffset - MjpegHttpServer.partHeaderLength(jpegLength);
+                MjpegHttpServer.writePartHeader(data, wireOffset, jpegLength);
+            }
+        }
+
+        // caller-owned copy of this frame, flagged stale, with the same seq and timestamps
+        Frame staleCopy() {
+            Frame c = new Frame(jpegCopy());
+            c.seq = seq;
+            c.captureNanos = captureNanos;
+            c.publishNanos = publishNanos;
+            c.streamOffset = streamOffset;
+            c.motion = motion;
+            c.stale = true;
+            return c;
+        }
+
+        void resetRefs(int n) { refs.set(n); }
+
+        private final class Output extends OutputStream {
+            @Override
+            public void write(int b) {
+                ensure(1);
+                data[jpegOffset + jpegLength++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                ensure(len);
+                System.arraycopy(b, off, data, jpegOffset + jpegLength, len);
+                jpegLength += len;
+            }
+
+            private void ensure(int extra) {
+                int need = jpegOffset + jpegLength + extra;
+                if (need <= data.length) return;
+                data = Arrays.copyOf(data, Math.max(need, data.length + (data.length >> 1)));
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+    // copy-on-write array so publish() can run listeners without allocating
+    private volatile Runnable[] listeners = new Runnable[0];
+    private volatile Demand[] demands = new Demand[0];
+    private volatile Runnable[] demandListeners = new Runnable[0];
+    private Frame latest;
+    private long seq;
+    private long publishedBytes;
+
+    /**
+     * Adapt a pull-only provider. The returned slot polls the provider and publishes
+     * whenever it hands out a different array; a FrameSlot is returned unchanged.
+     */
+    static FrameSlot of(MjpegHttpServer.FrameProvider provider) {
+        if (provider instanceof FrameSlot) return (FrameSlot) provider;
+        return new Polled(provider);
+    }
+
+    public long publish(byte[] jpeg) {
+        return publish(jpeg, System.nanoTime());
+    }
+
+    public long publish(byte[] jpeg, long captureNanos) {
+        return publish(new Frame(jpeg), captureNanos);
+    }
+
+    /**
+     * Publish a frame filled through Frame.output(). The slot takes over the caller's
+     * reference: do not release() it afterwards.
+     */
+    public long publish(Frame frame, long captureNanos) {
+        long s;
+        Frame old;
+        long now = System.nanoTime();
+        synchronized (lock) {
+            s = ++seq;
+            publishedBytes += frame.jpegLength;
+            frame.stamp(s, captureNanos, now, publishedBytes);
+            frame.resetRefs(1);
+            old = latest;
+            latest = frame;
+            lock.notifyAll();
+        }
+        if (old != null) old.release();
+        Runnable[] ls = listeners;
+        for (int i = 0; i < ls.length; i++) ls[i].run();
+        return s;
+    }
+
+    /** Drop the current frame (camera stopped). Sequence numbers keep increasing. */
+    public void clear() {
+        Frame old;
+        synchronized (lock) {
+            old = latest;
+            latest = null;
+        }
+        if (old != null) old.release();
+    }
+
+    /**
+     * Keep the current frame, flagged stale, for consumers that have not had it yet (the
+     * camera stopped or went on standby). Nothing is published: the seq stays the same,
+     * listeners are not run and waiters for a newer frame keep waiting. A pooled frame is
+     * copied so its buffer can go back to the pool.
+     */
+    public void markStale() {
+        Frame old;
+        synchronized (lock) {
+            old = latest;
+            if (old == null || old.stale) return;
+            Frame c = old.staleCopy();
+            c.resetRefs(1);
+            latest = c;
+        }
+        old.release();
+    }
+
+    /** Sequence number of the last publish (also valid after clear()). */
+    public long latestSeq() {
+        synchronized (lock) { return seq; }
+    }
+
+    /** Total JPEG bytes published so far; see Frame.streamOffset(). */
+    public long publishedBytes() {
+        synchronized (lock) { return publishedBytes; }
+    }
+
+    /**
+     * Current frame without taking a reference. Only seq and timestamps may be read from
+     * it; use acquireLatest() to read a pooled frame's bytes.
+     */
+    public Frame latest() {
+        refresh();
+        synchronized (lock) { return latest; }
+    }
+
+    /** Current frame, retained for the caller (release() when done), or null. */
+    public Frame acquireLatest() {
+        refresh();
+        synchronized (lock) { return latest != null ? latest.retain() : null; }
+    }
+
+    @Override
+    public byte[] getFrame() {
+        Frame f = acquireLatest();
+        if (f == null) return null;
+        try {
+            return f.jpegCopy();
+        } finally {
+            f.release();
+        }
+    }
+
+    /**
+     * Block until a frame with seq greater than afterSeq is published.
+     * @return the newest frame, retained for the caller (release() when done), or null on timeout
+     */
+    public Frame awaitNewer(long afterSeq, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            while (latest == null || latest.seq <= afterSeq) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return null;
+                lock.wait(left);
+            }
+            return latest.retain();
+        }
+    }
+
+    public void addListener(Runnable onPublish) {
+        synchronized (lock) { listeners = added(listeners, onPublish); }
+    }
+
+    public void removeListener(Runnable onPublish) {
+        synchronized (lock) { listeners = removed(listeners, onPublish); }
+    }
+
+    public void addDemand(Demand demand) {
+        synchronized (lock) { demands = added(demands, demand); }
+    }
+
+    public void removeDemand(Demand demand) {
+        synchronized (lock) { demands = removed(demands, demand); }
+    }
+
+    /** Run by requestFrame(): a consumer has just started waiting for a frame. */
+    public void addDemandListener(Runnable onDemand) {
+        synchronized (lock) { demandListeners = added(demandListeners, onDemand); }
+    }
+
+    public void removeDemandListener(Runnable onDemand) {
+        synchronized (lock) { demandListeners = removed(demandListeners, onDemand); }
+    }
+
+    /** False while no Demand is registered, i.e. every frame counts as wanted. */
+    public boolean isDemandTracked() { return demands.length > 0; }
+
+    /** Earliest time any registered consumer wants a new frame; see Demand.nextDemandNanos(). */
+    public long nextDemandNanos() {
+        Demand[] ds = demands;
+        if (ds.length == 0) return Long.MIN_VALUE;
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < ds.length; i++) next = Math.min(next, ds[i].nextDemandNanos());
+        return next;
+    }
+
+    /** Highest rate any registered consumer wants; UNLIMITED_FPS if none is registered. */
+    public int neededFps() {
+        Demand[] ds = demands;
+        if (ds.length == 0) return UNLIMITED_FPS;
+        int fps = 0;
+        for (int i = 0; i < ds.length; i++) fps = Math.max(fps, ds[i].neededFps());
+        return fps;
+    }
+
+    /** Called by a consumer that is now waiting for a frame newer than the latest one. */
+    public void requestFrame() {
+        Runnable[] ls = demandListeners;
+        for (int i = 0; i < ls.length; i++) ls[i].run();
+    }
+
+    private static <T> T[] added(T[] a, T item) {
+        T[] n = Arrays.copyOf(a, a.length + 1);
+        n[a.length] = item;
+        return n;
+    }
+
+    private static <T> T[] removed(T[] a, T item) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != item) continue;
+            T[] n = Arrays.copyOf(a, a.length - 1);
+            System.arraycopy(a, i + 1, n, i, a.length - i - 1);
+            return n;
+        }
+        return a;
+    }
+
+    /** True when frames must be pulled with latest() rather than waited for. */
+    boolean isPolled() { return false; }
+
+    void refresh() {}
+
+    // Wraps a legacy FrameProvider: publishes on reference change, waiters poll.
+    private static final class Polled extends FrameSlot {
+        private static final long POLL_MS = 10;
+        private final MjpegHttpServer.FrameProvider provider;
+        private byte[] last;
+
+        Polled(MjpegHttpServer.FrameProvider provider) { this.provider = provider; }
+
+        @Override
+        synchronized void refresh() {
+            byte[] f = provider.getFrame();
+            if (f == null) {
+                if (last != null) clear();
+            } else if (f != last) {
+                publish(f);
+            }
+            last = f;
+        }
+
+        @Override
+        public Frame awaitNewer(long afterSeq, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (true) {
+                Frame f = acquireLatest();
+                if (f != null && f.seq() > afterSeq) return f;
+                if (f != null) f.release();
+                if (System.currentTimeMillis() >= deadline) return null;
+                Thread.sleep(POLL_MS);
+            }
+        }
+
+        @Override
+        boolean isPolled() { return true; }
+    }
+}
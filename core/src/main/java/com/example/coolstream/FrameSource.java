@@ -0,0 +1,39 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+
+/**
+ * Where frames come from: the camera on a device, or a stand-in that lets the encode and
+ * serve path run headless on any JVM (SyntheticFrameSource, MjpegFileSource).
+ *
+ * - A source delivers frames to one Sink on its own thread, each with a System.nanoTime()
+ *   capture time
+ * - NV21 sources own a fixed set of buffers, like the camera's callback buffers: every one
+ *   passed to onFrame() comes back through recycle() once it has been encoded or dropped.
+ *   While none is free, captures are dropped rather than queued
+ * - JPEG sources hand over one complete JPEG per frame, which the sink may keep
+ *
+ * CaptureSink connects a source to an EncodePipeline (NV21) or straight to a FrameSlot (JPEG).
+ */
+public interface FrameSource {
+    enum Format { NV21, JPEG }
+
+    /** Receives one source's frames, on the source's thread. */
+    interface Sink {
+        /** Before the first frame and whenever format or size change; 0x0 if a JPEG source cannot tell. */
+        void onFormat(Format format, int width, int height);
+
+        /** One frame: an NV21 buffer to hand back through recycle(), or a whole JPEG. */
+        void onFrame(byte[] data, long captureNanos);
+    }
+
+    /** Start delivering frames to sink; the first may arrive before this returns. */
+    void start(Sink sink) throws IOException;
+
+    /** Stop delivering frames; no onFrame() runs once this returns. */
+    void stop();
+
+    /** Take back an NV21 buffer passed to onFrame(); JPEG sources ignore this. */
+    void recycle(byte[] buffer);
+}
@@ -0,0 +1,155 @@
+package com.example.coolstream;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of per-profile stream variants.
+ *
+ * - Each non-default StreamProfile in use gets its own FrameSlot; the slot holds the latest
+ *   variant frame, so a variant is addressed by (profile, frame seq) and encoded at most once
+ *   per source frame no matter how many clients share it
+ * - The default profile is served from the primary slot
+ * - At most maxProfiles variants exist; a profile without clients is evicted after
+ *   idleEvictMs (or sooner when its space is needed), releasing its frame. When every
+ *   variant is in use, new profiles fall back to the primary slot
+ *
+ * acquire()/release() are called by the server per stream, targets() by FrameEncoder per frame.
+ */
+public final class FrameVariants {
+    public static final int DEFAULT_MAX_PROFILES = 4;
+    public static final long DEFAULT_IDLE_EVICT_MS = 10_000;
+
+    /** One encode target: a profile, the slot its frames go to, and encoder-side state. */
+    static final class Variant {
+        final StreamProfile profile;
+        final FrameSlot slot;
+        // ordering guard for concurrent encoders; guarded by this
+        long lastPublishedNanos = Long.MIN_VALUE;
+        // scaled NV21 input, one per encoder thread
+        final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+        // set under this lock once the variant is evicted; nothing may be published after that
+        boolean evicted;
+        int clients;
+        long idleSinceMs;
+
+        Variant(StreamProfile profile, FrameSlot slot) {
+            this.profile = profile;
+            this.slot = slot;
+        }
+    }
+
+    private final FrameSlot primary;
+    private final int maxProfiles;
+    private final long idleEvictMs;
+    private final Map<StreamProfile, Variant> byProfile = new HashMap<>();
+    private final Map<FrameSlot, Variant> bySlot = new HashMap<>();
+    // snapshot of the current variants for the encoder; replaced on every change
+    private volatile Variant[] targets = new Variant[0];
+    private volatile int idle;
+    // a consumer waiting on a variant also wakes whatever serves the primary slot's demand
+    private final Runnable forwardDemand;
+    private long evictions;
+
+    public FrameVariants(FrameSlot primary) {
+        this(primary, DEFAULT_MAX_PROFILES, DEFAULT_IDLE_EVICT_MS);
+    }
+
+    public FrameVariants(FrameSlot primary, int maxProfiles, long idleEvictMs) {
+        this.primary = primary;
+        this.maxProfiles = maxProfiles;
+        this.idleEvictMs = idleEvictMs;
+        this.forwardDemand = primary::requestFrame;
+    }
+
+    public FrameSlot primary() { return primary; }
+
+    /**
+     * Slot serving the given profile; registers one client on it. Returns the primary slot
+     * for the default profile or when no variant can be added.
+     */
+    public synchronized FrameSlot acquire(StreamProfile profile) {
+        if (profile.isDefault()) return primary;
+        Variant v = byProfile.get(profile);
+        if (v == null) {
+            if (byProfile.size() >= maxProfiles && !evictOne()) return primary;
+            v = new Variant(profile, new FrameSlot());
+            v.slot.addDemandListener(forwardDemand);
+            byProfile.put(profile, v);
+            bySlot.put(v.slot, v);
+            publishTargets();
+        } else if (v.clients == 0) {
+            idle--;
+        }
+        v.clients++;
+        return v.slot;
+    }
+
+    /** Undo one acquire() of the slot it returned. */
+    public synchronized void release(FrameSlot slot) {
+        Variant v = bySlot.get(slot);
+        if (v == null || v.clients == 0) return;
+        if (--v.clients == 0) {
+            v.idleSinceMs = System.currentTimeMillis();
+            idle++;
+        }
+    }
+
+    /** Variants to encode; also evicts profiles that have been idle too long. */
+    Variant[] targets() {
+        if (idle > 0) evictIdle(System.currentTimeMillis());
+        return targets;
+    }
+
+    synchronized void evictIdle(long nowMs) {
+        Iterator<Variant> it = byProfile.values().iterator();
+        boolean changed = false;
+        while (it.hasNext()) {
+            Variant v = it.next();
+            if (v.clients > 0 || nowMs - v.idleSinceMs < idleEvictMs) continue;
+            it.remove();
+            drop(v);
+            changed = true;
+        }
+        if (changed) publishTargets();
+    }
+
+    // evicts the longest-idle variant; false if every variant has clients
+    private boolean evictOne() {
+        Variant oldest = null;
+        for (Variant v : byProfile.values()) {
+            if (v.clients == 0 && (oldest == null || v.idleSinceMs < oldest.idleSinceMs)) oldest = v;
+        }
+        if (oldest == null) return false;
+        byProfile.remove(oldest.profile);
+        drop(oldest);
+        publishTargets();
+        return true;
+    }
+
+    private void drop(Variant v) {
+        bySlot.remove(v.slot);
+        idle--;
+        evictions++;
+        v.slot.removeDemandListener(forwardDemand);
+        synchronized (v) {
+            v.evicted = true;
+            v.slot.clear();
+        }
+    }
+
+    private void publishTargets() {
+        targets = byProfile.values().toArray(new Variant[0]);
+    }
+
+    /** Profiles currently cached. */
+    public synchronized List<StreamProfile> profiles() {
+        return new ArrayList<>(byProfile.keySet());
+    }
+
+    public synchronized long evictions() { return evictions; }
+}
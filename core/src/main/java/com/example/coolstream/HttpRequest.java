@@ -0,0 +1,388 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/1.x request head parser working in place on one reused per-connection buffer.
+ *
+ * - read() appends bytes from a socket; parse() finds the request line and headers and
+ *   records them as offsets into the buffer, so parsing allocates nothing
+ * - Accessors compare against the buffer directly (path, query integers, header tokens)
+ * - next() drops the parsed head and keeps any pipelined bytes that followed it
+ * - Limits: MAX_HEAD bytes for request line plus headers, MAX_HEADERS header lines; a
+ *   head that does not fit is rejected with 414 or 431, anything malformed with 400 and
+ *   another protocol version with 505
+ *
+ * Only the head is parsed: requests with a body are answered with 400 since no endpoint
+ * takes one.
+ */
+final class HttpRequest {
+    static final int MAX_HEAD = 4096;
+    static final int MAX_HEADERS = 32;
+
+    /** parse() results besides the head length. */
+    static final int INCOMPLETE = 0;
+
+    private final byte[] buf = new byte[MAX_HEAD];
+    private final ByteBuffer channelView = ByteBuffer.wrap(buf);
+    private int filled;
+
+    // parse results, offsets into buf
+    private int headLength;
+    private int methodStart;
+    private int methodEnd;
+    private int pathStart;
+    private int pathEnd;
+    private int queryEnd;
+    private int minorVersion;
+    private int headerCount;
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+
+    /**
+     * Reads what the channel has into the buffer.
+     * @return bytes read, 0 if none were available (or the buffer is full), -1 at end of stream
+     */
+    int read(ReadableByteChannel ch) throws IOException {
+        if (filled == buf.length) return 0;
+        channelView.limit(buf.length).position(filled);
+        int n = ch.read(channelView);
+        if (n > 0) filled += n;
+        return n;
+    }
+
+    /** Blocking variant of read(ReadableByteChannel). */
+    int read(InputStream in) throws IOException {
+        if (filled == buf.length) return 0;
+        int n = in.read(buf, filled, buf.length - filled);
+        if (n > 0) filled += n;
+        return n;
+    }
+
+    /** Bytes received but not yet consumed by next(). */
+    int buffered() { return filled; }
+
+    boolean isFull() { return filled == buf.length; }
+
+    /**
+     * Parses the head at the start of the buffer.
+     * @return its length once complete, INCOMPLETE if more bytes are needed, or minus an
+     *         HTTP status (400, 414, 431, 505) if the request must be rejected
+     */
+    int parse() {
+        headLength = 0;
+        headerCount = 0;
+        int p = 0;
+        // tolerate blank lines before a request (RFC 7230 3.5)
+        while (p < filled && (buf[p] == '\r' || buf[p] == '\n')) p++;
+        int lineEnd = lineEnd(p);
+        if (lineEnd < 0) return filled == buf.length ? -414 : INCOMPLETE;
+
+        // request line: METHOD SP target SP HTTP/1.x
+        int sp1 = indexOf(' ', p, lineEnd);
+        if (sp1 <= p) return -400;
+        int sp2 = indexOf(' ', sp1 + 1, lineEnd);
+        if (sp2 < 0 || sp2 == sp1 + 1 || buf[sp1 + 1] != '/') return -400;
+        int versionLength = lineEnd - (sp2 + 1);
+        if (versionLength < 6 || !regionEquals(sp2 + 1, "HTTP/")) return -400;
+        if (versionLength != 8 || !regionEquals(sp2 + 1, "HTTP/1.")) return -505;
+        int minor = buf[sp2 + 8] - '0';
+        if (minor != 0 && minor != 1) return -505;
+        for (int i = p; i < sp1; i++) if (buf[i] < 'A' || buf[i] > 'Z') return -400;
+        for (int i = sp1 + 1; i < sp2; i++) if (buf[i] <= ' ' || buf[i] == 0x7F) return -400;
+        int q = indexOf('?', sp1 + 1, sp2);
+
+        int line = next(lineEnd);
+        int count = 0;
+        while (true) {
+            int end = lineEnd(line);
+            if (end < 0) return filled == buf.length ? -431 : INCOMPLETE;
+            if (end == line) {
+                line = next(end);
+                break;
+            }
+            if (count == MAX_HEADERS) return -431;
+            int colon = indexOf(':', line, end);
+            // no obsolete line folding, and no whitespace before the colon
+            if (colon <= line) return -400;
+            for (int i = line; i < colon; i++) if (buf[i] <= ' ' || buf[i] == 0x7F) return -400;
+            for (int i = colon + 1; i < end; i++) {
+                if ((buf[i] < ' ' && buf[i] != '\t' && buf[i] >= 0) || buf[i] == 0x7F) return -400;
+            }
+            int vs = colon + 1, ve = end;
+            while (vs < ve && (buf[vs] == ' ' || buf[vs] == '\t')) vs++;
+            while (ve > vs && (buf[ve - 1] == ' ' || buf[ve - 1] == '\t')) ve--;
+            nameStart[count] = line;
+            nameEnd[count] = colon;
+            valueStart[count] = vs;
+            valueEnd[count] = ve;
+            count++;
+            line = next(end);
+        }
+        methodEnd = sp1;
+        pathStart = sp1 + 1;
+        pathEnd = q >= 0 ? q : sp2;
+        queryEnd = sp2;
+        minorVersion = minor;
+        headerCount = count;
+        methodStart = p;
+        headLength = line;
+        if (headerToken("Transfer-Encoding", null) || headerInt("Content-Length") > 0) return -400;
+        return headLength;
+    }
+
+    /** Drops the parsed head (or, after a rejected parse, everything) and keeps what followed. */
+    void next() {
+        int n = headLength > 0 ? headLength : filled;
+        System.arraycopy(buf, n, buf, 0, filled - n);
+        filled -= n;
+        headLength = 0;
+        headerCount = 0;
+    }
+
+    /** Moves up to max bytes that followed the consumed heads into dst (protocol upgrades). */
+    int take(byte[] dst, int off, int max) {
+        int n = Math.min(max, filled);
+        System.arraycopy(buf, 0, dst, off, n);
+        System.arraycopy(buf, n, buf, 0, filled - n);
+        filled -= n;
+        return n;
+    }
+
+    void clear() {
+        filled = 0;
+        headLength = 0;
+        headerCount = 0;
+    }
+
+    // offset of the '\n' ending the line (CR dropped from the line), or -1
+    private int lineEnd(int from) {
+        for (int i = from; i < filled; i++) {
+            if (buf[i] == '\n') return i > from && buf[i - 1] == '\r' ? i - 1 : i;
+        }
+        return -1;
+    }
+
+    // start of the line after the one ending at end
+    private int next(int end) {
+        return buf[end] == '\r' ? end + 2 : end + 1;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) if (buf[i] == c) return i;
+        return -1;
+    }
+
+    private boolean regionEquals(int off, String s) {
+        for (int i = 0; i < s.length(); i++) if (buf[off + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int off, int end, String s) {
+        if (end - off != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (lower(buf[off + i]) != lower((byte) s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    boolean isMethod(String method) {
+        return methodEnd - methodStart == method.length() && regionEquals(methodStart, method);
+    }
+
+    boolean isPath(byte[] path) {
+        if (pathEnd - pathStart != path.length) return false;
+        for (int i = 0; i < path.length; i++) if (buf[pathStart + i] != path[i]) return false;
+        return true;
+    }
+
+    /** 0 for HTTP/1.0, 1 for HTTP/1.1. */
+    int minorVersion() { return minorVersion; }
+
+    /**
+     * Non-negative integer query parameter ("?name=N"), or 0 if absent or invalid. A present
+     * parameter without a value ("?gray") counts as 1.
+     */
+    int queryInt(String name) {
+        return (int) query(name, Integer.MAX_VALUE);
+    }
+
+    /** As queryInt(), for values such as epoch milliseconds. */
+    long queryLong(String name) {
+        return query(name, Long.MAX_VALUE / 10);
+    }
+
+    private long query(String name, long max) {
+        int p = pathEnd + 1;
+        while (p < queryEnd) {
+            int end = indexOf('&', p, queryEnd);
+            if (end < 0) end = queryEnd;
+            int eq = indexOf('=', p, end);
+            int keyEnd = eq >= 0 ? eq : end;
+            if (keyEnd - p == name.length() && regionEquals(p, name)) {
+                if (eq < 0) return 1;
+                return parseLong(eq + 1, end, max);
+            }
+            p = end + 1;
+        }
+        return 0;
+    }
+
+    // non-negative decimal in [from, to), or 0 if empty, invalid or above max
+    private long parseLong(int from, int to, long max) {
+        if (from == to) return 0;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return 0;
+            v = v * 10 + d;
+            if (v > max) return 0;
+        }
+        return v;
+    }
+
+    private int parseInt(int from, int to) {
+        return (int) parseLong(from, to, Integer.MAX_VALUE);
+    }
+
+    private int header(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (regionEqualsIgnoreCase(nameStart[i], nameEnd[i], name)) return i;
+        }
+        return -1;
+    }
+
+    boolean hasHeader(String name) { return header(name) >= 0; }
+
+    /** Integer value of a header, or -1 if absent or not a number. */
+    int headerInt(String name) {
+        int h = header(name);
+        if (h < 0) return -1;
+        int vs = valueStart[h], ve = valueEnd[h];
+        if (vs == ve) return -1;
+        for (int i = vs; i < ve; i++) if (buf[i] < '0' || buf[i] > '9') return -1;
+        return parseInt(vs, ve);
+    }
+
+    /** range() results besides 206. */
+    static final int NO_RANGE = 0;
+    static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Evaluates a "Range: bytes=" header against a resource of size bytes. Only a single
+     * range is honoured; several ranges or an unreadable header are ignored (the whole
+     * resource is served), as RFC 7233 allows.
+     * @param out receives the first and last byte position (inclusive) for 206
+     * @return 206, RANGE_NOT_SATISFIABLE or NO_RANGE
+     */
+    int range(long size, long[] out) {
+        int h = header("Range");
+        if (h < 0) return NO_RANGE;
+        int vs = valueStart[h], ve = valueEnd[h];
+        if (!regionEqualsIgnoreCase(vs, Math.min(ve, vs + 6), "bytes=")) return NO_RANGE;
+        int p = vs + 6;
+        while (ve > p && buf[ve - 1] == ' ') ve--;
+        int dash = indexOf('-', p, ve);
+        if (dash < 0 || indexOf(',', p, ve) >= 0) return NO_RANGE;
+        long max = Long.MAX_VALUE / 10;
+        long first, last;
+        if (dash == p) {
+            // suffix: the last N bytes
+            if (!digits(dash + 1, ve)) return NO_RANGE;
+            long n = parseLong(dash + 1, ve, max);
+            if (n == 0) return RANGE_NOT_SATISFIABLE;
+            first = Math.max(0, size - n);
+            last = size - 1;
+        } else {
+            if (!digits(p, dash) || (dash + 1 < ve && !digits(dash + 1, ve))) return NO_RANGE;
+            first = parseLong(p, dash, max);
+            last = dash + 1 < ve ? parseLong(dash + 1, ve, max) : Long.MAX_VALUE;
+            if (last < first) return NO_RANGE;
+            last = Math.min(last, size - 1);
+        }
+        if (first >= size) return RANGE_NOT_SATISFIABLE;
+        out[0] = first;
+        out[1] = last;
+        return 206;
+    }
+
+    private boolean digits(int from, int to) {
+        if (from == to || to - from > 18) return false;
+        for (int i = from; i < to; i++) if (buf[i] < '0' || buf[i] > '9') return false;
+        return true;
+    }
+
+    /** A header's value, or null if absent (allocates; for the rare header read as a whole). */
+    String headerValue(String name) {
+        int h = header(name);
+        if (h < 0) return null;
+        return new String(buf, valueStart[h], valueEnd[h] - valueStart[h], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * True if a comma-separated header lists token (case-insensitive), or with a null token
+     * if the header is present at all.
+     */
+    boolean headerToken(String name, String token) {
+        int h = header(name);
+        if (h < 0) return false;
+        if (token == null) return true;
+        int p = valueStart[h], ve = valueEnd[h];
+        while (p <= ve) {
+            int end = indexOf(',', p, ve);
+            if (end < 0) end = ve;
+            int s = p, e = end;
+            while (s < e && buf[s] == ' ') s++;
+            while (e > s && buf[e - 1] == ' ') e--;
+            if (regionEqualsIgnoreCase(s, e, token)) return true;
+            p = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * True if an entity-tag list header (If-None-Match) contains etag, weakly compared, or is
+     * "*". etag includes its quotes.
+     */
+    boolean headerHasEtag(String name, String etag) {
+        int h = header(name);
+        if (h < 0) return false;
+        int p = valueStart[h], ve = valueEnd[h];
+        while (p < ve) {
+            int end = indexOf(',', p, ve);
+            if (end < 0) end = ve;
+            int s = p, e = end;
+            while (s < e && buf[s] == ' ') s++;
+            while (e > s && buf[e - 1] == ' ') e--;
+            if (e - s >= 2 && buf[s] == 'W' && buf[s + 1] == '/') s += 2;
+            if (e - s == 1 && buf[s] == '*') return true;
+            if (e - s == etag.length() && regionEquals(s, etag)) return true;
+            p = end + 1;
+        }
+        return false;
+    }
+
+    /** HTTP/1.1 connections persist unless the client says close; HTTP/1.0 ones only on request. */
+    boolean keepAlive() {
+        if (headerToken("Connection", "close")) return false;
+        return minorVersion == 1 || headerToken("Connection", "keep-alive");
+    }
+
+    /** The request line, for logs (allocates). */
+    @Override
+    public String toString() {
+        if (headLength == 0) return "(no request)";
+        return new String(buf, methodStart, queryEnd - methodStart, StandardCharsets.US_ASCII);
+    }
+}
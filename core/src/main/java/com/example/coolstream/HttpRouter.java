@@ -0,0 +1,78 @@
+package com.example.coolstream;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps the method and path of a parsed HttpRequest to a handler.
+ *
+ * - Paths match exactly (the query string is ignored) and are compared against the
+ *   request buffer without allocating
+ * - A registered path asked for with another method is 405, any other path 404; neither
+ *   reaches a handler, so neither counts as a client
+ * - Canned responses for those and for rejected requests (400, 408, 414, 426, 431, 505) are
+ *   built once
+ *
+ * Routes are added before the server starts and only read afterwards.
+ */
+final class HttpRouter<T> {
+    static final int NOT_FOUND = -404;
+    static final int METHOD_NOT_ALLOWED = -405;
+
+    private String[] methods = new String[0];
+    private byte[][] paths = new byte[0][];
+    private Object[] handlers = new Object[0];
+
+    private static final int[] STATUSES = {400, 404, 405, 408, 414, 426, 431, 505};
+    private static final String[] REASONS = {"Bad Request", "Not Found", "Method Not Allowed",
+            "Request Timeout", "URI Too Long", "Upgrade Required", "Request Header Fields Too Large",
+            "HTTP Version Not Supported"};
+    // [status index][0: close, 1: keep-alive]
+    private static final byte[][][] RESPONSES = new byte[STATUSES.length][2][];
+
+    static {
+        for (int i = 0; i < STATUSES.length; i++) {
+            for (int keepAlive = 0; keepAlive < 2; keepAlive++) {
+                String head = "HTTP/1.1 " + STATUSES[i] + " " + REASONS[i] + "\r\n" +
+                        (STATUSES[i] == 405 ? "Allow: GET\r\n" : "") +
+                        (STATUSES[i] == 426 ? "Sec-WebSocket-Version: 13\r\n" : "") +
+                        "Content-Length: 0\r\n" +
+                        "Connection: " + (keepAlive == 1 ? "keep-alive" : "close") + "\r\n\r\n";
+                RESPONSES[i][keepAlive] = head.getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    void add(String method, String path, T handler) {
+        int n = methods.length;
+        methods = Arrays.copyOf(methods, n + 1);
+        paths = Arrays.copyOf(paths, n + 1);
+        handlers = Arrays.copyOf(handlers, n + 1);
+        methods[n] = method;
+        paths[n] = path.getBytes(StandardCharsets.US_ASCII);
+        handlers[n] = handler;
+    }
+
+    /** @return the route index for handler(), or NOT_FOUND / METHOD_NOT_ALLOWED */
+    int match(HttpRequest request) {
+        int result = NOT_FOUND;
+        for (int i = 0; i < paths.length; i++) {
+            if (!request.isPath(paths[i])) continue;
+            if (request.isMethod(methods[i])) return i;
+            result = METHOD_NOT_ALLOWED;
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    T handler(int route) { return (T) handlers[route]; }
+
+    /** Complete response without a body for one of the error statuses above. */
+    static byte[] errorResponse(int status, boolean keepAlive) {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i] == status) return RESPONSES[i][keepAlive ? 1 : 0];
+        }
+        throw new IllegalArgumentException("no canned response for " + status);
+    }
+}
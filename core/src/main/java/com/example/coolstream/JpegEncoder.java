@@ -0,0 +1,16 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses one NV21 frame to JPEG.
+ *
+ * Implementations may cache state per input array (camera callback buffers are reused)
+ * but must not keep a reference to out after returning. The encoder pipeline may call
+ * compress() from several threads at once, never with the same input array.
+ */
+public interface JpegEncoder {
+    void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException;
+}
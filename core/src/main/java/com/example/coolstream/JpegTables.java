@@ -0,0 +1,109 @@
+package com.example.coolstream;
+
+
+/**
+ * The example Huffman tables of the JPEG standard (ITU T.81 Annex K.3).
+ *
+ * Android's libjpeg (YuvImage.compressToJpeg) and most encoders write exactly these, and
+ * RFC 2435 receivers assume them: RTP/JPEG carries no Huffman tables, so a frame coded
+ * with any other tables cannot be sent (see RtpJpegPacketizer).
+ *
+ * Tables are indexed by class (0 = DC, 1 = AC) and id (0 = luminance, 1 = chrominance).
+ */
+final class JpegTables {
+    private JpegTables() {}
+
+    private static final byte[][] BITS = {
+            // DC luminance
+            {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            // DC chrominance
+            {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            // AC luminance
+            {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            // AC chrominance
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+    };
+
+    private static final byte[][] VALUES = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+            bytes(0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa),
+            bytes(0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa),
+    };
+
+    /** Length of a DHT segment (marker included) holding all four tables. */
+    static final int DHT_LENGTH;
+
+    static {
+        int n = 4;
+        for (int i = 0; i < 4; i++) n += 1 + 16 + VALUES[i].length;
+        DHT_LENGTH = n;
+    }
+
+    private static byte[] bytes(int... v) {
+        byte[] b = new byte[v.length];
+        for (int i = 0; i < v.length; i++) b[i] = (byte) v[i];
+        return b;
+    }
+
+    /** Code counts for lengths 1..16. */
+    static byte[] bits(int tableClass, int id) { return BITS[tableClass * 2 + id].clone(); }
+
+    static byte[] values(int tableClass, int id) { return VALUES[tableClass * 2 + id].clone(); }
+
+    /**
+     * Checks the Huffman table at off (class/id byte, counts, values) of a DHT segment.
+     * @return the table's length in bytes, or -1 if it is not the standard table for its
+     *         class and id (or is cut off before end)
+     */
+    static int standardTableLength(byte[] a, int off, int end) {
+        if (off + 17 > end) return -1;
+        int tc = (a[off] & 0xFF) >> 4;
+        int th = a[off] & 0x0F;
+        if (tc > 1 || th > 1) return -1;
+        byte[] bits = BITS[tc * 2 + th];
+        byte[] values = VALUES[tc * 2 + th];
+        for (int i = 0; i < 16; i++) if (a[off + 1 + i] != bits[i]) return -1;
+        int v = off + 17;
+        if (v + values.length > end) return -1;
+        for (int i = 0; i < values.length; i++) if (a[v + i] != values[i]) return -1;
+        return 17 + values.length;
+    }
+
+    /** Writes one DHT segment with all four tables; returns DHT_LENGTH. */
+    static int writeHuffmanTables(byte[] dst, int off) {
+        int p = off;
+        dst[p++] = (byte) 0xFF;
+        dst[p++] = (byte) 0xC4;
+        dst[p++] = (byte) ((DHT_LENGTH - 2) >> 8);
+        dst[p++] = (byte) (DHT_LENGTH - 2);
+        for (int i = 0; i < 4; i++) {
+            dst[p++] = (byte) ((i >> 1) << 4 | (i & 1));
+            System.arraycopy(BITS[i], 0, dst, p, 16);
+            p += 16;
+            System.arraycopy(VALUES[i], 0, dst, p, VALUES[i].length);
+            p += VALUES[i].length;
+        }
+        return p - off;
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.coolstream;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and latency histograms, scraped in the Prometheus text
+ * exposition format (version 0.0.4).
+ *
+ * - Recording never locks and never allocates in steady state: counters are LongAdders
+ *   (striped per thread once they are contended) and Histogram buckets are fixed when the
+ *   histogram is created
+ * - A counter or gauge may instead be read from a LongSupplier at scrape time, so counters
+ *   that already exist elsewhere (FramePool.misses(), ...) are exported without being
+ *   counted twice
+ * - Registering a name again replaces the earlier metric (a restarted server registers
+ *   its gauges again)
+ * - Only registration and scrape() lock or allocate
+ */
+public final class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final class Entry {
+        final String name;
+        final String help;
+        final String type;
+        final LongAdder adder;
+        final LongSupplier supplier;
+        final Histogram histogram;
+
+        Entry(String name, String help, String type, LongAdder adder, LongSupplier supplier, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.adder = adder;
+            this.supplier = supplier;
+            this.histogram = histogram;
+        }
+    }
+
+    // registration order is scrape order; guarded by this
+    private final List<Entry> entries = new ArrayList<>();
+
+    /** A counter recorded with add()/increment(). */
+    public LongAdder counter(String name, String help) {
+        LongAdder a = new LongAdder();
+        register(new Entry(name, help, "counter", a, null, null));
+        return a;
+    }
+
+    /** A counter whose value is read from value when scraped. */
+    public void counter(String name, String help, LongSupplier value) {
+        register(new Entry(name, help, "counter", null, value, null));
+    }
+
+    /** A gauge whose value is read from value when scraped. */
+    public void gauge(String name, String help, LongSupplier value) {
+        register(new Entry(name, help, "gauge", null, value, null));
+    }
+
+    /** A histogram of durations; name should end in _seconds (values are recorded in ns). */
+    public Histogram histogram(String name, String help) {
+        Histogram h = new Histogram();
+        register(new Entry(name, help, "histogram", null, null, h));
+        return h;
+    }
+
+    private synchronized void register(Entry e) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).name.equals(e.name)) {
+                entries.set(i, e);
+                return;
+            }
+        }
+        entries.add(e);
+    }
+
+    /** Every metric in the Prometheus text format. */
+    public synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        long[] counts = new long[Histogram.BUCKETS];
+        for (Entry e : entries) {
+            sb.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+            sb.append("# TYPE ").append(e.name).append(' ').append(e.type).append('\n');
+            if (e.histogram != null) {
+                e.histogram.writeTo(sb, e.name, counts);
+                continue;
+            }
+            long v;
+            try {
+                v = e.adder != null ? e.adder.sum() : e.supplier.getAsLong();
+            } catch (Exception ex) {
+                // a supplier whose source went away; leave the series out
+                continue;
+            }
+            sb.append(e.name).append(' ').append(v).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log-linear histogram of durations in nanoseconds.
+     *
+     * - Each power of two is split into 8 linear sub-buckets, so a recorded value is known
+     *   to within 12.5%; 0 ns to 2^41 ns (about 36 minutes) is covered, anything longer
+     *   lands in the last bucket and a negative value counts as 0
+     * - Every thread records into one of a fixed set of stripes (by thread id), so
+     *   concurrent recorders rarely touch the same cache line; reads merge the stripes
+     * - Exported with "le" bounds of 2^e - 1 ns from about 1 us to 34 s: the largest value
+     *   the buckets below 2^e hold, so each bound counts every value up to and including it
+     */
+    public static final class Histogram {
+        static final int SUB_BITS = 3;
+        static final int SUB = 1 << SUB_BITS;
+        static final int MAX_EXPONENT = 40;
+        static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB;
+        // per stripe: the buckets, then the sum of the recorded values
+        private static final int STRIDE = BUCKETS + 1;
+        // exported bounds: 2^MIN_EXPORTED - 1 .. 2^MAX_EXPORTED - 1 ns
+        private static final int MIN_EXPORTED = 10;
+        private static final int MAX_EXPORTED = 35;
+
+        private final int stripeMask;
+        private final AtomicLongArray cells;
+
+        Histogram() {
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+            this.stripeMask = Math.min(stripes, 16) - 1;
+            this.cells = new AtomicLongArray((stripeMask + 1) * STRIDE);
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) return v < 0 ? 0 : (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            if (e > MAX_EXPONENT) return BUCKETS - 1;
+            // (v >>> (e - SUB_BITS)) is the leading 1 and the next SUB_BITS bits: SUB..2*SUB-1
+            return (e - SUB_BITS) * SUB + (int) (v >>> (e - SUB_BITS));
+        }
+
+        /** Smallest value that falls in bucket i. */
+        static long lowerBound(int i) {
+            if (i < SUB) return i;
+            int e = i / SUB + SUB_BITS - 1;
+            return (long) (i % SUB + SUB) << (e - SUB_BITS);
+        }
+
+        /** Largest value that falls in bucket i. */
+        static long upperBound(int i) {
+            return i == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(i + 1) - 1;
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int base = ((int) Thread.currentThread().getId() & stripeMask) * STRIDE;
+            cells.getAndIncrement(base + bucket(nanos));
+            cells.getAndAdd(base + BUCKETS, nanos);
+        }
+
+        // merges the stripes into counts; returns the sum of the values
+        private long snapshot(long[] counts) {
+            Arrays.fill(counts, 0);
+            long sum = 0;
+            for (int base = 0; base < cells.length(); base += STRIDE) {
+                for (int i = 0; i < BUCKETS; i++) counts[i] += cells.get(base + i);
+                sum += cells.get(base + BUCKETS);
+            }
+            return sum;
+        }
+
+        public long count() {
+            long n = 0;
+            for (int base = 0; base < cells.length(); base += STRIDE) {
+                for (int i = 0; i < BUCKETS; i++) n += cells.get(base + i);
+            }
+            return n;
+        }
+
+        public long sumNanos() {
+            long sum = 0;
+            for (int base = 0; base < cells.length(); base += STRIDE) sum += cells.get(base + BUCKETS);
+            return sum;
+        }
+
+        /**
+         * Approximate quantile (0..1) of the recorded values: the upper end of the bucket
+         * holding it, or 0 if nothing was recorded.
+         */
+        public long percentileNanos(double q) {
+            long[] counts = new long[BUCKETS];
+            snapshot(counts);
+            long n = 0;
+            for (long c : counts) n += c;
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        void writeTo(StringBuilder sb, String name, long[] counts) {
+            long sum = snapshot(counts);
+            long cumulative = 0;
+            int i = 0;
+            for (int e = MIN_EXPORTED; e <= MAX_EXPORTED; e++) {
+                // every bucket below 2^e, i.e. every value <= 2^e - 1
+                int end = bucket(1L << e);
+                for (; i < end; i++) cumulative += counts[i];
+                sb.append(name).append("_bucket{le=\"").append(seconds((1L << e) - 1)).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            for (; i < BUCKETS; i++) cumulative += counts[i];
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum ").append(seconds(sum)).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            long n = count();
+            return String.format(Locale.US, "n=%d mean=%.2fms p50=%.2fms p99=%.2fms", n,
+                    n == 0 ? 0 : sumNanos() / (n * 1e6), percentileNanos(0.5) / 1e6, percentileNanos(0.99) / 1e6);
+        }
+    }
+}
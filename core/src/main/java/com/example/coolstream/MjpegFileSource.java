@@ -0,0 +1,323 @@
+package com.example.coolstream;
+
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless JPEG source that replays a recorded MJPEG file: a SegmentRecorder segment, a
+ * /clip.mjpg download, or plain concatenated JPEGs (ffmpeg -f mjpeg).
+ *
+ * - Multipart parts are cut by their Content-Length; parts without one, and raw files, by
+ *   walking the JPEG's marker segments to its EOI (an EXIF thumbnail's EOI does not end it)
+ * - In real time, frames keep the spacing of their X-Timestamp headers (epoch ms), or of
+ *   setFps() when the file has none; a gap longer than MAX_GAP_MS (recording paused) is
+ *   replayed as one frame interval. Otherwise frames follow each other as fast as the sink
+ *   takes them
+ * - Capture times are the time of delivery, so latencies are measured from the replay
+ * - With loop the file starts over at its end; otherwise the source stops after the last
+ *   frame (isFinished()). A file that ends inside a frame is treated like its end
+ * - Runs on a "frame-source-replay" thread; every frame is a new array the sink may keep
+ */
+public final class MjpegFileSource implements FrameSource {
+    public static final int DEFAULT_FPS = 15;
+    static final long MAX_GAP_MS = 1000;
+    // longest multipart header line we accept before calling the file corrupt
+    private static final int MAX_LINE = 1024;
+
+    private final File file;
+    private final boolean realTime;
+    private final boolean loop;
+    private volatile int fps = DEFAULT_FPS;
+    private volatile boolean running;
+    private volatile boolean finished;
+    private volatile IOException failure;
+    private Thread thread;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+
+    /**
+     * @param realTime keep the recorded frame spacing; false replays as fast as possible
+     * @param loop     start over at the end of the file
+     */
+    public MjpegFileSource(File file, boolean realTime, boolean loop) {
+        this.file = file;
+        this.realTime = realTime;
+        this.loop = loop;
+    }
+
+    /** Frame rate for files without X-Timestamp headers. Call before start(). */
+    public void setFps(int fps) {
+        if (fps < 1) throw new IllegalArgumentException("fps must be >= 1");
+        this.fps = fps;
+    }
+
+    /** Opens the file; throws if it cannot be read. */
+    @Override
+    public synchronized void start(Sink sink) throws IOException {
+        if (running) return;
+        InputStream in = open();
+        running = true;
+        finished = false;
+        failure = null;
+        thread = new Thread(() -> run(in, sink), "frame-source-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        Thread t = thread;
+        thread = null;
+        if (t == null || t == Thread.currentThread()) return;
+        t.interrupt();
+        try { t.join(1000); } catch (InterruptedException ignored) {}
+    }
+
+    @Override
+    public void recycle(byte[] buffer) {
+        // frames are handed over, nothing to take back
+    }
+
+    private InputStream open() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    }
+
+    private void run(InputStream in, Sink sink) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+        Parser parser = new Parser(in);
+        int formatWidth = -1, formatHeight = -1;
+        long next = 0;
+        long lastMs = -1;
+        long passFrames = 0;
+        try {
+            while (running) {
+                byte[] jpeg = parser.next();
+                if (jpeg == null) {
+                    parser.close();
+                    passes.incrementAndGet();
+                    // a file without frames would spin
+                    if (!loop || passFrames == 0) break;
+                    parser = new Parser(open());
+                    passFrames = 0;
+                    lastMs = -1;
+                    continue;
+                }
+                passFrames++;
+                if (parser.width != formatWidth || parser.height != formatHeight) {
+                    formatWidth = parser.width;
+                    formatHeight = parser.height;
+                    sink.onFormat(Format.JPEG, formatWidth, formatHeight);
+                }
+                if (realTime) {
+                    long now = System.nanoTime();
+                    if (next == 0) {
+                        next = now;
+                    } else {
+                        long gapMs = parser.timestampMs - lastMs;
+                        boolean timed = parser.timestampMs >= 0 && lastMs >= 0 && gapMs >= 0 && gapMs <= MAX_GAP_MS;
+                        next += timed ? TimeUnit.MILLISECONDS.toNanos(gapMs) : interval;
+                        // behind (slow sink): carry on from now rather than burst
+                        if (now - next > interval) next = now;
+                    }
+                    lastMs = parser.timestampMs;
+                    long wait = next - now;
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                delivered.incrementAndGet();
+                sink.onFrame(jpeg, System.nanoTime());
+            }
+        } catch (InterruptedException ignored) {
+            // stop()
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            parser.close();
+            finished = true;
+            running = false;
+        }
+    }
+
+    /** True once the replay has ended: the file (every pass, without loop) is done, or reading failed. */
+    public boolean isFinished() { return finished; }
+    /** Why reading stopped early, or null. */
+    public IOException failure() { return failure; }
+    /** Frames handed to the sink. */
+    public long framesDelivered() { return delivered.get(); }
+    /** Passes through the file completed. */
+    public long passes() { return passes.get(); }
+
+    @Override
+    public String toString() {
+        return "MjpegFileSource{" + file.getName() + (realTime ? ", real time" : ", fast") + (loop ? ", loop" : "") +
+                ", delivered=" + delivered.get() + ", passes=" + passes.get() + "}";
+    }
+
+    /**
+     * Splits a multipart or raw MJPEG stream into JPEGs. After next() returned a frame,
+     * timestampMs is its X-Timestamp (-1 if none) and width/height come from its SOF
+     * (0 if it has none).
+     */
+    static final class Parser {
+        private final InputStream in;
+        private byte[] buf = new byte[64 * 1024];
+        private int len;
+        long timestampMs = -1;
+        int width;
+        int height;
+
+        Parser(InputStream in) {
+            this.in = in;
+        }
+
+        /** The next JPEG, or null at the end of the stream. */
+        byte[] next() throws IOException {
+            timestampMs = -1;
+            int contentLength = -1;
+            boolean inPart = false;
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int b = in.read();
+                if (b < 0) return null;
+                if (b == 0xFF && line.length() == 0) {
+                    // raw JPEG, or a part whose headers did not give its length
+                    int m = in.read();
+                    if (m == 0xD8) return readJpeg();
+                    if (m < 0) return null;
+                    continue;
+                }
+                if (b != '\n') {
+                    if (b != '\r') line.append((char) b);
+                    if (line.length() > MAX_LINE) throw new IOException("not an MJPEG file: no JPEG or part header found");
+                    continue;
+                }
+                String l = line.toString();
+                line.setLength(0);
+                if (l.startsWith("--")) {
+                    inPart = !l.endsWith("--");
+                    contentLength = -1;
+                    timestampMs = -1;
+                } else if (inPart && l.isEmpty()) {
+                    if (contentLength >= 0) return readPart(contentLength);
+                } else if (inPart) {
+                    int colon = l.indexOf(':');
+                    if (colon < 0) continue;
+                    String name = l.substring(0, colon).trim();
+                    String value = l.substring(colon + 1).trim();
+                    try {
+                        if (name.equalsIgnoreCase("Content-Length")) contentLength = Integer.parseInt(value);
+                        else if (name.equalsIgnoreCase("X-Timestamp")) timestampMs = Long.parseLong(value);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+        }
+
+        private byte[] readPart(int length) throws IOException {
+            byte[] jpeg = new byte[length];
+            int off = 0;
+            while (off < length) {
+                int n = in.read(jpeg, off, length - off);
+                if (n < 0) return null;
+                off += n;
+            }
+            width = 0;
+            height = 0;
+            // only the headers before the scan, for the size
+            for (int i = 2; i + 8 < length && (jpeg[i] & 0xFF) == 0xFF; ) {
+                int marker = jpeg[i + 1] & 0xFF;
+                int segment = ((jpeg[i + 2] & 0xFF) << 8) | (jpeg[i + 3] & 0xFF);
+                if (isSof(marker)) {
+                    height = ((jpeg[i + 5] & 0xFF) << 8) | (jpeg[i + 6] & 0xFF);
+                    width = ((jpeg[i + 7] & 0xFF) << 8) | (jpeg[i + 8] & 0xFF);
+                    break;
+                }
+                if (marker == 0xDA) break;
+                i += 2 + segment;
+            }
+            return jpeg;
+        }
+
+        // SOI has been read: copy marker segments by their length up to SOS, then the
+        // entropy-coded data up to the first marker that is not a stuffed 0xFF or RSTn
+        private byte[] readJpeg() throws IOException {
+            len = 0;
+            width = 0;
+            height = 0;
+            put(0xFF);
+            put(0xD8);
+            try {
+                // set when a scan ended at a marker other than EOI (progressive JPEG)
+                int marker = -1;
+                while (true) {
+                    if (marker < 0) {
+                        int b = read();
+                        if (b != 0xFF) throw new IOException("bad JPEG marker " + b);
+                        marker = read();
+                        while (marker == 0xFF) marker = read();
+                        put(0xFF);
+                        put(marker);
+                    }
+                    if (marker == 0xD9) return Arrays.copyOf(buf, len);
+                    if (marker >= 0xD0 && marker <= 0xD7 || marker == 0x01) {
+                        marker = -1;
+                        continue;
+                    }
+                    int hi = read(), lo = read();
+                    put(hi);
+                    put(lo);
+                    int segment = (hi << 8 | lo) - 2;
+                    int start = len;
+                    for (int i = 0; i < segment; i++) put(read());
+                    if (isSof(marker) && segment >= 5) {
+                        height = (buf[start + 1] & 0xFF) << 8 | (buf[start + 2] & 0xFF);
+                        width = (buf[start + 3] & 0xFF) << 8 | (buf[start + 4] & 0xFF);
+                    }
+                    marker = marker == 0xDA ? scan() : -1;
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        // copies entropy-coded data after SOS; returns the marker that ends it, copied too
+        private int scan() throws IOException {
+            while (true) {
+                int b = read();
+                put(b);
+                if (b != 0xFF) continue;
+                int m = read();
+                while (m == 0xFF) m = read();
+                put(m);
+                if (m != 0x00 && (m < 0xD0 || m > 0xD7)) return m;
+            }
+        }
+
+        private int read() throws IOException {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            return b;
+        }
+
+        private void put(int b) {
+            if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[len++] = (byte) b;
+        }
+
+        private static boolean isSof(int marker) {
+            return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+        }
+
+        void close() {
+            try { in.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,982 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal MJPEG HTTP server.
+ *
+ * - Serves multipart/x-mixed-replace JPEG frames obtained from FrameProvider.getFrame()
+ * - Clients are woken as soon as a new frame is published (FrameSlot) and never get the
+ *   same frame twice; "?fps=N" in the query caps a client's rate
+ * - Each frame's multipart part (boundary, headers, JPEG) is built once and written to
+ *   every client with a single write
+ * - A client still writing an older frame skips straight to the newest one; a client that
+ *   stays stalled past the slow-client deadline or falls too many bytes behind is evicted
+ *   (reason reported through ClientListener.onClientEvicted)
+ * - Per-client counters are available from getClientStats()
+ * - Registers a FrameSlot.Demand so the encoder knows when any client is actually waiting
+ *   for a frame and the highest fps any client needs
+ * - With setVariants(), "?quality=Q&width=W" selects a StreamProfile; clients on the same
+ *   profile share one encoded variant per frame
+ * - GET /snapshot.jpg returns the latest frame (ETag = frame sequence, If-None-Match gets
+ *   304) over HTTP/1.1 persistent connections; it waits for the camera only when no recent
+ *   frame exists. Snapshot pollers are not stream clients: they are not in getClientStats()
+ *   and do not trigger onClientConnected, so they never keep the camera awake
+ * - With setAdaptiveTiers(), clients that ask for no profile of their own move along a
+ *   ladder of profiles by measured throughput (see BitrateController): down when their
+ *   socket cannot keep up, probing back up when it can; ClientStats reports each client's
+ *   tier and bandwidth
+ * - With setClipBuffer(), GET /clip.mjpg?seconds=N exports the last N seconds of a
+ *   FrameRing as a finite multipart stream (see ClipExport); clip downloads are not clients
+ * - With setRecorder(), SegmentRecorder segments are listed at /recordings.json and played
+ *   back from /segment.mjpg?id= (byte Range requests) or /recording.mjpg?t=&seconds= (time
+ *   seek); see RecordingResponse
+ * - With setMetrics(), GET /metrics answers with every StreamMetrics instrument in the
+ *   Prometheus text format, and each stream client records its frames, bytes, drops and
+ *   latencies there
+ * - GET /stream.ws upgrades to a WebSocket (see WebSocket): the same stream, one binary
+ *   message per frame with seq, capture time and motion in front of the JPEG, and text
+ *   messages from the client change its fps or profile live. WebSocket clients are stream
+ *   clients; one that misses a pong deadline is evicted like a slow client
+ * - Requests are parsed with HttpRequest (size and time limits) and dispatched by HttpRouter:
+ *   GET / or /stream.mjpg streams, GET /snapshot.jpg snapshots; unknown paths get 404,
+ *   other methods 405, malformed or late requests 400/408/414/431/505. None of those
+ *   count as clients (see getRequestsRejected())
+ * - With setAdmissionLimits(), connections over a global or per-address cap, or from an
+ *   address reconnecting faster than its token bucket allows, are answered with a canned
+ *   503 and Retry-After right after accept(), before any thread or request parsing (see
+ *   AdmissionControl; getConnectionsRejected())
+ * - Notifies ClientListener on connect/disconnect
+ * - Tracks active clients and closes them on shutdown so stop is immediate
+ * - IoMode.THREAD_PER_CLIENT runs one blocking thread per client; IoMode.SELECTOR
+ *   serves every client from a fixed set of non-blocking selector threads
+ *
+ * Usage:
+ *   MjpegHttpServer server = new MjpegHttpServer(8080, frameProvider);
+ *   // or: new MjpegHttpServer(8080, frameProvider, MjpegHttpServer.IoMode.SELECTOR, 1);
+ *   server.setClientListener(...);
+ *   server.start();
+ *   ...
+ *   server.shutdown();
+ */
+public class MjpegHttpServer extends Thread {
+    static final int ACCEPT_BACKLOG = 128;
+    // how long a new connection may take to send its request head before it is dropped
+    static final long REQUEST_TIMEOUT_MS = 2000;
+    // how long a persistent (snapshot) connection may idle between requests
+    static final long KEEP_ALIVE_TIMEOUT_MS = 15000;
+    static final long DEFAULT_STALL_TIMEOUT_MS = 5000;
+    static final long DEFAULT_MAX_LAG_BYTES = 4L * 1024 * 1024;
+    private static final long WATCHDOG_PERIOD_MS = 250;
+
+    static final String STREAM_HEADER = "HTTP/1.0 200 OK\r\n" +
+            "Connection: close\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Pragma: no-cache\r\n" +
+            "Content-Type: multipart/x-mixed-replace; boundary=ipcam\r\n\r\n";
+
+    /** What a routed request is served by. */
+    enum Endpoint { STREAM, WEBSOCKET, SNAPSHOT, CLIP, RECORDING, METRICS }
+
+    public enum IoMode {
+        /** One blocking "mjpeg-client" thread per connection. */
+        THREAD_PER_CLIENT,
+        /** A fixed set of "mjpeg-io" selector threads serve every connection with non-blocking writes. */
+        SELECTOR
+    }
+
+    private final int port;
+    private final FrameSlot slot;
+    private final IoMode ioMode;
+    private final int ioThreads;
+    private volatile boolean running = true;
+    private volatile ServerSocket serverSocket;
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private SelectorLoop[] loops;
+    private final Runnable onFramePublished = this::wakeLoops;
+    private final SlotDemand demand;
+    private final SnapshotResponder snapshots;
+    private final HttpRouter<Endpoint> router = new HttpRouter<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile FrameVariants variants;
+    private volatile StreamProfile[] adaptiveTiers;
+    private volatile AdmissionControl admission;
+    private volatile FrameRing clipBuffer;
+    private volatile SegmentRecorder recorder;
+    private volatile StreamMetrics metrics;
+    private boolean metricsRoute;
+    private final AtomicLong clipsExported = new AtomicLong();
+    private final AtomicLong webSocketsReaped = new AtomicLong();
+    // demand of the variant slots that currently have clients; guarded by itself
+    private final Map<FrameSlot, SlotDemand> variantDemands = new HashMap<>();
+
+    // track active clients so we can close them on shutdown
+    private final List<Socket> activeClients = new CopyOnWriteArrayList<>();
+    private final List<ClientStats> clientStats = new CopyOnWriteArrayList<>();
+    // thread-per-client connections, watched for stalls since their threads block in write()
+    private final Map<ClientStats, Socket> blockingClients = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdog;
+
+    private volatile long stallTimeoutMs = DEFAULT_STALL_TIMEOUT_MS;
+    private volatile long maxLagBytes = DEFAULT_MAX_LAG_BYTES;
+    private volatile long pingIntervalMs = WebSocket.DEFAULT_PING_INTERVAL_MS;
+    private volatile long pongTimeoutMs = WebSocket.DEFAULT_PONG_TIMEOUT_MS;
+
+    public interface FrameProvider { byte[] getFrame(); }
+
+    // what the clients streaming from one slot need, for the encoder
+    private final class SlotDemand implements FrameSlot.Demand {
+        final FrameSlot target;
+        int streams;
+
+        SlotDemand(FrameSlot target) { this.target = target; }
+
+        @Override
+        public long nextDemandNanos() {
+            // a waiting snapshot wants the next frame, whether or not anyone streams
+            if (target == slot && snapshots.isWaiting()) return Long.MIN_VALUE;
+            long next = Long.MAX_VALUE;
+            for (ClientStats s : clientStats) {
+                if (s.slot == target) next = Math.min(next, s.wantsFrameAtNanos);
+            }
+            return next;
+        }
+
+        @Override
+        public int neededFps() {
+            int fps = 0;
+            for (ClientStats s : clientStats) {
+                if (s.slot != target) continue;
+                int f = s.maxFps;
+                if (f == 0) return FrameSlot.UNLIMITED_FPS;
+                fps = Math.max(fps, f);
+            }
+            return fps;
+        }
+    }
+
+    public interface ClientListener {
+        void onClientConnected();
+        void onClientDisconnected();
+        /** A slow client is about to be disconnected; onClientDisconnected follows. */
+        default void onClientEvicted(String remote, String reason) {}
+        /**
+         * A snapshot was requested while no recent frame exists. Snapshot requests are not
+         * clients; a listener that starts the camera for one must stop it again on its own.
+         */
+        default void onSnapshotWanted() {}
+    }
+
+    private ClientListener clientListener;
+
+    public void setClientListener(ClientListener l) { this.clientListener = l; }
+
+    /**
+     * Evict a client whose current frame has been in flight longer than stallTimeoutMs, or
+     * that is still sending a frame while more than maxLagBytes of newer JPEG data was published.
+     */
+    public void setSlowClientPolicy(long stallTimeoutMs, long maxLagBytes) {
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.maxLagBytes = maxLagBytes;
+    }
+
+    /**
+     * Ping WebSocket clients every intervalMs and evict one that sends nothing within
+     * timeoutMs of a ping. Applies to connections opened afterwards.
+     */
+    public void setWebSocketPing(long intervalMs, long timeoutMs) {
+        this.pingIntervalMs = intervalMs;
+        this.pongTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Serve "?quality=&width=" profiles from these variants; without it every client gets
+     * the primary stream. Call before start(); variants.primary() must be this server's slot.
+     */
+    public void setVariants(FrameVariants variants) {
+        if (variants != null && variants.primary() != slot) {
+            throw new IllegalArgumentException("variants belong to another FrameSlot");
+        }
+        this.variants = variants;
+    }
+
+    /**
+     * Let clients without a profile of their own adapt between these profiles, best first
+     * (usually StreamProfile.DEFAULT, then lower quality and smaller sizes). Tiers other
+     * than the default are served from setVariants(); null turns adaptation off. Call
+     * before start().
+     */
+    public void setAdaptiveTiers(StreamProfile... tiers) {
+        this.adaptiveTiers = tiers != null && tiers.length > 0 ? tiers.clone() : null;
+    }
+
+    /**
+     * Refuse connections beyond these limits with a 503 before serving them: open
+     * connections in total and per remote address, and per address connectsPerSecond
+     * with bursts of connectBurst. 0 turns a limit off. Call before start().
+     */
+    public void setAdmissionLimits(int maxConnections, int maxPerAddress, double connectsPerSecond, int connectBurst) {
+        this.admission = new AdmissionControl(maxConnections, maxPerAddress, connectsPerSecond, connectBurst);
+    }
+
+    /** Serve GET /clip.mjpg from this pre-event buffer. Call before start(). */
+    public void setClipBuffer(FrameRing ring) {
+        if (clipBuffer == null && ring != null) router.add("GET", ClipExport.PATH, Endpoint.CLIP);
+        this.clipBuffer = ring;
+    }
+
+    /** Serve playback of this recorder's segments. Call before start(). */
+    public void setRecorder(SegmentRecorder recorder) {
+        if (this.recorder == null && recorder != null) {
+            router.add("GET", RecordingResponse.LIST_PATH, Endpoint.RECORDING);
+            router.add("GET", RecordingResponse.SEGMENT_PATH, Endpoint.RECORDING);
+            router.add("GET", RecordingResponse.PLAY_PATH, Endpoint.RECORDING);
+        }
+        this.recorder = recorder;
+    }
+
+    /**
+     * Record stream clients in these metrics, export this server's counters with them and
+     * serve them as GET /metrics (404 again after setMetrics(null)). Call before start().
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        if (metrics != null && !metricsRoute) {
+            router.add("GET", StreamMetrics.PATH, Endpoint.METRICS);
+            metricsRoute = true;
+        }
+        this.metrics = metrics;
+        if (metrics == null) return;
+        Metrics r = metrics.registry();
+        r.counter("coolstream_frames_published_total", "Frames published to the stream slot", slot::latestSeq);
+        r.gauge("coolstream_active_clients", "Connected stream clients", clientStats::size);
+        r.gauge("coolstream_snapshot_connections", "Open /snapshot.jpg connections", snapshots::connections);
+        r.counter("coolstream_requests_rejected_total", "Requests answered with an error status", rejected::get);
+        r.counter("coolstream_websockets_reaped_total", "WebSocket clients closed for a missed pong", webSocketsReaped::get);
+        r.counter("coolstream_connections_rejected_full_total", "Connections refused at the global connection cap",
+                () -> admission != null ? admission.rejectedFull() : 0);
+        r.counter("coolstream_connections_rejected_address_total", "Connections refused at the per-address cap",
+                () -> admission != null ? admission.rejectedPerAddress() : 0);
+        r.counter("coolstream_connections_rejected_rate_total", "Connections refused for reconnecting too fast",
+                () -> admission != null ? admission.rejectedRate() : 0);
+    }
+
+    StreamMetrics metrics() { return metrics; }
+
+    /** Clip exports started from the pre-event buffer. */
+    public long getClipsExported() { return clipsExported.get(); }
+
+    /** Serve a /snapshot.jpg frame without waiting if it was captured at most maxAgeMs ago. */
+    public void setSnapshotMaxAgeMs(long maxAgeMs) { snapshots.setMaxAgeMs(maxAgeMs); }
+
+    /** Open /snapshot.jpg connections (not counted in getClientStats()). */
+    public int getSnapshotConnections() { return snapshots.connections(); }
+    /** Snapshots answered with a JPEG. */
+    public long getSnapshotsServed() { return snapshots.served(); }
+    /** Snapshots answered with 304 because the client already had the frame. */
+    public long getSnapshotsNotModified() { return snapshots.notModified(); }
+    /** Snapshots answered with 503 because no frame arrived in time. */
+    public long getSnapshotsUnavailable() { return snapshots.unavailable(); }
+
+    /** Connections refused by setAdmissionLimits() with a 503; none of them were read from. */
+    public long getConnectionsRejected() {
+        AdmissionControl a = admission;
+        return a != null ? a.rejected() : 0;
+    }
+
+    /** Requests answered with an error status (unknown path or method, malformed, too large or too slow). */
+    public long getRequestsRejected() { return rejected.get(); }
+
+    /** WebSocket clients closed because they missed a pong deadline. */
+    public long getWebSocketsReaped() { return webSocketsReaped.get(); }
+
+    /** Open connections of every kind: streams, snapshots, exports and unanswered requests. */
+    public int getOpenConnections() { return activeClients.size(); }
+
+    /** Snapshot of the currently connected stream clients. */
+    public List<ClientStats> getClientStats() { return new ArrayList<>(clientStats); }
+
+    public MjpegHttpServer(int port, FrameProvider provider) {
+        this(port, provider, IoMode.THREAD_PER_CLIENT, 1);
+    }
+
+    /**
+     * @param provider a FrameSlot for event-driven delivery; any other provider is polled
+     * @param ioThreads number of selector threads in {@link IoMode#SELECTOR} mode (ignored otherwise)
+     */
+    public MjpegHttpServer(int port, FrameProvider provider, IoMode ioMode, int ioThreads) {
+        super("MjpegHttpServer");
+        this.port = port;
+        this.slot = FrameSlot.of(provider);
+        this.ioMode = ioMode;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.demand = new SlotDemand(slot);
+        this.snapshots = new SnapshotResponder(slot);
+        router.add("GET", "/", Endpoint.STREAM);
+        router.add("GET", "/stream.mjpg", Endpoint.STREAM);
+        router.add("GET", WebSocket.PATH, Endpoint.WEBSOCKET);
+        router.add("GET", SnapshotResponder.PATH, Endpoint.SNAPSHOT);
+    }
+
+    /**
+     * Wait until the listening socket is bound.
+     * @return the bound port (useful when constructed with port 0), or -1 on timeout
+     */
+    public int awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!listening.await(timeout, unit)) return -1;
+        ServerSocket ss = serverSocket;
+        return ss != null ? ss.getLocalPort() : -1;
+    }
+
+    @Override
+    public void run() {
+        if (ioMode == IoMode.SELECTOR) runSelector();
+        else runThreadPerClient();
+    }
+
+    private void runThreadPerClient() {
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mjpeg-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            watchdog.scheduleWithFixedDelay(this::checkBlockingClients,
+                    WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS, TimeUnit.MILLISECONDS);
+            slot.addDemand(demand);
+            listening.countDown();
+            while (running) {
+                try {
+                    final Socket client = serverSocket.accept();
+                    if (!admit(client)) continue;
+                    activeClients.add(client);
+                    Thread t = new Thread(() -> handleClient(client), "mjpeg-client");
+                    t.start();
+                } catch (Exception acceptEx) {
+                    // If we're shutting down the serverSocket.accept() will throw.
+                    if (running) acceptEx.printStackTrace();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        } finally {
+            // ensure any left-over clients are closed
+            slot.removeDemand(demand);
+            if (watchdog != null) watchdog.shutdownNow();
+            closeAllClients();
+            try { if (serverSocket != null) serverSocket.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    // Accept on this thread (blocking) and hand channels round-robin to the selector loops.
+    private void runSelector() {
+        ServerSocketChannel ssc = null;
+        try {
+            ssc = ServerSocketChannel.open();
+            ssc.socket().setReuseAddress(true);
+            ssc.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverSocket = ssc.socket();
+
+            loops = new SelectorLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new SelectorLoop(this);
+                Thread t = new Thread(loops[i], "mjpeg-io-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            slot.addListener(onFramePublished);
+            slot.addDemand(demand);
+            listening.countDown();
+
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel ch = ssc.accept();
+                    if (!admit(ch.socket())) continue;
+                    activeClients.add(ch.socket());
+                    loops[next].adopt(ch);
+                    next = (next + 1) % loops.length;
+                } catch (Exception acceptEx) {
+                    // closing the channel on shutdown breaks accept()
+                    if (running) acceptEx.printStackTrace();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        } finally {
+            running = false;
+            slot.removeListener(onFramePublished);
+            slot.removeDemand(demand);
+            wakeLoops();
+            closeAllClients();
+            try { if (ssc != null) ssc.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private static final byte[] PART_HEADER_PREFIX = ("\r\n--ipcam\r\n" +
+            "Content-Type: image/jpeg\r\n" +
+            "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+
+    static int partHeaderLength(int jpegLength) {
+        int digits = 1;
+        for (int v = jpegLength; v >= 10; v /= 10) digits++;
+        return PART_HEADER_PREFIX.length + digits + 4;
+    }
+
+    // Writes the multipart boundary + part headers for a JPEG of jpegLength; returns bytes written.
+    static int writePartHeader(byte[] dst, int off, int jpegLength) {
+        int n = partHeaderLength(jpegLength);
+        System.arraycopy(PART_HEADER_PREFIX, 0, dst, off, PART_HEADER_PREFIX.length);
+        int p = off + n - 4;
+        dst[p] = '\r'; dst[p + 1] = '\n'; dst[p + 2] = '\r'; dst[p + 3] = '\n';
+        int v = jpegLength;
+        do {
+            dst[--p] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        return n;
+    }
+
+    // on the accept thread: a refused connection gets its 503 and is closed right here
+    private boolean admit(Socket s) {
+        AdmissionControl a = admission;
+        if (a == null) return true;
+        int retryAfter = a.admit(s.getInetAddress(), System.nanoTime());
+        if (retryAfter == 0) return true;
+        try {
+            // a fresh socket's send buffer is empty, so this small write does not block
+            s.getOutputStream().write(AdmissionControl.busyResponse(retryAfter));
+            s.shutdownOutput();
+            // closing with unread request bytes sends a reset, which can destroy the 503
+            InputStream in = s.getInputStream();
+            int unread = in.available();
+            if (unread > 0) in.skip(unread);
+        } catch (Exception ignored) {
+        } finally {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        return false;
+    }
+
+    boolean isRunning() { return running; }
+
+    FrameSlot frameSlot() { return slot; }
+
+    SnapshotResponder snapshots() { return snapshots; }
+
+    HttpRouter<Endpoint> router() { return router; }
+
+    void requestRejected() { rejected.incrementAndGet(); }
+
+    // starts a clip response; null if clips are not configured
+    ClipExport openClip(HttpRequest request) {
+        FrameRing ring = clipBuffer;
+        if (ring == null) return null;
+        clipsExported.incrementAndGet();
+        return new ClipExport(ring, request);
+    }
+
+    // starts a playback response; null if there is nothing to play (or no recorder)
+    RecordingResponse openRecording(HttpRequest request) {
+        SegmentRecorder r = recorder;
+        if (r == null) return null;
+        try {
+            return RecordingResponse.of(r, request);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Picks the slot a new stream reads from (by its profile) and starts tracking its demand.
+     * @return the slot; the caller must stream from it and call detachStream() when done
+     */
+    FrameSlot attachStream(ClientStats stats, HttpRequest request) {
+        return attachStream(stats, StreamProfile.fromRequest(request), request.queryInt("fps"));
+    }
+
+    /**
+     * As attachStream(stats, request) for a profile and fps cap (0: none) given directly.
+     * With adaptive tiers the default profile stands for the client's current tier.
+     */
+    FrameSlot attachStream(ClientStats stats, StreamProfile profile, int maxFps) {
+        StreamProfile[] tiers = adaptiveTiers;
+        if (tiers != null && profile.isDefault()) {
+            if (stats.bitrate == null) stats.bitrate = new BitrateController(tiers.length, System.nanoTime());
+            profile = tiers[stats.bitrate.tier()];
+        } else {
+            stats.bitrate = null;
+        }
+        FrameVariants vs = variants;
+        FrameSlot s = vs != null ? vs.acquire(profile) : slot;
+        if (s != slot) {
+            synchronized (variantDemands) {
+                SlotDemand d = variantDemands.get(s);
+                if (d == null) {
+                    d = new SlotDemand(s);
+                    variantDemands.put(s, d);
+                    s.addDemand(d);
+                    if (ioMode == IoMode.SELECTOR) s.addListener(onFramePublished);
+                }
+                d.streams++;
+            }
+        }
+        stats.slot = s;
+        stats.streamStarted(maxFps);
+        return s;
+    }
+
+    /**
+     * Moves a stream to another profile and fps cap (a WebSocket control message); the new
+     * slot is attached before the old one is released so a shared variant is not evicted.
+     * On a new slot the stream continues after stats.lastSeq(), which drop counting starts
+     * from as well.
+     */
+    FrameSlot restream(ClientStats stats, StreamProfile profile, int maxFps) {
+        FrameSlot old = stats.slot;
+        FrameSlot s = attachStream(stats, profile, maxFps);
+        detachSlot(old);
+        if (s != old) stats.slotChanged(resumeSeq(s, stats.lastCaptureNanos()));
+        return s;
+    }
+
+    /** Moves an adaptive stream to the tier its BitrateController chose. */
+    FrameSlot retier(ClientStats stats) {
+        return restream(stats, StreamProfile.DEFAULT, stats.maxFps);
+    }
+
+    /**
+     * After moving to slot s: the seq to continue after, so a frame the new slot still holds
+     * from before the last one sent (sentCaptureNanos) is not shown out of order.
+     */
+    static long resumeSeq(FrameSlot s, long sentCaptureNanos) {
+        FrameSlot.Frame f = s.acquireLatest();
+        if (f == null) return 0;
+        try {
+            return f.captureNanos() <= sentCaptureNanos ? f.seq() : 0;
+        } finally {
+            f.release();
+        }
+    }
+
+    private void detachStream(ClientStats stats) {
+        detachSlot(stats.slot);
+    }
+
+    private void detachSlot(FrameSlot s) {
+        if (s == null || s == slot) return;
+        synchronized (variantDemands) {
+            SlotDemand d = variantDemands.get(s);
+            if (d != null && --d.streams == 0) {
+                variantDemands.remove(s);
+                s.removeDemand(d);
+                s.removeListener(onFramePublished);
+            }
+        }
+        FrameVariants vs = variants;
+        if (vs != null) vs.release(s);
+    }
+
+    /**
+     * Blocks until a complete request head is buffered in request, the deadline passes or the
+     * client closes.
+     * @return the head length, 0 if the connection ended (or idled out) between requests, or
+     *         minus the status to reject the request with
+     */
+    private static int readRequest(Socket s, InputStream in, HttpRequest request, long deadlineMs)
+            throws IOException {
+        try {
+            while (true) {
+                int n = request.parse();
+                if (n != HttpRequest.INCOMPLETE) return n;
+                long left = deadlineMs - System.currentTimeMillis();
+                if (left <= 0) return request.buffered() > 0 ? -408 : 0;
+                s.setSoTimeout((int) left);
+                if (request.read(in) < 0) return 0;
+            }
+        } catch (SocketTimeoutException e) {
+            return request.buffered() > 0 ? -408 : 0;
+        } finally {
+            if (!s.isClosed()) s.setSoTimeout(0);
+        }
+    }
+
+    // called by the selector loops once a stream starts / a connection closes
+    void onStreamOpened(ClientStats stats) {
+        clientStats.add(stats);
+        if (clientListener != null) clientListener.onClientConnected();
+    }
+
+    void onStreamClosed(Socket s, ClientStats stats) {
+        onConnectionClosed(s);
+        clientStats.remove(stats);
+        detachStream(stats);
+        if (clientListener != null) clientListener.onClientDisconnected();
+    }
+
+    /** Why the client should be evicted, or null if it is keeping up. */
+    String slowClientReason(ClientStats stats, long publishedBytes, long nowNanos) {
+        long start = stats.writeStartNanos;
+        if (start == 0) return null;
+        long stalledMs = (nowNanos - start) / 1_000_000L;
+        if (stalledMs > stallTimeoutMs) return "stalled for " + stalledMs + " ms";
+        long lag = publishedBytes - stats.inFlightOffset;
+        if (lag > maxLagBytes) return "fell " + lag + " bytes behind";
+        return null;
+    }
+
+    void onConnectionClosed(Socket s) {
+        if (!activeClients.remove(s)) return;
+        AdmissionControl a = admission;
+        if (a != null) a.release(s.getInetAddress());
+    }
+
+    void snapshotWanted() {
+        if (clientListener != null) clientListener.onSnapshotWanted();
+    }
+
+    long stallTimeoutMs() { return stallTimeoutMs; }
+
+    WebSocket newWebSocket(HttpRequest request) {
+        return new WebSocket(request, pingIntervalMs, pongTimeoutMs);
+    }
+
+    void webSocketReaped(ClientStats stats) {
+        webSocketsReaped.incrementAndGet();
+        notifyEvicted(stats, "no pong for " + pongTimeoutMs + " ms");
+    }
+
+    void notifyEvicted(ClientStats stats, String reason) {
+        if (clientListener != null) clientListener.onClientEvicted(stats.getRemote(), reason);
+    }
+
+    private void checkBlockingClients() {
+        long now = System.nanoTime();
+        for (Map.Entry<ClientStats, Socket> e : blockingClients.entrySet()) {
+            FrameSlot s = e.getKey().slot;
+            if (s == null) continue;
+            String reason = slowClientReason(e.getKey(), s.publishedBytes(), now);
+            if (reason == null) continue;
+            if (blockingClients.remove(e.getKey()) == null) continue;
+            notifyEvicted(e.getKey(), reason);
+            // unblocks the client thread's write()
+            try { e.getValue().close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void wakeLoops() {
+        SelectorLoop[] ls = loops;
+        if (ls == null) return;
+        for (SelectorLoop l : ls) if (l != null) l.wakeup();
+    }
+
+    private void handleClient(Socket s) {
+        ClientStats stats = new ClientStats(String.valueOf(s.getRemoteSocketAddress()), metrics);
+        HttpRequest request = new HttpRequest();
+        boolean streaming = false;
+        boolean snapshotConnection = false;
+        try (OutputStream out = s.getOutputStream();
+             InputStream in = s.getInputStream()) {
+
+            long deadlineMs = System.currentTimeMillis() + REQUEST_TIMEOUT_MS;
+            Endpoint endpoint;
+            // answer requests until one starts a stream or the connection ends
+            while (true) {
+                int n = readRequest(s, in, request, deadlineMs);
+                if (n == 0 || !running) return;
+                if (n < 0) {
+                    rejected.incrementAndGet();
+                    out.write(HttpRouter.errorResponse(-n, false));
+                    return;
+                }
+                int route = router.match(request);
+                boolean keepAlive = request.keepAlive();
+                if (route < 0) {
+                    rejected.incrementAndGet();
+                    request.next();
+                    out.write(HttpRouter.errorResponse(-route, keepAlive));
+                    if (!keepAlive) return;
+                } else {
+                    endpoint = router.handler(route);
+                    if (endpoint == Endpoint.CLIP || endpoint == Endpoint.RECORDING) {
+                        if (!serveExport(endpoint, request, out, keepAlive)) return;
+                        deadlineMs = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT_MS;
+                        continue;
+                    }
+                    if (endpoint == Endpoint.METRICS) {
+                        // setMetrics(null) leaves the route behind
+                        StreamMetrics m = metrics;
+                        request.next();
+                        if (m == null) rejected.incrementAndGet();
+                        out.write(m != null ? m.response(keepAlive) : HttpRouter.errorResponse(404, keepAlive));
+                        out.flush();
+                        if (!keepAlive) return;
+                        deadlineMs = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT_MS;
+                        continue;
+                    }
+                    if (endpoint != Endpoint.SNAPSHOT) break;
+                    if (!snapshotConnection) {
+                        snapshotConnection = true;
+                        snapshots.connectionOpened();
+                    }
+                    serveSnapshot(request, out, keepAlive);
+                    if (!keepAlive) return;
+                }
+                deadlineMs = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT_MS;
+            }
+            if (snapshotConnection) {
+                snapshotConnection = false;
+                snapshots.connectionClosed();
+            }
+
+            WebSocket ws = null;
+            if (endpoint == Endpoint.WEBSOCKET) {
+                int status = WebSocket.checkUpgrade(request);
+                if (status != 0) {
+                    rejected.incrementAndGet();
+                    out.write(HttpRouter.errorResponse(status, false));
+                    return;
+                }
+                ws = newWebSocket(request);
+            }
+
+            int maxFps = ws != null ? ws.fps() : request.queryInt("fps");
+            long minGapNanos = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+            clientStats.add(stats);
+            blockingClients.put(stats, s);
+            streaming = true;
+            if (clientListener != null) clientListener.onClientConnected();
+            FrameSlot frames = ws != null ? attachStream(stats, ws.profile(), maxFps) : attachStream(stats, request);
+            if (stats.bitrate != null) s.setSendBufferSize(BitrateController.SEND_BUFFER);
+
+            if (ws != null) {
+                out.write(WebSocket.acceptResponse(request));
+                request.next();
+                ws.takeBuffered(request);
+                startWebSocketReader(s, in, out, ws);
+            } else {
+                out.write(STREAM_HEADER.getBytes("UTF-8"));
+            }
+            out.flush();
+
+            // loop sending frames until client disconnects or server stops
+            long lastSeq = 0;
+            long nextDueNanos = 0;
+            while (!s.isClosed() && running && !s.isOutputShutdown()) {
+                long waitMs = 1000;
+                BitrateController bitrate = stats.bitrate;
+                if (bitrate != null && bitrate.takeChange()) {
+                    FrameSlot previous = frames;
+                    frames = retier(stats);
+                    if (frames != previous) lastSeq = stats.lastSeq();
+                }
+                if (ws != null) {
+                    long nowMs = System.currentTimeMillis();
+                    long due = ws.maintain(nowMs);
+                    if (due < 0) {
+                        webSocketReaped(stats);
+                        break;
+                    }
+                    synchronized (out) { ws.writeControl(out); }
+                    waitMs = Math.max(1, Math.min(waitMs, due - nowMs));
+                    if (ws.takeChanged()) {
+                        maxFps = ws.fps();
+                        minGapNanos = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+                        nextDueNanos = 0;
+                        FrameSlot previous = frames;
+                        frames = restream(stats, ws.profile(), maxFps);
+                        if (frames != previous) lastSeq = stats.lastSeq();
+                    }
+                }
+                // announce when we want the next frame, then wait until due so a capped
+                // client does not count as waiting in between
+                long now = System.nanoTime();
+                stats.wantsFrameAt(Math.max(now, nextDueNanos));
+                long wait = nextDueNanos - now;
+                if (wait > 0) Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                frames.requestFrame();
+                FrameSlot.Frame f = frames.awaitNewer(lastSeq, waitMs);
+                if (f == null) continue;
+                // f is retained until the write completes so a pooled buffer is not reused under us
+                try {
+                    if (minGapNanos > 0) nextDueNanos = System.nanoTime() + minGapNanos;
+                    long start = System.nanoTime();
+                    stats.frameStarted(f, start);
+                    int written;
+                    if (ws != null) {
+                        // per-client message header, then the JPEG from the shared buffer
+                        synchronized (out) {
+                            ws.writeControl(out);
+                            int n = ws.startMessage(f);
+                            out.write(ws.prefix(), 0, n);
+                            out.write(f.data(), f.jpegOffset(), f.jpegLength());
+                            out.flush();
+                            written = n + f.jpegLength();
+                        }
+                    } else {
+                        // boundary, part headers and JPEG were encoded once for all clients
+                        out.write(f.wireData(), f.wireOffset(), f.wireLength());
+                        out.flush();
+                        written = f.wireLength();
+                    }
+                    stats.bytesWritten(written);
+                    stats.frameFinished(frames.latestSeq(), System.nanoTime() - start);
+                    lastSeq = f.seq();
+                } finally {
+                    f.release();
+                }
+            }
+        } catch (Exception e) {
+            // client disconnected or I/O error - ignore silently
+        } finally {
+            // cleanup
+            try { s.close(); } catch (Exception ignored) {}
+            onConnectionClosed(s);
+            if (snapshotConnection) snapshots.connectionClosed();
+            if (streaming) {
+                blockingClients.remove(stats);
+                clientStats.remove(stats);
+                detachStream(stats);
+                if (clientListener != null) clientListener.onClientDisconnected();
+            }
+        }
+    }
+
+    // Reads a WebSocket client's frames on their own thread, answers its control frames and
+    // closes the socket (ending the writer) once it closes or breaks the protocol.
+    private void startWebSocketReader(Socket s, InputStream in, OutputStream out, WebSocket ws) {
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    boolean open = ws.process(System.currentTimeMillis());
+                    synchronized (out) { ws.writeControl(out); }
+                    if (!open || ws.read(in) < 0) break;
+                }
+            } catch (Exception ignored) {
+            } finally {
+                try { s.close(); } catch (Exception ignored) {}
+            }
+        }, "mjpeg-ws-reader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Answers one /snapshot.jpg request and consumes it from the buffer.
+    private void serveSnapshot(HttpRequest request, OutputStream out, boolean keepAlive)
+            throws IOException, InterruptedException {
+        FrameSlot.Frame f = slot.acquireLatest();
+        if (!snapshots.isFresh(f, System.nanoTime())) {
+            // only now does the request depend on the camera
+            snapshotWanted();
+            snapshots.beginWait();
+            try {
+                FrameSlot.Frame fresh = slot.awaitNewer(f != null ? f.seq() : 0, SnapshotResponder.WAIT_MS);
+                if (fresh != null) {
+                    if (f != null) f.release();
+                    f = fresh;
+                }
+            } finally {
+                snapshots.endWait();
+            }
+        }
+        try {
+            byte[] response = snapshots.head(f, request, keepAlive);
+            request.next();
+            out.write(response);
+            if (SnapshotResponder.bodyFollows(response)) out.write(f.data(), f.jpegOffset(), f.jpegLength());
+            out.flush();
+        } finally {
+            if (f != null) f.release();
+        }
+    }
+
+    // Writes a whole clip or recording response (404 if there is nothing to serve).
+    // Returns true if the connection stays open for the next request.
+    private boolean serveExport(Endpoint endpoint, HttpRequest request, OutputStream out, boolean keepAlive)
+            throws IOException {
+        if (endpoint == Endpoint.CLIP) {
+            ClipExport clip = openClip(request);
+            if (clip != null) {
+                try {
+                    request.next();
+                    out.write(ClipExport.HEAD);
+                    ByteBuffer b;
+                    while ((b = clip.nextBuffer()) != null) {
+                        // JPEG bytes go out straight from the ring's chunk
+                        out.write(b.array(), b.position(), b.remaining());
+                    }
+                    out.flush();
+                } finally {
+                    clip.close();
+                }
+                return false;
+            }
+        } else {
+            RecordingResponse r = openRecording(request);
+            if (r != null) {
+                try {
+                    request.next();
+                    WritableByteChannel ch = Channels.newChannel(out);
+                    // a blocking channel takes everything; false means the file came up short
+                    if (!r.writeTo(ch)) return false;
+                    out.flush();
+                } finally {
+                    r.close();
+                }
+                return r.keepAlive;
+            }
+        }
+        rejected.incrementAndGet();
+        request.next();
+        out.write(HttpRouter.errorResponse(404, keepAlive));
+        return keepAlive;
+    }
+
+    /**
+     * Shutdown the server: stop accepting new clients and close active clients.
+     * After shutdown returns, the server thread will exit shortly.
+     */
+    public void shutdown() {
+        running = false;
+        // close server socket to break out of accept()
+        try { if (serverSocket != null) serverSocket.close(); } catch (Exception ignored) {}
+        // close active client sockets so their threads exit quickly
+        closeAllClients();
+        wakeLoops();
+    }
+
+    private void closeAllClients() {
+        for (Socket c : activeClients) {
+            try { c.close(); } catch (Exception ignored) {}
+        }
+        activeClients.clear();
+    }
+}
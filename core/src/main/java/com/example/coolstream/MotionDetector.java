@@ -0,0 +1,214 @@
+package com.example.coolstream;
+
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Motion detection on the Y plane of NV21 frames, used to trickle frames out of idle scenes.
+ *
+ * - The frame is divided into BLOCK x BLOCK blocks; each block's mean luma is estimated
+ *   from a sparse SAMPLE_STEP grid (16 samples per block), so a 640x480 frame costs about
+ *   20k byte reads
+ * - Each block is compared with a running background (exponential average in 8.8 fixed
+ *   point). A uniform brightness change (auto exposure, lights) is subtracted before the
+ *   comparison, so it does not count as motion
+ * - score is the share of changed blocks in permille; motion starts when it reaches
+ *   minScore and holds for holdMs after the last frame that reached it
+ * - shouldEncode() passes every frame while there is motion and one per idle interval
+ *   (idleFps, default 1) otherwise
+ * - Arrays are allocated once per frame size; analyze() allocates nothing
+ *
+ * analyze() returns the frame's motion metadata packed into one int (see score() and
+ * isActive()), which travels with the capture into the published Frame.
+ *
+ * Not thread-safe: call from the capture thread only. Counters may be read from any thread.
+ */
+public final class MotionDetector {
+    /** Metadata of a frame that was not analysed. */
+    public static final int UNKNOWN = -1;
+    // set in the packed metadata while motion is active
+    private static final int ACTIVE = 1 << 16;
+
+    static final int BLOCK = 16;
+    static final int SAMPLE_STEP = 4;
+    public static final int DEFAULT_THRESHOLD = 14;
+    public static final int DEFAULT_MIN_SCORE = 4;
+    public static final long DEFAULT_HOLD_MS = 2000;
+    public static final int DEFAULT_IDLE_FPS = 1;
+    // background learning rates (1/2^n per frame): static blocks, then blocks seen changing
+    private static final int LEARN_SHIFT = 4;
+    private static final int LEARN_SHIFT_CHANGED = 6;
+
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    private volatile int minScore = DEFAULT_MIN_SCORE;
+    private volatile long holdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HOLD_MS);
+    private volatile long idleIntervalNanos = 1_000_000_000L / DEFAULT_IDLE_FPS;
+
+    private int width;
+    private int height;
+    private int blocksX;
+    private int blocksY;
+    // current block means and background (8.8 fixed point), one entry per block
+    private int[] current = new int[0];
+    private int[] background = new int[0];
+    private boolean primed;
+
+    private volatile int score;
+    private volatile boolean active;
+    private long lastMotionNanos;
+    private long lastEncodeNanos;
+    private boolean encodedAny;
+
+    private volatile long analyzed;
+    private volatile long motionFrames;
+    private volatile long motionEvents;
+    private volatile long trickled;
+
+    /** Luma difference (0..255) above which a block counts as changed. */
+    public void setThreshold(int threshold) { this.threshold = threshold; }
+
+    /** Changed blocks, in permille of the frame, that count as motion. */
+    public void setMinScore(int permille) { this.minScore = Math.max(1, permille); }
+
+    /** How long motion stays active after the last frame that showed it. */
+    public void setHoldMs(long ms) { this.holdNanos = TimeUnit.MILLISECONDS.toNanos(ms); }
+
+    /** Frames per second passed on while the scene is idle; 0 passes every frame. */
+    public void setIdleFps(int fps) {
+        this.idleIntervalNanos = fps > 0 ? 1_000_000_000L / fps : 0;
+    }
+
+    /** Forget the background (camera restarted or moved); the next frame primes it again. */
+    public void reset() {
+        primed = false;
+        active = false;
+        score = 0;
+        encodedAny = false;
+    }
+
+    /**
+     * Compare the frame's luma with the background and update it.
+     * @return packed metadata for this frame: score(m) and isActive(m) decode it
+     */
+    public int analyze(byte[] nv21, int width, int height, long nanos) {
+        if (width != this.width || height != this.height) resize(width, height);
+        int blocks = blocksX * blocksY;
+        if (blocks == 0) return UNKNOWN;
+        sampleBlocks(nv21);
+        analyzed++;
+        int[] cur = current, bg = background;
+        if (!primed) {
+            for (int i = 0; i < blocks; i++) bg[i] = cur[i] << 8;
+            primed = true;
+            score = 0;
+            return pack(0, active);
+        }
+        // uniform brightness shift between frame and background, in 8.8
+        long shift = 0;
+        for (int i = 0; i < blocks; i++) shift += (cur[i] << 8) - bg[i];
+        int offset = (int) (shift / blocks);
+        int limit = threshold << 8;
+        int changed = 0;
+        for (int i = 0; i < blocks; i++) {
+            int c = cur[i] << 8;
+            int d = c - offset - bg[i];
+            if (d > limit || d < -limit) {
+                changed++;
+                bg[i] += (c - bg[i]) >> LEARN_SHIFT_CHANGED;
+            } else {
+                bg[i] += (c - bg[i]) >> LEARN_SHIFT;
+            }
+        }
+        int s = changed * 1000 / blocks;
+        score = s;
+        if (s >= minScore) {
+            motionFrames++;
+            lastMotionNanos = nanos;
+            if (!active) {
+                active = true;
+                motionEvents++;
+            }
+        } else if (active && nanos - lastMotionNanos > holdNanos) {
+            active = false;
+        }
+        return pack(s, active);
+    }
+
+    // block means from a SAMPLE_STEP grid inside each block
+    private void sampleBlocks(byte[] y) {
+        int w = width;
+        int perBlock = BLOCK / SAMPLE_STEP;
+        int shift = Integer.numberOfTrailingZeros(perBlock * perBlock);
+        int[] cur = current;
+        for (int by = 0, i = 0; by < blocksY; by++) {
+            int rowBase = by * BLOCK * w + (SAMPLE_STEP / 2) * w + SAMPLE_STEP / 2;
+            for (int bx = 0; bx < blocksX; bx++, i++) {
+                int p = rowBase + bx * BLOCK;
+                int sum = 0;
+                for (int r = 0; r < perBlock; r++, p += SAMPLE_STEP * w) {
+                    sum += (y[p] & 0xFF) + (y[p + SAMPLE_STEP] & 0xFF)
+                            + (y[p + 2 * SAMPLE_STEP] & 0xFF) + (y[p + 3 * SAMPLE_STEP] & 0xFF);
+                }
+                cur[i] = sum >> shift;
+            }
+        }
+    }
+
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        blocksX = width / BLOCK;
+        blocksY = height / BLOCK;
+        current = new int[blocksX * blocksY];
+        background = new int[blocksX * blocksY];
+        primed = false;
+    }
+
+    /**
+     * Whether the frame analysed last should be encoded: always while motion is active,
+     * otherwise once per idle interval. Counts the frames it holds back.
+     */
+    public boolean shouldEncode(long nanos) {
+        long interval = idleIntervalNanos;
+        if (active || interval == 0 || !encodedAny || nanos - lastEncodeNanos >= interval) {
+            encodedAny = true;
+            lastEncodeNanos = nanos;
+            return true;
+        }
+        trickled++;
+        return false;
+    }
+
+    static int pack(int score, boolean active) {
+        return score | (active ? ACTIVE : 0);
+    }
+
+    /** Score in permille from packed metadata, or UNKNOWN. */
+    public static int score(int motion) {
+        return motion == UNKNOWN ? UNKNOWN : motion & (ACTIVE - 1);
+    }
+
+    /** True if the packed metadata says motion was active. */
+    public static boolean isActive(int motion) {
+        return motion != UNKNOWN && (motion & ACTIVE) != 0;
+    }
+
+    /** Score of the last analysed frame (permille of changed blocks). */
+    public int score() { return score; }
+    public boolean isMotion() { return active; }
+
+    public long framesAnalyzed() { return analyzed; }
+    /** Frames whose score reached the motion threshold. */
+    public long motionFrames() { return motionFrames; }
+    /** Transitions from idle to motion. */
+    public long motionEvents() { return motionEvents; }
+    /** Frames held back by shouldEncode() while the scene was idle. */
+    public long framesTrickled() { return trickled; }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "MotionDetector{%s score=%d analyzed=%d motionFrames=%d events=%d trickled=%d}",
+                active ? "motion" : "idle", score, analyzed, motionFrames, motionEvents, trickled);
+    }
+}
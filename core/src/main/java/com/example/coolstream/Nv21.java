@@ -0,0 +1,175 @@
+package com.example.coolstream;
+
+
+import java.util.Arrays;
+
+/**
+ * Allocation-free operations on NV21 frames (full-size Y plane followed by interleaved
+ * V/U samples at half resolution). Pure Java so it runs and is tested on the JVM.
+ *
+ * - scaleNearest / scaleBox: resize by any integer or fractional factor
+ * - crop: region of interest (origin rounded down to even coordinates)
+ * - grayscale / luma: neutral-chroma NV21 or the bare Y plane
+ * - rotate: 90, 180 or 270 degrees clockwise
+ *
+ * Every method writes into a caller-provided array that can be reused frame after frame.
+ * Widths and heights must be even; dst must not be the same array as src unless noted.
+ */
+final class Nv21 {
+    private Nv21() {}
+
+    /** Bytes needed for a width x height NV21 frame (both dimensions even). */
+    static int size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Nearest-neighbour resize of src (sw x sh) into dst (dw x dh). Cheapest option; aliases
+     * when shrinking by 2x or more (use scaleBox there).
+     */
+    static void scaleNearest(byte[] src, int sw, int sh, byte[] dst, int dw, int dh) {
+        // 16.16 fixed-point steps
+        int xStep = (sw << 16) / dw;
+        int yStep = (sh << 16) / dh;
+        for (int y = 0, sy = 0; y < dh; y++, sy += yStep) {
+            int srcRow = (sy >> 16) * sw;
+            int dstRow = y * dw;
+            for (int x = 0, sx = 0; x < dw; x++, sx += xStep) {
+                dst[dstRow + x] = src[srcRow + (sx >> 16)];
+            }
+        }
+        // chroma: one V/U pair per 2x2 block
+        int srcUv = sw * sh;
+        int dstUv = dw * dh;
+        int cw = dw / 2, ch = dh / 2, scw = sw / 2;
+        for (int y = 0, sy = 0; y < ch; y++, sy += yStep) {
+            int srcRow = srcUv + (sy >> 16) * sw;
+            int dstRow = dstUv + y * dw;
+            for (int x = 0, sx = 0; x < cw; x++, sx += xStep) {
+                int s = srcRow + Math.min(sx >> 16, scw - 1) * 2;
+                dst[dstRow + 2 * x] = src[s];
+                dst[dstRow + 2 * x + 1] = src[s + 1];
+            }
+        }
+    }
+
+    /**
+     * Box-filter resize: each output sample is the rounded mean of the source samples it
+     * covers (cells are [i*s/d, (i+1)*s/d) in integer coordinates, at least one sample wide).
+     * Reads every source byte once, so it costs more than scaleNearest but does not alias.
+     */
+    static void scaleBox(byte[] src, int sw, int sh, byte[] dst, int dw, int dh) {
+        boxChannel(src, 0, sw, sh, sw, 1, dst, 0, dw, dh, dw);
+        int srcUv = sw * sh, dstUv = dw * dh;
+        boxChannel(src, srcUv, sw / 2, sh / 2, sw, 2, dst, dstUv, dw / 2, dh / 2, dw);
+        boxChannel(src, srcUv + 1, sw / 2, sh / 2, sw, 2, dst, dstUv + 1, dw / 2, dh / 2, dw);
+    }
+
+    // Box-filters one channel whose samples are step bytes apart, rows stride bytes apart.
+    private static void boxChannel(byte[] src, int srcOff, int sw, int sh, int srcStride, int step,
+                                   byte[] dst, int dstOff, int dw, int dh, int dstStride) {
+        // frame dimensions are far below 2^15, so the products fit in an int
+        for (int y = 0; y < dh; y++) {
+            int y0 = y * sh / dh;
+            int y1 = Math.max(y0 + 1, (y + 1) * sh / dh);
+            int dstRow = dstOff + y * dstStride;
+            for (int x = 0; x < dw; x++) {
+                int x0 = x * sw / dw;
+                int x1 = Math.max(x0 + 1, (x + 1) * sw / dw);
+                int sum = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int p = srcOff + sy * srcStride + x0 * step;
+                    for (int sx = x0; sx < x1; sx++, p += step) sum += src[p] & 0xFF;
+                }
+                int n = (y1 - y0) * (x1 - x0);
+                dst[dstRow + x * step] = (byte) ((sum + n / 2) / n);
+            }
+        }
+    }
+
+    /**
+     * Copies the cw x ch region at (x, y) of src into dst. x and y are rounded down to even
+     * values so the region starts on a chroma sample; the region must lie inside the frame.
+     */
+    static void crop(byte[] src, int sw, int sh, int x, int y, int cw, int ch, byte[] dst) {
+        x &= ~1;
+        y &= ~1;
+        for (int r = 0; r < ch; r++) {
+            System.arraycopy(src, (y + r) * sw + x, dst, r * cw, cw);
+        }
+        int srcUv = sw * sh, dstUv = cw * ch;
+        for (int r = 0; r < ch / 2; r++) {
+            System.arraycopy(src, srcUv + (y / 2 + r) * sw + x, dst, dstUv + r * cw, cw);
+        }
+    }
+
+    /** NV21 with src's luma and neutral chroma. dst may be src (only the chroma is rewritten). */
+    static void grayscale(byte[] src, int width, int height, byte[] dst) {
+        int ySize = width * height;
+        if (dst != src) System.arraycopy(src, 0, dst, 0, ySize);
+        Arrays.fill(dst, ySize, ySize + ySize / 2, (byte) 128);
+    }
+
+    /** Just the Y plane (width * height bytes). */
+    static void luma(byte[] src, int width, int height, byte[] dst) {
+        System.arraycopy(src, 0, dst, 0, width * height);
+    }
+
+    /**
+     * Rotates clockwise by 90, 180 or 270 degrees (0 copies). For 90 and 270 the output is
+     * height x width.
+     */
+    static void rotate(byte[] src, int width, int height, byte[] dst, int degrees) {
+        int w = width, h = height;
+        int uv = w * h;
+        int cw = w / 2, ch = h / 2;
+        switch (degrees) {
+            case 0:
+                System.arraycopy(src, 0, dst, 0, size(w, h));
+                return;
+            case 90:
+                // (x, y) -> (h - 1 - y, x) in an h-wide frame
+                for (int y = 0; y < h; y++) {
+                    int row = y * w;
+                    int col = h - 1 - y;
+                    for (int x = 0; x < w; x++) dst[x * h + col] = src[row + x];
+                }
+                for (int y = 0; y < ch; y++) {
+                    int row = uv + y * w;
+                    int col = 2 * (ch - 1 - y);
+                    for (int x = 0; x < cw; x++) {
+                        int d = uv + x * h + col;
+                        dst[d] = src[row + 2 * x];
+                        dst[d + 1] = src[row + 2 * x + 1];
+                    }
+                }
+                return;
+            case 180:
+                for (int i = 0; i < uv; i++) dst[uv - 1 - i] = src[i];
+                int pairs = cw * ch;
+                for (int i = 0; i < pairs; i++) {
+                    int s = uv + 2 * i, d = uv + 2 * (pairs - 1 - i);
+                    dst[d] = src[s];
+                    dst[d + 1] = src[s + 1];
+                }
+                return;
+            case 270:
+                // (x, y) -> (y, w - 1 - x) in an h-wide frame
+                for (int y = 0; y < h; y++) {
+                    int row = y * w;
+                    for (int x = 0; x < w; x++) dst[(w - 1 - x) * h + y] = src[row + x];
+                }
+                for (int y = 0; y < ch; y++) {
+                    int row = uv + y * w;
+                    for (int x = 0; x < cw; x++) {
+                        int d = uv + (cw - 1 - x) * h + 2 * y;
+                        dst[d] = src[row + 2 * x];
+                        dst[d + 1] = src[row + 2 * x + 1];
+                    }
+                }
+                return;
+            default:
+                throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270: " + degrees);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Responses for playback of SegmentRecorder recordings.
+ *
+ * - GET /recordings.json lists the segments (id, first and last capture time, frames, bytes)
+ * - GET /segment.mjpg?id=N serves one segment file as-is; it is a multipart MJPEG body, so
+ *   single "Range: bytes=" requests are honoured (206, or 416) for players that seek by byte
+ * - GET /recording.mjpg?t=EPOCH_MS&seconds=N seeks by time through the index and streams
+ *   the frames from t (default: oldest) for N seconds (default: up to the newest written
+ *   frame), across segments, and closes
+ *
+ * File bytes go out with FileChannel.transferTo(), which the kernel sends without copying
+ * to a SocketChannel (IoMode.SELECTOR); with a stream-backed channel (THREAD_PER_CLIENT)
+ * the JDK copies through a buffer instead. Each open file stays readable if the segment is
+ * deleted by the quota while it is being sent.
+ */
+final class RecordingResponse implements AutoCloseable {
+    static final String LIST_PATH = "/recordings.json";
+    static final String SEGMENT_PATH = "/segment.mjpg";
+    static final String PLAY_PATH = "/recording.mjpg";
+
+    private static final byte[] LIST_PATH_BYTES = LIST_PATH.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEGMENT_PATH_BYTES = SEGMENT_PATH.getBytes(StandardCharsets.US_ASCII);
+    private static final String MULTIPART = "multipart/x-mixed-replace; boundary=ipcam";
+
+    private final ByteBuffer head;
+    private final SegmentRecorder.Segment[] segments;
+    private final long[] from;
+    private final long[] to;
+    private final ByteBuffer tail;
+    final boolean keepAlive;
+    // one per segment, opened up front; null once sent
+    private final FileChannel[] channels;
+    private int next;
+    private FileChannel file;
+    private long position;
+    private long written;
+
+    private RecordingResponse(String head, SegmentRecorder.Segment[] segments, long[] from, long[] to,
+                              byte[] tail, boolean keepAlive) throws IOException {
+        this.head = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+        this.segments = segments;
+        this.from = from;
+        this.to = to;
+        this.tail = tail != null ? ByteBuffer.wrap(tail) : null;
+        this.keepAlive = keepAlive;
+        this.channels = new FileChannel[segments.length];
+        // open every file now: a segment deleted later is still read through its descriptor
+        for (int i = 0; i < segments.length; i++) {
+            if (from[i] >= to[i]) continue;
+            try {
+                channels[i] = new RandomAccessFile(segments[i].data, "r").getChannel();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The response for a routed request, or null if there is nothing to serve (404).
+     * The request is not consumed.
+     */
+    static RecordingResponse of(SegmentRecorder recorder, HttpRequest request) throws IOException {
+        if (request.isPath(LIST_PATH_BYTES)) return list(recorder, request.keepAlive());
+        if (request.isPath(SEGMENT_PATH_BYTES)) return segment(recorder, request);
+        return play(recorder, request);
+    }
+
+    private static RecordingResponse list(SegmentRecorder recorder, boolean keepAlive) throws IOException {
+        StringBuilder body = new StringBuilder("[");
+        List<SegmentRecorder.Segment> all = recorder.segments();
+        for (int i = 0; i < all.size(); i++) {
+            SegmentRecorder.Segment s = all.get(i);
+            if (i > 0) body.append(',');
+            body.append("{\"id\":").append(s.id)
+                    .append(",\"start\":").append(s.startMs())
+                    .append(",\"end\":").append(s.endMs())
+                    .append(",\"frames\":").append(s.frames())
+                    .append(",\"bytes\":").append(s.bytes()).append('}');
+        }
+        body.append("]\n");
+        byte[] json = body.toString().getBytes(StandardCharsets.US_ASCII);
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + json.length + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                connection(keepAlive);
+        return new RecordingResponse(head, new SegmentRecorder.Segment[0], new long[0], new long[0], json, keepAlive);
+    }
+
+    private static RecordingResponse segment(SegmentRecorder recorder, HttpRequest request) throws IOException {
+        SegmentRecorder.Segment s = recorder.segment(request.queryLong("id"));
+        if (s == null) return null;
+        boolean keepAlive = request.keepAlive();
+        long size = s.bytes();
+        long[] range = new long[2];
+        int status = request.range(size, range);
+        String common = "Content-Type: " + MULTIPART + "\r\n" +
+                "Accept-Ranges: bytes\r\n";
+        if (status == HttpRequest.RANGE_NOT_SATISFIABLE) {
+            String head = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                    "Content-Range: bytes */" + size + "\r\n" +
+                    "Content-Length: 0\r\n" + connection(keepAlive);
+            return new RecordingResponse(head, new SegmentRecorder.Segment[0], new long[0], new long[0], null, keepAlive);
+        }
+        String head;
+        if (status == 206) {
+            head = "HTTP/1.1 206 Partial Content\r\n" + common +
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n" +
+                    "Content-Length: " + (range[1] - range[0] + 1) + "\r\n" + connection(keepAlive);
+        } else {
+            range[0] = 0;
+            range[1] = size - 1;
+            head = "HTTP/1.1 200 OK\r\n" + common +
+                    "Content-Length: " + size + "\r\n" + connection(keepAlive);
+        }
+        return new RecordingResponse(head, new SegmentRecorder.Segment[] {s},
+                new long[] {range[0]}, new long[] {range[1] + 1}, null, keepAlive);
+    }
+
+    private static RecordingResponse play(SegmentRecorder recorder, HttpRequest request) throws IOException {
+        long t = request.queryLong("t");
+        int seconds = request.queryInt("seconds");
+        SegmentRecorder.Position start = recorder.seek(t);
+        if (start == null) return null;
+        SegmentRecorder.Position end = recorder.seekEnd(seconds > 0 ? start.epochMs + seconds * 1000L : Long.MAX_VALUE);
+        if (end == null || end.segment.id < start.segment.id) return null;
+        List<SegmentRecorder.Segment> all = recorder.segments();
+        int first = all.indexOf(start.segment);
+        int last = all.indexOf(end.segment);
+        if (first < 0 || last < first) return null;
+        int n = last - first + 1;
+        SegmentRecorder.Segment[] segs = new SegmentRecorder.Segment[n];
+        long[] from = new long[n];
+        long[] to = new long[n];
+        for (int i = 0; i < n; i++) {
+            segs[i] = all.get(first + i);
+            from[i] = i == 0 ? start.offset : 0;
+            to[i] = i == n - 1 ? end.offset : segs[i].bytes();
+        }
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + MULTIPART + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                connection(false);
+        return new RecordingResponse(head, segs, from, to, ClipExport.END, false);
+    }
+
+    private static String connection(boolean keepAlive) {
+        return "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+    }
+
+    /**
+     * Writes as much as out accepts without blocking (a blocking channel takes it all).
+     * @return true once the whole response has been written
+     */
+    boolean writeTo(WritableByteChannel out) throws IOException {
+        if (head.hasRemaining()) {
+            written += out.write(head);
+            if (head.hasRemaining()) return false;
+        }
+        while (next < segments.length) {
+            FileChannel f = channels[next];
+            if (f == null || from[next] >= to[next]) {
+                next++;
+                position = 0;
+                continue;
+            }
+            if (file != f) {
+                file = f;
+                position = from[next];
+            }
+            long n = f.transferTo(position, to[next] - position, out);
+            position += n;
+            written += n;
+            if (position < to[next]) {
+                if (n == 0) return false;
+                continue;
+            }
+            f.close();
+            channels[next] = null;
+            next++;
+        }
+        if (tail != null && tail.hasRemaining()) {
+            written += out.write(tail);
+            if (tail.hasRemaining()) return false;
+        }
+        return true;
+    }
+
+    /** Bytes written so far. */
+    long written() { return written; }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == null) continue;
+            try { channels[i].close(); } catch (IOException ignored) {}
+            channels[i] = null;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.coolstream;
+
+
+/**
+ * Splits baseline JPEGs into RTP/JPEG packets (RFC 2435) for one RTP stream.
+ *
+ * - Only the entropy-coded scan is sent; the JFIF/EXIF APPn, COM, DHT and frame/scan
+ *   headers are stripped, and the receiver rebuilds them from the 8-byte JPEG header
+ *   (type, width and height in 8-pixel blocks)
+ * - The quantization tables are sent in-band (Q = 255) in the first packet of each
+ *   frame, so any quality setting and any table the encoder picked round-trip exactly
+ * - A DRI restart interval is carried in the restart marker header (types 64/65)
+ * - setFrame() only parses the marker segments; nextPacket() copies header and payload
+ *   straight into the caller's buffer, so a frame is sent without allocating
+ *
+ * Frames RFC 2435 cannot describe are refused by setFrame(): not baseline/extended
+ * Huffman, not 3 components at 4:2:2 or 4:2:0 with luma on table 0 and chroma on table
+ * 1, Huffman tables other than the standard ones (JpegTables), or larger than 2040 pixels.
+ * A size that is not a multiple of 8 is rounded up; the scan already covers whole MCUs.
+ *
+ * Not thread-safe: one instance per stream.
+ */
+final class RtpJpegPacketizer {
+    static final int PAYLOAD_TYPE = 26;
+    static final int CLOCK_RATE = 90_000;
+    static final int RTP_HEADER = 12;
+    static final int JPEG_HEADER = 8;
+    static final int RESTART_HEADER = 4;
+    static final int QUANT_HEADER = 4;
+    /** Default size of an RTP packet (headers and payload), below a 1500-byte MTU. */
+    static final int DEFAULT_MAX_PACKET = 1400;
+    // fits every header plus two 16-bit quantization tables and some payload
+    static final int MIN_MAX_PACKET = 512;
+    // Q 128..255: tables are in-band; 255 means they may change with every frame
+    static final int Q_IN_BAND = 255;
+    static final int MAX_DIMENSION = 2040;
+
+    private final int ssrc;
+    private final int maxPacket;
+    private int sequence;
+
+    // the frame being sent; src == null when there is none
+    private byte[] src;
+    private int type;
+    private int width8;
+    private int height8;
+    private int restartInterval;
+    // offsets of the values of quantization tables 0 and 1, and whether they are 16-bit
+    private final int[] quantOffset = new int[2];
+    private final boolean[] quant16 = new boolean[2];
+    private int scanStart;
+    private int scanEnd;
+    private int fragment;
+    private int timestamp;
+
+    RtpJpegPacketizer(int ssrc, int firstSequence, int maxPacket) {
+        if (maxPacket < MIN_MAX_PACKET) throw new IllegalArgumentException("maxPacket must be >= " + MIN_MAX_PACKET);
+        this.ssrc = ssrc;
+        this.sequence = firstSequence & 0xFFFF;
+        this.maxPacket = maxPacket;
+    }
+
+    /** Sequence number of the next packet. */
+    int sequence() { return sequence; }
+
+    int ssrc() { return ssrc; }
+
+    /**
+     * Start sending a frame; packets still pending for the previous one are dropped.
+     * @param timestamp RTP timestamp (90 kHz) of every packet of this frame
+     * @return false if the JPEG cannot be sent as RTP/JPEG (see class doc)
+     */
+    boolean setFrame(byte[] jpeg, int off, int len, int timestamp) {
+        src = null;
+        int end = off + len;
+        if (len < 4 || jpeg[off] != (byte) 0xFF || jpeg[off + 1] != (byte) 0xD8) return false;
+        quantOffset[0] = quantOffset[1] = -1;
+        restartInterval = 0;
+        type = -1;
+        int p = off + 2;
+        while (p + 4 <= end) {
+            if (jpeg[p] != (byte) 0xFF) return false;
+            int marker = jpeg[p + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                p++;
+                continue;
+            }
+            int segEnd = p + 2 + u16(jpeg, p + 2);
+            int s = p + 4;
+            if (segEnd < s || segEnd > end) return false;
+            switch (marker) {
+                case 0xDB:
+                    if (!readQuantTables(jpeg, s, segEnd)) return false;
+                    break;
+                case 0xC0:
+                case 0xC1:
+                    if (!readFrameHeader(jpeg, s, segEnd)) return false;
+                    break;
+                case 0xC4:
+                    for (int t = s; t < segEnd; ) {
+                        int n = JpegTables.standardTableLength(jpeg, t, segEnd);
+                        if (n < 0) return false;
+                        t += n;
+                    }
+                    break;
+                case 0xDD:
+                    if (segEnd - s < 2) return false;
+                    restartInterval = u16(jpeg, s);
+                    break;
+                case 0xDA:
+                    return readScanHeader(jpeg, s, segEnd, end, timestamp);
+                default:
+                    // progressive, lossless, arithmetic coding (DAC) and hierarchical frames
+                    if (marker >= 0xC2 && marker <= 0xCF) return false;
+                    // APPn (JFIF, EXIF), COM and anything else is not sent
+            }
+            p = segEnd;
+        }
+        return false;
+    }
+
+    private boolean readQuantTables(byte[] a, int p, int end) {
+        while (p < end) {
+            int precision = (a[p] & 0xFF) >> 4;
+            int id = a[p] & 0x0F;
+            int size = precision == 0 ? 64 : 128;
+            if (precision > 1 || p + 1 + size > end) return false;
+            if (id < 2) {
+                quantOffset[id] = p + 1;
+                quant16[id] = precision == 1;
+            }
+            p += 1 + size;
+        }
+        return true;
+    }
+
+    private boolean readFrameHeader(byte[] a, int p, int end) {
+        if (end - p < 6 + 3 * 3 || a[p] != 8 || a[p + 5] != 3) return false;
+        int height = u16(a, p + 1);
+        int width = u16(a, p + 3);
+        if (width == 0 || height == 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) return false;
+        int c = p + 6;
+        int luma = a[c + 1] & 0xFF;
+        if (luma == 0x21) type = 0;
+        else if (luma == 0x22) type = 1;
+        else return false;
+        if (a[c + 2] != 0 || a[c + 4] != 0x11 || a[c + 5] != 1 || a[c + 7] != 0x11 || a[c + 8] != 1) return false;
+        width8 = (width + 7) >> 3;
+        height8 = (height + 7) >> 3;
+        return true;
+    }
+
+    private boolean readScanHeader(byte[] a, int p, int segEnd, int end, int timestamp) {
+        if (type < 0 || quantOffset[0] < 0 || quantOffset[1] < 0) return false;
+        if (segEnd - p < 1 + 3 * 2 + 3 || a[p] != 3) return false;
+        // luma on DC/AC table 0, chroma on table 1; one sequential scan of everything
+        if (a[p + 2] != 0 || a[p + 4] != 0x11 || a[p + 6] != 0x11) return false;
+        if (a[p + 7] != 0 || a[p + 8] != 63 || a[p + 9] != 0) return false;
+        int e = end;
+        // the scan ends at EOI; anything after it is not part of the image
+        for (int i = end - 2; i >= segEnd; i--) {
+            if (a[i] == (byte) 0xFF && a[i + 1] == (byte) 0xD9) {
+                e = i;
+                break;
+            }
+        }
+        if (e <= segEnd) return false;
+        this.src = a;
+        this.scanStart = segEnd;
+        this.scanEnd = e;
+        this.fragment = 0;
+        this.timestamp = timestamp;
+        return true;
+    }
+
+    private static int u16(byte[] a, int p) {
+        return (a[p] & 0xFF) << 8 | (a[p + 1] & 0xFF);
+    }
+
+    /** RFC 2435 type of the current frame: 0 (4:2:2) or 1 (4:2:0), plus 64 with restart markers. */
+    int type() { return restartInterval > 0 ? type + 64 : type; }
+
+    /** Entropy-coded bytes of the current frame. */
+    int scanLength() { return src == null ? 0 : scanEnd - scanStart; }
+
+    /** True while packets of the current frame remain. */
+    boolean hasNext() { return src != null && fragment < scanEnd - scanStart; }
+
+    /**
+     * Writes the next packet of the current frame at dst[off]. The last packet of a frame
+     * has the RTP marker bit set.
+     * @return the packet length (at most maxPacket), or 0 if the frame is done
+     */
+    int nextPacket(byte[] dst, int off) {
+        if (!hasNext()) return 0;
+        int scanLength = scanEnd - scanStart;
+        boolean first = fragment == 0;
+        int q0 = quant16[0] ? 128 : 64;
+        int q1 = quant16[1] ? 128 : 64;
+        int headers = RTP_HEADER + JPEG_HEADER + (restartInterval > 0 ? RESTART_HEADER : 0)
+                + (first ? QUANT_HEADER + q0 + q1 : 0);
+        int n = Math.min(maxPacket - headers, scanLength - fragment);
+        boolean last = fragment + n == scanLength;
+
+        int p = off;
+        dst[p++] = (byte) 0x80;
+        dst[p++] = (byte) ((last ? 0x80 : 0) | PAYLOAD_TYPE);
+        dst[p++] = (byte) (sequence >> 8);
+        dst[p++] = (byte) sequence;
+        p = putInt(dst, p, timestamp);
+        p = putInt(dst, p, ssrc);
+
+        dst[p++] = 0;
+        dst[p++] = (byte) (fragment >> 16);
+        dst[p++] = (byte) (fragment >> 8);
+        dst[p++] = (byte) fragment;
+        dst[p++] = (byte) type();
+        dst[p++] = (byte) Q_IN_BAND;
+        dst[p++] = (byte) width8;
+        dst[p++] = (byte) height8;
+
+        if (restartInterval > 0) {
+            dst[p++] = (byte) (restartInterval >> 8);
+            dst[p++] = (byte) restartInterval;
+            // F = L = 1, count 0x3FFF: packets are not aligned to restart intervals
+            dst[p++] = (byte) 0xFF;
+            dst[p++] = (byte) 0xFF;
+        }
+        if (first) {
+            dst[p++] = 0;
+            dst[p++] = (byte) ((quant16[0] ? 1 : 0) | (quant16[1] ? 2 : 0));
+            dst[p++] = (byte) ((q0 + q1) >> 8);
+            dst[p++] = (byte) (q0 + q1);
+            System.arraycopy(src, quantOffset[0], dst, p, q0);
+            p += q0;
+            System.arraycopy(src, quantOffset[1], dst, p, q1);
+            p += q1;
+        }
+        System.arraycopy(src, scanStart + fragment, dst, p, n);
+        p += n;
+        fragment += n;
+        sequence = (sequence + 1) & 0xFFFF;
+        if (last) src = null;
+        return p - off;
+    }
+
+    private static int putInt(byte[] dst, int p, int v) {
+        dst[p] = (byte) (v >> 24);
+        dst[p + 1] = (byte) (v >> 16);
+        dst[p + 2] = (byte) (v >> 8);
+        dst[p + 3] = (byte) v;
+        return p + 4;
+    }
+}
@@ -0,0 +1,572 @@
+package com.example.coolstream;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal RTSP server (RFC 2326) streaming the FrameSlot's JPEGs as RTP/JPEG (RFC 2435).
+ *
+ * - One stream, "rtsp://host:port/" (any path works); OPTIONS, DESCRIBE (SDP),
+ *   SETUP, PLAY, PAUSE, TEARDOWN and GET_PARAMETER/SET_PARAMETER keep-alives
+ * - SETUP accepts unicast UDP ("RTP/AVP;unicast;client_port=a-b", sent from one shared
+ *   DatagramChannel to the control connection's address) and RTP over the RTSP
+ *   connection ("RTP/AVP/TCP;interleaved=a-b"), which gets through NATs and firewalls
+ * - Each playing session has an "rtp-sender" thread that waits for frames like a
+ *   thread-per-client MJPEG stream: it skips to the newest frame whenever it falls
+ *   behind, "?fps=N" in the URL caps its rate, and it takes part in FrameSlot demand
+ * - Packets are built by RtpJpegPacketizer into the session's one reused buffer
+ * - A session lives as long as its RTSP connection (or until TEARDOWN). UDP sessions
+ *   must send a request at least every SESSION_TIMEOUT_S seconds, as advertised in the
+ *   Session header; over TCP a dead client fails the next write
+ * - Playing sessions count as clients for ClientListener, like MJPEG streams
+ *
+ * No RTCP is sent or read; receivers time frames by the RTP timestamps (capture time).
+ *
+ * Usage:
+ *   RtspServer rtsp = new RtspServer(RtspServer.DEFAULT_PORT, frameSlot);
+ *   rtsp.setClientListener(...);
+ *   rtsp.start();
+ *   ...
+ *   rtsp.shutdown();
+ */
+public class RtspServer extends Thread {
+    public static final int DEFAULT_PORT = 8554;
+    static final int SESSION_TIMEOUT_S = 60;
+    // request heads are tiny; anything bigger is not an RTSP client
+    private static final int MAX_LINE = 2048;
+    private static final int MAX_HEADERS = 64;
+    private static final int SEND_BUFFER_BYTES = 256 * 1024;
+    // how long an idle sender waits for a frame before checking whether it was stopped
+    private static final long STOP_CHECK_MS = 100;
+
+    private final int port;
+    private final FrameSlot slot;
+    private final int maxPacket;
+    private volatile boolean running = true;
+    private volatile ServerSocket serverSocket;
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private DatagramChannel rtp;
+    private DatagramChannel rtcp;
+    private final SecureRandom random = new SecureRandom();
+    private MjpegHttpServer.ClientListener clientListener;
+
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesUnsupported = new AtomicLong();
+
+    // what the playing sessions need, for the encoder
+    private final FrameSlot.Demand demand = new FrameSlot.Demand() {
+        @Override
+        public long nextDemandNanos() {
+            long next = Long.MAX_VALUE;
+            for (Session s : sessions) if (s.sender != null) next = Math.min(next, s.stats.wantsFrameAtNanos);
+            return next;
+        }
+
+        @Override
+        public int neededFps() {
+            int fps = 0;
+            for (Session s : sessions) {
+                if (s.sender == null) continue;
+                if (s.stats.maxFps == 0) return FrameSlot.UNLIMITED_FPS;
+                fps = Math.max(fps, s.stats.maxFps);
+            }
+            return fps;
+        }
+    };
+
+    public RtspServer(int port, FrameSlot slot) {
+        this(port, slot, RtpJpegPacketizer.DEFAULT_MAX_PACKET);
+    }
+
+    /** @param maxPacket largest RTP packet sent (headers included), at least 512 */
+    public RtspServer(int port, FrameSlot slot, int maxPacket) {
+        super("RtspServer");
+        if (maxPacket < RtpJpegPacketizer.MIN_MAX_PACKET || maxPacket > 0xFFFF) {
+            throw new IllegalArgumentException("maxPacket out of range: " + maxPacket);
+        }
+        this.port = port;
+        this.slot = slot;
+        this.maxPacket = maxPacket;
+    }
+
+    public void setClientListener(MjpegHttpServer.ClientListener l) { this.clientListener = l; }
+
+    /**
+     * Wait until the RTSP socket is bound.
+     * @return the bound port (useful when constructed with port 0), or -1 on timeout
+     */
+    public int awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!listening.await(timeout, unit)) return -1;
+        ServerSocket ss = serverSocket;
+        return ss != null ? ss.getLocalPort() : -1;
+    }
+
+    /** Sessions set up and not yet torn down. */
+    public int getSessionCount() { return sessions.size(); }
+    public long getPacketsSent() { return packetsSent.get(); }
+    /** Frames sent, counted once per session. */
+    public long getFramesSent() { return framesSent.get(); }
+    /** Frames skipped because RTP/JPEG cannot carry them (see RtpJpegPacketizer). */
+    public long getFramesUnsupported() { return framesUnsupported.get(); }
+
+    /** Counters of the playing sessions. */
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> out = new ArrayList<>();
+        for (Session s : sessions) if (s.sender != null) out.add(s.stats);
+        return out;
+    }
+
+    @Override
+    public void run() {
+        try {
+            rtp = DatagramChannel.open();
+            rtp.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_BYTES);
+            rtp.bind(new InetSocketAddress(0));
+            // only bound so the server_port pair names a real port; RTCP is ignored
+            rtcp = DatagramChannel.open();
+            rtcp.bind(new InetSocketAddress(0));
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port), MjpegHttpServer.ACCEPT_BACKLOG);
+            slot.addDemand(demand);
+            listening.countDown();
+            while (running) {
+                try {
+                    final Socket client = serverSocket.accept();
+                    connections.add(client);
+                    new Thread(() -> handleConnection(client), "rtsp-client").start();
+                } catch (Exception acceptEx) {
+                    if (running) acceptEx.printStackTrace();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        } finally {
+            running = false;
+            listening.countDown();
+            slot.removeDemand(demand);
+            for (Socket s : connections) {
+                try { s.close(); } catch (Exception ignored) {}
+            }
+            try { if (serverSocket != null) serverSocket.close(); } catch (Exception ignored) {}
+            try { if (rtp != null) rtp.close(); } catch (Exception ignored) {}
+            try { if (rtcp != null) rtcp.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try { if (serverSocket != null) serverSocket.close(); } catch (Exception ignored) {}
+        for (Socket s : connections) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        try { join(2000); } catch (InterruptedException ignored) {}
+    }
+
+    // One RTSP request head; the body, if any, is read and ignored.
+    static final class Request {
+        String method;
+        String uri;
+        String cseq;
+        private final Map<String, String> headers = new HashMap<>();
+
+        String header(String name) { return headers.get(name.toLowerCase(Locale.US)); }
+
+        /** Value of an integer "name=N" parameter in the URI query, or 0. */
+        int queryInt(String name) {
+            int q = uri.indexOf('?');
+            if (q < 0) return 0;
+            for (String param : uri.substring(q + 1).split("&")) {
+                if (!param.startsWith(name + "=")) continue;
+                try {
+                    return Math.max(0, Integer.parseInt(param.substring(name.length() + 1)));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the next request, skipping interleaved binary frames ("$", channel, length)
+     * the client sends on the same connection (RTCP receiver reports).
+     * @return the request, or null at end of stream
+     */
+    static Request readRequest(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        Request r = null;
+        while (true) {
+            int b = in.read();
+            if (b < 0) return null;
+            if (r == null && line.length() == 0 && b == '$') {
+                in.read();
+                int length = in.read() << 8 | in.read();
+                if (length < 0) return null;
+                for (int i = 0; i < length; i++) if (in.read() < 0) return null;
+                continue;
+            }
+            if (b == '\r') continue;
+            if (b != '\n') {
+                if (line.length() >= MAX_LINE) throw new IOException("request line too long");
+                line.append((char) b);
+                continue;
+            }
+            if (line.length() == 0) {
+                // blank lines before a request are tolerated
+                if (r == null) continue;
+                String length = r.header("Content-Length");
+                int n = length != null ? Integer.parseInt(length.trim()) : 0;
+                for (int i = 0; i < n; i++) if (in.read() < 0) return null;
+                return r;
+            }
+            if (r == null) {
+                String[] parts = line.toString().split(" ");
+                if (parts.length != 3 || !parts[2].startsWith("RTSP/1.")) throw new IOException("not an RTSP request: " + line);
+                r = new Request();
+                r.method = parts[0];
+                r.uri = parts[1];
+            } else {
+                int colon = line.indexOf(":");
+                if (colon <= 0 || r.headers.size() >= MAX_HEADERS) throw new IOException("bad header: " + line);
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                r.headers.put(name, line.substring(colon + 1).trim());
+                if (name.equals("cseq")) r.cseq = r.headers.get(name);
+            }
+            line.setLength(0);
+        }
+    }
+
+    // a stream set up on one RTSP connection
+    private final class Session implements Runnable {
+        final String id = String.format(Locale.US, "%016X", random.nextLong());
+        final ClientStats stats;
+        final RtpJpegPacketizer packetizer;
+        final int timestampOffset = random.nextInt();
+        // 4 bytes in front for the interleaved frame header
+        final byte[] packet = new byte[4 + maxPacket];
+        final ByteBuffer datagram = ByteBuffer.wrap(packet);
+        final Socket control;
+        final OutputStream out;
+        // UDP destination, or null when interleaved
+        InetSocketAddress target;
+        int channel;
+        volatile Thread sender;
+        boolean connected;
+
+        Session(Socket control, OutputStream out) {
+            this.control = control;
+            this.out = out;
+            this.stats = new ClientStats(String.valueOf(control.getRemoteSocketAddress()));
+            this.packetizer = new RtpJpegPacketizer(random.nextInt(), random.nextInt(), maxPacket);
+        }
+
+        int rtpTime(long nanos) {
+            return (int) (nanos / 1000 * 9 / 100) + timestampOffset;
+        }
+
+        @Override
+        public void run() {
+            int maxFps = stats.maxFps;
+            long minGapNanos = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+            long lastSeq = slot.latestSeq();
+            long nextDueNanos = 0;
+            try {
+                while (running && sender == Thread.currentThread()) {
+                    long now = System.nanoTime();
+                    stats.wantsFrameAt(Math.max(now, nextDueNanos));
+                    long wait = nextDueNanos - now;
+                    if (wait > 0) {
+                        // pause() wakes us early
+                        synchronized (this) {
+                            if (sender == Thread.currentThread()) wait(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                        }
+                        continue;
+                    }
+                    slot.requestFrame();
+                    FrameSlot.Frame f = slot.awaitNewer(lastSeq, STOP_CHECK_MS);
+                    if (f == null) continue;
+                    try {
+                        lastSeq = f.seq();
+                        if (minGapNanos > 0) nextDueNanos = System.nanoTime() + minGapNanos;
+                        if (!packetizer.setFrame(f.data(), f.jpegOffset(), f.jpegLength(), rtpTime(f.captureNanos()))) {
+                            framesUnsupported.incrementAndGet();
+                            continue;
+                        }
+                        long start = System.nanoTime();
+                        stats.frameStarted(f, start);
+                        sendFrame();
+                        stats.frameFinished(slot.latestSeq(), System.nanoTime() - start);
+                        framesSent.incrementAndGet();
+                    } finally {
+                        f.release();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                // the client is gone; its control thread ends the session
+                try { control.close(); } catch (Exception ignored) {}
+            } finally {
+                stats.wantsFrameAt(Long.MAX_VALUE);
+            }
+        }
+
+        private void sendFrame() throws IOException {
+            int n;
+            while ((n = packetizer.nextPacket(packet, 4)) > 0) {
+                if (target != null) {
+                    datagram.limit(4 + n).position(4);
+                    rtp.send(datagram, target);
+                } else {
+                    packet[0] = '$';
+                    packet[1] = (byte) channel;
+                    packet[2] = (byte) (n >> 8);
+                    packet[3] = (byte) n;
+                    synchronized (out) { out.write(packet, 0, 4 + n); }
+                }
+                stats.bytesWritten(n);
+                packetsSent.incrementAndGet();
+            }
+            if (target == null) {
+                synchronized (out) { out.flush(); }
+            }
+        }
+
+        void play() {
+            if (sender != null) return;
+            if (!connected) {
+                connected = true;
+                if (clientListener != null) clientListener.onClientConnected();
+            }
+            Thread t = new Thread(this, "rtp-sender");
+            t.setDaemon(true);
+            sender = t;
+            t.start();
+        }
+
+        /**
+         * Stops the sender after the frame it is sending. Never by interrupting it: that
+         * would close the DatagramChannel every UDP session shares.
+         */
+        void pause() {
+            Thread t = sender;
+            if (t == null) return;
+            sender = null;
+            synchronized (this) { notifyAll(); }
+            try { t.join(2000); } catch (InterruptedException ignored) {}
+        }
+
+        void end() {
+            pause();
+            sessions.remove(this);
+            if (connected && clientListener != null) clientListener.onClientDisconnected();
+        }
+    }
+
+    private void handleConnection(Socket s) {
+        Session session = null;
+        try (InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024)) {
+            s.setTcpNoDelay(true);
+            while (running) {
+                // UDP clients must keep the session alive with requests; TCP ones may stay silent
+                boolean quietOk = session != null && session.target == null && session.sender != null;
+                s.setSoTimeout(quietOk ? 0 : SESSION_TIMEOUT_S * 1000);
+                Request r = readRequest(in);
+                if (r == null) break;
+                if (r.cseq == null) {
+                    reply(out, null, "400 Bad Request", null, null);
+                    break;
+                }
+                String sessionHeader = r.header("Session");
+                boolean ours = session != null && sessionHeader != null
+                        && sessionHeader.split(";")[0].trim().equals(session.id);
+                switch (r.method) {
+                    case "OPTIONS":
+                        reply(out, r.cseq, "200 OK",
+                                "Public: OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER, SET_PARAMETER\r\n", null);
+                        break;
+                    case "DESCRIBE": {
+                        byte[] sdp = sdp(s).getBytes(StandardCharsets.US_ASCII);
+                        String base = r.uri.endsWith("/") ? r.uri : r.uri + "/";
+                        reply(out, r.cseq, "200 OK", "Content-Base: " + base + "\r\n" +
+                                "Content-Type: application/sdp\r\n", sdp);
+                        break;
+                    }
+                    case "SETUP": {
+                        if (session != null && !ours) {
+                            reply(out, r.cseq, "459 Aggregate Operation Not Allowed", null, null);
+                            break;
+                        }
+                        if (session == null) session = new Session(s, out);
+                        String transport = setUp(session, s, r.header("Transport"));
+                        if (transport == null) {
+                            if (!ours) session = null;
+                            reply(out, r.cseq, "461 Unsupported Transport", null, null);
+                            break;
+                        }
+                        if (!ours) sessions.add(session);
+                        session.stats.streamStarted(r.queryInt("fps"));
+                        reply(out, r.cseq, "200 OK", "Transport: " + transport + "\r\n" +
+                                "Session: " + session.id + ";timeout=" + SESSION_TIMEOUT_S + "\r\n", null);
+                        break;
+                    }
+                    case "PLAY": {
+                        if (!ours) {
+                            reply(out, r.cseq, "454 Session Not Found", null, null);
+                            break;
+                        }
+                        int fps = r.queryInt("fps");
+                        if (fps > 0) session.stats.streamStarted(fps);
+                        String base = r.uri.endsWith("/") ? r.uri : r.uri + "/";
+                        // the reply goes out before the first packet
+                        reply(out, r.cseq, "200 OK", "Session: " + session.id + "\r\n" +
+                                "Range: npt=0.000-\r\n" +
+                                "RTP-Info: url=" + base + "track1;seq=" + session.packetizer.sequence() +
+                                ";rtptime=" + (session.rtpTime(System.nanoTime()) & 0xFFFFFFFFL) + "\r\n", null);
+                        session.play();
+                        break;
+                    }
+                    case "PAUSE":
+                        if (!ours) {
+                            reply(out, r.cseq, "454 Session Not Found", null, null);
+                            break;
+                        }
+                        session.pause();
+                        reply(out, r.cseq, "200 OK", "Session: " + session.id + "\r\n", null);
+                        break;
+                    case "TEARDOWN":
+                        if (!ours) {
+                            reply(out, r.cseq, "454 Session Not Found", null, null);
+                            break;
+                        }
+                        session.end();
+                        session = null;
+                        reply(out, r.cseq, "200 OK", null, null);
+                        break;
+                    case "GET_PARAMETER":
+                    case "SET_PARAMETER":
+                        reply(out, r.cseq, "200 OK", ours ? "Session: " + session.id + "\r\n" : null, null);
+                        break;
+                    default:
+                        reply(out, r.cseq, "501 Not Implemented", null, null);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // session timed out
+        } catch (Exception e) {
+            // client disconnected, or not speaking RTSP
+        } finally {
+            if (session != null) session.end();
+            try { s.close(); } catch (Exception ignored) {}
+            connections.remove(s);
+        }
+    }
+
+    /**
+     * Applies the first transport in the client's list that is supported.
+     * @return the Transport header of the reply, or null if none is
+     */
+    private String setUp(Session session, Socket s, String header) {
+        if (header == null) return null;
+        for (String spec : header.split(",")) {
+            String[] params = spec.trim().split(";");
+            String protocol = params[0].trim().toUpperCase(Locale.US);
+            boolean tcp = protocol.equals("RTP/AVP/TCP");
+            if (!tcp && !protocol.equals("RTP/AVP") && !protocol.equals("RTP/AVP/UDP")) continue;
+            int[] ports = null;
+            boolean multicast = false;
+            for (String p : params) {
+                p = p.trim();
+                if (p.equalsIgnoreCase("multicast")) multicast = true;
+                else if (tcp && p.startsWith("interleaved=")) ports = range(p.substring(12), 255);
+                else if (!tcp && p.startsWith("client_port=")) ports = range(p.substring(12), 65535);
+            }
+            if (multicast) continue;
+            String ssrc = String.format(Locale.US, "%08X", session.packetizer.ssrc());
+            if (tcp) {
+                int channel = ports != null ? ports[0] : 0;
+                session.target = null;
+                session.channel = channel;
+                return "RTP/AVP/TCP;unicast;interleaved=" + channel + "-" + (channel + 1) + ";ssrc=" + ssrc;
+            }
+            if (ports == null) continue;
+            // only to the client itself: no "destination=" redirects
+            session.target = new InetSocketAddress(s.getInetAddress(), ports[0]);
+            return "RTP/AVP;unicast;client_port=" + ports[0] + "-" + ports[1] +
+                    ";server_port=" + rtp.socket().getLocalPort() + "-" + rtcp.socket().getLocalPort() +
+                    ";ssrc=" + ssrc;
+        }
+        return null;
+    }
+
+    // "a-b" or "a" (b = a + 1), both within 0..max
+    private static int[] range(String v, int max) {
+        try {
+            int dash = v.indexOf('-');
+            int a = Integer.parseInt(dash < 0 ? v : v.substring(0, dash));
+            int b = dash < 0 ? a + 1 : Integer.parseInt(v.substring(dash + 1));
+            if (a < 0 || a > max || b < 0 || b > max) return null;
+            return new int[] {a, b};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String sdp(Socket s) {
+        String address = s.getLocalAddress().getHostAddress();
+        String ipVersion = address.indexOf(':') >= 0 ? "IP6" : "IP4";
+        long version = System.currentTimeMillis();
+        return "v=0\r\n" +
+                "o=- " + version + " " + version + " IN " + ipVersion + " " + address + "\r\n" +
+                "s=CoolStream\r\n" +
+                "c=IN " + ipVersion + " " + (ipVersion.equals("IP6") ? "::" : "0.0.0.0") + "\r\n" +
+                "t=0 0\r\n" +
+                "a=control:*\r\n" +
+                "m=video 0 RTP/AVP " + RtpJpegPacketizer.PAYLOAD_TYPE + "\r\n" +
+                "a=rtpmap:" + RtpJpegPacketizer.PAYLOAD_TYPE + " JPEG/" + RtpJpegPacketizer.CLOCK_RATE + "\r\n" +
+                "a=control:track1\r\n";
+    }
+
+    private static void reply(OutputStream out, String cseq, String status, String headers, byte[] body)
+            throws IOException {
+        StringBuilder sb = new StringBuilder("RTSP/1.0 ").append(status).append("\r\n");
+        if (cseq != null) sb.append("CSeq: ").append(cseq).append("\r\n");
+        sb.append("Server: CoolStream\r\n");
+        if (headers != null) sb.append(headers);
+        if (body != null) sb.append("Content-Length: ").append(body.length).append("\r\n");
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        synchronized (out) {
+            out.write(head);
+            if (body != null) out.write(body);
+            out.flush();
+        }
+    }
+}
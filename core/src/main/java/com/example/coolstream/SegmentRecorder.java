@@ -0,0 +1,588 @@
+package com.example.coolstream;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous recording into segment files with a frame index, for playback over HTTP.
+ *
+ * - Frames are stored as the multipart parts a stream client would receive (boundary,
+ *   Content-Length, X-Timestamp, JPEG), appended to "segNNNNNN.mjpg" until it reaches
+ *   segmentBytes; any byte range of whole parts is therefore a playable MJPEG body
+ * - "segNNNNNN.idx" holds one 16-byte entry per frame: capture time (epoch ms), offset of
+ *   the part and its length. Seeks binary-search it through a MappedByteBuffer
+ * - record() only copies the part into an in-memory batch; the "segment-writer" thread
+ *   writes a batch every FLUSH_INTERVAL_MS (or sooner when half full) and fsyncs every
+ *   syncIntervalMs and when a segment is finished. If the writer falls a whole batch
+ *   behind, frames are dropped and counted instead of blocking the encoder
+ * - Once the segments on disk exceed quotaBytes the oldest ones are deleted
+ * - On start() segments of an earlier run are recovered: a torn tail (after a crash) is
+ *   cut back to the last indexed frame, and recording continues in a new segment
+ *
+ * Only frames that have been written are visible to playback (see segments(), seek()).
+ * Uses java.io.File and FileChannel only (java.nio.file needs API 26).
+ */
+public final class SegmentRecorder {
+    public static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 2000;
+    static final long FLUSH_INTERVAL_MS = 250;
+    static final int BATCH_BYTES = 1 << 20;
+    // epoch ms, part offset, part length
+    static final int INDEX_ENTRY = 16;
+    private static final String PREFIX = "seg";
+    private static final String DATA = ".mjpg";
+    private static final String INDEX = ".idx";
+
+    /** One segment file and what playback may read of it. */
+    public static final class Segment {
+        public final long id;
+        final File data;
+        final File index;
+        // written by the recorder under its lock; bytes covers whole parts only
+        volatile long startMs;
+        volatile long endMs;
+        volatile long bytes;
+        volatile int frames;
+        boolean deleted;
+        private ByteBuffer map;
+        private int mappedFrames;
+
+        Segment(File dir, long id) {
+            this.id = id;
+            String name = String.format(Locale.US, "%s%06d", PREFIX, id);
+            this.data = new File(dir, name + DATA);
+            this.index = new File(dir, name + INDEX);
+        }
+
+        /** Capture time of the first and last written frame (epoch ms). */
+        public long startMs() { return startMs; }
+        public long endMs() { return endMs; }
+        /** Bytes of whole parts written so far. */
+        public long bytes() { return bytes; }
+        public int frames() { return frames; }
+    }
+
+    /** A frame found by seek(): where its part starts. */
+    public static final class Position {
+        public final Segment segment;
+        public final int frame;
+        public final long offset;
+        public final long epochMs;
+
+        Position(Segment segment, int frame, long offset, long epochMs) {
+            this.segment = segment;
+            this.frame = frame;
+            this.offset = offset;
+            this.epochMs = epochMs;
+        }
+    }
+
+    // frames waiting for the writer: parts back to back plus their index fields
+    private static final class Batch {
+        final byte[] data = new byte[BATCH_BYTES];
+        int used;
+        long[] ms = new long[256];
+        int[] lengths = new int[256];
+        int frames;
+        long firstNanos;
+
+        boolean add(FrameSlot.Frame f, long epochMs) {
+            int len = f.jpegLength();
+            if (used + ClipExport.MAX_PART_HEADER + len > data.length) return false;
+            if (frames == ms.length) {
+                ms = Arrays.copyOf(ms, frames * 2);
+                lengths = Arrays.copyOf(lengths, frames * 2);
+            }
+            int h = ClipExport.writePartHeader(data, used, len, epochMs);
+            System.arraycopy(f.data(), f.jpegOffset(), data, used + h, len);
+            if (frames == 0) firstNanos = System.nanoTime();
+            ms[frames] = epochMs;
+            lengths[frames++] = h + len;
+            used += h + len;
+            return true;
+        }
+
+        void clear() {
+            used = 0;
+            frames = 0;
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long quotaBytes;
+    private volatile long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SYNC_INTERVAL_MS);
+    // capture nanos -> epoch ms
+    private final long wallOffsetMs = System.currentTimeMillis() - System.nanoTime() / 1_000_000L;
+
+    // capture side; guarded by batchLock
+    private final Object batchLock = new Object();
+    private Batch filling = new Batch();
+    private Batch writing = new Batch();
+    private boolean flushRequested;
+    private boolean writerBusy;
+    private long flushesDone;
+    private long lastSeq;
+    private long lastRecordedNanos = Long.MIN_VALUE;
+    private long recorded;
+    private long dropped;
+
+    // writer thread state
+    private Thread writer;
+    private volatile boolean running;
+    private Segment current;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private final ByteBuffer indexBuf = ByteBuffer.allocate(INDEX_ENTRY * 1024);
+    private long lastSyncNanos;
+
+    // oldest first; guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextId = 1;
+    private long syncs;
+    private long deletedSegments;
+    private volatile IOException lastError;
+
+    private volatile long minGapNanos;
+    private FrameSlot source;
+    private final Runnable onPublish = this::recordLatest;
+    private final FrameSlot.Demand demand = new FrameSlot.Demand() {
+        @Override
+        public long nextDemandNanos() {
+            if (!running) return Long.MAX_VALUE;
+            synchronized (batchLock) {
+                return lastRecordedNanos == Long.MIN_VALUE ? Long.MIN_VALUE : lastRecordedNanos + minGapNanos;
+            }
+        }
+
+        @Override
+        public int neededFps() {
+            if (!running) return 0;
+            long gap = minGapNanos;
+            return gap == 0 ? FrameSlot.UNLIMITED_FPS : (int) (1_000_000_000L / gap);
+        }
+    };
+
+    /**
+     * @param segmentBytes size at which a segment is finished and the next one started
+     * @param quotaBytes   disk space for all segments (data and index) of this directory
+     */
+    public SegmentRecorder(File dir, long segmentBytes, long quotaBytes) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(segmentBytes, BATCH_BYTES);
+        this.quotaBytes = quotaBytes;
+    }
+
+    /** How often written data is forced to storage. */
+    public void setSyncIntervalMs(long ms) {
+        syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    /** Recover the segments already in the directory and start the writer thread. */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        recover();
+        running = true;
+        writer = new Thread(this::runWriter, "segment-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Write what is pending, sync, and stop. Playback of the recorded segments keeps working. */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = writer;
+            writer = null;
+        }
+        synchronized (batchLock) { batchLock.notifyAll(); }
+        try { t.join(5000); } catch (InterruptedException ignored) {}
+    }
+
+    /** Record the frames published to slot, at most maxFps per second (0: all of them). */
+    public synchronized void attach(FrameSlot slot, int maxFps) {
+        detach();
+        minGapNanos = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+        source = slot;
+        slot.addListener(onPublish);
+        slot.addDemand(demand);
+    }
+
+    public synchronized void detach() {
+        if (source == null) return;
+        source.removeListener(onPublish);
+        source.removeDemand(demand);
+        source = null;
+    }
+
+    private void recordLatest() {
+        FrameSlot s = source;
+        if (s == null || !running) return;
+        FrameSlot.Frame f = s.acquireLatest();
+        if (f == null) return;
+        try {
+            record(f);
+        } finally {
+            f.release();
+        }
+    }
+
+    /**
+     * Queue a frame for writing. Frames not newer than the last one, or sooner than the
+     * maxFps gap allows, are ignored.
+     * @return true if the frame was queued
+     */
+    public boolean record(FrameSlot.Frame f) {
+        long t = f.captureNanos();
+        synchronized (batchLock) {
+            long gap = minGapNanos;
+            if (!running || f.seq() <= lastSeq
+                    || (gap > 0 && lastRecordedNanos != Long.MIN_VALUE && t - lastRecordedNanos < gap - gap / 4)) {
+                return false;
+            }
+            if (!filling.add(f, epochMs(t))) {
+                dropped++;
+                return false;
+            }
+            lastSeq = f.seq();
+            lastRecordedNanos = t;
+            recorded++;
+            if (filling.used >= BATCH_BYTES / 2) batchLock.notifyAll();
+            return true;
+        }
+    }
+
+    long epochMs(long captureNanos) {
+        return wallOffsetMs + captureNanos / 1_000_000L;
+    }
+
+    /** Block until everything recorded so far is written and synced. */
+    public void flush() throws InterruptedException {
+        synchronized (batchLock) {
+            // a batch being written may have been taken before the latest record()
+            long target = flushesDone + (writerBusy ? 2 : 1);
+            flushRequested = true;
+            batchLock.notifyAll();
+            while (running && flushesDone < target) batchLock.wait(100);
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                boolean sync;
+                boolean stopping;
+                synchronized (batchLock) {
+                    while (running && !flushRequested && !due(filling)) {
+                        long wait = filling.frames == 0 ? FLUSH_INTERVAL_MS
+                                : FLUSH_INTERVAL_MS - (System.nanoTime() - filling.firstNanos) / 1_000_000L;
+                        batchLock.wait(Math.max(1, wait));
+                    }
+                    stopping = !running;
+                    sync = flushRequested || stopping;
+                    flushRequested = false;
+                    Batch b = writing;
+                    writing = filling;
+                    filling = b;
+                    writerBusy = true;
+                }
+                try {
+                    write(writing, sync);
+                } catch (IOException e) {
+                    lastError = e;
+                    closeCurrent();
+                }
+                writing.clear();
+                synchronized (batchLock) {
+                    flushesDone++;
+                    writerBusy = false;
+                    batchLock.notifyAll();
+                }
+                if (stopping) break;
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            closeCurrent();
+        }
+    }
+
+    private static boolean due(Batch b) {
+        return b.frames > 0 && (b.used >= BATCH_BYTES / 2
+                || System.nanoTime() - b.firstNanos >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+    }
+
+    // appends the batch, starting new segments as they fill up
+    private void write(Batch b, boolean sync) throws IOException {
+        int frame = 0;
+        int offset = 0;
+        while (frame < b.frames) {
+            if (current == null || (current.frames > 0 && current.bytes + b.lengths[frame] > segmentBytes)) {
+                startSegment();
+            }
+            // the run of frames that fits into this segment
+            long segBytes = current.bytes;
+            int n = 0;
+            int runBytes = 0;
+            indexBuf.clear();
+            while (frame + n < b.frames && indexBuf.remaining() >= INDEX_ENTRY
+                    && (n == 0 || segBytes + runBytes + b.lengths[frame + n] <= segmentBytes)) {
+                indexBuf.putLong(b.ms[frame + n]).putInt((int) (segBytes + runBytes)).putInt(b.lengths[frame + n]);
+                runBytes += b.lengths[frame + n];
+                n++;
+            }
+            ByteBuffer src = ByteBuffer.wrap(b.data, offset, runBytes);
+            while (src.hasRemaining()) dataChannel.write(src);
+            indexBuf.flip();
+            while (indexBuf.hasRemaining()) indexChannel.write(indexBuf);
+            synchronized (this) {
+                if (current.frames == 0) current.startMs = b.ms[frame];
+                current.endMs = b.ms[frame + n - 1];
+                current.bytes += runBytes;
+                current.frames += n;
+            }
+            frame += n;
+            offset += runBytes;
+        }
+        long now = System.nanoTime();
+        if (current != null && (sync || now - lastSyncNanos >= syncIntervalNanos)) {
+            dataChannel.force(false);
+            indexChannel.force(false);
+            lastSyncNanos = now;
+            synchronized (this) { syncs++; }
+        }
+    }
+
+    private void startSegment() throws IOException {
+        closeCurrent();
+        Segment s;
+        synchronized (this) {
+            s = new Segment(dir, nextId++);
+            segments.add(s);
+        }
+        dataChannel = new RandomAccessFile(s.data, "rw").getChannel();
+        indexChannel = new RandomAccessFile(s.index, "rw").getChannel();
+        dataChannel.truncate(0);
+        indexChannel.truncate(0);
+        current = s;
+        enforceQuota();
+    }
+
+    private void closeCurrent() {
+        if (current == null) return;
+        try {
+            dataChannel.force(false);
+            indexChannel.force(false);
+            synchronized (this) { syncs++; }
+        } catch (IOException ignored) {}
+        try { dataChannel.close(); } catch (IOException ignored) {}
+        try { indexChannel.close(); } catch (IOException ignored) {}
+        synchronized (this) {
+            if (current.frames == 0) remove(current);
+        }
+        current = null;
+    }
+
+    // deletes the oldest segments until the rest (and a full current segment) fit the quota
+    private synchronized void enforceQuota() {
+        long total = segmentBytes + segmentBytes / 100;
+        for (Segment s : segments) if (s != current) total += s.bytes + (long) s.frames * INDEX_ENTRY;
+        while (total > quotaBytes && segments.size() > 1 && segments.get(0) != current) {
+            Segment old = segments.get(0);
+            total -= old.bytes + (long) old.frames * INDEX_ENTRY;
+            remove(old);
+            deletedSegments++;
+        }
+    }
+
+    // drops a segment from the catalog and disk; open playbacks keep reading their descriptor
+    private void remove(Segment s) {
+        segments.remove(s);
+        s.deleted = true;
+        s.map = null;
+        s.data.delete();
+        s.index.delete();
+    }
+
+    // rebuilds the catalog from the directory, cutting off any tail a crash left unindexed
+    private void recover() throws IOException {
+        String[] names = dir.list();
+        long[] ids = new long[names != null ? names.length : 0];
+        int n = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(INDEX)) continue;
+                try {
+                    ids[n++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - INDEX.length()));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Arrays.sort(ids, 0, n);
+        synchronized (this) {
+            segments.clear();
+            for (int i = 0; i < n; i++) {
+                Segment s = new Segment(dir, ids[i]);
+                nextId = Math.max(nextId, ids[i] + 1);
+                if (recover(s)) segments.add(s);
+                else remove(s);
+            }
+        }
+    }
+
+    private static boolean recover(Segment s) throws IOException {
+        if (!s.data.isFile()) return false;
+        try (RandomAccessFile data = new RandomAccessFile(s.data, "rw");
+             RandomAccessFile index = new RandomAccessFile(s.index, "rw")) {
+            long dataLength = data.length();
+            int frames = (int) (index.length() / INDEX_ENTRY);
+            // the last entries may point past a data tail that never made it to storage
+            while (frames > 0) {
+                index.seek((long) (frames - 1) * INDEX_ENTRY + 8);
+                long end = (index.readInt() & 0xFFFFFFFFL) + index.readInt();
+                if (end <= dataLength) {
+                    dataLength = end;
+                    break;
+                }
+                frames--;
+            }
+            if (frames == 0) return false;
+            index.setLength((long) frames * INDEX_ENTRY);
+            data.setLength(dataLength);
+            index.seek(0);
+            s.startMs = index.readLong();
+            index.seek((long) (frames - 1) * INDEX_ENTRY);
+            s.endMs = index.readLong();
+            s.frames = frames;
+            s.bytes = dataLength;
+            return true;
+        }
+    }
+
+    /** Segments available for playback, oldest first. */
+    public synchronized List<Segment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    synchronized Segment segment(long id) {
+        for (Segment s : segments) if (s.id == id) return s;
+        return null;
+    }
+
+    /**
+     * The first written frame captured at or after epochMs (the oldest frame if epochMs is
+     * earlier), or null if there is none.
+     */
+    public Position seek(long epochMs) throws IOException {
+        Segment s = null;
+        synchronized (this) {
+            for (Segment c : segments) {
+                if (c.frames > 0 && c.endMs >= epochMs) {
+                    s = c;
+                    break;
+                }
+            }
+        }
+        if (s == null) return null;
+        ByteBuffer map = map(s);
+        if (map == null) return null;
+        // first entry with a timestamp >= epochMs
+        int lo = 0, hi = map.limit() / INDEX_ENTRY - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (map.getLong(mid * INDEX_ENTRY) < epochMs) lo = mid + 1;
+            else hi = mid;
+        }
+        int e = lo * INDEX_ENTRY;
+        return new Position(s, lo, map.getInt(e + 8) & 0xFFFFFFFFL, map.getLong(e));
+    }
+
+    /**
+     * End of the last written frame captured at or before epochMs, in the segment that
+     * holds it; null if every frame is later.
+     */
+    Position seekEnd(long epochMs) throws IOException {
+        Segment s = null;
+        synchronized (this) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment c = segments.get(i);
+                if (c.frames > 0 && c.startMs <= epochMs) {
+                    s = c;
+                    break;
+                }
+            }
+        }
+        if (s == null) return null;
+        ByteBuffer map = map(s);
+        if (map == null) return null;
+        // last entry with a timestamp <= epochMs
+        int lo = 0, hi = map.limit() / INDEX_ENTRY - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (map.getLong(mid * INDEX_ENTRY) <= epochMs) lo = mid;
+            else hi = mid - 1;
+        }
+        int e = lo * INDEX_ENTRY;
+        long end = (map.getInt(e + 8) & 0xFFFFFFFFL) + map.getInt(e + 12);
+        return new Position(s, lo, end, map.getLong(e));
+    }
+
+    // index of a segment as far as it is written; remapped only when it has grown
+    // (only absolute reads are used, so one buffer serves concurrent seeks)
+    private ByteBuffer map(Segment s) throws IOException {
+        int frames;
+        synchronized (this) {
+            if (s.deleted) return null;
+            frames = s.frames;
+            if (s.map != null && s.mappedFrames == frames) return s.map;
+        }
+        MappedByteBuffer m;
+        try (RandomAccessFile f = new RandomAccessFile(s.index, "r")) {
+            m = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) frames * INDEX_ENTRY);
+        }
+        synchronized (this) {
+            if (!s.deleted && frames >= s.mappedFrames) {
+                s.map = m;
+                s.mappedFrames = frames;
+            }
+        }
+        return m;
+    }
+
+    public long framesRecorded() { synchronized (batchLock) { return recorded; } }
+    /** Frames not recorded because the writer was a whole batch behind. */
+    public long framesDropped() { synchronized (batchLock) { return dropped; } }
+    public synchronized long syncs() { return syncs; }
+    public synchronized long segmentsDeleted() { return deletedSegments; }
+
+    /** Bytes of all segments on disk, data and index. */
+    public synchronized long diskBytes() {
+        long total = 0;
+        for (Segment s : segments) total += s.bytes + (long) s.frames * INDEX_ENTRY;
+        return total;
+    }
+
+    /** Last write error; recording resumes in a new segment with the next batch. */
+    public IOException lastError() { return lastError; }
+
+    @Override
+    public String toString() {
+        return "SegmentRecorder{segments=" + segments().size() +
+                ", diskBytes=" + diskBytes() + "/" + quotaBytes +
+                ", recorded=" + framesRecorded() +
+                ", dropped=" + framesDropped() +
+                ", syncs=" + syncs() +
+                ", deleted=" + segmentsDeleted() + "}";
+    }
+}
@@ -0,0 +1,695 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One non-blocking I/O thread of MjpegHttpServer in IoMode.SELECTOR.
+ *
+ * - Owns a Selector and every stream connection handed to it via adopt()
+ * - Sleeps in select() until a frame is published (FrameSlot listener wakes it), a socket
+ *   becomes writable, or a rate-limited client is due again
+ * - A client whose socket buffer is full keeps its position in the frame and waits for
+ *   OP_WRITE; the loop never blocks on any single client. When it finishes it jumps to the
+ *   newest frame, and it is evicted once MjpegHttpServer.slowClientReason() says so
+ * - Every client writes from the frame's shared wire() bytes through a read-only view owned
+ *   by this loop, so per-frame allocations do not grow with the number of clients
+ * - Requests are parsed in each connection's reused HttpRequest buffer and routed by the
+ *   server's HttpRouter. Snapshots and error responses are answered on the same loop and
+ *   the connection is kept for the next request (pipelined requests are answered in
+ *   order); a snapshot that has to wait for a fresh frame is parked until the next
+ *   publish or its deadline
+ * - A clip export is written piece by piece from the FrameRing as the socket drains, and
+ *   the connection closes when it ends
+ * - Recording playback is sent with FileChannel.transferTo() straight into the socket as it
+ *   drains; a byte-range response keeps the connection for the next request
+ * - A /metrics scrape is rendered in one piece and answered like a snapshot
+ * - A WebSocket stream writes its message header and the shared JPEG view with one
+ *   gathering write; control frames are read as they arrive and answered between messages,
+ *   and pings and settings changes are handled in the frame pass
+ */
+final class SelectorLoop implements Runnable {
+    // tick used only when the provider has to be polled (legacy FrameProvider)
+    private static final long POLL_MS = 10;
+
+    private final MjpegHttpServer server;
+    private final FrameSlot slot;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> adopted = new ConcurrentLinkedQueue<>();
+    private final List<StreamClient> clients = new ArrayList<>();
+    // bytes a stream client sends after its request are read only to detect disconnects
+    private final ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private final ByteBuffer streamHeader =
+            ByteBuffer.wrap(MjpegHttpServer.STREAM_HEADER.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    // one view per pooled frame buffer, reused for as long as the buffer lives
+    private ByteBuffer[] pooledViews = new ByteBuffer[0];
+    private byte[][] pooledArrays = new byte[0][];
+    // views over caller-owned frames (current and previous); stragglers on older frames are rare
+    private final FrameSlot.Frame[] viewFrames = new FrameSlot.Frame[2];
+    private final ByteBuffer[] views = new ByteBuffer[2];
+    // WebSocket message header and JPEG, for gathering writes
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private int nextView;
+    // state of each slot (primary, profile variants) seen during one pushFrame pass
+    private FrameSlot[] passSlots = new FrameSlot[2];
+    private FrameSlot.Frame[] passFrames = new FrameSlot.Frame[2];
+    private long[] passPublished = new long[2];
+    private long[] passLatestSeq = new long[2];
+    private int passCount;
+
+    private static final class StreamClient {
+        final SocketChannel ch;
+        final SelectionKey key;
+        final ClientStats stats;
+        // when the next request must have arrived (first request, or the next one on a
+        // persistent connection)
+        long requestDeadlineMs;
+        // set when the stream starts (primary slot or the client's profile variant)
+        FrameSlot slot;
+        // request bytes not handled yet; null once streaming
+        HttpRequest request = new HttpRequest();
+        ByteBuffer header;
+        FrameSlot.Frame sending;
+        int sent;
+        boolean streaming;
+        boolean writing;
+        long lastSeq;
+        long minGapMs;
+        long nextDueMs;
+        long stalledSinceNanos;
+        // snapshot connection: response in progress, or waiting (until the deadline) for a
+        // frame newer than snapshotAfterSeq
+        boolean snapshot;
+        ByteBuffer body;
+        boolean keepAlive;
+        long snapshotDeadlineMs;
+        long snapshotAfterSeq;
+        long writeStartMs;
+        // clip export in progress; body holds its current piece
+        ClipExport clip;
+        // recording playback in progress (writes its own head)
+        RecordingResponse recording;
+        // set for a WebSocket stream
+        WebSocket ws;
+
+        StreamClient(SocketChannel ch, SelectionKey key, long requestDeadlineMs, ClientStats stats) {
+            this.ch = ch;
+            this.key = key;
+            this.requestDeadlineMs = requestDeadlineMs;
+            this.stats = stats;
+        }
+    }
+
+    SelectorLoop(MjpegHttpServer server) throws IOException {
+        this.server = server;
+        this.slot = server.frameSlot();
+        this.selector = Selector.open();
+    }
+
+    void adopt(SocketChannel ch) {
+        adopted.add(ch);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        try { selector.wakeup(); } catch (Exception ignored) {}
+    }
+
+    @Override
+    public void run() {
+        long timeout = 0;
+        try {
+            while (server.isRunning()) {
+                selector.select(timeout);
+                registerAdopted();
+                processSelected();
+                long now = System.currentTimeMillis();
+                long wakeAt = pushFrame(now);
+                if (slot.isPolled()) timeout = POLL_MS;
+                else timeout = wakeAt == Long.MAX_VALUE ? 0 : Math.max(1, wakeAt - now);
+            }
+        } catch (ClosedSelectorException ignored) {
+        } catch (Exception e) {
+            if (server.isRunning()) e.printStackTrace();
+        } finally {
+            for (int i = clients.size() - 1; i >= 0; i--) close(clients.get(i));
+            SocketChannel ch;
+            while ((ch = adopted.poll()) != null) {
+                try { ch.close(); } catch (Exception ignored) {}
+            }
+            try { selector.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void registerAdopted() {
+        SocketChannel ch;
+        while ((ch = adopted.poll()) != null) {
+            ClientStats stats = new ClientStats(String.valueOf(ch.socket().getRemoteSocketAddress()), server.metrics());
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                StreamClient c = new StreamClient(ch, key,
+                        System.currentTimeMillis() + MjpegHttpServer.REQUEST_TIMEOUT_MS, stats);
+                key.attach(c);
+                clients.add(c);
+            } catch (IOException e) {
+                try { ch.close(); } catch (Exception ignored) {}
+                server.onConnectionClosed(ch.socket());
+            }
+        }
+    }
+
+    private void processSelected() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            StreamClient c = (StreamClient) key.attachment();
+            if (!key.isValid()) {
+                close(c);
+                continue;
+            }
+            if (key.isReadable() && !readInput(c)) continue;
+            if (key.isValid() && key.isWritable()) flush(c);
+        }
+    }
+
+    // returns false if the client went away
+    private boolean readInput(StreamClient c) {
+        try {
+            int n;
+            if (!c.streaming) {
+                n = c.request.read(c.ch);
+                if (n >= 0 && isIdle(c)) nextRequest(c);
+            } else if (c.ws != null) {
+                do {
+                    n = c.ws.read(c.ch);
+                } while (n > 0 && c.ws.process(System.currentTimeMillis()));
+                // pongs and a close reply go out now unless a message is half written
+                if (n >= 0) flush(c);
+            } else {
+                do {
+                    scratch.clear();
+                    n = c.ch.read(scratch);
+                } while (n > 0);
+            }
+            if (n < 0) {
+                close(c);
+                return false;
+            }
+            return c.key.isValid();
+        } catch (IOException e) {
+            close(c);
+            return false;
+        }
+    }
+
+    // not streaming, and neither answering nor waiting to answer a snapshot
+    private static boolean isIdle(StreamClient c) {
+        return !c.streaming && c.header == null && c.body == null && c.clip == null && c.recording == null
+                && c.snapshotDeadlineMs == 0;
+    }
+
+    // Dispatches the next buffered request once its head is complete.
+    private void nextRequest(StreamClient c) {
+        int n = c.request.parse();
+        if (n == HttpRequest.INCOMPLETE) {
+            updateInterest(c);
+            return;
+        }
+        if (n < 0) {
+            reject(c, -n, false);
+            return;
+        }
+        HttpRouter<MjpegHttpServer.Endpoint> router = server.router();
+        int route = router.match(c.request);
+        if (route < 0) {
+            reject(c, -route, c.request.keepAlive());
+        } else if (router.handler(route) == MjpegHttpServer.Endpoint.SNAPSHOT) {
+            startSnapshot(c);
+        } else if (router.handler(route) == MjpegHttpServer.Endpoint.CLIP) {
+            startClip(c);
+        } else if (router.handler(route) == MjpegHttpServer.Endpoint.RECORDING) {
+            startRecording(c);
+        } else if (router.handler(route) == MjpegHttpServer.Endpoint.METRICS) {
+            startMetrics(c);
+        } else if (router.handler(route) == MjpegHttpServer.Endpoint.WEBSOCKET) {
+            startWebSocket(c);
+        } else {
+            startStream(c);
+        }
+    }
+
+    // answers with an error status; the request never reaches a handler
+    private void reject(StreamClient c, int status, boolean keepAlive) {
+        server.requestRejected();
+        c.request.next();
+        c.keepAlive = keepAlive;
+        c.header = ByteBuffer.wrap(HttpRouter.errorResponse(status, keepAlive));
+        c.writeStartMs = System.currentTimeMillis();
+        flushResponse(c);
+    }
+
+    private void startStream(StreamClient c) {
+        if (c.snapshot) {
+            c.snapshot = false;
+            server.snapshots().connectionClosed();
+        }
+        int maxFps = c.ws != null ? c.ws.fps() : c.request.queryInt("fps");
+        c.minGapMs = maxFps > 0 ? 1000L / maxFps : 0;
+        c.streaming = true;
+        server.onStreamOpened(c.stats);
+        if (c.ws != null) {
+            c.header = ByteBuffer.wrap(WebSocket.acceptResponse(c.request));
+            c.slot = server.attachStream(c.stats, c.ws.profile(), maxFps);
+            c.request.next();
+            c.ws.takeBuffered(c.request);
+            c.ws.process(System.currentTimeMillis());
+        } else {
+            c.header = streamHeader.duplicate();
+            c.slot = server.attachStream(c.stats, c.request);
+        }
+        if (c.stats.bitrate != null) {
+            try {
+                c.ch.socket().setSendBufferSize(BitrateController.SEND_BUFFER);
+            } catch (IOException ignored) {}
+        }
+        // anything a multipart client sends from now on is discarded
+        c.request = null;
+        c.stats.wantsFrameAt(System.nanoTime());
+        c.slot.requestFrame();
+        flush(c);
+    }
+
+    private void startWebSocket(StreamClient c) {
+        int status = WebSocket.checkUpgrade(c.request);
+        if (status != 0) {
+            reject(c, status, false);
+            return;
+        }
+        c.ws = server.newWebSocket(c.request);
+        startStream(c);
+    }
+
+    // applies a WebSocket client's new fps cap and profile between frames
+    private void applyChange(StreamClient c) {
+        int maxFps = c.ws.fps();
+        c.minGapMs = maxFps > 0 ? 1000L / maxFps : 0;
+        c.nextDueMs = 0;
+        moveTo(c, server.restream(c.stats, c.ws.profile(), maxFps));
+    }
+
+    private void moveTo(StreamClient c, FrameSlot s) {
+        if (s != c.slot) c.lastSeq = c.stats.lastSeq();
+        c.slot = s;
+        wantNextFrame(c);
+    }
+
+    private void startSnapshot(StreamClient c) {
+        SnapshotResponder snapshots = server.snapshots();
+        if (!c.snapshot) {
+            c.snapshot = true;
+            snapshots.connectionOpened();
+        }
+        FrameSlot.Frame f = slot.acquireLatest();
+        try {
+            if (snapshots.isFresh(f, System.nanoTime())) {
+                respond(c, f);
+                return;
+            }
+            c.snapshotAfterSeq = f != null ? f.seq() : 0;
+        } finally {
+            if (f != null) f.release();
+        }
+        // answered from pushFrame() once a newer frame is published or the wait times out
+        c.snapshotDeadlineMs = System.currentTimeMillis() + SnapshotResponder.WAIT_MS;
+        server.snapshotWanted();
+        snapshots.beginWait();
+        updateInterest(c);
+    }
+
+    private void startClip(StreamClient c) {
+        c.clip = server.openClip(c.request);
+        if (c.clip == null) {
+            reject(c, 404, c.request.keepAlive());
+            return;
+        }
+        c.request.next();
+        c.keepAlive = false;
+        c.header = ByteBuffer.wrap(ClipExport.HEAD);
+        c.body = c.clip.nextBuffer();
+        c.writeStartMs = System.currentTimeMillis();
+        flush(c);
+    }
+
+    private void startRecording(StreamClient c) {
+        c.recording = server.openRecording(c.request);
+        if (c.recording == null) {
+            reject(c, 404, c.request.keepAlive());
+            return;
+        }
+        c.request.next();
+        c.keepAlive = c.recording.keepAlive;
+        c.writeStartMs = System.currentTimeMillis();
+        flush(c);
+    }
+
+    private void startMetrics(StreamClient c) {
+        StreamMetrics m = server.metrics();
+        if (m == null) {
+            reject(c, 404, c.request.keepAlive());
+            return;
+        }
+        c.keepAlive = c.request.keepAlive();
+        c.request.next();
+        c.header = ByteBuffer.wrap(m.response(c.keepAlive));
+        c.writeStartMs = System.currentTimeMillis();
+        flushResponse(c);
+    }
+
+    // starts writing the snapshot response for f (null: 503) and consumes the request
+    private void respond(StreamClient c, FrameSlot.Frame f) {
+        c.keepAlive = c.request.keepAlive();
+        byte[] head = server.snapshots().head(f, c.request, c.keepAlive);
+        c.request.next();
+        c.header = ByteBuffer.wrap(head);
+        if (SnapshotResponder.bodyFollows(head)) {
+            c.sending = f.retain();
+            c.body = ByteBuffer.wrap(f.data(), f.jpegOffset(), f.jpegLength());
+        }
+        c.writeStartMs = System.currentTimeMillis();
+        flush(c);
+    }
+
+    // Advances a connection that is not streaming yet; returns when it needs attention again.
+    private long pollRequest(StreamClient c, long now) {
+        if (c.snapshotDeadlineMs != 0) {
+            FrameSlot.Frame f = passFrames[passIndex(slot)];
+            boolean newer = f != null && f.seq() > c.snapshotAfterSeq;
+            if (!newer && now < c.snapshotDeadlineMs) return c.snapshotDeadlineMs;
+            // a newer frame, or the best we have once the wait is over
+            c.snapshotDeadlineMs = 0;
+            server.snapshots().endWait();
+            respond(c, f);
+        } else if (c.writing) {
+            if (now - c.writeStartMs > server.stallTimeoutMs()) close(c);
+        } else if (now >= c.requestDeadlineMs) {
+            // a request that started but did not finish in time gets 408; a connection
+            // that sent nothing (or idles between requests) is just closed
+            if (c.request.buffered() > 0) reject(c, 408, false);
+            else close(c);
+        }
+        if (c.streaming || !c.key.isValid()) return Long.MAX_VALUE;
+        if (c.snapshotDeadlineMs != 0) return c.snapshotDeadlineMs;
+        if (c.writing) return c.writeStartMs + server.stallTimeoutMs() + 1;
+        return c.requestDeadlineMs;
+    }
+
+    // Sends the newest frame of its slot to every idle, due client and evicts slow ones;
+    // returns the next time a client becomes due or must be re-checked.
+    private long pushFrame(long now) {
+        long nowNanos = System.nanoTime();
+        try {
+            return pushFrame(now, nowNanos);
+        } finally {
+            for (int i = 0; i < passCount; i++) {
+                if (passFrames[i] != null) passFrames[i].release();
+                passFrames[i] = null;
+                passSlots[i] = null;
+            }
+            passCount = 0;
+        }
+    }
+
+    // index of the slot's pass state, taking a reference to its latest frame on first use
+    private int passIndex(FrameSlot s) {
+        for (int i = 0; i < passCount; i++) if (passSlots[i] == s) return i;
+        if (passCount == passSlots.length) {
+            int n = passCount * 2;
+            passSlots = Arrays.copyOf(passSlots, n);
+            passFrames = Arrays.copyOf(passFrames, n);
+            passPublished = Arrays.copyOf(passPublished, n);
+            passLatestSeq = Arrays.copyOf(passLatestSeq, n);
+        }
+        int i = passCount++;
+        passSlots[i] = s;
+        passPublished[i] = s.publishedBytes();
+        passLatestSeq[i] = s.latestSeq();
+        passFrames[i] = s.acquireLatest();
+        return i;
+    }
+
+    private long pushFrame(long now, long nowNanos) {
+        long wakeAt = Long.MAX_VALUE;
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            StreamClient c = clients.get(i);
+            if (!c.streaming) {
+                wakeAt = Math.min(wakeAt, pollRequest(c, now));
+                if (!c.streaming) continue;
+            }
+            if (c.ws != null) {
+                long due = c.ws.maintain(now);
+                if (due < 0) {
+                    server.webSocketReaped(c.stats);
+                    close(c);
+                    continue;
+                }
+                wakeAt = Math.min(wakeAt, due);
+                // a due ping goes out now if nothing else is being written
+                if (!c.writing && c.ws.hasControl()) flush(c);
+                if (!c.key.isValid()) continue;
+                if (!c.writing && c.ws.takeChanged()) applyChange(c);
+            }
+            BitrateController bitrate = c.stats.bitrate;
+            if (!c.writing && bitrate != null && bitrate.takeChange()) moveTo(c, server.retier(c.stats));
+            int k = passIndex(c.slot);
+            if (c.writing) {
+                String reason = server.slowClientReason(c.stats, passPublished[k], nowNanos);
+                if (reason != null) {
+                    server.notifyEvicted(c.stats, reason);
+                    close(c);
+                } else if (c.sending != null) {
+                    c.stats.supersededBy(passLatestSeq[k]);
+                    long inFlightMs = (nowNanos - c.stats.writeStartNanos) / 1_000_000L;
+                    wakeAt = Math.min(wakeAt, now + Math.max(1, server.stallTimeoutMs() - inFlightMs + 1));
+                }
+                continue;
+            }
+            FrameSlot.Frame f = passFrames[k];
+            if (f == null || f.seq() <= c.lastSeq) continue;
+            if (now < c.nextDueMs) {
+                wakeAt = Math.min(wakeAt, c.nextDueMs);
+                continue;
+            }
+            c.lastSeq = f.seq();
+            if (c.minGapMs > 0) c.nextDueMs = now + c.minGapMs;
+            c.sending = f.retain();
+            c.sent = 0;
+            if (c.ws != null) c.ws.startMessage(f);
+            c.stats.frameStarted(f, nowNanos);
+            flush(c);
+        }
+        return wakeAt;
+    }
+
+    // read-only view positioned over the frame's wire bytes
+    private ByteBuffer viewOf(FrameSlot.Frame f) {
+        ByteBuffer v;
+        if (f.isPooled()) {
+            int i = f.poolIndex;
+            if (i >= pooledViews.length) {
+                pooledViews = Arrays.copyOf(pooledViews, i + 1);
+                pooledArrays = Arrays.copyOf(pooledArrays, i + 1);
+            }
+            if (pooledArrays[i] != f.data()) {
+                pooledArrays[i] = f.data();
+                pooledViews[i] = ByteBuffer.wrap(f.data()).asReadOnlyBuffer();
+            }
+            v = pooledViews[i];
+            v.limit(f.wireOffset() + f.wireLength()).position(f.wireOffset());
+            return v;
+        }
+        int i = 0;
+        while (i < views.length && viewFrames[i] != f) i++;
+        if (i == views.length) {
+            i = nextView;
+            nextView = (nextView + 1) % views.length;
+            viewFrames[i] = f;
+            views[i] = f.wireBuffer();
+        }
+        v = views[i];
+        v.limit(v.capacity()).position(0);
+        return v;
+    }
+
+    private void flush(StreamClient c) {
+        if (!c.streaming) {
+            flushResponse(c);
+            return;
+        }
+        try {
+            if (c.header != null) {
+                c.stats.bytesWritten(c.ch.write(c.header));
+                if (!c.header.hasRemaining()) c.header = null;
+            }
+            boolean controlPending = false;
+            if (c.header == null && c.ws != null) {
+                controlPending = writeControl(c);
+                if (!c.key.isValid()) return;
+            }
+            if (c.header == null && c.sending != null && !controlPending) {
+                ByteBuffer view = viewOf(c.sending);
+                int base;
+                if (c.ws != null) {
+                    // the connection's message header, then the JPEG from the shared buffer
+                    base = view.limit() - c.sending.jpegLength();
+                    view.position(base + c.sent);
+                    gather[0] = c.ws.prefixBuffer();
+                    gather[1] = view;
+                    c.stats.bytesWritten(c.ch.write(gather));
+                } else {
+                    base = view.position();
+                    view.position(base + c.sent);
+                    c.stats.bytesWritten(c.ch.write(view));
+                }
+                c.sent = view.position() - base;
+                if (!view.hasRemaining()) {
+                    long stalled = c.stalledSinceNanos != 0 ? System.nanoTime() - c.stalledSinceNanos : 0;
+                    c.stats.frameFinished(c.slot.latestSeq(), stalled);
+                    c.stalledSinceNanos = 0;
+                    c.sending.release();
+                    c.sending = null;
+                    wantNextFrame(c);
+                    if (c.ws != null) {
+                        controlPending = writeControl(c);
+                        if (!c.key.isValid()) return;
+                    }
+                } else if (c.stalledSinceNanos == 0) {
+                    c.stalledSinceNanos = System.nanoTime();
+                }
+            }
+            c.writing = c.header != null || c.sending != null || controlPending;
+            updateInterest(c);
+        } catch (Exception e) {
+            close(c);
+        }
+    }
+
+    // Sends queued WebSocket control frames unless a message is half written; closes the
+    // connection once a close frame is out. Returns true if control bytes are still pending.
+    private boolean writeControl(StreamClient c) throws IOException {
+        // the message header is written first, so a moved prefix means a started message
+        if (c.sending != null && c.ws.prefixBuffer().position() > 0) return false;
+        ByteBuffer control = c.ws.pendingControl();
+        if (control.hasRemaining()) c.stats.bytesWritten(c.ch.write(control));
+        if (control.hasRemaining()) return true;
+        if (c.ws.isClosing()) close(c);
+        return false;
+    }
+
+    // writes the pending response; once done, closes or takes the next request
+    private void flushResponse(StreamClient c) {
+        try {
+            if (c.header != null) {
+                c.ch.write(c.header);
+                if (!c.header.hasRemaining()) c.header = null;
+            }
+            while (c.header == null && c.body != null) {
+                c.ch.write(c.body);
+                if (c.body.hasRemaining()) break;
+                c.body = null;
+                if (c.sending != null) {
+                    c.sending.release();
+                    c.sending = null;
+                }
+                if (c.clip != null) {
+                    // the stall deadline applies to each piece, not to the whole clip
+                    c.writeStartMs = System.currentTimeMillis();
+                    c.body = c.clip.nextBuffer();
+                    if (c.body == null) {
+                        c.clip.close();
+                        c.clip = null;
+                    }
+                }
+            }
+            if (c.recording != null) {
+                long before = c.recording.written();
+                if (c.recording.writeTo(c.ch)) {
+                    c.recording.close();
+                    c.recording = null;
+                } else if (c.recording.written() != before) {
+                    c.writeStartMs = System.currentTimeMillis();
+                }
+            }
+            c.writing = c.header != null || c.body != null || c.recording != null;
+            if (c.writing || c.snapshotDeadlineMs != 0) {
+                updateInterest(c);
+            } else if (!c.keepAlive) {
+                close(c);
+            } else {
+                c.requestDeadlineMs = System.currentTimeMillis() + MjpegHttpServer.KEEP_ALIVE_TIMEOUT_MS;
+                nextRequest(c);
+            }
+        } catch (Exception e) {
+            close(c);
+        }
+    }
+
+    private static void updateInterest(StreamClient c) {
+        // a connection with a full request buffer is not read until it has been answered
+        // (nor is a WebSocket that is closing)
+        boolean read = c.ws != null ? !c.ws.isClosing() : c.request == null || !c.request.isFull();
+        int ops = read ? SelectionKey.OP_READ : 0;
+        if (c.writing) ops |= SelectionKey.OP_WRITE;
+        c.key.interestOps(ops);
+    }
+
+    // publishes when the client will take its next frame; wakes the encoder if that is now
+    private void wantNextFrame(StreamClient c) {
+        long nowNanos = System.nanoTime();
+        long dueInMs = c.nextDueMs - System.currentTimeMillis();
+        if (dueInMs > 0) {
+            c.stats.wantsFrameAt(nowNanos + dueInMs * 1_000_000L);
+        } else {
+            c.stats.wantsFrameAt(nowNanos);
+            c.slot.requestFrame();
+        }
+    }
+
+    private void close(StreamClient c) {
+        if (!clients.remove(c)) return;
+        c.key.cancel();
+        try { c.ch.close(); } catch (Exception ignored) {}
+        if (c.sending != null) {
+            c.sending.release();
+            c.sending = null;
+        }
+        if (c.clip != null) {
+            c.clip.close();
+            c.clip = null;
+        }
+        if (c.recording != null) {
+            c.recording.close();
+            c.recording = null;
+        }
+        if (c.streaming) {
+            server.onStreamClosed(c.ch.socket(), c.stats);
+            return;
+        }
+        if (c.snapshotDeadlineMs != 0) server.snapshots().endWait();
+        if (c.snapshot) server.snapshots().connectionClosed();
+        server.onConnectionClosed(c.ch.socket());
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.coolstream;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Responses for GET /snapshot.jpg, shared by both IoModes of MjpegHttpServer.
+ *
+ * - The latest published frame is served as-is if it is younger than maxAgeMs; only
+ *   otherwise does the caller wait (bounded) for a fresh one, see beginWait()
+ * - ETag is the frame's sequence number (prefixed with an id of this server instance so
+ *   tags from before a restart never match); a matching If-None-Match gets 304
+ * - While a snapshot is waiting the primary slot reports demand, so the encoder produces
+ *   a frame even when no stream client is connected
+ * - Snapshot connections and responses are counted here, never as stream clients
+ */
+final class SnapshotResponder {
+    static final String PATH = "/snapshot.jpg";
+    static final long DEFAULT_MAX_AGE_MS = 1000;
+    // longest a request waits for a fresh frame (covers a camera cold start)
+    static final long WAIT_MS = 3000;
+
+    private final FrameSlot slot;
+    private final String etagPrefix = "\"" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private volatile long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+
+    SnapshotResponder(FrameSlot slot) {
+        this.slot = slot;
+    }
+
+    void setMaxAgeMs(long maxAgeMs) { this.maxAgeMs = maxAgeMs; }
+
+    /** True if f may be served without waiting for the camera. */
+    boolean isFresh(FrameSlot.Frame f, long nowNanos) {
+        if (f == null) return false;
+        // a polled provider carries no capture time; its latest frame is all there is
+        return slot.isPolled() || nowNanos - f.captureNanos() <= maxAgeMs * 1_000_000L;
+    }
+
+    /** A request is about to wait for a frame newer than the one it has (if any). */
+    void beginWait() {
+        waiting.incrementAndGet();
+        slot.requestFrame();
+    }
+
+    void endWait() { waiting.decrementAndGet(); }
+
+    /** True while some snapshot request waits for a frame. */
+    boolean isWaiting() { return waiting.get() > 0; }
+
+    void connectionOpened() { connections.incrementAndGet(); }
+    void connectionClosed() { connections.decrementAndGet(); }
+
+    String etag(FrameSlot.Frame f) { return etagPrefix + f.seq() + "\""; }
+
+    /**
+     * Status line and headers for a response with frame f (null: nothing to serve).
+     * @return the head; the JPEG body follows only if bodyFollows(head) is true
+     */
+    byte[] head(FrameSlot.Frame f, HttpRequest request, boolean keepAlive) {
+        StringBuilder sb = new StringBuilder(192);
+        if (f == null) {
+            unavailable.incrementAndGet();
+            sb.append("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Retry-After: 1\r\n" +
+                    "Content-Length: 0\r\n");
+        } else {
+            String etag = etag(f);
+            if (request.headerHasEtag("If-None-Match", etag)) {
+                notModified.incrementAndGet();
+                sb.append("HTTP/1.1 304 Not Modified\r\n");
+            } else {
+                served.incrementAndGet();
+                sb.append("HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: image/jpeg\r\n" +
+                        "Content-Length: ").append(f.jpegLength()).append("\r\n");
+            }
+            sb.append("ETag: ").append(etag).append("\r\n");
+        }
+        sb.append("Cache-Control: no-cache\r\n" +
+                "Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** True if the response head is followed by the frame's JPEG bytes. */
+    static boolean bodyFollows(byte[] head) {
+        // "HTTP/1.1 200"
+        return head[9] == '2';
+    }
+
+    int connections() { return connections.get(); }
+    long served() { return served.get(); }
+    long notModified() { return notModified.get(); }
+    long unavailable() { return unavailable.get(); }
+}
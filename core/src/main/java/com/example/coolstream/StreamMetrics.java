@@ -0,0 +1,82 @@
+package com.example.coolstream;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The streaming pipeline's instruments, all in one Metrics registry that
+ * MjpegHttpServer.setMetrics() serves as GET /metrics.
+ *
+ * - EncodePipeline.setMetrics() records the capture interval, queue wait and encode time
+ *   and exports its drop counters
+ * - Stream clients record through their ClientStats, in both IoModes: publish-to-send
+ *   latency (FrameSlot.publish() until the client's write of that frame completed), write
+ *   time per frame, frames and bytes sent (fps and bytes/s out), frames dropped, adaptive
+ *   tier steps, stale frames sent and the time from connecting to the first live frame
+ * - MjpegHttpServer.setMetrics() exports frames published (fps in) and active clients;
+ *   anything else (FramePool hits/misses, ...) is added to registry() by the owner
+ */
+public final class StreamMetrics {
+    public static final String PATH = "/metrics";
+
+    private final Metrics registry = new Metrics();
+
+    final Metrics.Histogram captureInterval = registry.histogram("coolstream_capture_interval_seconds",
+            "Time between consecutive camera captures");
+    final Metrics.Histogram encodeWait = registry.histogram("coolstream_encode_queue_wait_seconds",
+            "Time a capture waited for an encoder");
+    final Metrics.Histogram encodeTime = registry.histogram("coolstream_encode_seconds",
+            "Time to compress and publish one frame");
+    final Metrics.Histogram publishToSend = registry.histogram("coolstream_publish_to_send_seconds",
+            "Time from publishing a frame until a stream client's write of it completed");
+    final Metrics.Histogram clientWrite = registry.histogram("coolstream_client_write_seconds",
+            "Time to write one frame to one stream client");
+    final Metrics.Histogram timeToFirstFrame = registry.histogram("coolstream_time_to_first_frame_seconds",
+            "Time from a stream client connecting until its first live frame was written");
+    final LongAdder framesSent = registry.counter("coolstream_frames_sent_total",
+            "Frames written to stream clients");
+    final LongAdder bytesSent = registry.counter("coolstream_bytes_sent_total",
+            "Bytes written to stream clients");
+    final LongAdder framesDropped = registry.counter("coolstream_client_frames_dropped_total",
+            "Frames stream clients missed because they were still writing an earlier one");
+    final LongAdder staleFramesSent = registry.counter("coolstream_stale_frames_sent_total",
+            "Stale frames (the last one before the camera stopped) written to new stream clients");
+    final LongAdder tierStepsDown = registry.counter("coolstream_tier_steps_down_total",
+            "Adaptive clients moved to a lower tier because of congestion");
+    final LongAdder tierStepsUp = registry.counter("coolstream_tier_steps_up_total",
+            "Adaptive clients probing a higher tier");
+
+    public Metrics registry() { return registry; }
+
+    public Metrics.Histogram captureInterval() { return captureInterval; }
+    public Metrics.Histogram encodeTime() { return encodeTime; }
+    public Metrics.Histogram publishToSend() { return publishToSend; }
+    public Metrics.Histogram clientWrite() { return clientWrite; }
+    public Metrics.Histogram timeToFirstFrame() { return timeToFirstFrame; }
+
+    /** Complete HTTP response with the current scrape. */
+    byte[] response(boolean keepAlive) {
+        byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + Metrics.CONTENT_TYPE + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] r = new byte[head.length + body.length];
+        System.arraycopy(head, 0, r, 0, head.length);
+        System.arraycopy(body, 0, r, head.length, body.length);
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamMetrics{capture[" + captureInterval + "]" +
+                ", encode[" + encodeTime + "]" +
+                ", publishToSend[" + publishToSend + "]" +
+                ", write[" + clientWrite + "]" +
+                ", sent=" + framesSent.sum() +
+                ", dropped=" + framesDropped.sum() +
+                ", bytes=" + bytesSent.sum() + "}";
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.coolstream;
+
+
+/**
+ * What a stream client asked for with "?quality=Q&width=W&gray=1" in its query string.
+ *
+ * - quality 1..100, or 0 for the encoder's current quality
+ * - width in pixels, or 0 for the camera's native size; height follows the aspect ratio
+ * - gray drops the chroma (encoded as neutral grey)
+ *
+ * Clients with equal profiles share one encoded variant per frame (see FrameVariants).
+ * The "?fps=" cap is per client and not part of the profile.
+ */
+public final class StreamProfile {
+    public static final StreamProfile DEFAULT = new StreamProfile(0, 0, false);
+    // smallest width we scale to; keeps both planes of an NV21 frame non-empty
+    static final int MIN_WIDTH = 16;
+
+    private final int quality;
+    private final int width;
+    private final boolean gray;
+
+    public StreamProfile(int quality, int width) {
+        this(quality, width, false);
+    }
+
+    public StreamProfile(int quality, int width, boolean gray) {
+        this.quality = Math.max(0, Math.min(100, quality));
+        this.width = width <= 0 ? 0 : Math.max(MIN_WIDTH, width & ~1);
+        this.gray = gray;
+    }
+
+    /** Profile requested in an HTTP query string; DEFAULT when none of the parameters is given. */
+    static StreamProfile fromRequest(HttpRequest request) {
+        int quality = request.queryInt("quality");
+        int width = request.queryInt("width");
+        boolean gray = request.queryInt("gray") > 0;
+        if (quality <= 0 && width <= 0 && !gray) return DEFAULT;
+        return new StreamProfile(quality, width, gray);
+    }
+
+    public int quality() { return quality; }
+    public int width() { return width; }
+    public boolean gray() { return gray; }
+
+    public boolean isDefault() { return quality == 0 && width == 0 && !gray; }
+
+    /** JPEG quality to use given the encoder's current default. */
+    int qualityOr(int defaultQuality) { return quality > 0 ? quality : defaultQuality; }
+
+    /** Output width for a source of the given width (never upscales; always even). */
+    int outputWidth(int srcWidth) {
+        return width == 0 || width >= srcWidth ? srcWidth : width;
+    }
+
+    /** Output height matching outputWidth(), rounded down to an even number. */
+    int outputHeight(int srcWidth, int srcHeight) {
+        int w = outputWidth(srcWidth);
+        if (w == srcWidth) return srcHeight;
+        return Math.max(2, (int) ((long) srcHeight * w / srcWidth) & ~1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StreamProfile)) return false;
+        StreamProfile p = (StreamProfile) o;
+        return quality == p.quality && width == p.width && gray == p.gray;
+    }
+
+    @Override
+    public int hashCode() { return (quality * 31 + width) * 2 + (gray ? 1 : 0); }
+
+    @Override
+    public String toString() {
+        return "q=" + (quality == 0 ? "default" : String.valueOf(quality)) +
+                " w=" + (width == 0 ? "native" : String.valueOf(width)) +
+                (gray ? " gray" : "");
+    }
+}
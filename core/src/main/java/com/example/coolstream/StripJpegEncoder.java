@@ -0,0 +1,444 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure-Java baseline JPEG encoder that spreads one frame over several cores.
+ *
+ * - The NV21 frame is coded as YCbCr 4:2:0 (16x16 MCUs; NV21's own chroma, no resampling)
+ *   with the standard quantization tables scaled like libjpeg's quality setting and the
+ *   standard Huffman tables (JpegTables), so RTP/JPEG can carry the output
+ * - The frame is cut into horizontal strips of stripMcuRows MCU rows. A DRI restart
+ *   interval of one strip resets the DC predictors at every strip boundary, so each strip
+ *   is entropy-coded on its own, in parallel on a ForkJoinPool, into its own buffer; the
+ *   strips are written out in order with RST0..RST7 between them. The result is one
+ *   ordinary baseline JPEG, byte for byte the same whatever the number of threads
+ * - Strip buffers, DCT scratch and the frame headers are kept per frame size and reused;
+ *   quantization tables are built once per quality
+ * - Edges that do not fill a whole MCU repeat the last row and column
+ *
+ * Safe for concurrent use (JpegEncoder's contract): each compress() takes its own set of
+ * strips. Sizes must be even, as NV21 requires.
+ */
+public final class StripJpegEncoder implements JpegEncoder {
+    /** MCU rows (16 pixels each) per restart interval and parallel task. */
+    public static final int DEFAULT_STRIP_MCU_ROWS = 2;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+    // ITU T.81 Annex K.1, natural order
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // AAN DCT output scale per row/column
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    // Huffman codes and lengths by symbol: DC luma, DC chroma, AC luma, AC chroma
+    private static final int[][] CODES = new int[4][256];
+    private static final int[][] SIZES = new int[4][256];
+
+    static {
+        for (int t = 0; t < 4; t++) {
+            byte[] bits = JpegTables.bits(t >> 1, t & 1);
+            byte[] values = JpegTables.values(t >> 1, t & 1);
+            int code = 0, k = 0;
+            for (int len = 1; len <= 16; len++) {
+                for (int i = 0; i < bits[len - 1]; i++) {
+                    int sym = values[k++] & 0xFF;
+                    CODES[t][sym] = code++;
+                    SIZES[t][sym] = len;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    // quantization for one quality: DQT bytes (zigzag) and AAN divisors (natural order)
+    private static final class Tables {
+        final int quality;
+        final byte[] luma = new byte[64];
+        final byte[] chroma = new byte[64];
+        final float[] lumaDiv = new float[64];
+        final float[] chromaDiv = new float[64];
+
+        Tables(int quality) {
+            this.quality = quality;
+            int q = quality;
+            int scale = q < 50 ? 5000 / q : 200 - 2 * q;
+            fill(LUMA_QUANT, scale, luma, lumaDiv);
+            fill(CHROMA_QUANT, scale, chroma, chromaDiv);
+        }
+
+        private static void fill(int[] base, int scale, byte[] dqt, float[] div) {
+            for (int i = 0; i < 64; i++) {
+                // baseline: 8-bit entries
+                int v = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+                div[i] = (float) (1.0 / (v * AAN_SCALE[i >> 3] * AAN_SCALE[i & 7] * 8.0));
+            }
+            for (int k = 0; k < 64; k++) {
+                int i = ZIGZAG[k];
+                dqt[k] = (byte) Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final int stripMcuRows;
+    private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<>();
+    // by quality, built on first use; Tables is immutable, so a racy build is harmless
+    private final Tables[] tables = new Tables[101];
+
+    /** Encoder with its own pool of threads (shut down with shutdown()). */
+    public StripJpegEncoder(int threads) {
+        this(new ForkJoinPool(threads), DEFAULT_STRIP_MCU_ROWS, true);
+    }
+
+    /** Encoder running its strips on pool, which the caller owns. */
+    public StripJpegEncoder(ForkJoinPool pool, int stripMcuRows) {
+        this(pool, stripMcuRows, false);
+    }
+
+    private StripJpegEncoder(ForkJoinPool pool, int stripMcuRows, boolean ownPool) {
+        if (stripMcuRows < 1) throw new IllegalArgumentException("stripMcuRows must be >= 1");
+        this.pool = pool;
+        this.stripMcuRows = stripMcuRows;
+        this.ownPool = ownPool;
+    }
+
+    public int parallelism() { return pool.getParallelism(); }
+
+    /** Stop the pool if this encoder created it. */
+    public void shutdown() {
+        if (ownPool) pool.shutdown();
+    }
+
+    @Override
+    public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+        if ((width & 1) != 0 || (height & 1) != 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("NV21 size must be even: " + width + "x" + height);
+        }
+        if (nv21.length < width * height * 3 / 2) throw new IllegalArgumentException("NV21 buffer too small");
+        int q = Math.max(1, Math.min(100, quality));
+        Tables t = tables[q];
+        if (t == null) tables[q] = t = new Tables(q);
+        Frame f = frames.poll();
+        if (f == null || f.width != width || f.height != height) f = new Frame(width, height, stripMcuRows);
+        try {
+            f.nv21 = nv21;
+            f.tables = t;
+            f.reinitialize();
+            for (Strip s : f.strips) s.reinitialize();
+            pool.invoke(f);
+            f.write(out);
+        } finally {
+            f.nv21 = null;
+            frames.offer(f);
+        }
+    }
+
+    // one frame size: its strips, headers and buffers (a task, never serialized)
+    @SuppressWarnings("serial")
+    private static final class Frame extends RecursiveAction {
+        final int width;
+        final int height;
+        final int mcusPerRow;
+        final int restartInterval;
+        final Strip[] strips;
+        // SOI..SOS by quality
+        private final byte[][] headers = new byte[101][];
+
+        // set per compress()
+        byte[] nv21;
+        Tables tables;
+
+        Frame(int width, int height, int stripMcuRows) {
+            this.width = width;
+            this.height = height;
+            this.mcusPerRow = (width + 15) >> 4;
+            int mcuRows = (height + 15) >> 4;
+            // DRI holds 16 bits
+            int rows = Math.max(1, Math.min(stripMcuRows, 0xFFFF / mcusPerRow));
+            int n = (mcuRows + rows - 1) / rows;
+            this.restartInterval = mcusPerRow * rows;
+            this.strips = new Strip[n];
+            for (int i = 0; i < n; i++) {
+                strips[i] = new Strip(this, i * rows, Math.min(mcuRows, (i + 1) * rows));
+            }
+        }
+
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(strips);
+        }
+
+        void write(OutputStream out) throws IOException {
+            byte[] header = headers[tables.quality];
+            if (header == null) headers[tables.quality] = header = header(tables);
+            out.write(header);
+            byte[] marker = {(byte) 0xFF, 0};
+            for (int i = 0; i < strips.length; i++) {
+                Strip s = strips[i];
+                out.write(s.buf, 0, s.len);
+                marker[1] = (byte) (i == strips.length - 1 ? 0xD9 : 0xD0 + (i & 7));
+                out.write(marker);
+            }
+        }
+
+        // SOI through SOS; the restart interval only exists with more than one strip
+        private byte[] header(Tables t) {
+            boolean dri = strips.length > 1;
+            byte[] h = new byte[2 + 18 + 4 + 2 * 65 + 19 + JpegTables.DHT_LENGTH + (dri ? 6 : 0) + 14];
+            int p = 0;
+            h[p++] = (byte) 0xFF; h[p++] = (byte) 0xD8;
+            // JFIF 1.01, no density, no thumbnail
+            byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+            System.arraycopy(app0, 0, h, p, app0.length);
+            p += app0.length;
+            h[p++] = (byte) 0xFF; h[p++] = (byte) 0xDB;
+            h[p++] = 0; h[p++] = (byte) (2 + 2 * 65);
+            h[p++] = 0;
+            System.arraycopy(t.luma, 0, h, p, 64);
+            p += 64;
+            h[p++] = 1;
+            System.arraycopy(t.chroma, 0, h, p, 64);
+            p += 64;
+            // SOF0: 8 bits, 3 components; Y 2x2 on table 0, Cb and Cr 1x1 on table 1
+            h[p++] = (byte) 0xFF; h[p++] = (byte) 0xC0;
+            h[p++] = 0; h[p++] = 17; h[p++] = 8;
+            h[p++] = (byte) (height >> 8); h[p++] = (byte) height;
+            h[p++] = (byte) (width >> 8); h[p++] = (byte) width;
+            h[p++] = 3;
+            h[p++] = 1; h[p++] = 0x22; h[p++] = 0;
+            h[p++] = 2; h[p++] = 0x11; h[p++] = 1;
+            h[p++] = 3; h[p++] = 0x11; h[p++] = 1;
+            p += JpegTables.writeHuffmanTables(h, p);
+            if (dri) {
+                h[p++] = (byte) 0xFF; h[p++] = (byte) 0xDD;
+                h[p++] = 0; h[p++] = 4;
+                h[p++] = (byte) (restartInterval >> 8); h[p++] = (byte) restartInterval;
+            }
+            // SOS: Y on DC/AC table 0, chroma on 1; full spectral range
+            h[p++] = (byte) 0xFF; h[p++] = (byte) 0xDA;
+            h[p++] = 0; h[p++] = 12; h[p++] = 3;
+            h[p++] = 1; h[p++] = 0x00;
+            h[p++] = 2; h[p++] = 0x11;
+            h[p++] = 3; h[p++] = 0x11;
+            h[p++] = 0; h[p++] = 63; h[p++] = 0;
+            return h;
+        }
+    }
+
+    // MCU rows [rowStart, rowEnd) of a frame, entropy-coded into buf
+    @SuppressWarnings("serial")
+    private static final class Strip extends RecursiveAction {
+        // one MCU is 6 blocks; a block codes to at most 64 * 27 bits, doubled by 0xFF stuffing
+        private static final int MAX_MCU_BYTES = 6 * 64 * 27 / 8 * 2;
+
+        private final Frame frame;
+        private final int rowStart;
+        private final int rowEnd;
+        byte[] buf = new byte[16 * 1024];
+        int len;
+
+        private final float[] block = new float[64];
+        private long acc;
+        private int bits;
+
+        Strip(Frame frame, int rowStart, int rowEnd) {
+            this.frame = frame;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            Frame f = frame;
+            byte[] nv21 = f.nv21;
+            Tables t = f.tables;
+            int w = f.width, h = f.height;
+            len = 0;
+            acc = 0;
+            bits = 0;
+            int dcY = 0, dcCb = 0, dcCr = 0;
+            for (int my = rowStart; my < rowEnd; my++) {
+                for (int mx = 0; mx < f.mcusPerRow; mx++) {
+                    if (buf.length - len < MAX_MCU_BYTES) buf = Arrays.copyOf(buf, buf.length * 2);
+                    int x = mx << 4, y = my << 4;
+                    loadLuma(nv21, w, h, x, y);
+                    dcY = code(t.lumaDiv, dcY, 0);
+                    loadLuma(nv21, w, h, x + 8, y);
+                    dcY = code(t.lumaDiv, dcY, 0);
+                    loadLuma(nv21, w, h, x, y + 8);
+                    dcY = code(t.lumaDiv, dcY, 0);
+                    loadLuma(nv21, w, h, x + 8, y + 8);
+                    dcY = code(t.lumaDiv, dcY, 0);
+                    // NV21 chroma: V then U per pair of pixels
+                    loadChroma(nv21, w, h, x >> 1, y >> 1, 1);
+                    dcCb = code(t.chromaDiv, dcCb, 1);
+                    loadChroma(nv21, w, h, x >> 1, y >> 1, 0);
+                    dcCr = code(t.chromaDiv, dcCr, 1);
+                }
+            }
+            // pad the last byte with 1 bits
+            if (bits > 0) emit((1 << (8 - bits)) - 1, 8 - bits);
+        }
+
+        private void loadLuma(byte[] nv21, int w, int h, int x0, int y0) {
+            float[] b = block;
+            if (x0 + 8 <= w && y0 + 8 <= h) {
+                for (int r = 0, i = 0; r < 8; r++) {
+                    int row = (y0 + r) * w + x0;
+                    for (int c = 0; c < 8; c++) b[i++] = (nv21[row + c] & 0xFF) - 128;
+                }
+                return;
+            }
+            for (int r = 0, i = 0; r < 8; r++) {
+                int row = Math.min(y0 + r, h - 1) * w;
+                for (int c = 0; c < 8; c++) b[i++] = (nv21[row + Math.min(x0 + c, w - 1)] & 0xFF) - 128;
+            }
+        }
+
+        // offset 1 reads U (Cb), 0 reads V (Cr)
+        private void loadChroma(byte[] nv21, int w, int h, int x0, int y0, int offset) {
+            float[] b = block;
+            int cw = w >> 1, ch = h >> 1;
+            int plane = w * h + offset;
+            for (int r = 0, i = 0; r < 8; r++) {
+                int row = plane + Math.min(y0 + r, ch - 1) * w;
+                for (int c = 0; c < 8; c++) b[i++] = (nv21[row + (Math.min(x0 + c, cw - 1) << 1)] & 0xFF) - 128;
+            }
+        }
+
+        // DCT, quantization and Huffman coding of block; returns its DC for the next prediction
+        private int code(float[] div, int prevDc, int table) {
+            float[] b = block;
+            fdct(b);
+            int dc = quantize(b[0] * div[0]);
+            int diff = dc - prevDc;
+            int[] dcCodes = CODES[table], dcSizes = SIZES[table];
+            int[] acCodes = CODES[2 + table], acSizes = SIZES[2 + table];
+            int n = magnitude(diff);
+            emit(dcCodes[n], dcSizes[n]);
+            if (n > 0) emit(diff < 0 ? diff - 1 : diff, n);
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int i = ZIGZAG[k];
+                int v = quantize(b[i] * div[i]);
+                if (v == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    emit(acCodes[0xF0], acSizes[0xF0]);
+                    run -= 16;
+                }
+                n = magnitude(v);
+                int sym = (run << 4) | n;
+                emit(acCodes[sym], acSizes[sym]);
+                emit(v < 0 ? v - 1 : v, n);
+                run = 0;
+            }
+            if (run > 0) emit(acCodes[0], acSizes[0]);
+            return dc;
+        }
+
+        private static int quantize(float v) {
+            // round half up, as libjpeg does; the offset keeps the cast from truncating
+            // negative values towards zero
+            return (int) (v + 16384.5f) - 16384;
+        }
+
+        private static int magnitude(int v) {
+            return 32 - Integer.numberOfLeadingZeros(v < 0 ? -v : v);
+        }
+
+        private void emit(int code, int size) {
+            acc = (acc << size) | (code & ((1L << size) - 1));
+            bits += size;
+            while (bits >= 8) {
+                bits -= 8;
+                byte b = (byte) (acc >>> bits);
+                buf[len++] = b;
+                if (b == (byte) 0xFF) buf[len++] = 0;
+            }
+        }
+
+        // AAN forward DCT (libjpeg's jfdctflt), in place; outputs are scaled by AAN_SCALE * 8
+        private static void fdct(float[] d) {
+            for (int pass = 0; pass < 2; pass++) {
+                // rows, then columns
+                int step = pass == 0 ? 1 : 8;
+                int next = pass == 0 ? 8 : 1;
+                for (int line = 0; line < 8; line++) {
+                    int o = line * next;
+                    float t0 = d[o] + d[o + 7 * step];
+                    float t7 = d[o] - d[o + 7 * step];
+                    float t1 = d[o + step] + d[o + 6 * step];
+                    float t6 = d[o + step] - d[o + 6 * step];
+                    float t2 = d[o + 2 * step] + d[o + 5 * step];
+                    float t5 = d[o + 2 * step] - d[o + 5 * step];
+                    float t3 = d[o + 3 * step] + d[o + 4 * step];
+                    float t4 = d[o + 3 * step] - d[o + 4 * step];
+
+                    float t10 = t0 + t3;
+                    float t13 = t0 - t3;
+                    float t11 = t1 + t2;
+                    float t12 = t1 - t2;
+                    d[o] = t10 + t11;
+                    d[o + 4 * step] = t10 - t11;
+                    float z1 = (t12 + t13) * 0.707106781f;
+                    d[o + 2 * step] = t13 + z1;
+                    d[o + 6 * step] = t13 - z1;
+
+                    t10 = t4 + t5;
+                    t11 = t5 + t6;
+                    t12 = t6 + t7;
+                    float z5 = (t10 - t12) * 0.382683433f;
+                    float z2 = 0.541196100f * t10 + z5;
+                    float z4 = 1.306562965f * t12 + z5;
+                    float z3 = t11 * 0.707106781f;
+                    float z11 = t7 + z3;
+                    float z13 = t7 - z3;
+                    d[o + 5 * step] = z13 + z2;
+                    d[o + 3 * step] = z13 - z2;
+                    d[o + step] = z11 + z4;
+                    d[o + 7 * step] = z11 - z4;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StripJpegEncoder{threads=" + pool.getParallelism() + ", stripMcuRows=" + stripMcuRows + "}";
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.coolstream;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless NV21 source: a moving test pattern at a fixed size and frame rate.
+ *
+ * - The luma plane is a gradient with fine texture, with a bright square crossing the frame
+ *   every SWEEP_SECONDS, so JPEG sizes and the MotionDetector behave roughly as they do
+ *   with a real scene; setMoving(false) parks the square for an idle scene
+ * - Frames are paced on a "frame-source-synthetic" thread. A tick with no free buffer is
+ *   dropped and counted, as the camera drops frames while every callback buffer is out.
+ *   After a stall (GC, suspended process) pacing restarts instead of catching up in a burst
+ * - Like the camera it owns a fixed set of buffers, which come back through recycle()
+ */
+public final class SyntheticFrameSource implements FrameSource {
+    public static final int DEFAULT_BUFFERS = 5;
+    static final int SWEEP_SECONDS = 4;
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final ArrayBlockingQueue<byte[]> free;
+    // Y and VU planes every frame starts from
+    private final byte[] background;
+    private volatile boolean moving = true;
+    private volatile boolean running;
+    private Thread thread;
+    private long frame;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public SyntheticFrameSource(int width, int height, int fps) {
+        this(width, height, fps, DEFAULT_BUFFERS);
+    }
+
+    public SyntheticFrameSource(int width, int height, int fps, int buffers) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("NV21 needs an even size, got " + width + "x" + height);
+        }
+        if (fps < 1 || buffers < 1) throw new IllegalArgumentException("fps and buffers must be >= 1");
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) free.offer(new byte[width * height * 3 / 2]);
+        this.background = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = 16 + 160 * (x + y) / (width + height) + (((x >> 1) ^ (y >> 1)) & 15);
+                background[y * width + x] = (byte) v;
+            }
+        }
+        for (int i = width * height; i < background.length; i += 2) {
+            int row = (i - width * height) / width;
+            background[i] = (byte) (128 + 48 * row / (height / 2));
+            background[i + 1] = (byte) (176 - 48 * row / (height / 2));
+        }
+    }
+
+    /** Move the square (the default), or leave it where it is so the scene is idle. */
+    public void setMoving(boolean moving) { this.moving = moving; }
+
+    public int width() { return width; }
+    public int height() { return height; }
+
+    @Override
+    public synchronized void start(Sink sink) {
+        if (running) return;
+        running = true;
+        sink.onFormat(Format.NV21, width, height);
+        thread = new Thread(() -> run(sink), "frame-source-synthetic");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        Thread t = thread;
+        thread = null;
+        if (t == null || t == Thread.currentThread()) return;
+        t.interrupt();
+        try { t.join(1000); } catch (InterruptedException ignored) {}
+    }
+
+    @Override
+    public void recycle(byte[] buffer) {
+        if (buffer.length == background.length) free.offer(buffer);
+    }
+
+    private void run(Sink sink) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+        long next = System.nanoTime();
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else if (wait < -interval) {
+                next = System.nanoTime();
+            }
+            next += interval;
+            if (moving) frame++;
+            byte[] b = free.poll();
+            if (b == null) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            render(b);
+            delivered.incrementAndGet();
+            sink.onFrame(b, System.nanoTime());
+        }
+    }
+
+    // background plus a square of a quarter of the height sweeping left to right
+    private void render(byte[] nv21) {
+        System.arraycopy(background, 0, nv21, 0, background.length);
+        int size = Math.max(2, height / 4);
+        int span = width + size;
+        int left = (int) (frame * span / ((long) fps * SWEEP_SECONDS) % span) - size;
+        int top = (height - size) / 2;
+        for (int y = top; y < top + size; y++) {
+            int row = y * width;
+            for (int x = Math.max(0, left); x < Math.min(width, left + size); x++) nv21[row + x] = (byte) 235;
+        }
+    }
+
+    /** Frames handed to the sink. */
+    public long framesDelivered() { return delivered.get(); }
+    /** Ticks skipped because every buffer was still with the sink. */
+    public long framesDropped() { return dropped.get(); }
+
+    @Override
+    public String toString() {
+        return "SyntheticFrameSource{" + width + "x" + height + "@" + fps +
+                ", delivered=" + delivered.get() + ", dropped=" + dropped.get() + "}";
+    }
+}
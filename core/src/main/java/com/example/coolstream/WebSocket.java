@@ -0,0 +1,418 @@
+package com.example.coolstream;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One RFC 6455 connection on MjpegHttpServer's GET /stream.ws, shared by both IoModes.
+ *
+ * - The upgrade is answered with Sec-WebSocket-Accept computed here (SHA-1 through
+ *   MessageDigest, Base64 by hand since java.util.Base64 needs API 26)
+ * - Every frame goes out as one unfragmented binary message: a META_LENGTH metadata header
+ *   followed by the JPEG. Only the WebSocket and metadata headers (at most MAX_PREFIX bytes)
+ *   are built per connection, in a reused array; the JPEG is written straight from the
+ *   frame's shared buffer
+ * - Metadata, big-endian: seq (8), capture time in epoch ms (8), motion score in permille
+ *   or -1 if unknown (2), flags (1; bit 0 set while the scene is in motion, bit 1 on a
+ *   stale frame, see FrameSlot.markStale()), reserved (1)
+ * - Text messages from the client change the stream without reconnecting, in the syntax of
+ *   the stream's query string: "fps=5", "quality=40&width=320", "gray=1"; fps=0 lifts the
+ *   cap and quality=0 / width=0 go back to the defaults. Unknown keys are ignored
+ * - Client frames must be masked; fragmented messages are reassembled up to MAX_MESSAGE
+ *   bytes with control frames allowed between the fragments. Anything else is a protocol
+ *   error and closes the connection with 1002 (1009 for an oversized message)
+ * - Pings are answered with pongs and a close is echoed. maintain() pings every
+ *   pingIntervalMs; a connection that sends nothing within pongTimeoutMs of a ping is dead
+ *
+ * read()/process() run on the connection's reading thread; control frames are queued and
+ * sent between messages by whoever writes frames (writeControl() or pendingControl()).
+ */
+final class WebSocket {
+    static final String PATH = "/stream.ws";
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static final int OP_CONTINUATION = 0x0;
+    static final int OP_TEXT = 0x1;
+    static final int OP_BINARY = 0x2;
+    static final int OP_CLOSE = 0x8;
+    static final int OP_PING = 0x9;
+    static final int OP_PONG = 0xA;
+
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    /** Metadata bytes in front of the JPEG in every binary message. */
+    static final int META_LENGTH = 20;
+    static final int FLAG_MOTION = 1;
+    static final int FLAG_STALE = 2;
+    // longest header the server writes in front of a JPEG: 64-bit length, unmasked
+    static final int MAX_PREFIX = 10 + META_LENGTH;
+    // longest client message, fragments included (control messages are short)
+    static final int MAX_MESSAGE = 1024;
+    // control frame payloads are limited to 125 bytes by the RFC
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    static final long DEFAULT_PING_INTERVAL_MS = 5000;
+    static final long DEFAULT_PONG_TIMEOUT_MS = 5000;
+
+    private static final byte[] ACCEPT_PREFIX = ("HTTP/1.1 101 Switching Protocols\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Accept: ").getBytes(StandardCharsets.US_ASCII);
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // capture nanos -> epoch ms
+    private final long wallOffsetMs = System.currentTimeMillis() - System.nanoTime() / 1_000_000L;
+    private final long pingIntervalMs;
+    private final long pongTimeoutMs;
+
+    // header of the message being sent
+    private final byte[] prefix = new byte[MAX_PREFIX];
+    private final ByteBuffer prefixView = ByteBuffer.wrap(prefix);
+
+    // received bytes not parsed yet; big enough for any request bytes that followed the upgrade
+    private final byte[] in = new byte[HttpRequest.MAX_HEAD];
+    private final ByteBuffer inView = ByteBuffer.wrap(in);
+    private int filled;
+    // data message being reassembled; messageOpcode is -1 between messages
+    private final byte[] message = new byte[MAX_MESSAGE];
+    private int messageLength;
+    private int messageOpcode = -1;
+
+    // control frames waiting to be sent (flipped: position..limit is pending); guarded by this
+    private final ByteBuffer control = ByteBuffer.allocate(4 * (2 + MAX_CONTROL_PAYLOAD));
+    private boolean closeSent;
+    private volatile boolean closing;
+
+    // liveness; guarded by this
+    private long lastPingMs;
+    private long pingOutstandingSinceMs;
+
+    // what the client asked for; guarded by this
+    private int fps;
+    private int quality;
+    private int width;
+    private boolean gray;
+    private boolean changed;
+
+    /** Settings start from the upgrade request's "?fps=&quality=&width=&gray=" query. */
+    WebSocket(HttpRequest request, long pingIntervalMs, long pongTimeoutMs) {
+        this.pingIntervalMs = pingIntervalMs;
+        this.pongTimeoutMs = pongTimeoutMs;
+        StreamProfile p = StreamProfile.fromRequest(request);
+        fps = request.queryInt("fps");
+        quality = p.quality();
+        width = p.width();
+        gray = p.gray();
+        control.flip();
+        lastPingMs = System.currentTimeMillis();
+    }
+
+    /** 0 if request is a valid version 13 upgrade, otherwise the status to reject it with. */
+    static int checkUpgrade(HttpRequest request) {
+        if (!request.headerToken("Upgrade", "websocket") || !request.headerToken("Connection", "upgrade")) {
+            return 400;
+        }
+        String key = request.headerValue("Sec-WebSocket-Key");
+        // 16 random bytes, Base64 encoded
+        if (key == null || key.length() != 24 || !key.endsWith("==")) return 400;
+        if (request.headerInt("Sec-WebSocket-Version") != 13) return 426;
+        return 0;
+    }
+
+    /** The 101 response to a request that passed checkUpgrade(). */
+    static byte[] acceptResponse(HttpRequest request) {
+        String accept = acceptKey(request.headerValue("Sec-WebSocket-Key"));
+        byte[] a = accept.getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[ACCEPT_PREFIX.length + a.length + 4];
+        System.arraycopy(ACCEPT_PREFIX, 0, response, 0, ACCEPT_PREFIX.length);
+        System.arraycopy(a, 0, response, ACCEPT_PREFIX.length, a.length);
+        int p = ACCEPT_PREFIX.length + a.length;
+        response[p] = '\r'; response[p + 1] = '\n'; response[p + 2] = '\r'; response[p + 3] = '\n';
+        return response;
+    }
+
+    /** Sec-WebSocket-Accept for a Sec-WebSocket-Key. */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String base64(byte[] b) {
+        StringBuilder sb = new StringBuilder((b.length + 2) / 3 * 4);
+        for (int i = 0; i < b.length; i += 3) {
+            int n = Math.min(3, b.length - i);
+            int v = (b[i] & 0xFF) << 16;
+            if (n > 1) v |= (b[i + 1] & 0xFF) << 8;
+            if (n > 2) v |= b[i + 2] & 0xFF;
+            sb.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 63]);
+            sb.append(n > 1 ? BASE64[(v >>> 6) & 63] : '=');
+            sb.append(n > 2 ? BASE64[v & 63] : '=');
+        }
+        return sb.toString();
+    }
+
+    // Unmasked frame header for a payload of length bytes; returns its size.
+    static int writeFrameHeader(byte[] dst, int off, int opcode, long length) {
+        dst[off] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            dst[off + 1] = (byte) length;
+            return 2;
+        }
+        if (length <= 0xFFFF) {
+            dst[off + 1] = 126;
+            dst[off + 2] = (byte) (length >>> 8);
+            dst[off + 3] = (byte) length;
+            return 4;
+        }
+        dst[off + 1] = 127;
+        for (int i = 0; i < 8; i++) dst[off + 2 + i] = (byte) (length >>> (56 - 8 * i));
+        return 10;
+    }
+
+    /**
+     * Builds the header of f's binary message (WebSocket header and metadata) in the reused
+     * prefix buffer; the JPEG bytes follow it on the wire.
+     * @return the header length
+     */
+    int startMessage(FrameSlot.Frame f) {
+        int n = writeFrameHeader(prefix, 0, OP_BINARY, META_LENGTH + (long) f.jpegLength());
+        putLong(prefix, n, f.seq());
+        putLong(prefix, n + 8, f.captureNanos() / 1_000_000L + wallOffsetMs);
+        int score = f.motionScore();
+        prefix[n + 16] = (byte) (score >>> 8);
+        prefix[n + 17] = (byte) score;
+        prefix[n + 18] = (byte) ((f.hasMotion() ? FLAG_MOTION : 0) | (f.isStale() ? FLAG_STALE : 0));
+        prefix[n + 19] = 0;
+        n += META_LENGTH;
+        prefixView.limit(n).position(0);
+        return n;
+    }
+
+    byte[] prefix() { return prefix; }
+
+    /** The message header from startMessage(); its position tracks what was written. */
+    ByteBuffer prefixBuffer() { return prefixView; }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 0; i < 8; i++) b[off + i] = (byte) (v >>> (56 - 8 * i));
+    }
+
+    /** Moves bytes that followed the upgrade request into this connection's input. */
+    void takeBuffered(HttpRequest request) {
+        filled += request.take(in, filled, in.length - filled);
+    }
+
+    /** Reads what the channel has; -1 at end of stream. */
+    int read(ReadableByteChannel ch) throws IOException {
+        if (filled == in.length) return 0;
+        inView.limit(in.length).position(filled);
+        int n = ch.read(inView);
+        if (n > 0) filled += n;
+        return n;
+    }
+
+    /** Blocking variant of read(ReadableByteChannel). */
+    int read(InputStream is) throws IOException {
+        if (filled == in.length) return 0;
+        int n = is.read(in, filled, in.length - filled);
+        if (n > 0) filled += n;
+        return n;
+    }
+
+    /**
+     * Handles every complete frame received so far.
+     * @return false once the connection is closing: the close reply is queued and nothing
+     *         more is read
+     */
+    boolean process(long nowMs) {
+        int p = 0;
+        while (!closing) {
+            int n = parseFrame(p, nowMs);
+            if (n == 0) break;
+            p += n;
+        }
+        if (p > 0) {
+            System.arraycopy(in, p, in, 0, filled - p);
+            filled -= p;
+        }
+        return !closing;
+    }
+
+    // Handles the frame at in[p]; returns its length, or 0 if it is incomplete (or fatal).
+    private int parseFrame(int p, long nowMs) {
+        int avail = filled - p;
+        if (avail < 2) return 0;
+        int b0 = in[p] & 0xFF, b1 = in[p + 1] & 0xFF;
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+        int h = 2;
+        long length = b1 & 0x7F;
+        if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) return fail(CLOSE_PROTOCOL_ERROR);
+        if (length == 126) {
+            if (avail < 4) return 0;
+            length = ((in[p + 2] & 0xFF) << 8) | (in[p + 3] & 0xFF);
+            h = 4;
+        } else if (length == 127) {
+            if (avail < 10) return 0;
+            length = 0;
+            for (int i = 0; i < 8; i++) length = (length << 8) | (in[p + 2 + i] & 0xFF);
+            h = 10;
+        }
+        boolean isControl = (opcode & 0x8) != 0;
+        if (isControl && (!fin || length > MAX_CONTROL_PAYLOAD)) return fail(CLOSE_PROTOCOL_ERROR);
+        if (!isControl && (length < 0 || messageLength + length > MAX_MESSAGE)) return fail(CLOSE_TOO_BIG);
+        if (avail < h + 4 + length) return 0;
+        int maskAt = p + h;
+        int payload = maskAt + 4;
+        int len = (int) length;
+        for (int i = 0; i < len; i++) in[payload + i] ^= in[maskAt + (i & 3)];
+
+        synchronized (this) {
+            // anything from the client proves it is alive
+            pingOutstandingSinceMs = 0;
+        }
+        switch (opcode) {
+            case OP_PING:
+                queue(OP_PONG, in, payload, len);
+                break;
+            case OP_PONG:
+                break;
+            case OP_CLOSE:
+                // echo the status code (if any) and stop reading
+                queueClose(len >= 2 ? ((in[payload] & 0xFF) << 8) | (in[payload + 1] & 0xFF) : -1);
+                return h + 4 + len;
+            case OP_TEXT:
+            case OP_BINARY:
+                if (messageOpcode >= 0) return fail(CLOSE_PROTOCOL_ERROR);
+                messageOpcode = opcode;
+                appendMessage(payload, len, fin);
+                break;
+            case OP_CONTINUATION:
+                if (messageOpcode < 0) return fail(CLOSE_PROTOCOL_ERROR);
+                appendMessage(payload, len, fin);
+                break;
+            default:
+                return fail(CLOSE_PROTOCOL_ERROR);
+        }
+        return h + 4 + len;
+    }
+
+    private void appendMessage(int from, int len, boolean fin) {
+        System.arraycopy(in, from, message, messageLength, len);
+        messageLength += len;
+        if (!fin) return;
+        // binary messages carry nothing the server understands and are ignored
+        if (messageOpcode == OP_TEXT) apply(new String(message, 0, messageLength, StandardCharsets.UTF_8));
+        messageOpcode = -1;
+        messageLength = 0;
+    }
+
+    private int fail(int status) {
+        queueClose(status);
+        return 0;
+    }
+
+    // Parses "key=value&key=value" and records what changed.
+    private synchronized void apply(String text) {
+        for (String pair : text.trim().split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            String key = pair.substring(0, eq).trim();
+            int v;
+            try {
+                v = Integer.parseInt(pair.substring(eq + 1).trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (v < 0) continue;
+            if (key.equals("fps")) fps = v;
+            else if (key.equals("quality")) quality = v;
+            else if (key.equals("width")) width = v;
+            else if (key.equals("gray")) gray = v > 0;
+            else continue;
+            changed = true;
+        }
+    }
+
+    /** True (once) if a control message changed fps() or profile() since the last call. */
+    synchronized boolean takeChanged() {
+        boolean c = changed;
+        changed = false;
+        return c;
+    }
+
+    /** The client's fps cap, 0 for none. */
+    synchronized int fps() { return Math.max(0, fps); }
+
+    synchronized StreamProfile profile() {
+        if (quality == 0 && width == 0 && !gray) return StreamProfile.DEFAULT;
+        return new StreamProfile(quality, width, gray);
+    }
+
+    /** True once a close was received, or sent because of a protocol error. */
+    boolean isClosing() { return closing; }
+
+    /**
+     * Queues a ping when one is due.
+     * @return when to call again (epoch ms), or -1 if the client missed its pong deadline
+     */
+    synchronized long maintain(long nowMs) {
+        if (pingOutstandingSinceMs != 0 && nowMs - pingOutstandingSinceMs > pongTimeoutMs) return -1;
+        if (nowMs - lastPingMs >= pingIntervalMs) {
+            lastPingMs = nowMs;
+            if (pingOutstandingSinceMs == 0) pingOutstandingSinceMs = nowMs;
+            queue(OP_PING, in, 0, 0);
+        }
+        long next = lastPingMs + pingIntervalMs;
+        if (pingOutstandingSinceMs != 0) next = Math.min(next, pingOutstandingSinceMs + pongTimeoutMs + 1);
+        return next;
+    }
+
+    private synchronized void queueClose(int status) {
+        closing = true;
+        if (closeSent) return;
+        closeSent = true;
+        byte[] code = {(byte) (status >>> 8), (byte) status};
+        queue(OP_CLOSE, code, 0, status >= 0 ? 2 : 0);
+    }
+
+    // appends a control frame; one that does not fit (a flood of pings) is dropped
+    private synchronized void queue(int opcode, byte[] payload, int off, int len) {
+        if (closeSent && opcode != OP_CLOSE) return;
+        control.compact();
+        if (control.remaining() >= 2 + len) {
+            control.put((byte) (0x80 | opcode)).put((byte) len).put(payload, off, len);
+        }
+        control.flip();
+    }
+
+    /** True if control frames wait to be sent. */
+    synchronized boolean hasControl() { return control.hasRemaining(); }
+
+    /** Pending control frames for a non-blocking write; position advances as they are written. */
+    ByteBuffer pendingControl() { return control; }
+
+    /** Blocking mode: writes pending control frames; the caller holds the output's lock. */
+    synchronized void writeControl(OutputStream out) throws IOException {
+        if (!control.hasRemaining()) return;
+        out.write(control.array(), control.position(), control.remaining());
+        out.flush();
+        control.position(control.limit());
+    }
+}
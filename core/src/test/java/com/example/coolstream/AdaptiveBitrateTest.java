@@ -0,0 +1,299 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * BitrateController against a simulated link, then end to end: a loopback client reading
+ * at a fixed rate must settle on the tier that fits and keep its latency bounded.
+ */
+public class AdaptiveBitrateTest {
+    private static final int FPS = 15;
+    private static final long INTERVAL = 1_000_000_000L / FPS;
+    // JPEG size per tier, best first
+    private static final int[] SIZES = {60_000, 24_000, 10_000, 4_000};
+    private static final StreamProfile[] TIERS = {StreamProfile.DEFAULT,
+            new StreamProfile(40, 0), new StreamProfile(30, 0), new StreamProfile(20, 0)};
+
+    private MjpegHttpServer server;
+    private Thread publisher;
+    private Socket socket;
+
+    @After
+    public void tearDown() throws Exception {
+        if (socket != null) socket.close();
+        if (publisher != null) {
+            publisher.interrupt();
+            publisher.join();
+        }
+        if (server != null) server.shutdown();
+        socket = null;
+        publisher = null;
+        server = null;
+    }
+
+    // Feeds the controller one link: frames are published every INTERVAL; once its previous
+    // write is done the client takes the newest frame it has not sent (waiting for the next
+    // publish if it has sent them all) and writes it at bytesPerSecond.
+    private static final class Link {
+        final BitrateController c = new BitrateController(SIZES.length, 0);
+        long freeAt;
+        long lastPublished = -1;
+        final List<long[]> tiers = new ArrayList<>();
+
+        void run(long untilNanos, long bytesPerSecond) {
+            while (freeAt < untilNanos) {
+                long published = freeAt / INTERVAL * INTERVAL;
+                if (published <= lastPublished) published = lastPublished + INTERVAL;
+                lastPublished = published;
+                long from = Math.max(freeAt, published);
+                int size = SIZES[c.tier()];
+                long write = size * 1_000_000_000L / bytesPerSecond;
+                long done = from + write;
+                c.frameSent(size, write, done - published, done);
+                c.takeChange();
+                tiers.add(new long[]{done, c.tier()});
+                freeAt = done;
+            }
+        }
+
+        // fraction of frames sent in [from, to) at tier
+        double share(long from, long to, int tier) {
+            int all = 0, at = 0;
+            for (long[] t : tiers) {
+                if (t[0] < from || t[0] >= to) continue;
+                all++;
+                if (t[1] == tier) at++;
+            }
+            return (double) at / all;
+        }
+
+        // tier changes in [from, to) that went up to tier
+        int probesTo(long from, long to, int tier) {
+            int n = 0;
+            for (int i = 1; i < tiers.size(); i++) {
+                long[] t = tiers.get(i);
+                if (t[0] >= from && t[0] < to && t[1] == tier && tiers.get(i - 1)[1] == tier + 1) n++;
+            }
+            return n;
+        }
+    }
+
+    private static long s(double seconds) { return (long) (seconds * 1e9); }
+
+    @Test
+    public void controllerSettlesStepsDownAndBacksOffProbes() {
+        Link link = new Link();
+        // 250 KB/s: tier 2 (150 KB/s) is the best that fits
+        link.run(s(10), 250_000);
+        assertEquals(1.0, link.share(s(3), s(10), 2), 0.0);
+        long bw = link.c.bandwidthBps();
+        assertTrue("estimated " + bw, bw > 1_800_000 && bw < 2_200_000);
+
+        // 1 MB/s: tier 1 fits, tier 0 (900 KB/s) keeps the link busy; probes for it back off
+        link.run(s(70), 1_000_000);
+        assertTrue(link.share(s(20), s(70), 1) > 0.8);
+        int probes = link.probesTo(s(10), s(70), 0);
+        assertTrue("probes " + probes, probes >= 1 && probes <= 4);
+        // measured during probes, where tier 0 offers 7.2 Mbit/s
+        assertTrue("estimated " + link.c.bandwidthBps(), link.c.bandwidthBps() > 6_000_000);
+
+        // 100 KB/s: down to tier 3 within a few seconds, and it stays there
+        link.run(s(80), 100_000);
+        assertEquals(1.0, link.share(s(75), s(80), 3), 0.0);
+    }
+
+    // Reads at most bytesPerSecond, like a slow link in front of the client; time spent
+    // idle is not saved up for a burst.
+    private static final class RateLimitedInputStream extends FilterInputStream {
+        private final long bytesPerSecond;
+        private long start = System.nanoTime();
+        private long read;
+
+        RateLimitedInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long due = start + read * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait < -10_000_000L) {
+                start = System.nanoTime();
+                read = 0;
+            } else if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            int n = super.read(b, off, Math.min(len, 2048));
+            if (n > 0) read += n;
+            return n;
+        }
+    }
+
+    // Publishes FPS frames per second to the primary slot and every variant in use, each
+    // JPEG stamped with its publish time; a variant's size depends on its tier.
+    private void startPublisher(FrameSlot slot, FrameVariants variants) {
+        publisher = new Thread(() -> {
+            long next = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                next += INTERVAL;
+                long now = System.nanoTime();
+                slot.publish(stamped(SIZES[0], now), now);
+                for (FrameVariants.Variant v : variants.targets()) {
+                    int tier = Arrays.asList(TIERS).indexOf(v.profile);
+                    v.slot.publish(stamped(SIZES[tier], now), now);
+                }
+            }
+        }, "publisher");
+        publisher.start();
+    }
+
+    private static byte[] stamped(int size, long nanos) {
+        byte[] b = new byte[size];
+        b[0] = (byte) 0xFF;
+        b[1] = (byte) 0xD8;
+        for (int i = 0; i < 8; i++) b[2 + i] = (byte) (nanos >>> (56 - 8 * i));
+        b[size - 2] = (byte) 0xFF;
+        b[size - 1] = (byte) 0xD9;
+        return b;
+    }
+
+    private static long stamp(byte[] jpeg) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (jpeg[2 + i] & 0xFF);
+        return v;
+    }
+
+    // reports frames (on simulated time) until the controller changes tier
+    private static long untilChange(BitrateController c, long nowNanos, boolean congested) {
+        for (int i = 0; i < 10_000; i++) {
+            nowNanos += INTERVAL;
+            long write = congested ? INTERVAL : INTERVAL / 10;
+            c.frameSent(SIZES[c.tier()], write, write, nowNanos);
+            if (c.takeChange()) return nowNanos;
+        }
+        throw new AssertionError("no tier change: " + c);
+    }
+
+    @Test
+    public void retieringCountsDropsOnEachTiersOwnSeqs() {
+        FrameSlot slot = new FrameSlot();
+        StreamMetrics metrics = new StreamMetrics();
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.setVariants(new FrameVariants(slot));
+        server.setAdaptiveTiers(TIERS);
+        server.setMetrics(metrics);
+        ClientStats stats = new ClientStats("test", metrics);
+        assertSame(slot, server.attachStream(stats, StreamProfile.DEFAULT, 0));
+        BitrateController c = stats.bitrate;
+
+        // tier 0 is the primary slot, far ahead of every variant
+        for (int i = 0; i < 20; i++) slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(i));
+        WebSocketTest.sendWhilePublishing(stats, slot, 30);
+        long dropped = 29;
+        assertEquals(dropped, stats.getFramesDropped());
+
+        // down to the last tier and back up to the primary, one frame superseded on each
+        long t = System.nanoTime();
+        for (int step = 0; step < 2 * (TIERS.length - 1); step++) {
+            t = untilChange(c, t, step < TIERS.length - 1);
+            FrameSlot s = server.retier(stats);
+            assertSame(stats.slot, s);
+            s.publish(MjpegHttpServerSelectorTest.syntheticJpeg(100 + step));
+            WebSocketTest.sendWhilePublishing(stats, s, 2);
+            dropped++;
+            assertEquals("tier " + c.tier(), dropped, stats.getFramesDropped());
+        }
+        assertEquals(0, c.tier());
+        assertSame(slot, stats.slot);
+        assertEquals(dropped, metrics.framesDropped.sum());
+    }
+
+    @Test
+    public void slowReaderConvergesWithBoundedLatency() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            slowReader(mode);
+            tearDown();
+        }
+    }
+
+    private void slowReader(MjpegHttpServer.IoMode mode) throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FrameVariants variants = new FrameVariants(slot);
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setVariants(variants);
+        server.setAdaptiveTiers(TIERS);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        startPublisher(slot, variants);
+
+        socket = new Socket();
+        // small buffers on the reading side too, so latency shows up in write timings
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET /stream.mjpg HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        // 250 KB/s: tier 2 (10 KB at 15 fps) fits, tier 1 does not
+        InputStream in = new BufferedInputStream(new RateLimitedInputStream(socket.getInputStream(), 250_000));
+
+        long start = System.nanoTime();
+        List<Long> latencies = new ArrayList<>();
+        int[] lateTiers = new int[SIZES.length];
+        while (System.nanoTime() - start < s(9)) {
+            byte[] jpeg = MjpegHttpServerSelectorTest.readPart(in);
+            assertNotNull(mode + " stream ended", jpeg);
+            long now = System.nanoTime();
+            if (now - start < s(5)) continue;
+            latencies.add(now - stamp(jpeg));
+            for (int t = 0; t < SIZES.length; t++) if (SIZES[t] == jpeg.length) lateTiers[t]++;
+        }
+
+        ClientStats stats = server.getClientStats().get(0);
+        int frames = latencies.size();
+        // mostly tier 2; a probe for tier 1 may fall into the window
+        assertTrue(mode + " tiers " + Arrays.toString(lateTiers), lateTiers[2] >= frames / 2);
+        assertEquals(mode + " " + stats, 0, lateTiers[0]);
+        long[] sorted = new long[frames];
+        for (int i = 0; i < frames; i++) sorted[i] = latencies.get(i);
+        Arrays.sort(sorted);
+        long p95 = sorted[(int) (frames * 0.95)] / 1_000_000L;
+        assertTrue(mode + " p95 latency " + p95 + " ms, " + stats, p95 < 1000);
+        // about 2 Mbit/s, measured while tiers 0 and 1 kept the socket busy
+        long bw = stats.getBandwidthBps();
+        assertTrue(mode + " " + stats, bw > 1_000_000 && bw < 4_000_000);
+        assertTrue(stats.toString(), stats.toString().contains("tier="));
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+    private static final long MS = 1_000_000L;
+    private static final int FPS = 20;
+
+    private MjpegHttpServer server;
+    private Thread publisher;
+    // hammer threads add and remove too
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final List<Thread> viewers = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        for (Thread t : viewers) t.join(5000);
+        if (publisher != null) {
+            publisher.interrupt();
+            publisher.join();
+        }
+        if (server != null) server.shutdown();
+        sockets.clear();
+        viewers.clear();
+        publisher = null;
+        server = null;
+    }
+
+    private static InetAddress address(int last) throws Exception {
+        return InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) last});
+    }
+
+    @Test
+    public void bucketsCapsAndForgetting() throws Exception {
+        AdmissionControl a = new AdmissionControl(4, 2, 2, 3);
+        InetAddress x = address(2), y = address(3), z = address(4);
+        long t = 1_000 * MS;
+        // three at once from the burst, then one per 500 ms
+        assertEquals(0, a.admit(x, t));
+        a.release(x);
+        assertEquals(0, a.admit(x, t));
+        a.release(x);
+        assertEquals(0, a.admit(x, t));
+        a.release(x);
+        assertEquals(1, a.admit(x, t));
+        assertEquals(1, a.admit(x, t + 400 * MS));
+        assertEquals(0, a.admit(x, t + 500 * MS));
+        a.release(x);
+        assertEquals(2, a.rejectedRate());
+
+        // two open per address, four in total
+        long later = t + 2000 * MS;
+        assertEquals(0, a.admit(x, later));
+        assertEquals(0, a.admit(x, later));
+        assertEquals(AdmissionControl.RETRY_AFTER_S, a.admit(x, later));
+        assertEquals(1, a.rejectedPerAddress());
+        assertEquals(0, a.admit(y, later));
+        assertEquals(0, a.admit(y, later));
+        assertEquals(AdmissionControl.RETRY_AFTER_S, a.admit(z, later));
+        assertEquals(1, a.rejectedFull());
+        assertEquals(4, a.openConnections());
+        a.release(y);
+        assertEquals(0, a.admit(z, later));
+        assertEquals(4, a.rejected());
+
+        // addresses without open connections are forgotten once their bucket is full
+        a.release(x);
+        a.release(x);
+        a.release(y);
+        a.release(z);
+        assertEquals(0, a.openConnections());
+        assertEquals(3, a.trackedAddresses());
+        assertEquals(0, a.admit(z, t + 10_000 * MS));
+        assertEquals(1, a.trackedAddresses());
+
+        String busy = new String(AdmissionControl.busyResponse(3), StandardCharsets.US_ASCII);
+        assertTrue(busy, busy.startsWith("HTTP/1.1 503 ") && busy.contains("\r\nRetry-After: 3\r\n"));
+    }
+
+    private void startPublisher(FrameSlot slot) {
+        publisher = new Thread(() -> {
+            int n = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(n++));
+                try {
+                    Thread.sleep(1000 / FPS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "publisher");
+        publisher.start();
+    }
+
+    // connects from 127.0.0.from and asks for the stream; null if refused with a 503
+    private Socket open(int port, int from) throws Exception {
+        Socket s = new Socket();
+        s.bind(new InetSocketAddress(address(from), 0));
+        s.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+        s.setSoTimeout(5000);
+        s.getOutputStream().write("GET /stream.mjpg HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        String status = statusLine(s.getInputStream());
+        if (status.startsWith("HTTP/1.0 200")) {
+            sockets.add(s);
+            return s;
+        }
+        s.close();
+        assertTrue(status, status.startsWith("HTTP/1.1 503"));
+        return null;
+    }
+
+    private static String statusLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int b; (b = in.read()) >= 0 && b != '\n'; ) {
+            if (b != '\r') sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    // counts the frames a stream delivers until it is closed
+    private AtomicInteger view(Socket s) {
+        AtomicInteger frames = new AtomicInteger();
+        Thread t = new Thread(() -> {
+            try {
+                InputStream in = s.getInputStream();
+                while (MjpegHttpServerSelectorTest.readPart(in) != null) frames.incrementAndGet();
+            } catch (Exception ignored) {
+                // closed by the test
+            }
+        }, "viewer");
+        t.start();
+        viewers.add(t);
+        return frames;
+    }
+
+    @Test
+    public void hammeringDoesNotStarveAdmittedClients() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            hammer(mode);
+            tearDown();
+        }
+    }
+
+    private void hammer(MjpegHttpServer.IoMode mode) throws Exception {
+        FrameSlot slot = new FrameSlot();
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        // 10 open connections, 4 per address, 10 connects per second per address in bursts of 5
+        server.setAdmissionLimits(10, 4, 10, 5);
+        AtomicInteger connected = new AtomicInteger();
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { connected.incrementAndGet(); }
+            @Override public void onClientDisconnected() { }
+        });
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        startPublisher(slot);
+
+        List<AtomicInteger> frames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) frames.add(view(open(port, 2)));
+        Thread.sleep(300);
+
+        // four threads reconnecting from one address as fast as they can for 1.5 s
+        int before = sum(frames);
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        long end = System.nanoTime() + 1500 * MS;
+        List<Thread> hammers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    try {
+                        Socket s = open(port, 3);
+                        if (s == null) {
+                            refused.incrementAndGet();
+                            continue;
+                        }
+                        admitted.incrementAndGet();
+                        sockets.remove(s);
+                        s.close();
+                    } catch (Throwable e) {
+                        // a refused client must always see its 503, never a reset
+                        error.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            }, "hammer-" + i);
+            t.start();
+            hammers.add(t);
+        }
+        for (Thread t : hammers) t.join();
+        assertNull(mode + " " + error.get(), error.get());
+        int during = sum(frames) - before;
+        // five from the burst and ten per second after it
+        assertTrue(mode + " admitted " + admitted, admitted.get() >= 5 && admitted.get() <= 5 + 15 + 2);
+        assertTrue(mode + " refused " + refused, refused.get() > 50);
+        // every viewer kept its frame rate (30 frames each in 1.5 s)
+        assertTrue(mode + " viewers got " + during + " frames", during >= 3 * 30 * 0.8);
+        for (AtomicInteger f : frames) assertTrue(mode + " " + f, f.get() > 0);
+        // the hammers' last connections may still be closing on the server side
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getOpenConnections() == 3);
+
+        // four streams per address, the rest of the ten in total
+        int open = 0;
+        for (int i = 0; i < 6; i++) if (open(port, 4) != null) open++;
+        assertEquals(mode + " per address", 4, open);
+        open = 0;
+        for (int i = 0; i < 4; i++) if (open(port, 5) != null) open++;
+        assertEquals(mode + " in total", 3, open);
+        assertEquals(10, server.getOpenConnections());
+        assertTrue(server.getConnectionsRejected() >= refused.get() + 3);
+        // refused connections never became clients
+        assertEquals(3 + admitted.get() + 7, connected.get());
+
+        // closed streams make room again
+        for (int i = sockets.size() - 1; i >= 3; i--) sockets.remove(i).close();
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getOpenConnections() == 3);
+        assertNotNull(open(port, 6));
+    }
+
+    private static int sum(List<AtomicInteger> counts) {
+        int n = 0;
+        for (AtomicInteger c : counts) n += c.get();
+        return n;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DemandEncodingTest {
+    private FrameSlot slot;
+    private FrameEncoder encoder;
+    private EncodePipeline pipeline;
+    private EncodePipelineTest.SyntheticSource source;
+    private MjpegHttpServer server;
+    private int port;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    // 2 ms "JPEG" that stream clients accept
+    static final class FastEncoder implements JpegEncoder {
+        private final byte[] jpeg = new byte[4096];
+
+        FastEncoder() {
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+        }
+
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws java.io.IOException {
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new java.io.IOException(e);
+            }
+            out.write(jpeg, 0, jpeg.length);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slot = new FrameSlot();
+        encoder = new FrameEncoder(slot, new FramePool(8, 8192), new FastEncoder());
+        encoder.setSize(320, 240);
+        source = new EncodePipelineTest.SyntheticSource(5);
+        pipeline = new EncodePipeline(encoder, 2, 2, source.buffers::offer);
+        pipeline.start();
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.start();
+        port = server.awaitListening(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        server.shutdown();
+        pipeline.stop();
+    }
+
+    private InputStream connect(String path) throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        sockets.add(s);
+        s.setSoTimeout(3000);
+        s.getOutputStream().write(("GET " + path + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        return s.getInputStream();
+    }
+
+    // counts parts received on a background thread
+    private AtomicInteger receive(final InputStream in) {
+        final AtomicInteger parts = new AtomicInteger();
+        Thread t = new Thread(() -> {
+            try {
+                while (MjpegHttpServerSelectorTest.readsOnePart(in)) parts.incrementAndGet();
+            } catch (Exception ignored) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return parts;
+    }
+
+    @Test
+    public void nothingIsEncodedWithoutClients() throws Exception {
+        source.run(pipeline, 100, 500);
+        assertEquals(pipeline + "", 0, encoder.framesEncoded());
+        // all but the parked capture were skipped
+        assertEquals(pipeline.framesSubmitted() - 1, pipeline.framesSkipped());
+        assertEquals(0, slot.neededFps());
+    }
+
+    @Test
+    public void cappedClientOnlyCostsItsOwnRate() throws Exception {
+        AtomicInteger parts = receive(connect("/?fps=5"));
+        MjpegHttpServerSelectorTest.waitFor(() -> slot.neededFps() == 5);
+        source.run(pipeline, 100, 2000);
+        Thread.sleep(100);
+        // ~200 captures for a client that takes ~10 of them
+        assertTrue("received " + parts.get(), parts.get() >= 7 && parts.get() <= 12);
+        assertTrue(pipeline + "", encoder.framesEncoded() <= 25);
+        assertTrue(pipeline + "", pipeline.framesSkipped() >= 170);
+    }
+
+    @Test
+    public void uncappedClientGetsEveryCapture() throws Exception {
+        AtomicInteger parts = receive(connect("/"));
+        MjpegHttpServerSelectorTest.waitFor(() -> slot.neededFps() == FrameSlot.UNLIMITED_FPS);
+        source.run(pipeline, 50, 1000);
+        Thread.sleep(100);
+        assertTrue(pipeline + "", encoder.framesEncoded() >= 45);
+        assertTrue("received " + parts.get(), parts.get() >= 45);
+    }
+
+    @Test
+    public void parkedCaptureIsEncodedOnFirstRequest() throws Exception {
+        pipeline.setStalenessWindowMs(5000);
+        source.run(pipeline, 100, 100);
+        assertEquals(0, encoder.framesEncoded());
+        // camera idle from here on: the first frame must come from the parked capture
+        InputStream in = connect("/");
+        assertTrue(MjpegHttpServerSelectorTest.readsOnePart(in));
+        assertEquals(1, encoder.framesEncoded());
+    }
+
+    @Test
+    public void staleParkedCaptureIsSkipped() throws Exception {
+        pipeline.setStalenessWindowMs(20);
+        source.run(pipeline, 100, 100);
+        Thread.sleep(100);
+        long skippedBefore = pipeline.framesSkipped();
+        AtomicInteger parts = receive(connect("/"));
+        MjpegHttpServerSelectorTest.waitFor(() -> pipeline.framesSkipped() == skippedBefore + 1);
+        assertEquals(0, encoder.framesEncoded());
+        assertEquals(0, parts.get());
+        // the next capture is fresh and goes out
+        source.run(pipeline, 100, 20);
+        MjpegHttpServerSelectorTest.waitFor(() -> parts.get() >= 1);
+    }
+
+    @Test
+    public void neededFpsIsHighestCap() throws Exception {
+        connect("/?fps=5");
+        connect("/?fps=12");
+        MjpegHttpServerSelectorTest.waitFor(() -> slot.neededFps() == 12);
+        connect("/");
+        MjpegHttpServerSelectorTest.waitFor(() -> slot.neededFps() == FrameSlot.UNLIMITED_FPS);
+    }
+}
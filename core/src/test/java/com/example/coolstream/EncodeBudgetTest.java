@@ -0,0 +1,203 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncodeBudgetTest {
+    private static final long MS = 1_000_000L;
+    private static final int NATIVE_WIDTH = 640;
+    // the camera delivers 30 fps
+    private static final long CAPTURE_NANOS = 1_000_000_000L / 30;
+
+    private static final EncodeBudget.Level[] LEVELS = {
+            new EncodeBudget.Level(60, 0, 30),
+            new EncodeBudget.Level(50, 0, 30),
+            new EncodeBudget.Level(50, 480, 20),
+            new EncodeBudget.Level(45, 480, 15),
+            new EncodeBudget.Level(40, 320, 15),
+            new EncodeBudget.Level(40, 320, 10)};
+
+    /** Encode time of one frame: base (for 640px at q60) scaled by pixels and a bit by quality. */
+    static long costNanos(EncodeBudget.Level level, long baseNanos) {
+        double w = level.width() == 0 ? NATIVE_WIDTH : Math.min(level.width(), NATIVE_WIDTH);
+        double pixels = (w / NATIVE_WIDTH) * (w / NATIVE_WIDTH);
+        double quality = (0.5 + level.quality() / 120.0) / (0.5 + 60 / 120.0);
+        return (long) (baseNanos * pixels * quality);
+    }
+
+    // a 30 fps camera whose captures are encoded at the cost model's price, as far as the
+    // current level's fps lets them through; simulated time, no sleeping
+    static final class Sim {
+        final EncodeBudget budget;
+        final List<String> changes = new ArrayList<>();
+        final List<Long> changedAtMs = new ArrayList<>();
+        final long[] nanosAt = new long[LEVELS.length];
+        long baseNanos;
+        long now;
+        private long lastAdmitted = Long.MIN_VALUE / 2;
+
+        Sim(long baseMs) {
+            this(baseMs, 1);
+        }
+
+        Sim(long baseMs, int workers) {
+            budget = new EncodeBudget(LEVELS, workers, 0);
+            baseNanos = baseMs * MS;
+            budget.setListener((from, to, reason) -> {
+                changes.add(now / MS + "ms " + from + " -> " + to + " (" + reason + ")");
+                changedAtMs.add(now / MS);
+            });
+        }
+
+        void run(long ms) {
+            long end = now + ms * MS;
+            while (now < end) {
+                EncodeBudget.Level l = budget.level();
+                nanosAt[budget.levelIndex()] += CAPTURE_NANOS;
+                if (now - lastAdmitted >= 1_000_000_000L / l.fps() * 9 / 10) {
+                    lastAdmitted = now;
+                    budget.frameEncoded(costNanos(l, baseNanos), CAPTURE_NANOS, now);
+                }
+                now += CAPTURE_NANOS;
+            }
+        }
+    }
+
+    @Test
+    public void slowDeviceStepsDownUntilEncodingKeepsUp() {
+        // 60 ms per full-size frame against 33 ms between frames
+        Sim sim = new Sim(60);
+        sim.run(60_000);
+        // q50 at full size still does not fit; 480px at 20 fps (31 ms of 50) does, with margin
+        assertEquals(sim.changes.toString(), 2, sim.budget.levelIndex());
+        assertEquals(sim.changes.toString(), 2, sim.changes.size());
+        assertEquals(0, sim.budget.stepsUp());
+        assertTrue(sim.budget.load() > EncodeBudget.LOW_LOAD && sim.budget.load() < EncodeBudget.HIGH_LOAD);
+        // one step per HOLD_MS at most
+        assertTrue(sim.changes.toString(), sim.changedAtMs.get(1) - sim.changedAtMs.get(0) >= EncodeBudget.HOLD_MS);
+    }
+
+    @Test
+    public void twoWorkersKeepUpWithEncodesLongerThanTheFrameInterval() {
+        // 60 ms per frame against 33 ms between frames, but two encodes run side by side
+        Sim sim = new Sim(60, 2);
+        sim.run(60_000);
+        assertEquals(sim.changes.toString(), 0, sim.budget.levelIndex());
+        assertEquals(0, sim.budget.stepsDown());
+        assertEquals(0.9, sim.budget.load(), 0.01);
+
+        // 80 ms is more than two workers manage
+        sim.baseNanos = 80 * MS;
+        sim.run(10_000);
+        assertTrue(sim.changes.toString(), sim.budget.stepsDown() > 0);
+    }
+
+    @Test
+    public void fastDeviceProbesBackUpAndFailedProbesBackOff() {
+        Sim sim = new Sim(60);
+        sim.run(20_000);
+        assertEquals(2, sim.budget.levelIndex());
+
+        // the device cooled down: everything fits, back to the top one probe at a time
+        sim.baseNanos = 15 * MS;
+        sim.run(60_000);
+        assertEquals(sim.changes.toString(), 0, sim.budget.levelIndex());
+        assertEquals(2, sim.budget.stepsUp());
+
+        // 40 ms: only 480px fits, and at 22 ms of 50 it looks like there is room above it.
+        // Each probe fails and the next one waits twice as long
+        sim.baseNanos = 40 * MS;
+        sim.run(10_000);
+        assertEquals(sim.changes.toString(), 2, sim.budget.levelIndex());
+        long upsBefore = sim.budget.stepsUp();
+        long[] before = sim.nanosAt.clone();
+        sim.run(300_000);
+        long probes = sim.budget.stepsUp() - upsBefore;
+        // 10 + 20 + 40 + 80 + 120 s: five probes at most, against 30 at a fixed interval
+        assertTrue(sim.changes.toString(), probes >= 3 && probes <= 5);
+        double atTwo = (double) (sim.nanosAt[2] - before[2]) / (300_000 * MS);
+        assertTrue("share at the level that fits " + atTwo, atTwo > 0.9);
+    }
+
+    @Test
+    public void thermalStatusCapsTheLevel() {
+        Sim sim = new Sim(10);
+        sim.run(5_000);
+        assertEquals(0, sim.budget.levelIndex());
+
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_SEVERE, sim.now);
+        assertEquals(LEVELS.length / 2, sim.budget.levelIndex());
+        assertTrue(sim.changes.toString(), sim.changes.get(0).contains("thermal"));
+        assertTrue(sim.budget.takeChange());
+        assertFalse(sim.budget.takeChange());
+
+        // cooling to LIGHT lifts the cap but does not probe yet, however idle the encoder is
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_LIGHT, sim.now);
+        sim.run(60_000);
+        assertEquals(LEVELS.length / 2, sim.budget.levelIndex());
+
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_NONE, sim.now);
+        sim.run(60_000);
+        assertEquals(0, sim.budget.levelIndex());
+
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_CRITICAL, sim.now);
+        assertEquals(LEVELS.length - 1, sim.budget.levelIndex());
+        // still warm: no probes until the device has cooled down, then one level at a time
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_MODERATE, sim.now);
+        sim.run(60_000);
+        assertEquals(LEVELS.length - 1, sim.budget.levelIndex());
+        sim.budget.setThermalStatus(EncodeBudget.THERMAL_NONE, sim.now);
+        sim.run(EncodeBudget.PROBE_MS + EncodeBudget.WINDOW_MS);
+        assertEquals(LEVELS.length - 2, sim.budget.levelIndex());
+    }
+
+    @Test
+    public void pipelineAppliesTheLevel() throws Exception {
+        // 50 ms per frame at 320px, 5 ms at 160px; captures at 30 fps
+        JpegEncoder costly = new JpegEncoder() {
+            @Override
+            public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+                try {
+                    Thread.sleep(width > 160 ? 50 : 5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(new byte[]{(byte) width, (byte) quality});
+            }
+        };
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 4096), costly);
+        encoder.setSize(320, 240);
+        EncodeBudget budget = new EncodeBudget(new EncodeBudget.Level[]{
+                new EncodeBudget.Level(60, 0, 30), new EncodeBudget.Level(40, 160, 10)}, 1);
+        StreamMetrics metrics = new StreamMetrics();
+        budget.setMetrics(metrics);
+        EncodePipelineTest.SyntheticSource source = new EncodePipelineTest.SyntheticSource(4);
+        EncodePipeline pipeline = new EncodePipeline(encoder, 1, 2, source.buffers::offer);
+        pipeline.setBudget(budget);
+        pipeline.start();
+        try {
+            source.run(pipeline, 30, 3500);
+            Thread.sleep(100);
+        } finally {
+            pipeline.stop();
+        }
+        assertEquals(budget.toString(), 1, budget.levelIndex());
+        assertEquals(40, encoder.getQuality());
+        assertEquals(160, encoder.getMaxWidth());
+        byte[] last = slot.getFrame();
+        assertEquals(160, last[0] & 0xFF);
+        assertEquals(40, last[1]);
+        // 10 of every 30 captures after the step
+        assertTrue(pipeline.toString(), pipeline.framesThrottled() > 10);
+        String scrape = metrics.registry().scrape();
+        assertTrue(scrape, scrape.contains("coolstream_encode_level 1"));
+        assertTrue(scrape, scrape.contains("coolstream_encode_level_steps_down_total 1"));
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class EncodePipelineTest {
+    private static final int W = 320, H = 240;
+
+    // JPEG stand-in whose cost per frame is fixed
+    static final class SlowEncoder implements JpegEncoder {
+        private final long costMs;
+
+        SlowEncoder(long costMs) { this.costMs = costMs; }
+
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+            try {
+                Thread.sleep(costMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            out.write(nv21, 0, 2048);
+        }
+    }
+
+    // Camera stand-in: fills one of a fixed set of buffers at a fixed rate, skipping a frame
+    // when no buffer has been returned (like the driver does).
+    static final class SyntheticSource {
+        final ArrayBlockingQueue<byte[]> buffers;
+        int skipped;
+        long maxSubmitNanos;
+
+        SyntheticSource(int count) {
+            buffers = new ArrayBlockingQueue<>(count);
+            for (int i = 0; i < count; i++) buffers.offer(new byte[W * H * 3 / 2]);
+        }
+
+        void run(EncodePipeline pipeline, int fps, long durationMs) throws InterruptedException {
+            long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+            long start = System.nanoTime();
+            long next = start;
+            while (next - start < TimeUnit.MILLISECONDS.toNanos(durationMs)) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                byte[] b = buffers.poll();
+                if (b == null) {
+                    skipped++;
+                } else {
+                    long t0 = System.nanoTime();
+                    pipeline.submit(b, t0);
+                    maxSubmitNanos = Math.max(maxSubmitNanos, System.nanoTime() - t0);
+                }
+                next += interval;
+            }
+        }
+    }
+
+    private static int published(FrameSlot slot) {
+        return (int) slot.latestSeq();
+    }
+
+    @Test
+    public void workersSustainRateThatOneEncoderCannot() throws Exception {
+        // 100 fps source, 15 ms per encode: one encoder manages ~66 fps, three ~200 fps
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(8, 4096), new SlowEncoder(15));
+        encoder.setSize(W, H);
+        SyntheticSource source = new SyntheticSource(6);
+        EncodePipeline pipeline = new EncodePipeline(encoder, 3, 2, source.buffers::offer);
+        pipeline.start();
+        try {
+            source.run(pipeline, 100, 2000);
+            Thread.sleep(100);
+        } finally {
+            pipeline.stop();
+        }
+        int frames = published(slot);
+        assertTrue("published " + frames + " of 200; " + pipeline, frames >= 170);
+        assertEquals("source starved; " + pipeline, 0, source.skipped);
+        // every buffer went back to the source
+        assertEquals(6, source.buffers.size());
+        assertEquals(pipeline.encodeTiming().count(), encoder.framesEncoded());
+        assertTrue(pipeline.encodeTiming().meanMillis() >= 15);
+    }
+
+    @Test
+    public void fullQueueDropsOldestAndNeverBlocksCapture() throws Exception {
+        // 100 fps source into a single 30 ms encoder: two of every three captures must go
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 4096), new SlowEncoder(30));
+        encoder.setSize(W, H);
+        SyntheticSource source = new SyntheticSource(4);
+        EncodePipeline pipeline = new EncodePipeline(encoder, 1, 2, source.buffers::offer);
+        pipeline.start();
+        try {
+            source.run(pipeline, 100, 1000);
+        } finally {
+            pipeline.stop();
+        }
+        assertTrue(pipeline + "", pipeline.framesDisplaced() > 30);
+        assertEquals(0, source.skipped);
+        assertTrue("submit took " + source.maxSubmitNanos + " ns", source.maxSubmitNanos < TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(pipeline.maxQueueDepth() <= 2);
+        assertEquals(4, source.buffers.size());
+    }
+
+    @Test
+    public void framesArePublishedInCaptureOrder() throws Exception {
+        final FrameSlot slot = new FrameSlot();
+        // alternating slow and fast encodes make workers finish out of order
+        JpegEncoder jitter = new JpegEncoder() {
+            @Override
+            public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+                try {
+                    Thread.sleep(nv21[0] == 0 ? 12 : 1);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(nv21, 0, 16);
+            }
+        };
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(8, 1024), jitter);
+        encoder.setSize(W, H);
+        SyntheticSource source = new SyntheticSource(6);
+        int i = 0;
+        for (byte[] b : source.buffers) b[0] = (byte) (i++ % 2);
+
+        final AtomicBoolean outOfOrder = new AtomicBoolean();
+        final long[] lastCapture = {Long.MIN_VALUE};
+        slot.addListener(() -> {
+            FrameSlot.Frame f = slot.latest();
+            if (f == null) return;
+            synchronized (lastCapture) {
+                if (f.captureNanos() < lastCapture[0]) outOfOrder.set(true);
+                lastCapture[0] = f.captureNanos();
+            }
+        });
+        EncodePipeline pipeline = new EncodePipeline(encoder, 4, 2, source.buffers::offer);
+        pipeline.start();
+        try {
+            source.run(pipeline, 200, 500);
+            Thread.sleep(50);
+        } finally {
+            pipeline.stop();
+        }
+        assertFalse(outOfOrder.get());
+        assertTrue(pipeline + "", encoder.framesLate() > 0);
+        assertEquals(encoder.framesEncoded(), published(slot) + encoder.framesLate());
+    }
+
+    @Test
+    public void pausedPipelineHandsCapturesStraightBack() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 4096), new SlowEncoder(1));
+        encoder.setSize(W, H);
+        SyntheticSource source = new SyntheticSource(4);
+        EncodePipeline pipeline = new EncodePipeline(encoder, 1, 2, source.buffers::offer);
+        pipeline.start();
+        try {
+            pipeline.setPaused(true);
+            source.run(pipeline, 100, 300);
+            assertEquals(0, published(slot));
+            assertEquals(0, source.skipped);
+            assertEquals(4, source.buffers.size());
+            assertTrue(pipeline + "", pipeline.framesStandby() >= 25);
+            assertEquals(0, pipeline.framesSubmitted());
+
+            pipeline.setPaused(false);
+            source.run(pipeline, 100, 300);
+            Thread.sleep(100);
+        } finally {
+            pipeline.stop();
+        }
+        assertTrue(pipeline + "", published(slot) >= 25);
+        assertEquals(4, source.buffers.size());
+    }
+}
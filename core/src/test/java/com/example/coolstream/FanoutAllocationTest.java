@@ -0,0 +1,111 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts bytes allocated by the selector threads per published frame at 1, 10 and 50
+ * clients: the multipart part is built once per frame, so the cost must not scale with N.
+ */
+public class FanoutAllocationTest {
+    private static final int FRAMES = 200;
+    private static final int JPEG_SIZE = 40_000;
+
+    private final FrameSlot slot = new FrameSlot();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<AtomicLong> received = new ArrayList<>();
+    private MjpegHttpServer server;
+    private long expectedPerClient;
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        if (server != null) server.shutdown();
+    }
+
+    @Test
+    public void allocationsPerFrameIndependentOfClientCount() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+
+        long[] perFrame = new long[3];
+        int[] counts = {1, 10, 50};
+        for (int k = 0; k < counts.length; k++) {
+            while (sockets.size() < counts[k]) connect(port);
+            publishAndDrain(50); // warm up (JIT, NIO temp buffers, new clients' stream headers)
+            long before = ioThreadAllocatedBytes(mx);
+            publishAndDrain(FRAMES);
+            perFrame[k] = (ioThreadAllocatedBytes(mx) - before) / FRAMES;
+        }
+
+        // one wire copy of the JPEG per frame is expected; nothing per client
+        assertTrue("1 client: " + perFrame[0], perFrame[0] < JPEG_SIZE + 4096);
+        assertTrue("10 clients: " + perFrame[1] + " vs " + perFrame[0], perFrame[1] < perFrame[0] + 1024);
+        assertTrue("50 clients: " + perFrame[2] + " vs " + perFrame[0], perFrame[2] < perFrame[0] + 1024);
+    }
+
+    private void connect(int port) throws Exception {
+        final Socket s = new Socket("127.0.0.1", port);
+        s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        final AtomicLong count = new AtomicLong();
+        sockets.add(s);
+        received.add(count);
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                InputStream in = s.getInputStream();
+                int n;
+                while ((n = in.read(buf)) > 0) count.addAndGet(n);
+            } catch (Exception ignored) {
+            }
+        }, "test-reader");
+        reader.setDaemon(true);
+        reader.start();
+        // wait for the stream header so later byte counts only cover frames
+        long header = MjpegHttpServer.STREAM_HEADER.length();
+        MjpegHttpServerSelectorTest.waitFor(() -> count.get() >= header);
+        count.addAndGet(expectedPerClient - header);
+    }
+
+    private void publishAndDrain(int frames) throws Exception {
+        byte[] jpeg = new byte[JPEG_SIZE];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        long part = MjpegHttpServer.partHeaderLength(JPEG_SIZE) + JPEG_SIZE;
+        for (int i = 0; i < frames; i++) {
+            slot.publish(jpeg);
+            expectedPerClient += part;
+            for (final AtomicLong c : received) {
+                MjpegHttpServerSelectorTest.waitFor(() -> c.get() >= expectedPerClient);
+            }
+        }
+    }
+
+    private static long ioThreadAllocatedBytes(com.sun.management.ThreadMXBean mx) {
+        long total = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("mjpeg-io")) total += mx.getThreadAllocatedBytes(t.getId());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.coolstream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+public class FrameEncoderTest {
+    private static final int W = 640, H = 480;
+
+    // Stands in for YuvImage: writes a JPEG-sized payload derived from the input in 4 KB chunks.
+    static final class SyntheticEncoder implements JpegEncoder {
+        private final byte[] chunk = new byte[4096];
+        int calls;
+
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws java.io.IOException {
+            calls++;
+            int size = 20_000 + (nv21[0] & 0xFF) * 40;
+            chunk[0] = (byte) 0xFF;
+            chunk[1] = (byte) 0xD8;
+            for (int written = 0; written < size; written += chunk.length) {
+                chunk[2] = nv21[0];
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    static byte[] nv21(int seed) {
+        byte[] b = new byte[W * H * 3 / 2];
+        for (int i = 0; i < b.length; i += 97) b[i] = (byte) (seed + i);
+        b[0] = (byte) seed;
+        return b;
+    }
+
+    @Test
+    public void steadyStateEncodingAllocatesNothing() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        FrameSlot slot = new FrameSlot();
+        FramePool pool = new FramePool(6, 32 * 1024);
+        FrameEncoder encoder = new FrameEncoder(slot, pool, new SyntheticEncoder());
+        encoder.setSize(W, H);
+        // three rotating callback buffers, like the camera
+        byte[][] buffers = {nv21(1), nv21(2), nv21(3)};
+        // frames a slow client still holds
+        ArrayDeque<FrameSlot.Frame> inFlight = new ArrayDeque<>();
+
+        long tid = Thread.currentThread().getId();
+        long before = 0;
+        int warmup = 200, measured = 2000;
+        for (int i = 0; i < warmup + measured; i++) {
+            if (i == warmup) before = mx.getThreadAllocatedBytes(tid);
+            assertTrue(encoder.encode(buffers[i % 3], i));
+            FrameSlot.Frame f = slot.acquireLatest();
+            assertEquals(0xD8, f.data()[f.jpegOffset() + 1] & 0xFF);
+            inFlight.addLast(f);
+            if (inFlight.size() > 3) inFlight.removeFirst().release();
+        }
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(0, encoder.framesDropped());
+        assertTrue("allocated " + allocated + " bytes over " + measured + " frames", allocated < 1024);
+        assertTrue(pool.created() <= pool.maxFrames());
+    }
+
+    @Test
+    public void bufferHeldByClientIsNeverOverwritten() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FramePool pool = new FramePool(3, 1024);
+        SyntheticEncoder jpeg = new SyntheticEncoder();
+        FrameEncoder encoder = new FrameEncoder(slot, pool, jpeg);
+        encoder.setSize(W, H);
+
+        encoder.encode(nv21(7), 0);
+        FrameSlot.Frame held = slot.acquireLatest();
+        byte[] snapshot = held.jpegCopy();
+        long heldSeq = held.seq();
+        for (int i = 0; i < 50; i++) encoder.encode(nv21(i), i);
+
+        assertEquals(heldSeq, held.seq());
+        assertArrayEquals(snapshot, held.jpegCopy());
+        // the wire header written in front of the JPEG is intact as well
+        String header = new String(held.wireData(), held.wireOffset(), held.wireLength() - held.jpegLength(), "US-ASCII");
+        assertTrue(header, header.endsWith("Content-Length: " + held.jpegLength() + "\r\n\r\n"));
+        held.release();
+    }
+
+    @Test
+    public void exhaustedPoolDropsCameraFrames() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FramePool pool = new FramePool(2, 1024);
+        FrameEncoder encoder = new FrameEncoder(slot, pool, new SyntheticEncoder());
+        encoder.setSize(W, H);
+
+        assertTrue(encoder.encode(nv21(1), 0));
+        FrameSlot.Frame a = slot.acquireLatest();
+        assertTrue(encoder.encode(nv21(2), 1));
+        FrameSlot.Frame b = slot.acquireLatest();
+        // both buffers are referenced (a by its client, b by the slot and its client)
+        assertFalse(encoder.encode(nv21(3), 2));
+        assertEquals(1, encoder.framesDropped());
+        assertEquals(1, pool.misses());
+
+        a.release();
+        assertTrue(encoder.encode(nv21(4), 3));
+        b.release();
+    }
+
+    @Test
+    public void cropAndRotationAreAppliedBeforeCompression() throws Exception {
+        final int[] seen = new int[3];
+        final byte[][] input = new byte[1][];
+        JpegEncoder recorder = (nv21, width, height, quality, out) -> {
+            seen[0] = width;
+            seen[1] = height;
+            seen[2] = nv21.length;
+            input[0] = nv21.clone();
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        };
+        FrameEncoder encoder = new FrameEncoder(new FrameSlot(), new FramePool(2, 64), recorder);
+        encoder.setSize(W, H);
+        encoder.setCrop(101, 50, 200, 100);
+        encoder.setRotation(90);
+        byte[] frame = Nv21Test.image(W, H);
+        assertTrue(encoder.encode(frame, 0));
+        assertArrayEquals(new int[]{100, 200, Nv21.size(100, 200)}, seen);
+        // top-left of the crop ends up in the top-right corner after a quarter turn
+        assertEquals(Nv21Test.y(frame, W, 100, 50), Nv21Test.y(input[0], 100, 99, 0));
+
+        encoder.clearCrop();
+        encoder.setRotation(0);
+        assertTrue(encoder.encode(frame, 1));
+        assertArrayEquals(new int[]{W, H, frame.length}, seen);
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    private static final long MS = 1_000_000L;
+
+    // JPEG-shaped bytes whose content is derived from seq, so any mix-up is detectable
+    static byte[] content(long seq, int length) {
+        byte[] b = new byte[length];
+        b[0] = (byte) 0xFF;
+        b[1] = (byte) 0xD8;
+        for (int i = 0; i < 8; i++) b[2 + i] = (byte) (seq >>> (56 - 8 * i));
+        for (int i = 10; i < length - 2; i++) b[i] = (byte) (seq * 31 + i);
+        b[length - 2] = (byte) 0xFF;
+        b[length - 1] = (byte) 0xD9;
+        return b;
+    }
+
+    // seq the bytes claim to be, after checking every byte matches it
+    static long verify(byte[] a, int off, int len) {
+        long seq = 0;
+        for (int i = 0; i < 8; i++) seq = seq << 8 | (a[off + 2 + i] & 0xFF);
+        byte[] expected = content(seq, len);
+        for (int i = 0; i < len; i++) {
+            if (a[off + i] != expected[i]) fail("frame " + seq + " corrupt at byte " + i);
+        }
+        return seq;
+    }
+
+    private static FrameSlot.Frame frame(FrameSlot slot, int length, long captureNanos) {
+        slot.publish(content(slot.latestSeq() + 1, length), captureNanos);
+        return slot.latest();
+    }
+
+    @Test
+    public void bytesAndDurationStayWithinTheirCaps() {
+        FrameRing ring = new FrameRing(10_000, 256 * 1024, 32 * 1024, 1000);
+        FrameSlot slot = new FrameSlot();
+        Random rnd = new Random(3);
+        long t = 0;
+        for (int i = 0; i < 3000; i++, t += 10 * MS) {
+            assertTrue(ring.record(frame(slot, 12 + rnd.nextInt(8000), t)));
+            assertTrue(ring.allocatedBytes() <= ring.maxBytes());
+            // one chunk is always kept back for clips
+            assertTrue(ring.retainedBytes() <= ring.maxBytes() - 32 * 1024);
+            assertTrue(ring.retainedMs() <= 10_000);
+        }
+        // the spare chunk is only allocated once a clip pins one
+        assertEquals(256 * 1024 - 32 * 1024, ring.allocatedBytes());
+        assertEquals(0, ring.framesDropped());
+
+        // small frames: the duration cap binds first
+        FrameRing timed = new FrameRing(10_000, 1 << 20, 64 * 1024, 1000);
+        for (int i = 0; i < 300; i++, t += 100 * MS) timed.record(frame(slot, 100, t));
+        assertEquals(10_000, timed.retainedMs());
+        assertEquals(101, timed.retainedFrames());
+        // and the index cap when frames come faster than it can hold
+        for (int i = 0; i < 3000; i++, t += MS) timed.record(frame(slot, 100, t));
+        assertEquals(1000, timed.retainedFrames());
+        // frames bigger than a chunk are refused
+        assertFalse(timed.record(frame(slot, 64 * 1024 + 1, t)));
+        assertEquals(1, timed.framesDropped());
+    }
+
+    @Test
+    public void framesAreEvictedOldestFirst() {
+        FrameRing ring = new FrameRing(60_000, 64 * 1024, 8 * 1024, 4096);
+        FrameSlot slot = new FrameSlot();
+        Random rnd = new Random(9);
+        long t = 0;
+        for (int i = 0; i < 500; i++, t += 33 * MS) {
+            ring.record(frame(slot, 12 + rnd.nextInt(3000), t));
+            // what is left is always the newest, unbroken run of frames
+            assertEquals(slot.latestSeq(), ring.newestSeq());
+            assertEquals(ring.newestSeq() - ring.oldestSeq() + 1, ring.retainedFrames());
+            assertEquals(ring.framesRecorded() - ring.framesEvicted(), ring.retainedFrames());
+        }
+        try (FrameRing.Clip clip = ring.clip(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            long expect = ring.oldestSeq();
+            while (clip.next()) {
+                assertEquals(expect, verify(clip.array(), clip.offset(), clip.length()));
+                assertEquals(expect, clip.seq());
+                expect++;
+            }
+            assertEquals(slot.latestSeq() + 1, expect);
+        }
+        // a time range selects by capture time
+        try (FrameRing.Clip clip = ring.clipOfLast(330)) {
+            int n = 0;
+            while (clip.next()) n++;
+            assertEquals(11, n);
+        }
+    }
+
+    @Test
+    public void pinnedChunksAreNotOverwritten() {
+        FrameRing ring = new FrameRing(60_000, 64 * 1024, 8 * 1024, 4096);
+        FrameSlot slot = new FrameSlot();
+        long t = 0;
+        for (int i = 0; i < 100; i++, t += MS) ring.record(frame(slot, 1000, t));
+        FrameRing.Clip clip = ring.clip(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(clip.next());
+        long pinnedSeq = clip.seq();
+        // capture wraps the ring several times while the clip holds its oldest chunk
+        for (int i = 0; i < 500; i++, t += MS) assertTrue(ring.record(frame(slot, 1000, t)));
+        assertEquals(pinnedSeq, verify(clip.array(), clip.offset(), clip.length()));
+        assertEquals(0, ring.framesDropped());
+        assertTrue(ring.allocatedBytes() <= ring.maxBytes());
+        // the rest of the range was evicted meanwhile and is skipped
+        assertFalse(clip.next());
+        assertTrue(clip.skipped() > 0);
+        clip.close();
+        for (int i = 0; i < 100; i++, t += MS) assertTrue(ring.record(frame(slot, 1000, t)));
+    }
+
+    @Test
+    public void clipsExportWhileCaptureRunsAtFullRate() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            FrameSlot slot = new FrameSlot();
+            FrameRing ring = new FrameRing(60_000, 2 << 20, 64 * 1024, 4096);
+            ring.attach(slot, 0);
+            MjpegHttpServer server = new MjpegHttpServer(0, slot, mode, 1);
+            server.setClipBuffer(ring);
+            server.start();
+            int port = server.awaitListening(5, TimeUnit.SECONDS);
+            AtomicBoolean capturing = new AtomicBoolean(true);
+            Thread camera = new Thread(() -> {
+                Random rnd = new Random(1);
+                while (capturing.get()) slot.publish(content(slot.latestSeq() + 1, 12 + rnd.nextInt(20_000)));
+            });
+            camera.start();
+            try {
+                // exports start once the ring has wrapped
+                MjpegHttpServerSelectorTest.waitFor(() -> ring.framesEvicted() > 0);
+                for (int round = 0; round < 5; round++) {
+                    try (Socket s = new Socket("127.0.0.1", port)) {
+                        s.setSoTimeout(5000);
+                        s.getOutputStream().write("GET /clip.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                        InputStream in = new BufferedInputStream(s.getInputStream());
+                        long last = 0;
+                        int parts = 0;
+                        byte[] body;
+                        while ((body = MjpegHttpServerSelectorTest.readPart(in)) != null) {
+                            long seq = verify(body, 0, body.length);
+                            assertTrue(mode + ": " + seq + " after " + last, seq > last);
+                            last = seq;
+                            parts++;
+                        }
+                        assertTrue(mode + " exported " + parts + " frames", parts > 10);
+                    }
+                }
+                assertTrue(ring.framesRecorded() > 1000);
+                assertEquals(5, server.getClipsExported());
+                assertTrue(ring.allocatedBytes() <= ring.maxBytes());
+            } finally {
+                capturing.set(false);
+                camera.join();
+                server.shutdown();
+                ring.detach();
+            }
+        }
+    }
+}
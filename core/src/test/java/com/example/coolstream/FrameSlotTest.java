@@ -0,0 +1,194 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameSlotTest {
+
+    @Test
+    public void waitersSeeEveryFrameExactlyOnce() throws Exception {
+        final FrameSlot slot = new FrameSlot();
+        final int frames = 2000;
+        final int consumers = 4;
+        // producer and consumers step in lockstep: a missed wakeup would hang the barrier
+        final CyclicBarrier step = new CyclicBarrier(consumers + 1);
+        final List<long[]> seen = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            final long[] seqs = new long[frames];
+            seen.add(seqs);
+            Thread t = new Thread(() -> {
+                try {
+                    long last = 0;
+                    for (int i = 0; i < frames; i++) {
+                        FrameSlot.Frame f = slot.awaitNewer(last, 5000);
+                        assertNotNull("missed wakeup at frame " + i, f);
+                        seqs[i] = f.seq();
+                        last = f.seq();
+                        step.await(5, TimeUnit.SECONDS);
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (int i = 0; i < frames; i++) {
+            slot.publish(new byte[]{(byte) i});
+            step.await(5, TimeUnit.SECONDS);
+        }
+        for (Thread t : threads) t.join(5000);
+
+        for (long[] seqs : seen) {
+            for (int i = 0; i < frames; i++) assertEquals(i + 1, seqs[i]);
+        }
+    }
+
+    @Test
+    public void freeRunningWaitersNeverGetDuplicates() throws Exception {
+        final FrameSlot slot = new FrameSlot();
+        final long[] lastSeen = new long[1];
+        final boolean[] duplicate = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            long last = 0;
+            try {
+                FrameSlot.Frame f;
+                while ((f = slot.awaitNewer(last, 500)) != null) {
+                    if (f.seq() <= last) duplicate[0] = true;
+                    last = f.seq();
+                }
+            } catch (InterruptedException ignored) {
+            }
+            lastSeen[0] = last;
+            done.countDown();
+        });
+        consumer.start();
+        for (int i = 0; i < 100_000; i++) slot.publish(new byte[1]);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(duplicate[0]);
+        assertEquals(100_000, lastSeen[0]);
+    }
+
+    @Test
+    public void awaitTimesOutWithoutNewFrame() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        long seq = slot.publish(new byte[1]);
+        assertNull(slot.awaitNewer(seq, 50));
+        slot.clear();
+        assertNull(slot.getFrame());
+        assertEquals(seq + 1, slot.publish(new byte[1]));
+    }
+
+    @Test
+    public void selectorDeliversEveryFramePublishedAfterTheLastWasRead() throws Exception {
+        assertLoopbackDelivery(MjpegHttpServer.IoMode.SELECTOR);
+    }
+
+    @Test
+    public void threadPerClientDeliversEveryFramePublishedAfterTheLastWasRead() throws Exception {
+        assertLoopbackDelivery(MjpegHttpServer.IoMode.THREAD_PER_CLIENT);
+    }
+
+    @Test
+    public void maxFpsCapsClientRate() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        MjpegHttpServer server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.start();
+        try (Socket s = new Socket("127.0.0.1", server.awaitListening(5, TimeUnit.SECONDS))) {
+            s.setSoTimeout(2000);
+            s.getOutputStream().write("GET /?fps=5 HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = s.getInputStream();
+            slot.publish(new byte[]{(byte) 0xFF, (byte) 0xD8, 0});
+            assertTrue(MjpegHttpServerSelectorTest.readsOnePart(in));
+            long start = System.nanoTime();
+            int received = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000)) {
+                slot.publish(new byte[]{(byte) 0xFF, (byte) 0xD8, 1});
+                Thread.sleep(5);
+                while (in.available() > 0) {
+                    assertTrue(MjpegHttpServerSelectorTest.readsOnePart(in));
+                    received++;
+                }
+            }
+            // ~200 frames published in one second, a 5 fps client sees about five
+            assertTrue("received " + received, received >= 3 && received <= 7);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    // FanoutBenchmark with one client measures how fast these deliveries are
+    private static void assertLoopbackDelivery(MjpegHttpServer.IoMode mode) throws Exception {
+        FrameSlot slot = new FrameSlot();
+        MjpegHttpServer server = new MjpegHttpServer(0, slot, mode, 1);
+        server.start();
+        try (Socket s = new Socket("127.0.0.1", server.awaitListening(5, TimeUnit.SECONDS))) {
+            s.setSoTimeout(2000);
+            s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = s.getInputStream();
+            byte[] jpeg = new byte[30_000];
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+            for (int i = 0; i < 50; i++) {
+                slot.publish(jpeg.clone(), System.nanoTime());
+                assertTrue(mode + " frame " + i, MjpegHttpServerSelectorTest.readsOnePart(in));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void markStaleKeepsTheFrameForNewConsumersOnly() throws Exception {
+        FramePool pool = new FramePool(2, 64);
+        FrameSlot slot = new FrameSlot();
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+        FrameSlot.Frame f = pool.acquire();
+        f.output().write(jpeg, 0, jpeg.length);
+        long seq = slot.publish(f, 1234);
+        AtomicInteger wakeups = new AtomicInteger();
+        slot.addListener(wakeups::incrementAndGet);
+
+        slot.markStale();
+        // the pooled buffer went back; a copy with the same identity took its place
+        assertEquals(2, pool.available());
+        FrameSlot.Frame stale = slot.latest();
+        assertTrue(stale.isStale());
+        assertFalse(stale.isPooled());
+        assertEquals(seq, stale.seq());
+        assertEquals(1234, stale.captureNanos());
+        assertEquals(seq, slot.latestSeq());
+        assertEquals("nothing was published", 0, wakeups.get());
+        assertArrayEquals(jpeg, slot.getFrame());
+        // not newer for anyone who had it, immediate for anyone who did not
+        assertNull(slot.awaitNewer(seq, 50));
+        FrameSlot.Frame first = slot.awaitNewer(0, 50);
+        assertSame(stale, first);
+        first.release();
+        slot.markStale();
+        assertSame(stale, slot.latest());
+
+        String wire = new String(stale.wireData(), StandardCharsets.ISO_8859_1);
+        assertTrue(wire, wire.contains("\r\nContent-Length: 7\r\nX-Stale: 1\r\n\r\n"));
+        assertTrue(wire.endsWith(new String(jpeg, StandardCharsets.ISO_8859_1)));
+        assertEquals(wire.length(), stale.wireLength());
+
+        long next = slot.publish(jpeg);
+        assertEquals(seq + 1, next);
+        assertFalse(slot.latest().isStale());
+        assertEquals(1, wakeups.get());
+    }
+}
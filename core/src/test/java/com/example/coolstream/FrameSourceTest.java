@@ -0,0 +1,245 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameSourceTest {
+    private final List<File> files = new ArrayList<>();
+    private FrameSource source;
+    private EncodePipeline pipeline;
+    private MjpegHttpServer server;
+
+    @After
+    public void tearDown() {
+        if (source != null) source.stop();
+        if (pipeline != null) pipeline.stop();
+        if (server != null) server.shutdown();
+        for (File f : files) f.delete();
+    }
+
+    // remembers what a source delivered, and when
+    static final class RecordingSink implements FrameSource.Sink {
+        final List<String> formats = new CopyOnWriteArrayList<>();
+        final List<byte[]> frames = new CopyOnWriteArrayList<>();
+        final List<Long> times = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onFormat(FrameSource.Format format, int width, int height) {
+            formats.add(format + " " + width + "x" + height);
+        }
+
+        @Override
+        public void onFrame(byte[] data, long captureNanos) {
+            frames.add(data);
+            times.add(captureNanos);
+        }
+    }
+
+    /** A baseline JPEG's structure: SOF0 with the size, SOS, stuffed 0xFF and RST0 in the scan. */
+    static byte[] jpeg(int width, int height, int n, byte[] app1) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(0xFF); b.write(0xD8);
+        if (app1 != null) {
+            b.write(0xFF); b.write(0xE1);
+            b.write((app1.length + 2) >> 8); b.write(app1.length + 2);
+            b.write(app1, 0, app1.length);
+        }
+        b.write(0xFF); b.write(0xC0); b.write(0); b.write(11);
+        b.write(8); b.write(height >> 8); b.write(height); b.write(width >> 8); b.write(width);
+        b.write(1); b.write(1); b.write(0x11); b.write(0);
+        b.write(0xFF); b.write(0xDA); b.write(0); b.write(8);
+        b.write(1); b.write(1); b.write(0); b.write(0); b.write(63); b.write(0);
+        for (int i = 0; i < 100; i++) b.write(n + i);
+        b.write(0xFF); b.write(0x00);
+        b.write(0xFF); b.write(0xD0);
+        b.write(n);
+        b.write(0xFF); b.write(0xD9);
+        return b.toByteArray();
+    }
+
+    private File tempFile(String suffix) throws Exception {
+        File f = File.createTempFile("replay", suffix);
+        files.add(f);
+        return f;
+    }
+
+    // frames as SegmentRecorder stores them (ClipExport part headers)
+    private File multipart(byte[][] jpegs, long[] timestampsMs) throws Exception {
+        File f = tempFile(".mjpg");
+        try (OutputStream out = new FileOutputStream(f)) {
+            byte[] header = new byte[ClipExport.MAX_PART_HEADER];
+            for (int i = 0; i < jpegs.length; i++) {
+                int n = ClipExport.writePartHeader(header, 0, jpegs[i].length, timestampsMs[i]);
+                out.write(header, 0, n);
+                out.write(jpegs[i]);
+            }
+            out.write(ClipExport.END);
+        }
+        return f;
+    }
+
+    @Test
+    public void syntheticSourcePacesFramesAndDropsWithoutFreeBuffers() throws Exception {
+        SyntheticFrameSource synthetic = new SyntheticFrameSource(64, 48, 50, 3);
+        source = synthetic;
+        RecordingSink sink = new RecordingSink();
+        synthetic.start(sink);
+        MjpegHttpServerSelectorTest.waitFor(() -> synthetic.framesDropped() >= 3);
+        // nothing recycled: three buffers, then only drops
+        assertEquals(Arrays.asList("NV21 64x48"), sink.formats);
+        assertEquals(3, sink.frames.size());
+        assertEquals(64 * 48 * 3 / 2, sink.frames.get(0).length);
+
+        byte[] first = sink.frames.get(0).clone();
+        for (byte[] b : sink.frames) synthetic.recycle(b);
+        sink.frames.clear();
+        MjpegHttpServerSelectorTest.waitFor(() -> sink.frames.size() >= 3);
+        assertFalse("the square moved", Arrays.equals(first, sink.frames.get(2)));
+        long gap = sink.times.get(sink.times.size() - 1) - sink.times.get(sink.times.size() - 2);
+        assertTrue("50 fps, gap " + gap / 1_000_000 + " ms", gap > TimeUnit.MILLISECONDS.toNanos(10));
+
+        // an idle scene renders the same frame every time
+        synthetic.setMoving(false);
+        Thread.sleep(50);
+        for (byte[] b : sink.frames) synthetic.recycle(b);
+        sink.frames.clear();
+        MjpegHttpServerSelectorTest.waitFor(() -> sink.frames.size() >= 2);
+        assertArrayEquals(sink.frames.get(0), sink.frames.get(1));
+    }
+
+    @Test
+    public void multipartReplayKeepsRecordedSpacing() throws Exception {
+        byte[][] jpegs = new byte[5][];
+        for (int i = 0; i < jpegs.length; i++) jpegs[i] = jpeg(320, 240, i, null);
+        // the last gap is a pause in the recording: replayed at setFps()
+        long[] ms = {1_000_000, 1_000_100, 1_000_200, 1_000_300, 1_010_000};
+        MjpegFileSource replay = new MjpegFileSource(multipart(jpegs, ms), true, false);
+        replay.setFps(20);
+        source = replay;
+        RecordingSink sink = new RecordingSink();
+        replay.start(sink);
+        MjpegHttpServerSelectorTest.waitFor(replay::isFinished);
+
+        assertNull(replay.failure());
+        assertEquals(Arrays.asList("JPEG 320x240"), sink.formats);
+        assertEquals(jpegs.length, sink.frames.size());
+        for (int i = 0; i < jpegs.length; i++) assertArrayEquals(jpegs[i], sink.frames.get(i));
+        long[] expectMs = {100, 100, 100, 50};
+        for (int i = 0; i < expectMs.length; i++) {
+            long gapMs = (sink.times.get(i + 1) - sink.times.get(i)) / 1_000_000L;
+            assertTrue("gap " + i + ": " + gapMs + " ms", gapMs >= expectMs[i] - 5 && gapMs < expectMs[i] + 40);
+        }
+    }
+
+    @Test
+    public void rawReplaySplitsOnMarkersAndLoops() throws Exception {
+        // an EXIF-style thumbnail whose EOI must not end the outer frame
+        byte[][] jpegs = {jpeg(640, 480, 1, jpeg(16, 16, 9, null)), jpeg(640, 480, 2, null), jpeg(800, 600, 3, null)};
+        File f = tempFile(".mjpeg");
+        try (OutputStream out = new FileOutputStream(f)) {
+            for (byte[] j : jpegs) out.write(j);
+        }
+
+        MjpegFileSource once = new MjpegFileSource(f, false, false);
+        source = once;
+        RecordingSink sink = new RecordingSink();
+        once.start(sink);
+        MjpegHttpServerSelectorTest.waitFor(once::isFinished);
+        assertEquals(Arrays.asList("JPEG 640x480", "JPEG 800x600"), sink.formats);
+        assertEquals(3, sink.frames.size());
+        for (int i = 0; i < jpegs.length; i++) assertArrayEquals(jpegs[i], sink.frames.get(i));
+        assertEquals(1, once.passes());
+
+        MjpegFileSource looped = new MjpegFileSource(f, false, true);
+        source = looped;
+        RecordingSink loopSink = new RecordingSink();
+        looped.start(loopSink);
+        MjpegHttpServerSelectorTest.waitFor(() -> looped.passes() >= 3);
+        looped.stop();
+        assertNull(looped.failure());
+        for (int i = 0; i < 9; i++) assertArrayEquals(jpegs[i % 3], loopSink.frames.get(i));
+    }
+
+    @Test
+    public void garbageIsReportedNotReplayed() throws Exception {
+        File f = tempFile(".mjpg");
+        try (OutputStream out = new FileOutputStream(f)) {
+            byte[] text = new byte[4096];
+            Arrays.fill(text, (byte) 'x');
+            out.write(text);
+        }
+        MjpegFileSource replay = new MjpegFileSource(f, false, true);
+        source = replay;
+        RecordingSink sink = new RecordingSink();
+        replay.start(sink);
+        MjpegHttpServerSelectorTest.waitFor(replay::isFinished);
+        assertNotNull(replay.failure());
+        assertTrue(sink.frames.isEmpty());
+    }
+
+    private static InputStream openStream(int port) throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(5000);
+        s.getOutputStream().write("GET /stream.mjpg HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return s.getInputStream();
+    }
+
+    @Test
+    public void replayIsServedByteForByte() throws Exception {
+        byte[][] jpegs = new byte[3][];
+        for (int i = 0; i < jpegs.length; i++) jpegs[i] = jpeg(320, 240, i, null);
+        MjpegFileSource replay = new MjpegFileSource(multipart(jpegs, new long[]{0, 66, 133}), true, true);
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 4096), new DemandEncodingTest.FastEncoder());
+        pipeline = new EncodePipeline(encoder, 1, 1, replay::recycle);
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        source = replay;
+        replay.start(new CaptureSink(encoder, pipeline));
+
+        InputStream in = openStream(port);
+        for (int i = 0; i < 4; i++) {
+            byte[] part = MjpegHttpServerSelectorTest.readPart(in);
+            assertNotNull(part);
+            assertTrue("frame " + i, Arrays.asList(jpegs).stream().anyMatch(j -> Arrays.equals(j, part)));
+        }
+        in.close();
+    }
+
+    @Test
+    public void syntheticCapturesRunThroughThePipeline() throws Exception {
+        SyntheticFrameSource synthetic = new SyntheticFrameSource(320, 240, 30);
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 8192), new DemandEncodingTest.FastEncoder());
+        pipeline = new EncodePipeline(encoder, 2, 2, synthetic::recycle);
+        pipeline.start();
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        source = synthetic;
+        synthetic.start(new CaptureSink(encoder, pipeline));
+
+        InputStream in = openStream(port);
+        for (int i = 0; i < 20; i++) assertNotNull(MjpegHttpServerSelectorTest.readPart(in));
+        in.close();
+        assertEquals(320, encoder.getWidth());
+        // buffers come back: far more frames than the source has buffers
+        assertTrue(synthetic.toString(), synthetic.framesDelivered() > SyntheticFrameSource.DEFAULT_BUFFERS * 2);
+    }
+}
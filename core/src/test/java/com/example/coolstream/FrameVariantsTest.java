@@ -0,0 +1,155 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameVariantsTest {
+    private static final int W = 640, H = 480;
+
+    private MjpegHttpServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    // Writes a tiny "JPEG" that records the quality and size it was asked for.
+    static final class ProfileEchoEncoder implements JpegEncoder {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile String error;
+
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws java.io.IOException {
+            calls.incrementAndGet();
+            if (nv21.length != Nv21.size(width, height)) error = "input " + nv21.length + " for " + width + "x" + height;
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) quality,
+                    (byte) (width >> 8), (byte) width, (byte) (height >> 8), (byte) height});
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        if (server != null) server.shutdown();
+    }
+
+    @Test
+    public void twentyClientsOnThreeProfilesCostThreeEncodesPerFrame() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FrameVariants variants = new FrameVariants(slot);
+        ProfileEchoEncoder jpeg = new ProfileEchoEncoder();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(16, 1024), jpeg);
+        encoder.setSize(W, H);
+        encoder.setVariants(variants);
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 2);
+        server.setVariants(variants);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+
+        // path, expected quality, width, height
+        String[] paths = {"/?width=320", "/?width=160&quality=30&fps=100", "/?quality=90"};
+        int[][] expect = {{60, 320, 240}, {30, 160, 120}, {90, 640, 480}};
+        final int clients = 20;
+        final AtomicInteger[] received = new AtomicInteger[clients];
+        final String[] wrong = new String[1];
+        for (int i = 0; i < clients; i++) {
+            final int p = i % 3;
+            final AtomicInteger count = received[i] = new AtomicInteger();
+            Socket s = new Socket("127.0.0.1", port);
+            sockets.add(s);
+            s.getOutputStream().write(("GET " + paths[p] + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            final InputStream in = s.getInputStream();
+            Thread t = new Thread(() -> {
+                try {
+                    byte[] body;
+                    while ((body = MjpegHttpServerSelectorTest.readPart(in)) != null) {
+                        int q = body[2] & 0xFF;
+                        int w = ((body[3] & 0xFF) << 8) | (body[4] & 0xFF);
+                        int h = ((body[5] & 0xFF) << 8) | (body[6] & 0xFF);
+                        if (q != expect[p][0] || w != expect[p][1] || h != expect[p][2]) {
+                            wrong[0] = paths[p] + " got q=" + q + " " + w + "x" + h;
+                        }
+                        count.incrementAndGet();
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        MjpegHttpServerSelectorTest.waitFor(() -> allWaiting(server, clients));
+        assertEquals(3, variants.profiles().size());
+
+        byte[] nv21 = new byte[Nv21.size(W, H)];
+        for (int frame = 1; frame <= 10; frame++) {
+            int before = jpeg.calls.get();
+            encoder.encode(nv21, System.nanoTime());
+            assertEquals("encodes for frame " + frame, 3, jpeg.calls.get() - before);
+            final int n = frame;
+            MjpegHttpServerSelectorTest.waitFor(() -> {
+                for (AtomicInteger r : received) if (r.get() < n) return false;
+                return allWaiting(server, clients);
+            });
+        }
+        assertNull(wrong[0], wrong[0]);
+        assertNull(jpeg.error, jpeg.error);
+        // nobody streams the default profile, so the primary slot was never encoded
+        assertEquals(0, slot.latestSeq());
+    }
+
+    private static boolean allWaiting(MjpegHttpServer server, int clients) {
+        List<ClientStats> stats = server.getClientStats();
+        if (stats.size() != clients) return false;
+        long now = System.nanoTime();
+        for (ClientStats s : stats) if (s.slot == null || s.wantsFrameAtNanos > now) return false;
+        return true;
+    }
+
+    @Test
+    public void unusedProfilesAreEvictedAndReleaseTheirFrames() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FrameVariants variants = new FrameVariants(slot, 2, 50);
+        FramePool pool = new FramePool(8, 1024);
+        FrameEncoder encoder = new FrameEncoder(slot, pool, new ProfileEchoEncoder());
+        encoder.setSize(W, H);
+        encoder.setVariants(variants);
+
+        StreamProfile small = new StreamProfile(0, 320);
+        StreamProfile tiny = new StreamProfile(0, 160);
+        StreamProfile sharp = new StreamProfile(95, 0);
+        FrameSlot a = variants.acquire(small);
+        FrameSlot b = variants.acquire(tiny);
+        assertSame(a, variants.acquire(small));
+        // both variants in use: a third profile falls back to the primary stream
+        assertSame(slot, variants.acquire(sharp));
+
+        encoder.encode(new byte[Nv21.size(W, H)], 1);
+        assertNotNull(a.getFrame());
+        assertEquals(3, pool.created());
+
+        variants.release(a);
+        variants.release(a);
+        FrameSlot c = variants.acquire(sharp);
+        assertNotSame(slot, c);
+        assertEquals(1, variants.evictions());
+        assertNull("evicted variant still holds a frame", a.getFrame());
+        assertFalse(variants.profiles().contains(small));
+
+        variants.release(b);
+        variants.release(c);
+        Thread.sleep(60);
+        assertEquals(0, variants.targets().length);
+        assertTrue(variants.profiles().isEmpty());
+        // only the primary slot's frame is still out of the pool
+        assertEquals(pool.maxFrames() - 1, pool.available());
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.coolstream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The streaming stack without a device: a FrameSource feeding the encode pipeline and an
+ * MjpegHttpServer (with /metrics) on a plain JVM, until the process is killed.
+ *
+ * - "--source synthetic" encodes SyntheticFrameSource's pattern with ImageIO, at --size
+ *   and --fps; stream profiles (?quality=&width=) work as on the device
+ * - "--source file.mjpg" replays a recording (or /clip.mjpg download) as it was recorded;
+ *   "--realtime false" replays as fast as clients take it, "--loop false" stops at its end
+ * - "--jpeg strips" encodes with StripJpegEncoder on --jpeg-threads cores (default: all)
+ *   instead of ImageIO
+ * - Prints the pipeline and client stats every 5 seconds
+ *
+ * From the command line (see core/build.gradle.kts):
+ *   ./gradlew :core:headless -Pargs="--source synthetic --size 1280x720 --fps 30"
+ */
+final class HeadlessServer {
+    static final class Config {
+        String source = "synthetic";
+        int width = 640;
+        int height = 480;
+        int fps = 15;
+        boolean realTime = true;
+        boolean loop = true;
+        int port = 8080;
+        MjpegHttpServer.IoMode ioMode = MjpegHttpServer.IoMode.SELECTOR;
+        int ioThreads = 2;
+        int encoders = 2;
+        String jpeg = "imageio";
+        int jpegThreads = Runtime.getRuntime().availableProcessors();
+
+        static Config parse(String[] args) {
+            Config c = new Config();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String v = args[i + 1];
+                switch (args[i]) {
+                    case "--source": c.source = v; break;
+                    case "--size": {
+                        int x = v.indexOf('x');
+                        c.width = Integer.parseInt(v.substring(0, x));
+                        c.height = Integer.parseInt(v.substring(x + 1));
+                        break;
+                    }
+                    case "--fps": c.fps = Integer.parseInt(v); break;
+                    case "--realtime": c.realTime = Boolean.parseBoolean(v); break;
+                    case "--loop": c.loop = Boolean.parseBoolean(v); break;
+                    case "--port": c.port = Integer.parseInt(v); break;
+                    case "--io": c.ioMode = MjpegHttpServer.IoMode.valueOf(v); break;
+                    case "--io-threads": c.ioThreads = Integer.parseInt(v); break;
+                    case "--encoders": c.encoders = Integer.parseInt(v); break;
+                    case "--jpeg": c.jpeg = v; break;
+                    case "--jpeg-threads": c.jpegThreads = Integer.parseInt(v); break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            return c;
+        }
+    }
+
+    /** NV21 → JPEG through ImageIO (BT.601 full range, as the camera delivers it). */
+    static final class ImageIoJpegEncoder implements JpegEncoder {
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] row = new int[width];
+            int frame = width * height;
+            for (int y = 0; y < height; y++) {
+                int vu = frame + (y >> 1) * width;
+                for (int x = 0; x < width; x++) {
+                    int l = nv21[y * width + x] & 0xFF;
+                    int v = (nv21[vu + (x & ~1)] & 0xFF) - 128;
+                    int u = (nv21[vu + (x & ~1) + 1] & 0xFF) - 128;
+                    int r = clamp(l + (1436 * v >> 10));
+                    int g = clamp(l - (352 * u + 731 * v >> 10));
+                    int b = clamp(l + (1815 * u >> 10));
+                    row[x] = r << 16 | g << 8 | b;
+                }
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality / 100f);
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+
+        private static int clamp(int c) {
+            return c < 0 ? 0 : c > 255 ? 255 : c;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        FrameSource source;
+        if (config.source.equals("synthetic")) {
+            source = new SyntheticFrameSource(config.width, config.height, config.fps);
+        } else {
+            MjpegFileSource replay = new MjpegFileSource(new File(config.source), config.realTime, config.loop);
+            replay.setFps(config.fps);
+            source = replay;
+        }
+
+        FrameSlot slot = new FrameSlot();
+        FrameVariants variants = new FrameVariants(slot);
+        StreamMetrics metrics = new StreamMetrics();
+        FramePool pool = new FramePool(16, Math.max(64 * 1024, config.width * config.height));
+        JpegEncoder jpeg;
+        switch (config.jpeg) {
+            case "imageio": jpeg = new ImageIoJpegEncoder(); break;
+            case "strips": jpeg = new StripJpegEncoder(config.jpegThreads); break;
+            default: throw new IllegalArgumentException("unknown --jpeg " + config.jpeg);
+        }
+        FrameEncoder encoder = new FrameEncoder(slot, pool, jpeg);
+        encoder.setVariants(variants);
+        EncodePipeline pipeline = new EncodePipeline(encoder, config.encoders, 2, source::recycle);
+        pipeline.setMetrics(metrics);
+        pipeline.start();
+
+        MjpegHttpServer server = new MjpegHttpServer(config.port, slot, config.ioMode, config.ioThreads);
+        server.setVariants(variants);
+        server.setMetrics(metrics);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        source.start(new CaptureSink(encoder, pipeline));
+        System.out.println("Serving " + source + " (" + jpeg + ") on http://127.0.0.1:" + port + "/stream.mjpg");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            source.stop();
+            pipeline.stop();
+            server.shutdown();
+        }));
+        while (!(source instanceof MjpegFileSource && ((MjpegFileSource) source).isFinished())) {
+            Thread.sleep(5_000);
+            System.out.println(source);
+            System.out.println(pipeline);
+            for (ClientStats c : server.getClientStats()) System.out.println("  " + c);
+        }
+        IOException failure = ((MjpegFileSource) source).failure();
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.coolstream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestTest {
+
+    private static HttpRequest load(String raw) throws IOException {
+        HttpRequest r = new HttpRequest();
+        r.read(new ByteArrayInputStream(raw.getBytes(StandardCharsets.ISO_8859_1)));
+        return r;
+    }
+
+    private static int parse(String raw) throws IOException {
+        return load(raw).parse();
+    }
+
+    @Test
+    public void parsesRequestLineQueryAndHeaders() throws Exception {
+        String raw = "GET /stream.mjpg?fps=12&width=320&gray&quality=x HTTP/1.1\r\n" +
+                "Host: cam\r\n" +
+                "connection:  Upgrade , Keep-Alive \r\n" +
+                "If-None-Match: W/\"a-1\", \"b-2\"\r\n\r\n";
+        HttpRequest r = load(raw);
+        assertEquals(raw.length(), r.parse());
+        assertTrue(r.isMethod("GET"));
+        assertFalse(r.isMethod("GE"));
+        assertTrue(r.isPath("/stream.mjpg".getBytes(StandardCharsets.US_ASCII)));
+        assertFalse(r.isPath("/".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(1, r.minorVersion());
+        assertEquals(12, r.queryInt("fps"));
+        assertEquals(320, r.queryInt("width"));
+        assertEquals(1, r.queryInt("gray"));
+        assertEquals(0, r.queryInt("quality"));
+        assertEquals(0, r.queryInt("fp"));
+        assertTrue(r.headerToken("Connection", "keep-alive"));
+        assertTrue(r.headerToken("CONNECTION", "upgrade"));
+        assertFalse(r.headerToken("Connection", "close"));
+        assertTrue(r.headerHasEtag("If-None-Match", "\"a-1\""));
+        assertTrue(r.headerHasEtag("If-None-Match", "\"b-2\""));
+        assertFalse(r.headerHasEtag("If-None-Match", "\"b-3\""));
+        assertTrue(r.keepAlive());
+        assertEquals("GET /stream.mjpg?fps=12&width=320&gray&quality=x", r.toString());
+    }
+
+    @Test
+    public void keepAliveFollowsVersionAndConnectionHeader() throws Exception {
+        HttpRequest r = load("GET / HTTP/1.1\r\n\r\n");
+        r.parse();
+        assertTrue(r.keepAlive());
+        r = load("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        r.parse();
+        assertFalse(r.keepAlive());
+        r = load("GET / HTTP/1.0\r\n\r\n");
+        r.parse();
+        assertFalse(r.keepAlive());
+        r = load("GET / HTTP/1.0\nConnection: keep-alive\n\n");
+        assertTrue(r.parse() > 0);
+        assertTrue(r.keepAlive());
+    }
+
+    @Test
+    public void rejectsMalformedAndOversizedHeads() throws Exception {
+        assertEquals(HttpRequest.INCOMPLETE, parse("GET / HTTP/1.1\r\nHost: x\r\n"));
+        assertEquals(-400, parse("GET/ HTTP/1.1\r\n\r\n"));
+        assertEquals(-400, parse("get / HTTP/1.1\r\n\r\n"));
+        assertEquals(-400, parse("GET http://cam/ HTTP/1.1\r\n\r\n"));
+        assertEquals(-400, parse("GET /a b HTTP/1.1\r\n\r\n"));
+        assertEquals(-400, parse("GET / HTTP/1.1\r\nNo colon\r\n\r\n"));
+        assertEquals(-400, parse("GET / HTTP/1.1\r\nHost : x\r\n\r\n"));
+        assertEquals(-400, parse("GET / HTTP/1.1\r\nHost: x\r\n folded\r\n\r\n"));
+        assertEquals(-400, parse("GET / HTTP/1.1\r\nX: a\u0001b\r\n\r\n"));
+        assertEquals(-400, parse("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"));
+        assertEquals(-505, parse("GET / HTTP/2.0\r\n\r\n"));
+        assertEquals(-505, parse("GET / HTTP/1.10\r\n\r\n"));
+
+        StringBuilder longLine = new StringBuilder("GET /");
+        while (longLine.length() < HttpRequest.MAX_HEAD) longLine.append('a');
+        assertEquals(-414, parse(longLine.toString()));
+
+        StringBuilder manyHeaders = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= HttpRequest.MAX_HEADERS; i++) manyHeaders.append("X-").append(i).append(": 1\r\n");
+        assertEquals(-431, parse(manyHeaders.append("\r\n").toString()));
+
+        StringBuilder bigHeader = new StringBuilder("GET / HTTP/1.1\r\nX: ");
+        while (bigHeader.length() < HttpRequest.MAX_HEAD) bigHeader.append('v');
+        assertEquals(-431, parse(bigHeader.toString()));
+    }
+
+    @Test
+    public void pipelinedHeadsAreConsumedOneAtATime() throws Exception {
+        String a = "GET /a HTTP/1.1\r\n\r\n";
+        String b = "\r\nGET /b?fps=3 HTTP/1.1\r\nX: y\r\n\r\n";
+        String c = "GET /c HTT";
+        HttpRequest r = load(a + b + c);
+        assertEquals(a.length(), r.parse());
+        assertTrue(r.isPath("/a".getBytes(StandardCharsets.US_ASCII)));
+        r.next();
+        assertEquals(b.length(), r.parse());
+        assertEquals(3, r.queryInt("fps"));
+        r.next();
+        assertEquals(HttpRequest.INCOMPLETE, r.parse());
+        assertEquals(c.length(), r.buffered());
+        r.read(new ByteArrayInputStream("P/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(r.parse() > 0);
+        assertTrue(r.isPath("/c".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static int range(String header, long size, long[] out) throws IOException {
+        HttpRequest r = load("GET /segment.mjpg HTTP/1.1\r\n" + (header != null ? "Range: " + header + "\r\n" : "") + "\r\n");
+        assertTrue(r.parse() > 0);
+        return r.range(size, out);
+    }
+
+    @Test
+    public void byteRangesAndLongQueries() throws Exception {
+        long[] out = new long[2];
+        assertEquals(206, range("bytes=0-99", 1000, out));
+        assertArrayEquals(new long[] {0, 99}, out);
+        assertEquals(206, range("BYTES=900- ", 1000, out));
+        assertArrayEquals(new long[] {900, 999}, out);
+        assertEquals(206, range("bytes=990-5000", 1000, out));
+        assertArrayEquals(new long[] {990, 999}, out);
+        assertEquals(206, range("bytes=-10", 1000, out));
+        assertArrayEquals(new long[] {990, 999}, out);
+        assertEquals(206, range("bytes=-5000", 1000, out));
+        assertArrayEquals(new long[] {0, 999}, out);
+        assertEquals(HttpRequest.RANGE_NOT_SATISFIABLE, range("bytes=1000-", 1000, out));
+        assertEquals(HttpRequest.RANGE_NOT_SATISFIABLE, range("bytes=1000-1001", 1000, out));
+        assertEquals(HttpRequest.RANGE_NOT_SATISFIABLE, range("bytes=-0", 1000, out));
+        // ignored: the whole resource is served
+        assertEquals(HttpRequest.NO_RANGE, range(null, 1000, out));
+        assertEquals(HttpRequest.NO_RANGE, range("bytes=0-1,5-6", 1000, out));
+        assertEquals(HttpRequest.NO_RANGE, range("bytes=5-1", 1000, out));
+        assertEquals(HttpRequest.NO_RANGE, range("bytes=x-1", 1000, out));
+        assertEquals(HttpRequest.NO_RANGE, range("items=0-1", 1000, out));
+        assertEquals(HttpRequest.NO_RANGE, range("bytes=99999999999999999999-", 1000, out));
+
+        HttpRequest r = load("GET /recording.mjpg?t=1700000000123&seconds=30&bad=1x HTTP/1.1\r\n\r\n");
+        assertTrue(r.parse() > 0);
+        assertEquals(1700000000123L, r.queryLong("t"));
+        assertEquals(30, r.queryInt("seconds"));
+        assertEquals(0, r.queryLong("bad"));
+        assertEquals(0, r.queryLong("missing"));
+    }
+
+    @Test
+    public void anySplitOfARequestParsesTheSame() throws Exception {
+        byte[] raw = "GET /snapshot.jpg?x=1 HTTP/1.1\r\nHost: cam\r\nIf-None-Match: \"q\"\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int split = 0; split <= raw.length; split++) {
+            HttpRequest r = new HttpRequest();
+            r.read(new ByteArrayInputStream(raw, 0, split));
+            int first = r.parse();
+            if (split < raw.length) assertEquals("split " + split, HttpRequest.INCOMPLETE, first);
+            r.read(new ByteArrayInputStream(raw, split, raw.length - split));
+            assertEquals("split " + split, raw.length, r.parse());
+            assertTrue(r.headerHasEtag("If-None-Match", "\"q\""));
+        }
+    }
+
+    @Test
+    public void randomInputNeverThrowsOrOverruns() throws Exception {
+        Random rnd = new Random(42);
+        byte[] alphabet = "GET /snapshot.jpg HTTP/1.1\r\n:?&=, \t\"W*\u0000\u007fÿ".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] chunk = new byte[HttpRequest.MAX_HEAD + 100];
+        HttpRequest r = new HttpRequest();
+        for (int i = 0; i < 20000; i++) {
+            r.clear();
+            int len = rnd.nextInt(i % 10 == 0 ? chunk.length : 120);
+            for (int k = 0; k < len; k++) {
+                chunk[k] = rnd.nextInt(4) == 0 ? (byte) rnd.nextInt(256) : alphabet[rnd.nextInt(alphabet.length)];
+            }
+            r.read(new ByteArrayInputStream(chunk, 0, len));
+            int n = r.parse();
+            assertTrue("result " + n, n >= -505 && n <= r.buffered());
+            if (n > 0) {
+                // accessors stay inside the parsed head
+                r.queryInt("fps");
+                r.keepAlive();
+                r.headerHasEtag("If-None-Match", "\"x\"");
+                r.toString();
+            }
+            r.next();
+            assertTrue(r.buffered() >= 0);
+        }
+    }
+
+    @Test
+    public void parsingAllocatesNothing() throws Exception {
+        java.lang.management.ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(tmx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) tmx;
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+        byte[] raw = ("GET /stream.mjpg?fps=12&width=320 HTTP/1.1\r\nHost: cam\r\nConnection: keep-alive\r\n" +
+                "If-None-Match: \"abc-17\"\r\nUser-Agent: test\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] path = "/stream.mjpg".getBytes(StandardCharsets.US_ASCII);
+        HttpRequest r = new HttpRequest();
+        ByteArrayInputStream in = new ByteArrayInputStream(raw);
+        long sink = 0;
+        for (int round = 0; round < 2; round++) {
+            long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 10000; i++) {
+                in.reset();
+                r.read(in);
+                sink += r.parse();
+                if (r.isMethod("GET") && r.isPath(path)) sink += r.queryInt("fps") + r.queryInt("width");
+                if (r.keepAlive() && r.headerHasEtag("If-None-Match", "\"abc-17\"")) sink++;
+                r.next();
+            }
+            long allocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            // first round warms up the JIT; the second must not allocate per request
+            if (round == 1) assertTrue("allocated " + allocated + " bytes for 10000 requests", allocated < 10000);
+        }
+        assertTrue(sink > 0);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpRoutingTest {
+    private MjpegHttpServer server;
+    private final FrameSlot slot = new FrameSlot();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private int port;
+
+    private void start(MjpegHttpServer.IoMode mode) throws Exception {
+        slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(1));
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { connected.incrementAndGet(); }
+            @Override public void onClientDisconnected() {}
+        });
+        server.start();
+        port = server.awaitListening(5, TimeUnit.SECONDS);
+    }
+
+    private Socket connect() throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(5000);
+        sockets.add(s);
+        return s;
+    }
+
+    private static void send(Socket s, String raw) throws Exception {
+        s.getOutputStream().write(raw.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        sockets.clear();
+        if (server != null) server.shutdown();
+        connected.set(0);
+    }
+
+    @Test
+    public void unknownPathsAndMethodsAreAnsweredWithoutCountingAsClients() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            Socket s = connect();
+            InputStream in = s.getInputStream();
+            send(s, "GET /favicon.ico HTTP/1.1\r\nHost: cam\r\n\r\n");
+            SnapshotTest.Response r = SnapshotTest.read(in);
+            assertEquals(mode.toString(), 404, r.status());
+            assertEquals("keep-alive", r.header("Connection"));
+
+            send(s, "DELETE /snapshot.jpg HTTP/1.1\r\n\r\n");
+            r = SnapshotTest.read(in);
+            assertEquals(405, r.status());
+            assertEquals("GET", r.header("Allow"));
+
+            assertEquals(0, connected.get());
+            assertTrue(server.getClientStats().isEmpty());
+            assertEquals(2, server.getRequestsRejected());
+
+            // the same connection can still become a stream
+            send(s, "GET /?fps=50 HTTP/1.1\r\n\r\n");
+            assertNotNull(MjpegHttpServerSelectorTest.readPart(in));
+            assertEquals(1, connected.get());
+            tearDown();
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsGetResponsesInOrder() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            Socket s = connect();
+            send(s, "GET /nope HTTP/1.1\r\n\r\n" +
+                    "GET /snapshot.jpg HTTP/1.1\r\n\r\n" +
+                    "PUT / HTTP/1.1\r\n\r\n" +
+                    "GET /snapshot.jpg?t=2 HTTP/1.1\r\nConnection: close\r\n\r\n" +
+                    "GET /never-answered HTTP/1.1\r\n\r\n");
+            InputStream in = s.getInputStream();
+            int[] expected = {404, 200, 405, 200};
+            for (int status : expected) {
+                SnapshotTest.Response r = SnapshotTest.read(in);
+                assertNotNull(mode + " missing response " + status, r);
+                assertEquals(mode.toString(), status, r.status());
+            }
+            assertEquals(-1, in.read());
+            assertEquals(0, connected.get());
+            tearDown();
+        }
+    }
+
+    @Test
+    public void headsOverTheSizeLimitAreRejected() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            Socket s = connect();
+            StringBuilder raw = new StringBuilder("GET / HTTP/1.1\r\n");
+            while (raw.length() < HttpRequest.MAX_HEAD + 100) raw.append("X-Pad: 0123456789abcdef\r\n");
+            send(s, raw.toString());
+            SnapshotTest.Response r = SnapshotTest.read(s.getInputStream());
+            assertEquals(mode.toString(), 431, r.status());
+            assertEquals("close", r.header("Connection"));
+            assertEquals(0, connected.get());
+            tearDown();
+        }
+    }
+
+    @Test
+    public void slowAndSilentConnectionsAreDropped() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            Socket slow = connect();
+            Socket silent = connect();
+            send(slow, "GET / HT");
+            long t0 = System.currentTimeMillis();
+            SnapshotTest.Response r = SnapshotTest.read(slow.getInputStream());
+            long took = System.currentTimeMillis() - t0;
+            assertEquals(mode.toString(), 408, r.status());
+            assertTrue("408 after " + took + " ms", took >= MjpegHttpServer.REQUEST_TIMEOUT_MS - 200);
+            assertEquals(-1, silent.getInputStream().read());
+            assertEquals(0, connected.get());
+            tearDown();
+        }
+    }
+
+    // Reads until the server closes; returns what arrived.
+    private static byte[] drain(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void fuzzedRequestsGetAValidStatusOrAClose() throws Exception {
+        byte[] seed = "GET /snapshot.jpg?fps=5 HTTP/1.1\r\nHost: cam\r\nIf-None-Match: \"x\"\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        List<Integer> allowed = Arrays.asList(200, 304, 400, 404, 405, 414, 431, 505);
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            // the seed frame stays fresh for the whole run, so no request waits for the camera
+            server.setSnapshotMaxAgeMs(60_000);
+            Random rnd = new Random(7);
+            for (int i = 0; i < 150; i++) {
+                ByteArrayOutputStream mutated = new ByteArrayOutputStream();
+                int cut = rnd.nextInt(5) == 0 ? rnd.nextInt(seed.length) : seed.length;
+                for (int k = 0; k < cut; k++) {
+                    int op = rnd.nextInt(30);
+                    if (op == 0) mutated.write(rnd.nextInt(256));            // flip
+                    else if (op == 1) {                                      // insert
+                        mutated.write(rnd.nextInt(256));
+                        mutated.write(seed[k]);
+                    } else mutated.write(seed[k]);
+                }
+                Socket s = connect();
+                s.getOutputStream().write(mutated.toByteArray());
+                s.shutdownOutput();
+                byte[] response = drain(s.getInputStream());
+                s.close();
+                if (response.length == 0) continue;
+                String text = new String(response, StandardCharsets.ISO_8859_1);
+                assertTrue(mode + " bad response to " + Arrays.toString(mutated.toByteArray()) + ": " + text,
+                        text.startsWith("HTTP/1.1 ") && allowed.contains(Integer.parseInt(text.substring(9, 12))));
+            }
+            // still healthy, and nothing above was a stream client
+            assertEquals(0, connected.get());
+            Socket s = connect();
+            send(s, "GET /snapshot.jpg HTTP/1.1\r\n\r\n");
+            assertEquals(200, SnapshotTest.read(s.getInputStream()).status());
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getSnapshotConnections() == 1);
+            tearDown();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package com.example.coolstream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load and soak harness for MjpegHttpServer: hundreds of loopback viewers, slow readers
+ * and connect/disconnect storms against one server, summarised as a Report with
+ * percentiles and pass/fail checks.
+ *
+ * - A publisher fills pooled frames (FramePool, as the encoder does) at a fixed rate; every
+ *   JPEG carries its seq and the System.nanoTime() it was published at in a COM segment,
+ *   so viewers measure end-to-end latency without any side channel
+ * - Viewers parse the multipart stream ("--ipcam" boundary, Content-Length) and record
+ *   their fps, the jitter of the gaps between frames (against the publish interval) and
+ *   the latency of every frame
+ * - Slow viewers read at a capped byte rate; the server must drop frames for them (or
+ *   evict them) without holding back anyone else
+ * - Storm threads connect and disconnect in a loop: some close before sending a request,
+ *   some right after it, some after their first frame
+ * - At the end every viewer disconnects, and the server's client list, its open
+ *   connections and the ClientListener's connect/disconnect balance must all return to
+ *   zero; after shutdown no server thread and no file descriptor may be left behind
+ *
+ * From the command line (see core/build.gradle.kts):
+ *   ./gradlew :core:soak -Pargs="--clients 300 --seconds 600 --io THREAD_PER_CLIENT"
+ */
+final class LoadGenerator {
+    private static final byte[] REQUEST = "GET /stream.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // SOI, then a COM segment holding seq and publish time
+    private static final int STAMP_OFFSET = 6;
+    private static final int STAMP_SEGMENT = 4 + 16;
+
+    static final class Config {
+        MjpegHttpServer.IoMode ioMode = MjpegHttpServer.IoMode.SELECTOR;
+        int ioThreads = 2;
+        int clients = 200;
+        int slowClients = 10;
+        int slowBytesPerSecond = 100_000;
+        int stormThreads = 4;
+        // pause between a storm thread's connections
+        long stormPauseMs = 5;
+        int publishFps = 15;
+        int jpegSize = 20_000;
+        // the camera's FramePool (CameraService.FRAME_POOL_SIZE)
+        int poolFrames = 16;
+        long durationMs = 5_000;
+        // connecting every viewer is not measured
+        long warmupMs = 1_000;
+
+        // pass/fail thresholds
+        /** Slowest normal viewer's fps (1st percentile) as a fraction of the publish rate. */
+        double minFpsRatio = 0.8;
+        long maxLatencyP99Ms = 250;
+        long maxJitterP99Ms = 150;
+        /** How long the server may take to notice that every viewer has gone. */
+        long settleMs = 5_000;
+        /** File descriptors the JVM may legitimately have opened meanwhile. */
+        int fdSlack = 16;
+
+        static Config parse(String[] args) {
+            Config c = new Config();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String v = args[i + 1];
+                switch (args[i]) {
+                    case "--io": c.ioMode = MjpegHttpServer.IoMode.valueOf(v); break;
+                    case "--io-threads": c.ioThreads = Integer.parseInt(v); break;
+                    case "--clients": c.clients = Integer.parseInt(v); break;
+                    case "--slow": c.slowClients = Integer.parseInt(v); break;
+                    case "--slow-rate": c.slowBytesPerSecond = Integer.parseInt(v); break;
+                    case "--storm": c.stormThreads = Integer.parseInt(v); break;
+                    case "--storm-pause-ms": c.stormPauseMs = Long.parseLong(v); break;
+                    case "--fps": c.publishFps = Integer.parseInt(v); break;
+                    case "--size": c.jpegSize = Integer.parseInt(v); break;
+                    case "--seconds": c.durationMs = Long.parseLong(v) * 1000; break;
+                    case "--max-latency-ms": c.maxLatencyP99Ms = Long.parseLong(v); break;
+                    case "--max-jitter-ms": c.maxJitterP99Ms = Long.parseLong(v); break;
+                    case "--min-fps-ratio": c.minFpsRatio = Double.parseDouble(v); break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            return c;
+        }
+    }
+
+    /** Outcome of one run. */
+    static final class Report {
+        final Config config;
+        final List<String> checks = new ArrayList<>();
+        boolean passed = true;
+        double[] viewerFps;
+        final Metrics.Histogram latency = new Metrics().histogram("latency", "");
+        final Metrics.Histogram jitter = new Metrics().histogram("jitter", "");
+        long published;
+        long poolExhausted;
+        long framesReceived;
+        int slowEvicted;
+        long slowFrames;
+        long stormConnects;
+        int unexpectedDisconnects;
+        int maxClients;
+        int fdBefore = -1;
+        int fdAfter = -1;
+
+        Report(Config config) { this.config = config; }
+
+        void check(String what, boolean ok) {
+            checks.add((ok ? "[PASS] " : "[FAIL] ") + what);
+            if (!ok) passed = false;
+        }
+
+        double fpsPercentile(double q) {
+            if (viewerFps.length == 0) return 0;
+            double[] sorted = viewerFps.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) Math.floor(q * sorted.length))];
+        }
+
+        private static String ms(long nanos) {
+            return String.format(Locale.US, "%.1f", nanos / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            Config c = config;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "MjpegHttpServer %s: %d viewers (%d slow), %d storm threads, %d fps x %d B, %.1f s%n",
+                    c.ioMode, c.clients, c.slowClients, c.stormThreads, c.publishFps, c.jpegSize, c.durationMs / 1000.0));
+            sb.append(String.format(Locale.US, "  fps per viewer   p1 %.1f  p10 %.1f  p50 %.1f  max %.1f%n",
+                    fpsPercentile(0.01), fpsPercentile(0.1), fpsPercentile(0.5), fpsPercentile(1)));
+            sb.append("  latency ms       p50 ").append(ms(latency.percentileNanos(0.5)))
+                    .append("  p90 ").append(ms(latency.percentileNanos(0.9)))
+                    .append("  p99 ").append(ms(latency.percentileNanos(0.99)))
+                    .append("  max ").append(ms(latency.percentileNanos(1))).append('\n');
+            sb.append("  jitter ms        p50 ").append(ms(jitter.percentileNanos(0.5)))
+                    .append("  p90 ").append(ms(jitter.percentileNanos(0.9)))
+                    .append("  p99 ").append(ms(jitter.percentileNanos(0.99)))
+                    .append("  max ").append(ms(jitter.percentileNanos(1))).append('\n');
+            sb.append("  published ").append(published).append(" (pool exhausted ").append(poolExhausted)
+                    .append("), received ").append(framesReceived).append(", slow viewers got ").append(slowFrames)
+                    .append(" (").append(slowEvicted).append(" evicted)").append('\n');
+            sb.append("  storm connects ").append(stormConnects).append(", peak clients ").append(maxClients)
+                    .append(", fds ").append(fdBefore).append(" -> ").append(fdAfter).append('\n');
+            for (String check : checks) sb.append("  ").append(check).append('\n');
+            sb.append(passed ? "PASSED" : "FAILED").append('\n');
+            return sb.toString();
+        }
+    }
+
+    // one streaming connection; records into the report while measuring
+    private final class Viewer extends Thread {
+        final boolean slow;
+        final Socket socket;
+        // written by this thread only
+        volatile long frames;
+        volatile long measuredFrames;
+        long lastArrival;
+        volatile boolean closing;
+        volatile boolean failed;
+
+        Viewer(int port, boolean slow, int i) throws IOException {
+            super("load-viewer-" + i);
+            setDaemon(true);
+            this.slow = slow;
+            this.socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(10_000);
+        }
+
+        @Override
+        public void run() {
+            byte[] body = new byte[config.jpegSize * 2];
+            try (OutputStream out = socket.getOutputStream();
+                 InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024)) {
+                out.write(REQUEST);
+                StringBuilder line = new StringBuilder();
+                int length = -1;
+                boolean inPart = false;
+                while (true) {
+                    int b = in.read();
+                    if (b < 0) break;
+                    if (b != '\n') {
+                        if (b != '\r') line.append((char) b);
+                        continue;
+                    }
+                    if (line.length() == 0 && inPart && length >= 0) {
+                        if (length > body.length) body = new byte[length];
+                        readBody(in, body, length);
+                        frameArrived(body, length);
+                        inPart = false;
+                        length = -1;
+                    } else if (line.toString().equals("--ipcam")) {
+                        inPart = true;
+                    } else if (inPart && line.indexOf("Content-Length: ") == 0) {
+                        length = Integer.parseInt(line.substring(16).trim());
+                    }
+                    line.setLength(0);
+                }
+            } catch (IOException e) {
+                // closed by us, or evicted
+            }
+            if (!closing) failed = true;
+        }
+
+        private void readBody(InputStream in, byte[] body, int length) throws IOException {
+            int chunk = slow ? Math.max(1, config.slowBytesPerSecond / 50) : length;
+            for (int off = 0; off < length; ) {
+                int n = in.read(body, off, Math.min(chunk, length - off));
+                if (n < 0) throw new IOException("cut short");
+                off += n;
+                if (slow) sleepQuietly(TimeUnit.SECONDS.toNanos(n) / config.slowBytesPerSecond);
+            }
+        }
+
+        private void frameArrived(byte[] body, int length) {
+            long now = System.nanoTime();
+            frames++;
+            if (slow || length < STAMP_OFFSET + 16 || !measuring) {
+                lastArrival = now;
+                return;
+            }
+            long published = readLong(body, STAMP_OFFSET + 8);
+            latency.record(now - published);
+            if (lastArrival != 0) jitter.record(Math.abs(now - lastArrival - publishIntervalNanos));
+            lastArrival = now;
+            measuredFrames++;
+        }
+
+        void close() {
+            closing = true;
+            try { socket.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private final Config config;
+    private final long publishIntervalNanos;
+    private final Metrics.Histogram latency;
+    private final Metrics.Histogram jitter;
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+    private final AtomicInteger listenerClients = new AtomicInteger();
+    private final AtomicInteger listenerMin = new AtomicInteger();
+    private final AtomicInteger listenerMax = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+    private final AtomicLong stormConnects = new AtomicLong();
+
+    private LoadGenerator(Config config, Report report) {
+        this.config = config;
+        this.publishIntervalNanos = TimeUnit.SECONDS.toNanos(1) / config.publishFps;
+        this.latency = report.latency;
+        this.jitter = report.jitter;
+    }
+
+    static Report run(Config config) throws Exception {
+        Report report = new Report(config);
+        new LoadGenerator(config, report).run(report);
+        return report;
+    }
+
+    private void run(Report report) throws Exception {
+        report.fdBefore = openFileDescriptors();
+        FrameSlot slot = new FrameSlot();
+        MjpegHttpServer server = new MjpegHttpServer(0, slot, config.ioMode, config.ioThreads);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() {
+                int n = listenerClients.incrementAndGet();
+                listenerMax.accumulateAndGet(n, Math::max);
+            }
+            @Override public void onClientDisconnected() {
+                int n = listenerClients.decrementAndGet();
+                listenerMin.accumulateAndGet(n, Math::min);
+            }
+            @Override public void onClientEvicted(String remote, String reason) { evicted.incrementAndGet(); }
+        });
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        if (port < 0) throw new IllegalStateException("server did not start");
+
+        FramePool pool = new FramePool(config.poolFrames, config.jpegSize);
+        AtomicLong published = new AtomicLong();
+        AtomicLong exhausted = new AtomicLong();
+        Thread publisher = new Thread(() -> publish(slot, pool, published, exhausted), "load-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+
+        List<Viewer> viewers = new ArrayList<>();
+        List<Thread> storms = new ArrayList<>();
+        try {
+            for (int i = 0; i < config.clients; i++) {
+                Viewer v = new Viewer(port, i < config.slowClients, i);
+                viewers.add(v);
+                v.start();
+            }
+            for (int i = 0; i < config.stormThreads; i++) {
+                final long seed = i;
+                Thread t = new Thread(() -> storm(port, seed), "load-storm-" + i);
+                t.setDaemon(true);
+                t.start();
+                storms.add(t);
+            }
+            Thread.sleep(config.warmupMs);
+            long start = System.nanoTime();
+            measuring = true;
+            Thread.sleep(config.durationMs);
+            measuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report.maxClients = listenerMax.get();
+
+            running = false;
+            for (Thread t : storms) t.join(5_000);
+            int normal = 0;
+            for (Viewer v : viewers) if (!v.slow) normal++;
+            report.viewerFps = new double[normal];
+            int k = 0;
+            for (Viewer v : viewers) {
+                if (v.slow) {
+                    report.slowFrames += v.frames;
+                    continue;
+                }
+                report.viewerFps[k++] = v.measuredFrames / seconds;
+                report.framesReceived += v.frames;
+                if (v.failed) report.unexpectedDisconnects++;
+            }
+            for (Viewer v : viewers) v.close();
+            for (Viewer v : viewers) v.join(5_000);
+            for (Viewer v : viewers) if (v.slow && v.failed) report.slowEvicted++;
+
+            // blocking clients only notice a closed socket on their next write, so keep publishing
+            long deadline = System.currentTimeMillis() + config.settleMs;
+            while (System.currentTimeMillis() < deadline
+                    && (!server.getClientStats().isEmpty() || server.getOpenConnections() != 0 || listenerClients.get() != 0)) {
+                Thread.sleep(20);
+            }
+            report.check("server client list empty after churn (" + server.getClientStats().size() + ")",
+                    server.getClientStats().isEmpty());
+            report.check("server open connections zero after churn (" + server.getOpenConnections() + ")",
+                    server.getOpenConnections() == 0);
+            report.check("listener connects and disconnects balance (" + listenerClients.get()
+                    + ", never below zero: " + listenerMin.get() + ")", listenerClients.get() == 0 && listenerMin.get() >= 0);
+        } finally {
+            running = false;
+            measuring = false;
+            for (Viewer v : viewers) v.close();
+            publisher.interrupt();
+            publisher.join(5_000);
+            server.shutdown();
+            server.join(5_000);
+        }
+        report.published = published.get();
+        report.poolExhausted = exhausted.get();
+        report.stormConnects = stormConnects.get();
+
+        int leaked = serverThreads();
+        long deadline = System.currentTimeMillis() + config.settleMs;
+        while (leaked > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            leaked = serverThreads();
+        }
+        report.check("no server threads left after shutdown (" + leaked + ")", leaked == 0);
+        report.fdAfter = openFileDescriptors();
+        if (report.fdBefore >= 0) {
+            report.check("no sockets leaked (fds " + report.fdBefore + " -> " + report.fdAfter + ")",
+                    report.fdAfter <= report.fdBefore + config.fdSlack);
+        }
+
+        double minFps = config.publishFps * config.minFpsRatio;
+        report.check(String.format(Locale.US, "slowest viewers (p1) at >= %.1f fps: %.1f", minFps, report.fpsPercentile(0.01)),
+                report.fpsPercentile(0.01) >= minFps);
+        long p99 = latency.percentileNanos(0.99);
+        report.check("latency p99 " + Report.ms(p99) + " ms <= " + config.maxLatencyP99Ms + " ms",
+                latency.count() > 0 && p99 <= TimeUnit.MILLISECONDS.toNanos(config.maxLatencyP99Ms));
+        long j99 = jitter.percentileNanos(0.99);
+        report.check("jitter p99 " + Report.ms(j99) + " ms <= " + config.maxJitterP99Ms + " ms",
+                j99 <= TimeUnit.MILLISECONDS.toNanos(config.maxJitterP99Ms));
+        report.check("no normal viewer disconnected (" + report.unexpectedDisconnects + ")", report.unexpectedDisconnects == 0);
+        report.check("peak clients reached " + config.clients + " (" + report.maxClients + ")", report.maxClients >= config.clients);
+    }
+
+    // publishes a stamped JPEG every interval, like the encoder filling pooled frames
+    private void publish(FrameSlot slot, FramePool pool, AtomicLong published, AtomicLong exhausted) {
+        byte[] jpeg = new byte[config.jpegSize];
+        new Random(1).nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        jpeg[3] = (byte) 0xFE;
+        jpeg[4] = 0;
+        jpeg[5] = (byte) (STAMP_SEGMENT - 2);
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        long next = System.nanoTime();
+        long seq = 0;
+        // runs until interrupted: blocking clients need frames to notice disconnects
+        while (!Thread.currentThread().isInterrupted()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0 && !sleepQuietly(wait)) return;
+            next += publishIntervalNanos;
+            FrameSlot.Frame f = pool.acquire();
+            if (f == null) {
+                exhausted.incrementAndGet();
+                continue;
+            }
+            long now = System.nanoTime();
+            writeLong(jpeg, STAMP_OFFSET, ++seq);
+            writeLong(jpeg, STAMP_OFFSET + 8, now);
+            try {
+                f.output().write(jpeg, 0, jpeg.length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            slot.publish(f, now);
+            published.incrementAndGet();
+        }
+    }
+
+    // connects and disconnects until the run ends
+    private void storm(int port, long seed) {
+        Random r = new Random(seed);
+        byte[] buf = new byte[4096];
+        while (running) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                stormConnects.incrementAndGet();
+                s.setSoTimeout(2_000);
+                int mode = r.nextInt(3);
+                if (mode == 0) continue;
+                s.getOutputStream().write(REQUEST);
+                if (mode == 1) continue;
+                // stay for the stream header and (most of) a first frame
+                InputStream in = s.getInputStream();
+                int want = MjpegHttpServer.STREAM_HEADER.length() + r.nextInt(config.jpegSize);
+                for (int got = 0; got < want; ) {
+                    int n = in.read(buf);
+                    if (n < 0) break;
+                    got += n;
+                }
+            } catch (IOException ignored) {
+                // the server may be busy; try again
+            }
+            if (!sleepQuietly(TimeUnit.MILLISECONDS.toNanos(config.stormPauseMs))) return;
+        }
+    }
+
+    private static int serverThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            String name = t.getName();
+            if (t.isAlive() && (name.startsWith("mjpeg-") || name.equals("MjpegHttpServer"))) n++;
+        }
+        return n;
+    }
+
+    // -1 where the JVM does not expose it
+    private static int openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return (int) ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    private static boolean sleepQuietly(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void writeLong(byte[] a, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            a[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] a, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = v << 8 | (a[off + i] & 0xFF);
+        return v;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Report report = run(Config.parse(args));
+        System.out.print(report);
+        System.exit(report.passed ? 0 : 1);
+    }
+}
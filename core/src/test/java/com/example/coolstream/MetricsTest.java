@@ -0,0 +1,289 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.example.coolstream.MjpegHttpServerSelectorTest.readPart;
+import static com.example.coolstream.MjpegHttpServerSelectorTest.syntheticJpeg;
+import static com.example.coolstream.MjpegHttpServerSelectorTest.waitFor;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    private MjpegHttpServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        if (server != null) server.shutdown();
+        sockets.clear();
+        server = null;
+    }
+
+    @Test
+    public void bucketsAreLogLinear() {
+        Random rnd = new Random(1);
+        int last = -1;
+        for (int i = 0; i < Metrics.Histogram.BUCKETS; i++) {
+            long lo = Metrics.Histogram.lowerBound(i);
+            assertEquals(i, Metrics.Histogram.bucket(lo));
+            if (i > 0) assertEquals(i - 1, Metrics.Histogram.bucket(lo - 1));
+            if (i < Metrics.Histogram.BUCKETS - 1) {
+                long hi = Metrics.Histogram.upperBound(i);
+                assertEquals(i, Metrics.Histogram.bucket(hi));
+                // 8 sub-buckets per power of two: no bucket is wider than 1/8 of its values
+                if (lo >= Metrics.Histogram.SUB) assertTrue("bucket " + i, (hi - lo + 1) * 8 <= lo);
+            }
+        }
+        for (int k = 0; k < 100_000; k++) {
+            long v = rnd.nextLong() >>> (1 + rnd.nextInt(63));
+            int b = Metrics.Histogram.bucket(v);
+            assertTrue(v >= Metrics.Histogram.lowerBound(b) && v <= Metrics.Histogram.upperBound(b));
+        }
+        for (long v = 0; v < 100_000; v++) {
+            int b = Metrics.Histogram.bucket(v);
+            assertTrue(b == last || b == last + 1);
+            last = b;
+        }
+        assertEquals(0, Metrics.Histogram.bucket(-5));
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAndPrometheusText() {
+        Metrics m = new Metrics();
+        Metrics.Histogram h = m.histogram("test_latency_seconds", "Latency");
+        LongAdder c = m.counter("test_events_total", "Events");
+        long[] gauge = {7};
+        m.gauge("test_depth", "Depth", () -> gauge[0]);
+        for (int us = 1; us <= 1000; us++) h.record(us * 1000L);
+        c.add(42);
+
+        assertEquals(1000, h.count());
+        assertEquals(500_500_000L, h.sumNanos());
+        long p50 = h.percentileNanos(0.5);
+        long p99 = h.percentileNanos(0.99);
+        assertTrue("p50 " + p50, p50 >= 500_000 && p50 <= 500_000 * 9 / 8);
+        assertTrue("p99 " + p99, p99 >= 990_000 && p99 <= 990_000 * 9 / 8);
+        assertEquals(0, new Metrics().histogram("x", "x").percentileNanos(0.5));
+
+        Map<String, String> series = parse(m.scrape());
+        assertEquals("42", series.get("test_events_total"));
+        assertEquals("7", series.get("test_depth"));
+        assertEquals("1000", series.get("test_latency_seconds_count"));
+        assertEquals("1000", series.get("test_latency_seconds_bucket{le=\"+Inf\"}"));
+        assertEquals(0.5005, Double.parseDouble(series.get("test_latency_seconds_sum")), 1e-9);
+        // 2^20 - 1 ns (~1.05 ms) holds everything, 2^10 - 1 ns (~1 us) only the 1 us value
+        assertEquals("1000", series.get("test_latency_seconds_bucket{le=\"" + (1048575 / 1e9) + "\"}"));
+        assertEquals("1", series.get("test_latency_seconds_bucket{le=\"" + (1023 / 1e9) + "\"}"));
+        long previous = 0;
+        for (Map.Entry<String, String> e : series.entrySet()) {
+            if (!e.getKey().startsWith("test_latency_seconds_bucket")) continue;
+            long n = Long.parseLong(e.getValue());
+            assertTrue(e.getKey(), n >= previous);
+            previous = n;
+        }
+
+        // a value equal to a bound is counted in it, one above is not
+        Metrics edges = new Metrics();
+        Metrics.Histogram edge = edges.histogram("edge_seconds", "Edges");
+        edge.record(1023);
+        edge.record(1024);
+        series = parse(edges.scrape());
+        assertEquals("1", series.get("edge_seconds_bucket{le=\"" + (1023 / 1e9) + "\"}"));
+        assertEquals("2", series.get("edge_seconds_bucket{le=\"" + (2047 / 1e9) + "\"}"));
+
+        // registering a name again replaces it
+        gauge[0] = 3;
+        m.gauge("test_depth", "Depth", () -> 9);
+        series = parse(m.scrape());
+        assertEquals("9", series.get("test_depth"));
+        String text = m.scrape();
+        assertEquals(text.indexOf("# TYPE test_depth gauge"), text.lastIndexOf("# TYPE test_depth gauge"));
+        assertTrue(text.contains("# TYPE test_latency_seconds histogram\n"));
+        assertTrue(text.contains("# HELP test_events_total Events\n"));
+    }
+
+    @Test
+    public void concurrentRecordingIsExact() throws Exception {
+        Metrics.Histogram h = new Metrics().histogram("h", "h");
+        LongAdder c = new Metrics().counter("c", "c");
+        int threads = 8;
+        int each = 200_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread th = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                for (int i = 0; i < each; i++) {
+                    h.record(i);
+                    c.increment();
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        start.countDown();
+        for (Thread th : ts) th.join();
+        assertEquals((long) threads * each, h.count());
+        assertEquals((long) threads * each, c.sum());
+        assertEquals((long) threads * ((long) each * (each - 1) / 2), h.sumNanos());
+    }
+
+    /**
+     * One event is a histogram record() plus a counter increment, the work a stream client
+     * does per frame; it must not allocate. MetricsBenchmark measures how long it takes.
+     */
+    @Test
+    public void recordingDoesNotAllocate() throws Exception {
+        Metrics m = new Metrics();
+        Metrics.Histogram h = m.histogram("bench_seconds", "bench");
+        LongAdder c = m.counter("bench_total", "bench");
+        // warm up the JIT, so nothing is allocated by the interpreter or while compiling
+        for (int round = 0; round < 3; round++) recordLoop(h, c, 1_000_000);
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        recordLoop(h, c, 1_000_000);
+        long allocated = mx.getThreadAllocatedBytes(id) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void recordLoop(Metrics.Histogram h, LongAdder c, int n) {
+        for (int i = 0; i < n; i++) {
+            // spread values over many buckets like real latencies
+            h.record((i * 2654435761L) & 0xFFFFFFL);
+            c.increment();
+        }
+    }
+
+    @Test
+    public void metricsEndpointThreadPerClient() throws Exception {
+        metricsEndpoint(MjpegHttpServer.IoMode.THREAD_PER_CLIENT);
+    }
+
+    @Test
+    public void metricsEndpointSelector() throws Exception {
+        metricsEndpoint(MjpegHttpServer.IoMode.SELECTOR);
+    }
+
+    private void metricsEndpoint(MjpegHttpServer.IoMode mode) throws Exception {
+        FrameSlot slot = new FrameSlot();
+        StreamMetrics metrics = new StreamMetrics();
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setMetrics(metrics);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+
+        Socket stream = connect(port);
+        stream.getOutputStream().write("GET /stream.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        InputStream in = stream.getInputStream();
+        waitFor(() -> server.getClientStats().size() == 1);
+        for (int i = 1; i <= 5; i++) {
+            slot.publish(syntheticJpeg(i));
+            assertNotNull(readPart(in));
+        }
+        waitFor(() -> metrics.framesSent.sum() == 5);
+
+        // two scrapes over one persistent connection
+        Socket scraper = connect(port);
+        InputStream sin = scraper.getInputStream();
+        for (int k = 0; k < 2; k++) {
+            scraper.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            SnapshotTest.Response r = SnapshotTest.read(sin);
+            assertNotNull(r);
+            assertEquals(200, r.status());
+            assertEquals(Metrics.CONTENT_TYPE, r.header("Content-Type"));
+            Map<String, String> series = parse(new String(r.body, StandardCharsets.UTF_8));
+            assertEquals("5", series.get("coolstream_frames_sent_total"));
+            assertEquals("5", series.get("coolstream_frames_published_total"));
+            assertEquals("5", series.get("coolstream_publish_to_send_seconds_count"));
+            assertEquals("5", series.get("coolstream_client_write_seconds_count"));
+            assertEquals("1", series.get("coolstream_active_clients"));
+            assertEquals("0", series.get("coolstream_client_frames_dropped_total"));
+            assertTrue(Long.parseLong(series.get("coolstream_bytes_sent_total")) > 5 * 1000);
+            assertEquals("0", series.get("coolstream_requests_rejected_total"));
+        }
+        // scrapers are not clients
+        assertEquals(1, server.getClientStats().size());
+
+        stream.close();
+        // a blocking client only notices the close when it writes the next frame
+        waitFor(() -> {
+            slot.publish(syntheticJpeg(6));
+            return server.getClientStats().isEmpty();
+        });
+        scraper.getOutputStream().write("GET /metrics HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        SnapshotTest.Response r = SnapshotTest.read(sin);
+        assertEquals("close", r.header("Connection"));
+        assertEquals("0", parse(new String(r.body, StandardCharsets.UTF_8)).get("coolstream_active_clients"));
+        assertEquals(-1, sin.read());
+    }
+
+    @Test
+    public void metricsEndpointIsGoneAfterMetricsAreCleared() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            server = new MjpegHttpServer(0, new FrameSlot(), mode, 1);
+            server.setMetrics(new StreamMetrics());
+            server.setMetrics(null);
+            server.start();
+            Socket scraper = connect(server.awaitListening(5, TimeUnit.SECONDS));
+            InputStream sin = scraper.getInputStream();
+            // the connection survives the 404
+            for (int k = 0; k < 2; k++) {
+                scraper.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                SnapshotTest.Response r = SnapshotTest.read(sin);
+                assertNotNull(mode.toString(), r);
+                assertEquals(mode.toString(), 404, r.status());
+            }
+            tearDown();
+        }
+    }
+
+    private Socket connect(int port) throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(5000);
+        sockets.add(s);
+        return s;
+    }
+
+    // series name (with labels) -> value, in order; checks every sample has HELP and TYPE
+    private static Map<String, String> parse(String text) {
+        Map<String, String> series = new java.util.LinkedHashMap<>();
+        Map<String, String> types = new HashMap<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("# TYPE ")) {
+                String[] p = line.split(" ");
+                types.put(p[2], p[3]);
+                continue;
+            }
+            if (line.startsWith("#") || line.isEmpty()) continue;
+            int space = line.lastIndexOf(' ');
+            String name = line.substring(0, space);
+            String family = name.replaceAll("\\{.*", "").replaceAll("_(bucket|sum|count)$", "");
+            assertTrue("no TYPE for " + name, types.containsKey(family) || types.containsKey(name));
+            series.put(name, line.substring(space + 1));
+        }
+        return series;
+    }
+}
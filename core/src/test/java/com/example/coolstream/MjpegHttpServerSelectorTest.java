@@ -0,0 +1,152 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the selector engine with 200 loopback clients and checks that the server
+ * does not grow a thread per connection.
+ */
+public class MjpegHttpServerSelectorTest {
+    private static final int CLIENTS = 200;
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    private volatile byte[] frame = syntheticJpeg(0);
+    private MjpegHttpServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    static byte[] syntheticJpeg(int n) {
+        byte[] b = new byte[2048 + (n % 7) * 100];
+        b[0] = (byte) 0xFF; b[1] = (byte) 0xD8;
+        b[2] = (byte) n;
+        b[b.length - 2] = (byte) 0xFF; b[b.length - 1] = (byte) 0xD9;
+        return b;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MjpegHttpServer(0, () -> frame, MjpegHttpServer.IoMode.SELECTOR, 2);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { connected.incrementAndGet(); }
+            @Override public void onClientDisconnected() { disconnected.incrementAndGet(); }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void threadCountStaysFlatWith200Clients() throws Exception {
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        assertTrue(port > 0);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        int baseline = mx.getThreadCount();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            s.setSoTimeout(5000);
+            s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            sockets.add(s);
+        }
+        waitFor(() -> connected.get() == CLIENTS);
+        frame = syntheticJpeg(1);
+
+        // every client receives the stream header and at least one complete part
+        for (Socket s : sockets) assertTrue(readsOnePart(s.getInputStream()));
+
+        int peak = mx.getThreadCount();
+        assertTrue("threads grew from " + baseline + " to " + peak, peak <= baseline + 2);
+
+        for (Socket s : sockets) s.close();
+        waitFor(() -> disconnected.get() == CLIENTS);
+        assertEquals(CLIENTS, connected.get());
+    }
+
+    @Test
+    public void clientsGetNewFramesOnlyOnce() throws Exception {
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(2000);
+        sockets.add(s);
+        s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        InputStream in = s.getInputStream();
+        assertTrue(readsOnePart(in));
+        // the frame has not changed, so nothing else should arrive
+        s.setSoTimeout(300);
+        try {
+            int b = in.read();
+            fail("unexpected byte " + b);
+        } catch (java.net.SocketTimeoutException expected) {
+        }
+        s.setSoTimeout(2000);
+        frame = syntheticJpeg(2);
+        assertTrue(readsOnePart(in));
+    }
+
+    // reads up to and including the next complete JPEG part
+    static boolean readsOnePart(InputStream in) throws Exception {
+        byte[] body = readPart(in);
+        return body != null && (body[0] & 0xFF) == 0xFF && (body[1] & 0xFF) == 0xD8;
+    }
+
+    // body of the next multipart part, or null at end of stream
+    static byte[] readPart(InputStream in) throws Exception {
+        StringBuilder line = new StringBuilder();
+        int contentLength = -1;
+        boolean inPart = false;
+        while (true) {
+            int b = in.read();
+            if (b < 0) return null;
+            if (b != '\n') {
+                if (b != '\r') line.append((char) b);
+                continue;
+            }
+            String l = line.toString();
+            line.setLength(0);
+            if (l.equals("--ipcam")) inPart = true;
+            else if (inPart && l.startsWith("Content-Length: ")) contentLength = Integer.parseInt(l.substring(16).trim());
+            else if (inPart && l.isEmpty() && contentLength >= 0) {
+                byte[] body = new byte[contentLength];
+                int off = 0;
+                while (off < contentLength) {
+                    int n = in.read(body, off, contentLength - off);
+                    if (n < 0) return null;
+                    off += n;
+                }
+                return body;
+            }
+        }
+    }
+
+    interface Condition { boolean met(); }
+
+    static void waitFor(Condition c) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!c.met()) {
+            if (System.currentTimeMillis() > deadline) fail("condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
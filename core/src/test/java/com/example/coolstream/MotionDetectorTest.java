@@ -0,0 +1,156 @@
+package com.example.coolstream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MotionDetectorTest {
+    private static final int W = 640, H = 480;
+    private static final long FRAME_NANOS = 33_333_333L;
+
+    private final Random rnd = new Random(5);
+
+    // textured scene with sensor noise, an optional bright square and a global brightness offset
+    private byte[] frame(int squareX, int squareY, int brightness) {
+        byte[] nv21 = new byte[Nv21.size(W, H)];
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                int v = 70 + (x * 7 + y * 3) % 60 + ((x / 40 + y / 40) % 2) * 30 + brightness + rnd.nextInt(7) - 3;
+                if (squareX >= 0 && x >= squareX && x < squareX + 48 && y >= squareY && y < squareY + 48) v = 240;
+                nv21[y * W + x] = (byte) Math.max(0, Math.min(255, v));
+            }
+        }
+        for (int i = W * H; i < nv21.length; i++) nv21[i] = (byte) 128;
+        return nv21;
+    }
+
+    @Test
+    public void noisyStaticSceneIsNotMotion() {
+        MotionDetector md = new MotionDetector();
+        long t = 0;
+        for (int i = 0; i < 60; i++, t += FRAME_NANOS) {
+            int m = md.analyze(frame(-1, 0, 0), W, H, t);
+            assertFalse("frame " + i, MotionDetector.isActive(m));
+            assertEquals(0, MotionDetector.score(m));
+        }
+        assertEquals(60, md.framesAnalyzed());
+        assertEquals(0, md.motionEvents());
+    }
+
+    @Test
+    public void movingObjectIsDetectedAndLearnedOnceItStops() {
+        MotionDetector md = new MotionDetector();
+        long t = 0;
+        for (int i = 0; i < 10; i++, t += FRAME_NANOS) md.analyze(frame(-1, 0, 0), W, H, t);
+        // a 48x48 square (~1% of the frame) crossing the scene
+        for (int i = 0; i < 30; i++, t += FRAME_NANOS) {
+            int m = md.analyze(frame(20 + i * 16, 200, 0), W, H, t);
+            assertTrue("frame " + i + " score " + MotionDetector.score(m), MotionDetector.isActive(m));
+            assertTrue(MotionDetector.score(m) >= 6);
+        }
+        assertEquals(1, md.motionEvents());
+        assertEquals(30, md.motionFrames());
+        // it stops; the background absorbs it and motion ends after the hold time
+        int m = 0;
+        for (int i = 0; i < 300; i++, t += FRAME_NANOS) m = md.analyze(frame(20 + 29 * 16, 200, 0), W, H, t);
+        assertFalse(MotionDetector.isActive(m));
+        assertFalse(md.isMotion());
+        assertEquals(0, md.score());
+        assertEquals(1, md.motionEvents());
+    }
+
+    @Test
+    public void globalBrightnessChangeIsNotMotion() {
+        MotionDetector md = new MotionDetector();
+        long t = 0;
+        for (int i = 0; i < 10; i++, t += FRAME_NANOS) md.analyze(frame(-1, 0, 0), W, H, t);
+        // auto exposure jumps by 40 levels, then settles back
+        for (int i = 0; i < 20; i++, t += FRAME_NANOS) {
+            assertEquals(0, MotionDetector.score(md.analyze(frame(-1, 0, i < 10 ? 40 : 0), W, H, t)));
+        }
+        assertEquals(0, md.motionEvents());
+    }
+
+    @Test
+    public void idleSceneIsTrickledAtIdleFps() {
+        MotionDetector md = new MotionDetector();
+        md.setIdleFps(2);
+        byte[] still = frame(-1, 0, 0);
+        long t = 0;
+        int admitted = 0;
+        // three seconds of an idle 30 fps scene: the first frame, then one every 500 ms
+        for (int i = 0; i < 90; i++, t += FRAME_NANOS) {
+            md.analyze(still, W, H, t);
+            if (md.shouldEncode(t)) admitted++;
+        }
+        assertEquals(6, admitted);
+        assertEquals(84, md.framesTrickled());
+        // every frame goes through while something moves
+        for (int i = 0; i < 20; i++, t += FRAME_NANOS) {
+            md.analyze(frame(100 + i * 16, 100, 0), W, H, t);
+            assertTrue(md.shouldEncode(t));
+        }
+        md.setIdleFps(0);
+        assertTrue(md.shouldEncode(t));
+    }
+
+    @Test
+    public void pipelineTagsFramesAndRecyclesIdleCaptures() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        FrameEncoder encoder = new FrameEncoder(slot, new FramePool(4, 4096), new JpegEncoder() {
+            @Override
+            public void compress(byte[] nv21, int width, int height, int quality, OutputStream out) throws java.io.IOException {
+                out.write(nv21, 0, 64);
+            }
+        });
+        encoder.setSize(W, H);
+        AtomicInteger recycled = new AtomicInteger();
+        EncodePipeline pipeline = new EncodePipeline(encoder, 1, 2, b -> recycled.incrementAndGet());
+        MotionDetector md = new MotionDetector();
+        pipeline.setMotionDetector(md);
+        byte[] still = frame(-1, 0, 0);
+        long t = 0;
+        for (int i = 0; i < 30; i++, t += FRAME_NANOS) pipeline.submit(still, t);
+        // one frame per idle second reaches the encoder stage (parked: nobody wants it), the
+        // rest go straight back to the camera
+        assertEquals(29, pipeline.framesIdle());
+        assertEquals(29, recycled.get());
+        pipeline.drain();
+        assertEquals(30, recycled.get());
+
+        // frames published for a moving scene carry its metadata
+        md.analyze(frame(300, 300, 0), W, H, t);
+        int m = md.analyze(frame(316, 300, 0), W, H, t + FRAME_NANOS);
+        encoder.encode(still, t, m);
+        FrameSlot.Frame f = slot.latest();
+        assertTrue(f.hasMotion());
+        assertEquals(MotionDetector.score(m), f.motionScore());
+        assertTrue(f.motionScore() > 0);
+    }
+
+    // MotionDetectorBenchmark measures how long analysis takes
+    @Test
+    public void analysisDoesNotAllocateOnceSized() {
+        MotionDetector md = new MotionDetector();
+        byte[][] frames = {frame(-1, 0, 0), frame(100, 100, 0), frame(200, 100, 0), frame(-1, 0, 10)};
+        long t = 0;
+        // warm up the JIT, so nothing is allocated by the interpreter or while compiling
+        for (int i = 0; i < 4000; i++, t += FRAME_NANOS) md.analyze(frames[i & 3], W, H, t);
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++, t += FRAME_NANOS) md.analyze(frames[i & 3], W, H, t);
+        long allocated = mx.getThreadAllocatedBytes(id) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
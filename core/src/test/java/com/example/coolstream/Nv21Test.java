@@ -0,0 +1,187 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Nv21Test {
+
+    // Reference image: gradients with a different slope per channel so any misplaced sample shows.
+    static byte[] image(int w, int h) {
+        byte[] b = new byte[Nv21.size(w, h)];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) b[y * w + x] = (byte) (x * 7 + y * 13);
+        }
+        for (int cy = 0; cy < h / 2; cy++) {
+            for (int cx = 0; cx < w / 2; cx++) {
+                b[w * h + cy * w + 2 * cx] = (byte) (cx * 5 + cy * 3 + 40);
+                b[w * h + cy * w + 2 * cx + 1] = (byte) (cx * 11 + cy * 2 + 90);
+            }
+        }
+        return b;
+    }
+
+    static int y(byte[] img, int w, int x, int y) { return img[y * w + x] & 0xFF; }
+    static int v(byte[] img, int w, int h, int cx, int cy) { return img[w * h + cy * w + 2 * cx] & 0xFF; }
+    static int u(byte[] img, int w, int h, int cx, int cy) { return img[w * h + cy * w + 2 * cx + 1] & 0xFF; }
+
+    // channel accessor: 0 = Y, 1 = V, 2 = U
+    static int sample(byte[] img, int w, int h, int channel, int x, int y) {
+        return channel == 0 ? y(img, w, x, y) : channel == 1 ? v(img, w, h, x, y) : u(img, w, h, x, y);
+    }
+
+    // Straightforward area average per output sample, written independently of Nv21.scaleBox.
+    static int boxReference(byte[] img, int sw, int sh, int channel, int dw, int dh, int x, int y) {
+        int pw = channel == 0 ? sw : sw / 2, ph = channel == 0 ? sh : sh / 2;
+        int qw = channel == 0 ? dw : dw / 2, qh = channel == 0 ? dh : dh / 2;
+        int x0 = (int) Math.floor((double) x * pw / qw), x1 = Math.max(x0 + 1, (int) Math.floor((double) (x + 1) * pw / qw));
+        int y0 = (int) Math.floor((double) y * ph / qh), y1 = Math.max(y0 + 1, (int) Math.floor((double) (y + 1) * ph / qh));
+        double sum = 0;
+        for (int sy = y0; sy < y1; sy++) {
+            for (int sx = x0; sx < x1; sx++) sum += sample(img, sw, sh, channel, sx, sy);
+        }
+        return (int) Math.round(sum / ((x1 - x0) * (y1 - y0)));
+    }
+
+    private static void assertBoxMatchesReference(int sw, int sh, int dw, int dh) {
+        byte[] src = image(sw, sh);
+        byte[] dst = new byte[Nv21.size(dw, dh)];
+        Nv21.scaleBox(src, sw, sh, dst, dw, dh);
+        for (int c = 0; c < 3; c++) {
+            int qw = c == 0 ? dw : dw / 2, qh = c == 0 ? dh : dh / 2;
+            for (int y = 0; y < qh; y++) {
+                for (int x = 0; x < qw; x++) {
+                    assertEquals(sw + "x" + sh + "->" + dw + "x" + dh + " channel " + c + " at " + x + "," + y,
+                            boxReference(src, sw, sh, c, dw, dh, x, y), sample(dst, dw, dh, c, x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boxDownscaleMatchesReferenceForIntegerAndFractionalFactors() {
+        assertBoxMatchesReference(64, 48, 32, 24);     // 2x
+        assertBoxMatchesReference(64, 48, 16, 12);     // 4x
+        assertBoxMatchesReference(640, 480, 480, 360); // 4/3
+        assertBoxMatchesReference(640, 480, 200, 150); // 3.2x
+    }
+
+    @Test
+    public void boxFilterAveragesACheckerboardWhereNearestAliases() {
+        int w = 32, h = 32;
+        byte[] src = new byte[Nv21.size(w, h)];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) src[y * w + x] = (byte) (((x + y) & 1) == 0 ? 0 : 255);
+        }
+        Arrays.fill(src, w * h, src.length, (byte) 128);
+        byte[] box = new byte[Nv21.size(16, 16)];
+        byte[] nearest = new byte[Nv21.size(16, 16)];
+        Nv21.scaleBox(src, w, h, box, 16, 16);
+        Nv21.scaleNearest(src, w, h, nearest, 16, 16);
+        for (int i = 0; i < 16 * 16; i++) {
+            assertEquals(128, box[i] & 0xFF);
+            assertEquals(0, nearest[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void nearestPicksTheCoveringSourceSample() {
+        int sw = 640, sh = 480;
+        byte[] src = image(sw, sh);
+        int[][] sizes = {{320, 240}, {160, 120}, {480, 360}, {200, 150}};
+        for (int[] d : sizes) {
+            int dw = d[0], dh = d[1];
+            byte[] dst = new byte[Nv21.size(dw, dh)];
+            Nv21.scaleNearest(src, sw, sh, dst, dw, dh);
+            for (int y = 0; y < dh; y++) {
+                for (int x = 0; x < dw; x++) {
+                    int sx = x * sw / dw, sy = y * sh / dh;
+                    int got = y(dst, dw, x, y);
+                    // fixed-point stepping may land one sample early on fractional factors
+                    boolean ok = got == y(src, sw, sx, sy) || got == y(src, sw, Math.max(0, sx - 1), sy)
+                            || got == y(src, sw, sx, Math.max(0, sy - 1)) || got == y(src, sw, Math.max(0, sx - 1), Math.max(0, sy - 1));
+                    assertTrue(dw + "x" + dh + " at " + x + "," + y, ok);
+                }
+            }
+            if (sw % dw == 0) {
+                int k = sw / dw;
+                for (int cy = 0; cy < dh / 2; cy++) {
+                    for (int cx = 0; cx < dw / 2; cx++) {
+                        assertEquals(v(src, sw, sh, cx * k, cy * k), v(dst, dw, dh, cx, cy));
+                        assertEquals(u(src, sw, sh, cx * k, cy * k), u(dst, dw, dh, cx, cy));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cropCopiesTheRegionAndRoundsToEven() {
+        int w = 64, h = 48;
+        byte[] src = image(w, h);
+        byte[] dst = new byte[Nv21.size(20, 10)];
+        Nv21.crop(src, w, h, 11, 7, 20, 10, dst);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 20; x++) assertEquals(y(src, w, 10 + x, 6 + y), y(dst, 20, x, y));
+        }
+        for (int cy = 0; cy < 5; cy++) {
+            for (int cx = 0; cx < 10; cx++) {
+                assertEquals(v(src, w, h, 5 + cx, 3 + cy), v(dst, 20, 10, cx, cy));
+                assertEquals(u(src, w, h, 5 + cx, 3 + cy), u(dst, 20, 10, cx, cy));
+            }
+        }
+    }
+
+    @Test
+    public void grayscaleKeepsLumaAndNeutralisesChroma() {
+        int w = 32, h = 16;
+        byte[] src = image(w, h);
+        byte[] dst = new byte[src.length];
+        Nv21.grayscale(src, w, h, dst);
+        assertArrayEquals(Arrays.copyOf(src, w * h), Arrays.copyOf(dst, w * h));
+        for (int i = w * h; i < dst.length; i++) assertEquals(128, dst[i] & 0xFF);
+        byte[] luma = new byte[w * h];
+        Nv21.luma(src, w, h, luma);
+        assertArrayEquals(Arrays.copyOf(src, w * h), luma);
+        // in place
+        Nv21.grayscale(src, w, h, src);
+        assertArrayEquals(dst, src);
+    }
+
+    @Test
+    public void rotationMovesEverySampleToItsPlace() {
+        int w = 8, h = 6;
+        byte[] src = image(w, h);
+        byte[] r90 = new byte[src.length], r180 = new byte[src.length], r270 = new byte[src.length];
+        Nv21.rotate(src, w, h, r90, 90);
+        Nv21.rotate(src, w, h, r180, 180);
+        Nv21.rotate(src, w, h, r270, 270);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                assertEquals(y(src, w, x, y), y(r90, h, h - 1 - y, x));
+                assertEquals(y(src, w, x, y), y(r180, w, w - 1 - x, h - 1 - y));
+                assertEquals(y(src, w, x, y), y(r270, h, y, w - 1 - x));
+            }
+        }
+        int cw = w / 2, ch = h / 2;
+        for (int cy = 0; cy < ch; cy++) {
+            for (int cx = 0; cx < cw; cx++) {
+                assertEquals(v(src, w, h, cx, cy), v(r90, h, w, ch - 1 - cy, cx));
+                assertEquals(u(src, w, h, cx, cy), u(r90, h, w, ch - 1 - cy, cx));
+                assertEquals(v(src, w, h, cx, cy), v(r180, w, h, cw - 1 - cx, ch - 1 - cy));
+                assertEquals(u(src, w, h, cx, cy), u(r270, h, w, cy, cw - 1 - cx));
+            }
+        }
+        // four quarter turns are the identity
+        byte[] a = src.clone(), b = new byte[src.length];
+        int aw = w, ah = h;
+        for (int i = 0; i < 4; i++) {
+            Nv21.rotate(a, aw, ah, b, 90);
+            byte[] t = a; a = b; b = t;
+            int tw = aw; aw = ah; ah = tw;
+        }
+        assertArrayEquals(src, a);
+    }
+}
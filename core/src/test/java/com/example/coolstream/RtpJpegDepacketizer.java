@@ -0,0 +1,152 @@
+package com.example.coolstream;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Receiver side of RFC 2435 for the tests: reassembles the packets of one RTP stream and
+ * rebuilds each frame's JPEG headers (RFC 2435 appendix A, with in-band tables).
+ */
+final class RtpJpegDepacketizer {
+    private byte[] scan = new byte[64 * 1024];
+    private int received;
+    private int expectedOffset;
+    private int timestamp;
+    private boolean inFrame;
+    private boolean broken;
+    private int type, width8, height8, restartInterval;
+    private byte[] tables;
+    private int precision;
+    private int lastSequence = -1;
+    int framesLost;
+
+    /**
+     * Feeds one RTP packet.
+     * @return the rebuilt JPEG once the packet completes a frame, else null
+     */
+    byte[] push(byte[] p, int off, int len) {
+        if ((p[off] & 0xC0) != 0x80 || (p[off + 1] & 0x7F) != RtpJpegPacketizer.PAYLOAD_TYPE) {
+            throw new IllegalArgumentException("not RTP/JPEG");
+        }
+        boolean marker = (p[off + 1] & 0x80) != 0;
+        int sequence = u16(p, off + 2);
+        int ts = u32(p, off + 4);
+        if (lastSequence >= 0 && sequence != ((lastSequence + 1) & 0xFFFF)) broken = true;
+        lastSequence = sequence;
+        int q = off + RtpJpegPacketizer.RTP_HEADER;
+        int fragment = (p[q + 1] & 0xFF) << 16 | u16(p, q + 2);
+        if (fragment == 0) {
+            inFrame = true;
+            broken = false;
+            received = 0;
+            expectedOffset = 0;
+            timestamp = ts;
+        } else if (!inFrame || ts != timestamp) {
+            broken = true;
+        }
+        type = p[q + 4] & 0xFF;
+        int quality = p[q + 5] & 0xFF;
+        width8 = p[q + 6] & 0xFF;
+        height8 = p[q + 7] & 0xFF;
+        q += RtpJpegPacketizer.JPEG_HEADER;
+        if (type >= 64) {
+            restartInterval = u16(p, q);
+            q += RtpJpegPacketizer.RESTART_HEADER;
+        } else {
+            restartInterval = 0;
+        }
+        if (fragment == 0) {
+            if (quality < 128) throw new IllegalArgumentException("only in-band tables are supported");
+            precision = p[q + 1] & 0xFF;
+            int length = u16(p, q + 2);
+            tables = Arrays.copyOfRange(p, q + 4, q + 4 + length);
+            q += RtpJpegPacketizer.QUANT_HEADER + length;
+        }
+        int n = off + len - q;
+        if (fragment != expectedOffset) broken = true;
+        if (!broken) {
+            if (fragment + n > scan.length) scan = Arrays.copyOf(scan, Math.max(scan.length * 2, fragment + n));
+            System.arraycopy(p, q, scan, fragment, n);
+            received = fragment + n;
+            expectedOffset = received;
+        }
+        if (!marker) return null;
+        inFrame = false;
+        if (broken) {
+            framesLost++;
+            return null;
+        }
+        return jpeg();
+    }
+
+    private byte[] jpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(received + 1024);
+        out.write(0xFF);
+        out.write(0xD8);
+        // DQT: table 0 then table 1
+        int q0 = (precision & 1) != 0 ? 128 : 64;
+        int q1 = (precision & 2) != 0 ? 128 : 64;
+        segment(out, 0xDB, 4 + q0 + q1);
+        out.write((precision & 1) << 4);
+        out.write(tables, 0, q0);
+        out.write((precision & 2) << 3 | 1);
+        out.write(tables, q0, q1);
+        // SOF0
+        segment(out, 0xC0, 17);
+        out.write(8);
+        u16(out, height8 * 8);
+        u16(out, width8 * 8);
+        out.write(3);
+        out.write(0);
+        out.write((type & 0x3F) == 0 ? 0x21 : 0x22);
+        out.write(0);
+        out.write(1);
+        out.write(0x11);
+        out.write(1);
+        out.write(2);
+        out.write(0x11);
+        out.write(1);
+        byte[] dht = new byte[JpegTables.DHT_LENGTH];
+        JpegTables.writeHuffmanTables(dht, 0);
+        out.write(dht, 0, dht.length);
+        if (restartInterval > 0) {
+            segment(out, 0xDD, 4);
+            u16(out, restartInterval);
+        }
+        // SOS
+        segment(out, 0xDA, 12);
+        out.write(3);
+        out.write(0);
+        out.write(0x00);
+        out.write(1);
+        out.write(0x11);
+        out.write(2);
+        out.write(0x11);
+        out.write(0);
+        out.write(63);
+        out.write(0);
+        out.write(scan, 0, received);
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, int length) {
+        out.write(0xFF);
+        out.write(marker);
+        u16(out, length);
+    }
+
+    private static void u16(ByteArrayOutputStream out, int v) {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private static int u16(byte[] a, int p) {
+        return (a[p] & 0xFF) << 8 | (a[p + 1] & 0xFF);
+    }
+
+    private static int u32(byte[] a, int p) {
+        return u16(a, p) << 16 | u16(a, p + 2);
+    }
+}
@@ -0,0 +1,502 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RtspServerTest {
+    private RtspServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) server.shutdown();
+    }
+
+    // a noisy gradient, so frames are neither tiny nor alike
+    static BufferedImage image(int width, int height, long seed) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random rnd = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + rnd.nextInt(32)) & 0xFF;
+                int g = (y * 255 / height + rnd.nextInt(32)) & 0xFF;
+                int b = (int) ((seed * 40 + x + y) & 0xFF);
+                img.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return img;
+    }
+
+    /** A JFIF JPEG from ImageIO: standard Huffman tables, 4:2:0 or 4:2:2, optional DRI. */
+    static byte[] jpeg(BufferedImage img, boolean h2v1, int restartInterval, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        IIOMetadata meta = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), param);
+        String format = "javax_imageio_jpeg_image_1.0";
+        Element root = (Element) meta.getAsTree(format);
+        Element markers = (Element) root.getElementsByTagName("markerSequence").item(0);
+        if (h2v1) {
+            Element luma = (Element) root.getElementsByTagName("componentSpec").item(0);
+            luma.setAttribute("HsamplingFactor", "2");
+            luma.setAttribute("VsamplingFactor", "1");
+        }
+        if (restartInterval > 0) {
+            Element dri = new javax.imageio.metadata.IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            Node sof = root.getElementsByTagName("sof").item(0);
+            markers.insertBefore(dri, sof);
+        }
+        meta.setFromTree(format, root);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, meta), param);
+        }
+        writer.dispose();
+        return bytes.toByteArray();
+    }
+
+    static int[] pixels(byte[] jpeg) throws IOException {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(jpeg));
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    // offset of the first byte after the SOS header
+    static int scanStart(byte[] jpeg) {
+        int p = 2;
+        while (true) {
+            int marker = jpeg[p + 1] & 0xFF;
+            int length = (jpeg[p + 2] & 0xFF) << 8 | (jpeg[p + 3] & 0xFF);
+            p += 2 + length;
+            if (marker == 0xDA) return p;
+        }
+    }
+
+    // all packets of one frame, each checked against maxPacket
+    private static List<byte[]> packetize(RtpJpegPacketizer p, byte[] jpeg, int timestamp, int maxPacket) {
+        assertTrue(p.setFrame(jpeg, 0, jpeg.length, timestamp));
+        List<byte[]> packets = new ArrayList<>();
+        byte[] buf = new byte[maxPacket + 10];
+        int n;
+        while ((n = p.nextPacket(buf, 3)) > 0) {
+            assertTrue(n <= maxPacket);
+            packets.add(Arrays.copyOfRange(buf, 3, 3 + n));
+        }
+        return packets;
+    }
+
+    @Test
+    public void framesRoundTripThroughRtpJpegBitExactly() throws Exception {
+        for (int variant = 0; variant < 4; variant++) {
+            boolean h2v1 = (variant & 1) != 0;
+            int dri = (variant & 2) != 0 ? 5 : 0;
+            byte[] original = jpeg(image(320, 240, variant), h2v1, dri, 0.5f + 0.1f * variant);
+            int maxPacket = 512 + variant * 300;
+            RtpJpegPacketizer p = new RtpJpegPacketizer(0x1234, 65530, maxPacket);
+            RtpJpegDepacketizer d = new RtpJpegDepacketizer();
+
+            List<byte[]> packets = packetize(p, original, 90_000, maxPacket);
+            assertTrue(packets.size() > 3);
+            assertEquals((h2v1 ? 0 : 1) + (dri > 0 ? 64 : 0), p.type());
+            byte[] rebuilt = null;
+            for (int i = 0; i < packets.size(); i++) {
+                byte[] pk = packets.get(i);
+                assertEquals(i == packets.size() - 1, (pk[1] & 0x80) != 0);
+                // sequence numbers wrap at 16 bits
+                assertEquals((65530 + i) & 0xFFFF, (pk[2] & 0xFF) << 8 | (pk[3] & 0xFF));
+                rebuilt = d.push(pk, 0, pk.length);
+                if (i < packets.size() - 1) assertNull(rebuilt);
+            }
+            assertNotNull(rebuilt);
+            // JFIF is stripped; the entropy-coded data and the image are exactly the original's
+            assertEquals("JFIF", new String(original, 6, 4, StandardCharsets.US_ASCII));
+            assertFalse(new String(rebuilt, StandardCharsets.ISO_8859_1).contains("JFIF"));
+            assertArrayEquals(Arrays.copyOfRange(original, scanStart(original), original.length),
+                    Arrays.copyOfRange(rebuilt, scanStart(rebuilt), rebuilt.length));
+            assertArrayEquals(pixels(original), pixels(rebuilt));
+            // and a rebuilt frame goes through again byte for byte
+            byte[] again = null;
+            for (byte[] pk : packetize(p, rebuilt, 180_000, maxPacket)) again = d.push(pk, 0, pk.length);
+            assertArrayEquals(rebuilt, again);
+            assertEquals(0, d.framesLost);
+        }
+    }
+
+    @Test
+    public void framesRtpJpegCannotCarryAreRefused() throws Exception {
+        RtpJpegPacketizer p = new RtpJpegPacketizer(1, 0, 1400);
+        byte[] ok = jpeg(image(64, 48, 1), false, 0, 0.8f);
+        assertTrue(p.setFrame(ok, 0, ok.length, 0));
+        // JPEG-shaped bytes without headers, a cut-off frame, a gray JPEG
+        assertFalse(p.setFrame(FrameRingTest.content(1, 500), 0, 500, 0));
+        assertFalse(p.setFrame(ok, 0, 300, 0));
+        BufferedImage gray = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(gray, "jpeg", bytes);
+        byte[] g = bytes.toByteArray();
+        assertFalse(p.setFrame(g, 0, g.length, 0));
+        // a non-standard Huffman table
+        byte[] odd = ok.clone();
+        int dht = 2;
+        while ((odd[dht + 1] & 0xFF) != 0xC4) dht += 2 + ((odd[dht + 2] & 0xFF) << 8 | (odd[dht + 3] & 0xFF));
+        odd[dht + 5 + 16] ^= 1;
+        assertFalse(p.setFrame(odd, 0, odd.length, 0));
+        assertFalse(p.hasNext());
+    }
+
+    @Test
+    public void standardHuffmanTablesMatchTheJdk() {
+        JPEGHuffmanTable[] jdk = {JPEGHuffmanTable.StdDCLuminance, JPEGHuffmanTable.StdDCChrominance,
+                JPEGHuffmanTable.StdACLuminance, JPEGHuffmanTable.StdACChrominance};
+        for (int i = 0; i < 4; i++) {
+            short[] lengths = jdk[i].getLengths();
+            short[] values = jdk[i].getValues();
+            byte[] bits = JpegTables.bits(i >> 1, i & 1);
+            byte[] vals = JpegTables.values(i >> 1, i & 1);
+            for (int k = 0; k < 16; k++) assertEquals(lengths[k], bits[k] & 0xFF);
+            assertEquals(values.length, vals.length);
+            for (int k = 0; k < values.length; k++) assertEquals(values[k], vals[k] & 0xFF);
+        }
+    }
+
+    // frames that survive RTP/JPEG byte for byte, published over and over by a fake camera
+    private static byte[][] frames(int count) throws IOException {
+        byte[][] frames = new byte[count][];
+        RtpJpegPacketizer p = new RtpJpegPacketizer(1, 0, 1400);
+        for (int i = 0; i < count; i++) {
+            byte[] original = jpeg(image(160, 120, 100 + i), false, 0, 0.75f);
+            RtpJpegDepacketizer d = new RtpJpegDepacketizer();
+            for (byte[] pk : packetize(p, original, 0, 1400)) frames[i] = d.push(pk, 0, pk.length);
+        }
+        return frames;
+    }
+
+    private static int indexOf(byte[][] frames, byte[] f) {
+        for (int i = 0; i < frames.length; i++) if (Arrays.equals(frames[i], f)) return i;
+        return -1;
+    }
+
+    private static final class Response {
+        int status;
+        final java.util.Map<String, String> headers = new java.util.HashMap<>();
+        String body = "";
+    }
+
+    private static Response request(OutputStream out, InputStream in, String method, String uri, int cseq,
+                                    String headers) throws IOException {
+        out.write((method + " " + uri + " RTSP/1.0\r\nCSeq: " + cseq + "\r\n" +
+                (headers != null ? headers : "") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        Response r = new Response();
+        String line = readLine(in);
+        assertTrue(line, line.startsWith("RTSP/1.0 "));
+        r.status = Integer.parseInt(line.substring(9, 12));
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            r.headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+        }
+        assertEquals(String.valueOf(cseq), r.headers.get("cseq"));
+        String length = r.headers.get("content-length");
+        if (length != null) {
+            byte[] body = new byte[Integer.parseInt(length)];
+            for (int off = 0; off < body.length; ) off += in.read(body, off, body.length - off);
+            r.body = new String(body, StandardCharsets.US_ASCII);
+        }
+        return r;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new IOException("connection closed");
+            if (b != '\r') sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void playsOverUdpAndInterleavedTcp() throws Exception {
+        byte[][] frames = frames(5);
+        FrameSlot slot = new FrameSlot();
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger disconnected = new AtomicInteger();
+        server = new RtspServer(0, slot, 1000);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { connected.incrementAndGet(); }
+            @Override public void onClientDisconnected() { disconnected.incrementAndGet(); }
+        });
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        AtomicBoolean capturing = new AtomicBoolean(true);
+        Thread camera = new Thread(() -> {
+            int i = 0;
+            while (capturing.get()) {
+                slot.publish(frames[i++ % frames.length].clone());
+                try { Thread.sleep(5); } catch (InterruptedException e) { return; }
+                // a frame RTP/JPEG cannot carry is skipped, not sent; held until a sender saw it
+                if (i % 50 == 0) {
+                    long unsupported = server.getFramesUnsupported();
+                    slot.publish(FrameRingTest.content(i, 100));
+                    for (int t = 0; t < 100 && server.getFramesUnsupported() == unsupported; t++) {
+                        try { Thread.sleep(1); } catch (InterruptedException e) { return; }
+                    }
+                }
+            }
+        });
+        camera.start();
+        String url = "rtsp://127.0.0.1:" + port + "/live";
+        try {
+            for (boolean tcp : new boolean[] {false, true}) {
+                try (Socket s = new Socket("127.0.0.1", port);
+                     DatagramChannel udp = DatagramChannel.open()) {
+                    s.setSoTimeout(5000);
+                    udp.bind(new InetSocketAddress("127.0.0.1", 0));
+                    udp.configureBlocking(false);
+                    OutputStream out = s.getOutputStream();
+                    InputStream in = new BufferedInputStream(s.getInputStream());
+
+                    Response r = request(out, in, "OPTIONS", url, 1, null);
+                    assertEquals(200, r.status);
+                    assertTrue(r.headers.get("public").contains("DESCRIBE"));
+                    r = request(out, in, "DESCRIBE", url, 2, "Accept: application/sdp\r\n");
+                    assertEquals(200, r.status);
+                    assertTrue(r.body, r.body.contains("m=video 0 RTP/AVP 26\r\n"));
+                    assertTrue(r.body.contains("a=rtpmap:26 JPEG/90000\r\n"));
+                    assertEquals(url + "/", r.headers.get("content-base"));
+
+                    int clientPort = udp.socket().getLocalPort();
+                    String transport = tcp ? "RTP/AVP/TCP;unicast;interleaved=2-3"
+                            : "RTP/AVP;unicast;client_port=" + clientPort + "-" + (clientPort + 1);
+                    assertEquals(454, request(out, in, "PLAY", url, 3, "Session: nope\r\n").status);
+                    r = request(out, in, "SETUP", url + "/track1", 4, "Transport: " + transport + "\r\n");
+                    assertEquals(200, r.status);
+                    String session = r.headers.get("session").split(";")[0];
+                    assertTrue(r.headers.get("transport"), r.headers.get("transport").startsWith(tcp
+                            ? "RTP/AVP/TCP;unicast;interleaved=2-3;ssrc="
+                            : "RTP/AVP;unicast;client_port=" + clientPort + "-" + (clientPort + 1) + ";server_port="));
+                    assertEquals(1, server.getSessionCount());
+
+                    r = request(out, in, "PLAY", url + "/", 5, "Session: " + session + "\r\n");
+                    assertEquals(200, r.status);
+                    assertTrue(r.headers.get("rtp-info").startsWith("url=" + url + "/track1;seq="));
+
+                    RtpJpegDepacketizer d = new RtpJpegDepacketizer();
+                    byte[] packet = new byte[2000];
+                    ByteBuffer datagram = ByteBuffer.wrap(packet);
+                    int received = 0;
+                    int lastIndex = -1;
+                    while (received < 40) {
+                        int n;
+                        if (tcp) {
+                            assertEquals('$', in.read());
+                            assertEquals(2, in.read());
+                            n = in.read() << 8 | in.read();
+                            for (int off = 0; off < n; ) off += in.read(packet, off, n - off);
+                        } else {
+                            datagram.clear();
+                            long deadline = System.currentTimeMillis() + 5000;
+                            while (udp.receive(datagram) == null) {
+                                assertTrue("no packet in time", System.currentTimeMillis() < deadline);
+                                Thread.sleep(1);
+                            }
+                            n = datagram.position();
+                        }
+                        assertTrue(n <= 1000);
+                        byte[] jpeg = d.push(packet, 0, n);
+                        if (jpeg == null) continue;
+                        int index = indexOf(frames, jpeg);
+                        assertTrue("frame " + received + " is not one that was published", index >= 0);
+                        lastIndex = index;
+                        received++;
+                    }
+                    assertTrue(lastIndex >= 0);
+                    assertEquals(0, d.framesLost);
+
+                    if (tcp) {
+                        // keep-alive while interleaved data flows; replies may sit between packets
+                        out.write(("TEARDOWN " + url + " RTSP/1.0\r\nCSeq: 6\r\nSession: " + session + "\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        while (true) {
+                            int b = in.read();
+                            if (b == '$') {
+                                in.read();
+                                int n = in.read() << 8 | in.read();
+                                for (int i = 0; i < n; i++) in.read();
+                                continue;
+                            }
+                            assertEquals('R', b);
+                            assertTrue(readLine(in).startsWith("TSP/1.0 200"));
+                            break;
+                        }
+                    } else {
+                        assertEquals(200, request(out, in, "GET_PARAMETER", url, 6, "Session: " + session + "\r\n").status);
+                        assertEquals(200, request(out, in, "TEARDOWN", url, 7, "Session: " + session + "\r\n").status);
+                    }
+                    MjpegHttpServerSelectorTest.waitFor(() -> server.getSessionCount() == 0);
+                }
+            }
+            assertEquals(2, connected.get());
+            MjpegHttpServerSelectorTest.waitFor(() -> disconnected.get() == 2);
+            assertTrue(server.getFramesSent() >= 80);
+            assertTrue(server.getFramesUnsupported() > 0);
+            assertTrue(server.getPacketsSent() > server.getFramesSent());
+        } finally {
+            capturing.set(false);
+            camera.join();
+        }
+    }
+
+    // SETUP and PLAY over UDP on the given control connection; returns the session id
+    private static String playOverUdp(Socket s, InputStream in, DatagramChannel udp, String url, int cseq)
+            throws IOException {
+        int clientPort = udp.socket().getLocalPort();
+        Response r = request(s.getOutputStream(), in, "SETUP", url + "/track1", cseq,
+                "Transport: RTP/AVP;unicast;client_port=" + clientPort + "-" + (clientPort + 1) + "\r\n");
+        assertEquals(200, r.status);
+        String session = r.headers.get("session").split(";")[0];
+        assertEquals(200, request(s.getOutputStream(), in, "PLAY", url + "/", cseq + 1,
+                "Session: " + session + "\r\n").status);
+        return session;
+    }
+
+    // packets that arrive within the given time
+    private static int drain(DatagramChannel udp, long millis) throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(2000);
+        int packets = 0;
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            datagram.clear();
+            if (udp.receive(datagram) != null) packets++;
+            else Thread.sleep(1);
+        }
+        return packets;
+    }
+
+    @Test
+    public void stoppingOneUdpSessionLeavesTheOthersPlaying() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        byte[][] frames = frames(4);
+        server = new RtspServer(0, slot, 1000);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        AtomicBoolean capturing = new AtomicBoolean(true);
+        Thread camera = new Thread(() -> {
+            int i = 0;
+            while (capturing.get()) {
+                slot.publish(frames[i++ % frames.length].clone());
+                try { Thread.sleep(1); } catch (InterruptedException e) { return; }
+            }
+        });
+        camera.start();
+        String url = "rtsp://127.0.0.1:" + port + "/live";
+        try (Socket a = new Socket("127.0.0.1", port);
+             Socket b = new Socket("127.0.0.1", port);
+             DatagramChannel udpA = DatagramChannel.open();
+             DatagramChannel udpB = DatagramChannel.open()) {
+            a.setSoTimeout(5000);
+            b.setSoTimeout(5000);
+            for (DatagramChannel udp : new DatagramChannel[] {udpA, udpB}) {
+                udp.bind(new InetSocketAddress("127.0.0.1", 0));
+                udp.configureBlocking(false);
+            }
+            InputStream inA = new BufferedInputStream(a.getInputStream());
+            InputStream inB = new BufferedInputStream(b.getInputStream());
+            String sessionA = playOverUdp(a, inA, udpA, url, 1);
+            playOverUdp(b, inB, udpB, url, 1);
+            assertTrue(drain(udpA, 300) > 0);
+            assertTrue(drain(udpB, 300) > 0);
+
+            // frames arrive every millisecond, so the senders are stopped in the middle of sending
+            int cseq = 3;
+            for (int i = 0; i < 40; i++) {
+                assertEquals(200, request(a.getOutputStream(), inA, "PAUSE", url + "/", cseq++,
+                        "Session: " + sessionA + "\r\n").status);
+                assertEquals(200, request(a.getOutputStream(), inA, "PLAY", url + "/", cseq++,
+                        "Session: " + sessionA + "\r\n").status);
+                Thread.sleep(i % 5);
+            }
+            assertEquals(200, request(a.getOutputStream(), inA, "PAUSE", url + "/", cseq++,
+                    "Session: " + sessionA + "\r\n").status);
+            long sent = server.getPacketsSent();
+            assertTrue("the second session stopped receiving", drain(udpB, 300) > 0);
+            assertTrue(server.getPacketsSent() > sent);
+            // A's control connection survived its sender stopping
+            assertEquals(200, request(a.getOutputStream(), inA, "GET_PARAMETER", url, cseq++,
+                    "Session: " + sessionA + "\r\n").status);
+            drain(udpA, 50);
+            assertEquals(0, drain(udpA, 200));
+
+            assertEquals(200, request(a.getOutputStream(), inA, "PLAY", url + "/", cseq++,
+                    "Session: " + sessionA + "\r\n").status);
+            assertTrue(drain(udpA, 300) > 0);
+            assertEquals(200, request(a.getOutputStream(), inA, "TEARDOWN", url, cseq,
+                    "Session: " + sessionA + "\r\n").status);
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getSessionCount() == 1);
+            sent = server.getPacketsSent();
+            assertTrue("the second session stopped receiving", drain(udpB, 300) > 0);
+            assertTrue(server.getPacketsSent() > sent);
+            assertEquals(1, server.getSessionCount());
+        } finally {
+            capturing.set(false);
+            camera.join();
+        }
+    }
+
+    @Test
+    public void closingTheConnectionEndsTheSession() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        server = new RtspServer(0, slot);
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            Response r = request(s.getOutputStream(), in, "SETUP", "rtsp://x/", 1,
+                    "Transport: RTP/AVP;multicast, RTP/AVP/TCP;interleaved=0-1\r\n");
+            assertEquals(200, r.status);
+            assertTrue(r.headers.get("transport").startsWith("RTP/AVP/TCP;unicast;interleaved=0-1"));
+            assertEquals(461, request(s.getOutputStream(), in, "SETUP", "rtsp://x/", 2,
+                    "Session: " + r.headers.get("session").split(";")[0] + "\r\nTransport: RTP/SAVP\r\n").status);
+            assertEquals(501, request(s.getOutputStream(), in, "RECORD", "rtsp://x/", 3, null).status);
+            assertEquals(1, server.getSessionCount());
+        }
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getSessionCount() == 0);
+        // and the slot is no longer asked for frames
+        assertEquals(0, slot.neededFps());
+    }
+}
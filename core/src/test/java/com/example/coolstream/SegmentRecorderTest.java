@@ -0,0 +1,258 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SegmentRecorderTest {
+    // 15 fps
+    private static final long GAP_NANOS = 66_666_667L;
+    private static final long HOUR_FRAMES = 3600 * 15;
+
+    private File dir;
+    private SegmentRecorder recorder;
+
+    @After
+    public void tearDown() {
+        if (recorder != null) recorder.stop();
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+
+    private SegmentRecorder open(long segmentBytes, long quotaBytes) throws Exception {
+        if (dir == null) {
+            dir = File.createTempFile("segments", "");
+            assertTrue(dir.delete());
+        }
+        recorder = new SegmentRecorder(dir, segmentBytes, quotaBytes);
+        recorder.start();
+        return recorder;
+    }
+
+    private static int length(long seq) {
+        return 12 + (int) (seq * 7919 % 600);
+    }
+
+    // frames seq from..to (inclusive), captured GAP_NANOS apart, flushed often enough that none drop
+    private static void record(SegmentRecorder r, FrameSlot slot, long from, long to) throws Exception {
+        for (long seq = from; seq <= to; seq++) {
+            slot.publish(FrameRingTest.content(seq, length(seq)), seq * GAP_NANOS);
+            assertTrue(r.record(slot.latest()));
+            if (seq % 500 == 0) r.flush();
+        }
+        r.flush();
+    }
+
+    // JPEG of the part at offset, after checking its X-Timestamp is epochMs
+    private static byte[] partAt(SegmentRecorder.Segment s, long offset, long epochMs) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(s.data, "r")) {
+            byte[] head = new byte[ClipExport.MAX_PART_HEADER];
+            f.seek(offset);
+            f.readFully(head, 0, (int) Math.min(head.length, f.length() - offset));
+            String h = new String(head, StandardCharsets.US_ASCII);
+            assertTrue(h.startsWith("\r\n--ipcam\r\n"));
+            int end = h.indexOf("\r\n\r\n", 2) + 4;
+            int len = Integer.parseInt(field(h, "Content-Length: "));
+            assertEquals(epochMs, Long.parseLong(field(h, "X-Timestamp: ")));
+            byte[] jpeg = new byte[len];
+            f.seek(offset + end);
+            f.readFully(jpeg);
+            return jpeg;
+        }
+    }
+
+    private static String field(String head, String name) {
+        int i = head.indexOf(name) + name.length();
+        return head.substring(i, head.indexOf('\r', i));
+    }
+
+    @Test
+    public void anHourOfFramesSeeksToTheRightFrame() throws Exception {
+        SegmentRecorder r = open(1 << 20, 1L << 40);
+        FrameSlot slot = new FrameSlot();
+        record(r, slot, 1, HOUR_FRAMES);
+        assertEquals(HOUR_FRAMES, r.framesRecorded());
+        assertEquals(0, r.framesDropped());
+        assertNull(r.lastError());
+
+        List<SegmentRecorder.Segment> segments = r.segments();
+        assertTrue(segments.size() > 10);
+        long frames = 0;
+        for (SegmentRecorder.Segment s : segments) {
+            assertTrue(s.bytes() <= 1 << 20);
+            assertEquals(s.bytes(), s.data.length());
+            assertEquals((long) s.frames() * SegmentRecorder.INDEX_ENTRY, s.index.length());
+            frames += s.frames();
+        }
+        assertEquals(HOUR_FRAMES, frames);
+        assertEquals(r.epochMs(GAP_NANOS), segments.get(0).startMs());
+        assertEquals(r.epochMs(HOUR_FRAMES * GAP_NANOS), segments.get(segments.size() - 1).endMs());
+
+        // the frame found is the first one captured at or after the time asked for
+        Random rnd = new Random(5);
+        long first = r.epochMs(GAP_NANOS);
+        for (int i = 0; i < 2000; i++) {
+            long ms = first + (long) (rnd.nextDouble() * 3599_000L);
+            SegmentRecorder.Position p = r.seek(ms);
+            byte[] jpeg = partAt(p.segment, p.offset, p.epochMs);
+            long seq = FrameRingTest.verify(jpeg, 0, jpeg.length);
+            assertEquals(r.epochMs(seq * GAP_NANOS), p.epochMs);
+            assertTrue(p.epochMs >= ms);
+            assertTrue(seq == 1 || r.epochMs((seq - 1) * GAP_NANOS) < ms);
+        }
+        assertEquals(first, r.seek(0).epochMs);
+        assertNull(r.seek(r.epochMs(HOUR_FRAMES * GAP_NANOS) + 1));
+    }
+
+    @Test
+    public void quotaDeletesTheOldestSegments() throws Exception {
+        SegmentRecorder r = open(1 << 20, 4 << 20);
+        FrameSlot slot = new FrameSlot();
+        record(r, slot, 1, 40_000);
+        assertTrue(r.segmentsDeleted() > 0);
+        assertTrue(r.diskBytes() + " on disk", r.diskBytes() <= 4 << 20);
+        List<SegmentRecorder.Segment> segments = r.segments();
+        assertTrue(segments.get(0).id > 1);
+        // ids stay consecutive and the files of deleted segments are gone
+        for (int i = 1; i < segments.size(); i++) assertEquals(segments.get(i - 1).id + 1, segments.get(i).id);
+        assertEquals(segments.size() * 2, dir.list().length);
+        // playback starts at the oldest frame still on disk
+        SegmentRecorder.Position p = r.seek(0);
+        assertEquals(segments.get(0), p.segment);
+        assertEquals(0, p.offset);
+    }
+
+    @Test
+    public void restartCutsATornTailAndContinuesInANewSegment() throws Exception {
+        SegmentRecorder r = open(1 << 20, 1L << 40);
+        FrameSlot slot = new FrameSlot();
+        record(r, slot, 1, 3000);
+        r.stop();
+        List<SegmentRecorder.Segment> before = r.segments();
+        SegmentRecorder.Segment last = before.get(before.size() - 1);
+
+        // a crash after part of a batch reached the data file, and an index entry beyond it
+        try (RandomAccessFile data = new RandomAccessFile(last.data, "rw");
+             RandomAccessFile index = new RandomAccessFile(last.index, "rw")) {
+            data.seek(data.length());
+            data.write(new byte[300]);
+            index.seek(index.length());
+            index.writeLong(Long.MAX_VALUE);
+            index.writeInt((int) data.length() - 100);
+            index.writeInt(400);
+            index.write(new byte[5]);
+        }
+
+        r = open(1 << 20, 1L << 40);
+        List<SegmentRecorder.Segment> after = r.segments();
+        assertEquals(before.size(), after.size());
+        SegmentRecorder.Segment recovered = after.get(after.size() - 1);
+        assertEquals(last.id, recovered.id);
+        assertEquals(last.frames(), recovered.frames());
+        assertEquals(last.bytes(), recovered.bytes());
+        assertEquals(last.endMs(), recovered.endMs());
+        assertEquals(last.bytes(), last.data.length());
+
+        record(r, slot, 3001, 3100);
+        after = r.segments();
+        assertEquals(before.size() + 1, after.size());
+        assertEquals(last.id + 1, after.get(after.size() - 1).id);
+        assertEquals(100, after.get(after.size() - 1).frames());
+        // the new frames are found across the restart
+        SegmentRecorder.Position p = r.seek(last.endMs() + 1);
+        assertEquals(last.id + 1, p.segment.id);
+    }
+
+    @Test
+    public void segmentsPlayBackOverHttpWithRangesAndTimeSeek() throws Exception {
+        SegmentRecorder r = open(1 << 20, 1L << 40);
+        FrameSlot slot = new FrameSlot();
+        record(r, slot, 1, 10_000);
+        SegmentRecorder.Segment first = r.segments().get(0);
+        byte[] file = new byte[(int) first.bytes()];
+        try (RandomAccessFile f = new RandomAccessFile(first.data, "r")) {
+            f.readFully(file);
+        }
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            MjpegHttpServer server = new MjpegHttpServer(0, new FrameSlot(), mode, 1);
+            server.setRecorder(r);
+            server.start();
+            int port = server.awaitListening(5, TimeUnit.SECONDS);
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.setSoTimeout(5000);
+                OutputStream out = s.getOutputStream();
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                // all on one keep-alive connection
+                out.write(get("/recordings.json", null));
+                SnapshotTest.Response list = SnapshotTest.read(in);
+                assertEquals(200, list.status());
+                String json = new String(list.body, StandardCharsets.US_ASCII);
+                assertTrue(json, json.startsWith("[{\"id\":" + first.id + ",\"start\":" + first.startMs()));
+
+                out.write(get("/segment.mjpg?id=" + first.id, "bytes=1000-1999"));
+                SnapshotTest.Response part = SnapshotTest.read(in);
+                assertEquals(mode.toString(), 206, part.status());
+                assertEquals("bytes 1000-1999/" + file.length, part.header("Content-Range"));
+                assertArrayEquals(Arrays.copyOfRange(file, 1000, 2000), part.body);
+
+                out.write(get("/segment.mjpg?id=" + first.id, "bytes=-50"));
+                part = SnapshotTest.read(in);
+                assertEquals(206, part.status());
+                assertArrayEquals(Arrays.copyOfRange(file, file.length - 50, file.length), part.body);
+
+                out.write(get("/segment.mjpg?id=" + first.id, "bytes=" + file.length + "-"));
+                part = SnapshotTest.read(in);
+                assertEquals(416, part.status());
+                assertEquals("bytes */" + file.length, part.header("Content-Range"));
+
+                out.write(get("/segment.mjpg?id=" + first.id, null));
+                part = SnapshotTest.read(in);
+                assertEquals(200, part.status());
+                assertEquals("bytes", part.header("Accept-Ranges"));
+                assertArrayEquals(file, part.body);
+
+                out.write(get("/segment.mjpg?id=999999", null));
+                assertEquals(404, SnapshotTest.read(in).status());
+            }
+
+            // time seek: 300 s from frame 1234, which crosses segment boundaries
+            long from = r.epochMs(1234 * GAP_NANOS);
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.setSoTimeout(5000);
+                s.getOutputStream().write(get("/recording.mjpg?t=" + from + "&seconds=300", null));
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                long expect = 1234;
+                byte[] body;
+                while ((body = MjpegHttpServerSelectorTest.readPart(in)) != null) {
+                    assertEquals(expect++, FrameRingTest.verify(body, 0, body.length));
+                }
+                long last = expect - 1;
+                assertTrue(r.epochMs(last * GAP_NANOS) <= from + 300_000);
+                assertTrue(r.epochMs((last + 1) * GAP_NANOS) > from + 300_000);
+                assertEquals(mode.toString(), 1234 + 15 * 300, last);
+            }
+            server.shutdown();
+        }
+    }
+
+    private static byte[] get(String path, String range) {
+        return ("GET " + path + " HTTP/1.1\r\n" +
+                (range != null ? "Range: " + range + "\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SlowClientTest {
+    private static final int JPEG_SIZE = 40_000;
+
+    private final FrameSlot slot = new FrameSlot();
+    private final List<String> evictions = new CopyOnWriteArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private MjpegHttpServer server;
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        if (server != null) server.shutdown();
+    }
+
+    private int startServer(MjpegHttpServer.IoMode mode, long stallMs, long lagBytes) throws Exception {
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setSlowClientPolicy(stallMs, lagBytes);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() {}
+            @Override public void onClientDisconnected() {}
+            @Override public void onClientEvicted(String remote, String reason) { evictions.add(reason); }
+        });
+        server.start();
+        return server.awaitListening(5, TimeUnit.SECONDS);
+    }
+
+    private Socket connect(int port, int receiveBuffer) throws Exception {
+        Socket s = new Socket();
+        if (receiveBuffer > 0) s.setReceiveBufferSize(receiveBuffer);
+        s.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+        s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        sockets.add(s);
+        return s;
+    }
+
+    private static Thread reader(final Socket s, final AtomicLong bytes, final long pauseMs, final int chunk) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[chunk];
+            try {
+                InputStream in = s.getInputStream();
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    bytes.addAndGet(n);
+                    if (pauseMs > 0) Thread.sleep(pauseMs);
+                }
+            } catch (Exception ignored) {
+            }
+        }, "test-reader");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void fastClientsKeepFullRateNextToThrottledReader() throws Exception {
+        int port = startServer(MjpegHttpServer.IoMode.SELECTOR, 1000, 2L * 1024 * 1024);
+        List<AtomicLong> fast = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            AtomicLong bytes = new AtomicLong();
+            fast.add(bytes);
+            reader(connect(port, 0), bytes, 0, 64 * 1024);
+        }
+        AtomicLong slowBytes = new AtomicLong();
+        reader(connect(port, 4096), slowBytes, 20, 2048);
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 5);
+        Thread.sleep(100);
+
+        byte[] jpeg = new byte[JPEG_SIZE];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        int frames = 250;
+        long slowDropped = 0;
+        for (int i = 0; i < frames; i++) {
+            slot.publish(jpeg);
+            Thread.sleep(10);
+            for (ClientStats st : server.getClientStats()) slowDropped = Math.max(slowDropped, st.getFramesDropped());
+        }
+        Thread.sleep(200);
+
+        long part = MjpegHttpServer.partHeaderLength(JPEG_SIZE) + JPEG_SIZE;
+        for (AtomicLong bytes : fast) {
+            long received = (bytes.get() - MjpegHttpServer.STREAM_HEADER.length()) / part;
+            assertTrue("fast client got " + received + "/" + frames, received >= frames * 9 / 10);
+        }
+        assertTrue("slow client should drop frames", slowDropped > 0);
+        assertEquals(evictions.toString(), 1, evictions.size());
+        assertEquals(4, server.getClientStats().size());
+        for (ClientStats st : server.getClientStats()) assertEquals(0, st.getFramesDropped(), 1);
+    }
+
+    @Test
+    public void laggingClientIsEvictedByByteBudget() throws Exception {
+        int port = startServer(MjpegHttpServer.IoMode.SELECTOR, 60_000, 1024 * 1024);
+        connect(port, 4096); // never reads
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 1);
+        Thread.sleep(100);
+        byte[] jpeg = new byte[200_000];
+        for (int i = 0; i < 200 && evictions.isEmpty(); i++) {
+            slot.publish(jpeg);
+            Thread.sleep(5);
+        }
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().isEmpty());
+        assertTrue(evictions.toString(), evictions.get(0).contains("bytes behind"));
+    }
+
+    @Test
+    public void blockedThreadPerClientWriterIsEvicted() throws Exception {
+        int port = startServer(MjpegHttpServer.IoMode.THREAD_PER_CLIENT, 500, Long.MAX_VALUE);
+        connect(port, 4096); // never reads
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 1);
+        byte[] jpeg = new byte[1 << 20];
+        for (int i = 0; i < 40 && evictions.isEmpty(); i++) {
+            slot.publish(jpeg);
+            Thread.sleep(50);
+        }
+        MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().isEmpty());
+        assertTrue(evictions.toString(), evictions.get(0).startsWith("stalled"));
+    }
+}
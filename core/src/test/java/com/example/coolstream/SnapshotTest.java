@@ -0,0 +1,208 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+    private MjpegHttpServer server;
+    private final FrameSlot slot = new FrameSlot();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger wanted = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    static final class Response {
+        String head;
+        byte[] body;
+
+        int status() { return Integer.parseInt(head.substring(9, 12)); }
+
+        String header(String name) {
+            for (String line : head.split("\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).equalsIgnoreCase(name)) return line.substring(colon + 1).trim();
+            }
+            return null;
+        }
+    }
+
+    // Reads one response; Content-Length (or none for 304) delimits the body.
+    static Response read(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\r') continue;
+            if (b == '\n' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '\n') break;
+            sb.append((char) b);
+        }
+        if (b < 0) return null;
+        Response r = new Response();
+        r.head = sb.toString();
+        String length = r.header("Content-Length");
+        r.body = new byte[length != null ? Integer.parseInt(length) : 0];
+        for (int off = 0; off < r.body.length; ) {
+            int n = in.read(r.body, off, r.body.length - off);
+            if (n < 0) throw new IOException("body cut short");
+            off += n;
+        }
+        return r;
+    }
+
+    private Socket connect(MjpegHttpServer.IoMode mode) throws Exception {
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() { connected.incrementAndGet(); }
+            @Override public void onClientDisconnected() {}
+            @Override public void onSnapshotWanted() { wanted.incrementAndGet(); }
+        });
+        server.start();
+        int port = server.awaitListening(5, TimeUnit.SECONDS);
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(5000);
+        sockets.add(s);
+        return s;
+    }
+
+    private static void send(Socket s, String request) throws IOException {
+        s.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String get(String ifNoneMatch) {
+        return "GET /snapshot.jpg HTTP/1.1\r\nHost: cam\r\n" +
+                (ifNoneMatch != null ? "If-None-Match: " + ifNoneMatch + "\r\n" : "") + "\r\n";
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        sockets.clear();
+        if (server != null) server.shutdown();
+    }
+
+    @Test
+    public void etagRevalidationOnOnePersistentConnection() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            etagRevalidation(mode);
+            tearDown();
+        }
+    }
+
+    private void etagRevalidation(MjpegHttpServer.IoMode mode) throws Exception {
+        byte[] first = MjpegHttpServerSelectorTest.syntheticJpeg(1);
+        slot.publish(first);
+        Socket s = connect(mode);
+        InputStream in = s.getInputStream();
+
+        send(s, get(null));
+        Response r = read(in);
+        assertEquals(mode + " " + r.head, 200, r.status());
+        assertEquals("image/jpeg", r.header("Content-Type"));
+        assertEquals("keep-alive", r.header("Connection"));
+        assertArrayEquals(first, r.body);
+        String etag = r.header("ETag");
+        assertTrue(etag, etag.startsWith("\"") && etag.endsWith("-" + slot.latestSeq() + "\""));
+
+        send(s, get(etag));
+        r = read(in);
+        assertEquals(304, r.status());
+        assertEquals(etag, r.header("ETag"));
+        assertEquals(0, r.body.length);
+
+        byte[] second = MjpegHttpServerSelectorTest.syntheticJpeg(2);
+        slot.publish(second);
+        send(s, get(etag));
+        r = read(in);
+        assertEquals(200, r.status());
+        assertArrayEquals(second, r.body);
+        assertNotEquals(etag, r.header("ETag"));
+
+        // same socket throughout, and none of it counted as a stream client
+        assertEquals(1, server.getSnapshotConnections());
+        assertEquals(2, server.getSnapshotsServed());
+        assertEquals(1, server.getSnapshotsNotModified());
+        assertEquals(0, connected.get());
+        assertTrue(server.getClientStats().isEmpty());
+        assertEquals("fresh frames never wait for the camera", 0, wanted.get());
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(3));
+            Socket s = connect(mode);
+            String etag = "\"" + "nope" + "\"";
+            send(s, get(null) + get(etag) + "GET /snapshot.jpg HTTP/1.1\r\nConnection: close\r\n\r\n");
+            InputStream in = s.getInputStream();
+            Response a = read(in), b = read(in), c = read(in);
+            assertEquals(mode.toString(), 200, a.status());
+            assertEquals(200, b.status());
+            assertEquals("close", c.header("Connection"));
+            assertArrayEquals(a.body, c.body);
+            assertEquals("connection closed after Connection: close", -1, in.read());
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getSnapshotConnections() == 0);
+            tearDown();
+        }
+    }
+
+    @Test
+    public void http10SnapshotClosesTheConnection() throws Exception {
+        slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(4));
+        Socket s = connect(MjpegHttpServer.IoMode.SELECTOR);
+        send(s, "GET /snapshot.jpg HTTP/1.0\r\n\r\n");
+        Response r = read(s.getInputStream());
+        assertEquals(200, r.status());
+        assertEquals("close", r.header("Connection"));
+        assertEquals(-1, s.getInputStream().read());
+    }
+
+    @Test
+    public void staleFrameWaitsForTheNextPublish() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(5));
+            Socket s = connect(mode);
+            server.setSnapshotMaxAgeMs(0);
+            Thread.sleep(5);
+            long before = slot.latestSeq();
+            send(s, get(null));
+            // the waiting request is the only demand there is
+            MjpegHttpServerSelectorTest.waitFor(() -> slot.nextDemandNanos() == Long.MIN_VALUE);
+            assertEquals(1, wanted.get());
+            byte[] fresh = MjpegHttpServerSelectorTest.syntheticJpeg(6);
+            slot.publish(fresh);
+            Response r = read(s.getInputStream());
+            assertEquals(mode.toString(), 200, r.status());
+            assertArrayEquals(fresh, r.body);
+            assertTrue(r.header("ETag").endsWith("-" + (before + 1) + "\""));
+            assertEquals(Long.MAX_VALUE, slot.nextDemandNanos());
+            wanted.set(0);
+            tearDown();
+        }
+    }
+
+    @Test
+    public void streamRequestAfterSnapshotsBecomesAClient() throws Exception {
+        slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(7));
+        Socket s = connect(MjpegHttpServer.IoMode.SELECTOR);
+        send(s, get(null));
+        assertEquals(200, read(s.getInputStream()).status());
+        assertEquals(0, connected.get());
+        send(s, "GET / HTTP/1.1\r\n\r\n");
+        MjpegHttpServerSelectorTest.waitFor(() -> connected.get() == 1);
+        assertEquals(1, server.getClientStats().size());
+        assertEquals(0, server.getSnapshotConnections());
+        slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(8));
+        assertNotNull(MjpegHttpServerSelectorTest.readPart(s.getInputStream()));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Short LoadGenerator runs: 200 viewers, some of them slow, with connect/disconnect storms.
+ * Longer soaks run from the command line (./gradlew :core:soak).
+ */
+public class SoakTest {
+
+    private static LoadGenerator.Config config(MjpegHttpServer.IoMode mode) {
+        LoadGenerator.Config c = new LoadGenerator.Config();
+        c.ioMode = mode;
+        c.clients = 200;
+        c.slowClients = 10;
+        c.stormThreads = 4;
+        c.durationMs = 3_000;
+        return c;
+    }
+
+    @Test
+    public void selectorUnderLoadAndChurn() throws Exception {
+        LoadGenerator.Report r = LoadGenerator.run(config(MjpegHttpServer.IoMode.SELECTOR));
+        System.out.print(r);
+        assertTrue(r.toString(), r.passed);
+        assertTrue(r.stormConnects > 0);
+        assertTrue(r.slowFrames > 0);
+    }
+
+    @Test
+    public void threadPerClientUnderLoadAndChurn() throws Exception {
+        LoadGenerator.Report r = LoadGenerator.run(config(MjpegHttpServer.IoMode.THREAD_PER_CLIENT));
+        System.out.print(r);
+        assertTrue(r.toString(), r.passed);
+        assertTrue(r.stormConnects > 0);
+        assertTrue(r.slowFrames > 0);
+    }
+
+    @Test
+    public void reportFailsWhenAThresholdIsMissed() throws Exception {
+        LoadGenerator.Config c = config(MjpegHttpServer.IoMode.SELECTOR);
+        c.clients = 5;
+        c.slowClients = 0;
+        c.stormThreads = 0;
+        c.durationMs = 500;
+        c.maxLatencyP99Ms = 0;
+        LoadGenerator.Report r = LoadGenerator.run(c);
+        assertFalse(r.passed);
+        assertTrue(r.toString(), r.toString().contains("[FAIL] latency p99"));
+        // everything else still holds
+        assertEquals(r.toString(), 1, r.toString().split("\\[FAIL]", -1).length - 1);
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Clients connecting while the camera is off (or on standby) get the last frame at once,
+ * flagged stale, and the first live frame after it counts as their time-to-first-frame.
+ */
+public class StaleFrameTest {
+    private MjpegHttpServer server;
+    private FrameSlot slot;
+    private StreamMetrics metrics;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<WebSocketTest.Client> wsClients = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+        for (WebSocketTest.Client c : wsClients) c.close();
+        sockets.clear();
+        wsClients.clear();
+        if (server != null) server.shutdown();
+        server = null;
+    }
+
+    // one multipart part: its header lines and the JPEG
+    static final class Part {
+        final String headers;
+        final byte[] jpeg;
+
+        Part(String headers, byte[] jpeg) {
+            this.headers = headers;
+            this.jpeg = jpeg;
+        }
+
+        boolean isStale() { return headers.contains("\nX-Stale: 1\n"); }
+    }
+
+    private static Part readPart(InputStream in) throws Exception {
+        StringBuilder headers = new StringBuilder("\n");
+        StringBuilder line = new StringBuilder();
+        int contentLength = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) return null;
+            if (b == '\r') continue;
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            String l = line.toString();
+            line.setLength(0);
+            if (l.equals("--ipcam")) {
+                headers.setLength(1);
+                contentLength = -1;
+            } else if (l.startsWith("Content-Length: ")) {
+                contentLength = Integer.parseInt(l.substring(16).trim());
+            } else if (l.isEmpty() && contentLength >= 0) {
+                byte[] buf = new byte[contentLength];
+                int off = 0;
+                while (off < contentLength) {
+                    int n = in.read(buf, off, contentLength - off);
+                    if (n < 0) return null;
+                    off += n;
+                }
+                return new Part(headers.toString(), buf);
+            }
+            headers.append(l).append('\n');
+        }
+    }
+
+    private int start(MjpegHttpServer.IoMode mode) throws Exception {
+        slot = new FrameSlot();
+        metrics = new StreamMetrics();
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setMetrics(metrics);
+        server.start();
+        return server.awaitListening(5, TimeUnit.SECONDS);
+    }
+
+    private InputStream openStream(int port) throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        sockets.add(s);
+        s.setSoTimeout(5000);
+        s.getOutputStream().write("GET /stream.mjpg HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return s.getInputStream();
+    }
+
+    private ClientStats newestClient() {
+        List<ClientStats> all = server.getClientStats();
+        return all.get(all.size() - 1);
+    }
+
+    @Test
+    public void newClientsGetTheLastFrameAtOnceAndThenLiveFrames() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            byte[] last = MjpegHttpServerSelectorTest.syntheticJpeg(1);
+            slot.publish(last);
+            InputStream watching = openStream(port);
+            Part p = readPart(watching);
+            assertFalse(mode + p.headers, p.isStale());
+            assertArrayEquals(last, p.jpeg);
+
+            // camera stops: new clients still get a picture right away
+            slot.markStale();
+            long t0 = System.nanoTime();
+            InputStream late = openStream(port);
+            p = readPart(late);
+            long waitedMs = (System.nanoTime() - t0) / 1_000_000L;
+            assertTrue(mode + p.headers, p.isStale());
+            assertArrayEquals(last, p.jpeg);
+            assertTrue(mode + " waited " + waitedMs + " ms", waitedMs < 1000);
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 2);
+            ClientStats lateStats = newestClient();
+            MjpegHttpServerSelectorTest.waitFor(() -> lateStats.getStaleFramesSent() == 1);
+            assertEquals("only live frames count", -1, lateStats.getTimeToFirstFrameMs());
+            Thread.sleep(100);
+
+            // live frames resume; nobody gets the stale one twice
+            byte[] live = MjpegHttpServerSelectorTest.syntheticJpeg(2);
+            slot.publish(live);
+            p = readPart(watching);
+            assertFalse(mode + p.headers, p.isStale());
+            assertArrayEquals(live, p.jpeg);
+            p = readPart(late);
+            assertFalse(mode + p.headers, p.isStale());
+            assertArrayEquals(live, p.jpeg);
+            MjpegHttpServerSelectorTest.waitFor(() -> lateStats.getTimeToFirstFrameMs() >= 0);
+            assertTrue(mode + " ttff " + lateStats.getTimeToFirstFrameMs(), lateStats.getTimeToFirstFrameMs() >= 100);
+
+            assertEquals(1, metrics.staleFramesSent.sum());
+            assertEquals(2, metrics.timeToFirstFrame().count());
+            // three live frames sent; the stale one is not a latency sample
+            assertEquals(3, metrics.publishToSend().count());
+            String scrape = metrics.registry().scrape();
+            assertTrue(scrape, scrape.contains("coolstream_stale_frames_sent_total 1"));
+            assertTrue(scrape, scrape.contains("coolstream_time_to_first_frame_seconds_count 2"));
+            tearDown();
+        }
+    }
+
+    @Test
+    public void webSocketFlagsTheStaleFrame() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            byte[] last = MjpegHttpServerSelectorTest.syntheticJpeg(3);
+            long seq = slot.publish(last);
+            slot.markStale();
+
+            WebSocketTest.Client c = new WebSocketTest.Client(port, WebSocket.PATH, "dGhlIHNhbXBsZSBub25jZQ==", 13);
+            wsClients.add(c);
+            ByteBuffer m = ByteBuffer.wrap(c.readData().payload);
+            assertEquals(seq, m.getLong());
+            m.position(18);
+            assertEquals(mode.toString(), WebSocket.FLAG_STALE, m.get());
+
+            slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(4));
+            m = ByteBuffer.wrap(c.readData().payload);
+            assertEquals(seq + 1, m.getLong());
+            m.position(18);
+            assertEquals(0, m.get());
+            tearDown();
+        }
+    }
+}
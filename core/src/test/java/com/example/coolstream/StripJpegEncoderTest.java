@@ -0,0 +1,193 @@
+package com.example.coolstream;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StripJpegEncoderTest {
+    // smooth luma with a little noise, and different patterns in U and V
+    static byte[] nv21(int width, int height, long seed) {
+        byte[] f = new byte[Nv21.size(width, height)];
+        Random rnd = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double l = 128 + 80 * Math.sin((x + seed) / 7.0) * Math.cos(y / 11.0);
+                f[y * width + x] = (byte) (l + rnd.nextInt(9) - 4);
+            }
+        }
+        int vu = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                f[vu + y * width + 2 * x] = (byte) (128 + 40 * Math.cos(y / 9.0));
+                f[vu + y * width + 2 * x + 1] = (byte) (128 + 40 * Math.sin(x / 12.0));
+            }
+        }
+        return f;
+    }
+
+    static byte[] encode(StripJpegEncoder encoder, byte[] nv21, int width, int height, int quality) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.compress(nv21, width, height, quality, out);
+        return out.toByteArray();
+    }
+
+    private static double psnr(double squaredError, int samples) {
+        return 10 * Math.log10(255.0 * 255.0 * samples / Math.max(squaredError, 1e-9));
+    }
+
+    @Test
+    public void decodesToTheSourceImage() throws Exception {
+        StripJpegEncoder encoder = new StripJpegEncoder(3);
+        try {
+            // whole MCUs, partial MCUs on both edges, a single MCU and less than one
+            int[][] sizes = {{640, 480}, {100, 62}, {16, 16}, {2, 2}};
+            for (int[] size : sizes) {
+                int w = size[0], h = size[1];
+                byte[] src = nv21(w, h, w);
+                BufferedImage img = ImageIO.read(new ByteArrayInputStream(encode(encoder, src, w, h, 90)));
+                assertEquals(w, img.getWidth());
+                assertEquals(h, img.getHeight());
+                // back to JFIF YCbCr; chroma averaged over each 2x2 block
+                double errY = 0, errC = 0;
+                for (int cy = 0; cy < h / 2; cy++) {
+                    for (int cx = 0; cx < w / 2; cx++) {
+                        double cb = 0, cr = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int x = 2 * cx + (i & 1), y = 2 * cy + (i >> 1);
+                            int rgb = img.getRGB(x, y);
+                            int r = rgb >> 16 & 0xFF, g = rgb >> 8 & 0xFF, b = rgb & 0xFF;
+                            double dy = 0.299 * r + 0.587 * g + 0.114 * b - (src[y * w + x] & 0xFF);
+                            errY += dy * dy;
+                            cb += -0.168736 * r - 0.331264 * g + 0.5 * b + 128;
+                            cr += 0.5 * r - 0.418688 * g - 0.081312 * b + 128;
+                        }
+                        int vu = w * h + cy * w + 2 * cx;
+                        double du = cb / 4 - (src[vu + 1] & 0xFF), dv = cr / 4 - (src[vu] & 0xFF);
+                        errC += du * du + dv * dv;
+                    }
+                }
+                String what = w + "x" + h;
+                assertTrue(what + " luma " + psnr(errY, w * h), psnr(errY, w * h) > 34);
+                assertTrue(what + " chroma " + psnr(errC, w * h / 2), psnr(errC, w * h / 2) > 34);
+            }
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    @Test
+    public void stripsAreJoinedWithRestartMarkers() throws Exception {
+        StripJpegEncoder encoder = new StripJpegEncoder(2);
+        try {
+            byte[] jpeg = encode(encoder, nv21(640, 480, 1), 640, 480, 60);
+            int p = 2, restartInterval = -1;
+            while (true) {
+                int marker = jpeg[p + 1] & 0xFF;
+                int length = (jpeg[p + 2] & 0xFF) << 8 | (jpeg[p + 3] & 0xFF);
+                if (marker == 0xDD) restartInterval = (jpeg[p + 4] & 0xFF) << 8 | (jpeg[p + 5] & 0xFF);
+                p += 2 + length;
+                if (marker == 0xDA) break;
+            }
+            // 40 MCUs per row, two rows per strip
+            assertEquals(40 * StripJpegEncoder.DEFAULT_STRIP_MCU_ROWS, restartInterval);
+            List<Integer> markers = new ArrayList<>();
+            for (; p < jpeg.length - 1; p++) {
+                if (jpeg[p] == (byte) 0xFF && jpeg[p + 1] != 0) markers.add(jpeg[p + 1] & 0xFF);
+            }
+            // 30 MCU rows: 15 strips, RST0..RST7 in turn between them, then EOI
+            assertEquals(markers.toString(), 15, markers.size());
+            for (int i = 0; i < 14; i++) assertEquals(0xD0 + (i & 7), (int) markers.get(i));
+            assertEquals(0xD9, (int) markers.get(14));
+            assertEquals(0xD9, jpeg[jpeg.length - 1] & 0xFF);
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    @Test
+    public void outputDoesNotDependOnThreadsOrConcurrentCallers() throws Exception {
+        int[][] sizes = {{640, 480}, {100, 62}};
+        int[] qualities = {40, 85};
+        byte[][] frames = new byte[sizes.length][];
+        byte[][] expected = new byte[sizes.length * qualities.length][];
+        StripJpegEncoder single = new StripJpegEncoder(1);
+        try {
+            for (int s = 0; s < sizes.length; s++) {
+                frames[s] = nv21(sizes[s][0], sizes[s][1], 7 + s);
+                for (int q = 0; q < qualities.length; q++) {
+                    expected[s * qualities.length + q] = encode(single, frames[s], sizes[s][0], sizes[s][1], qualities[q]);
+                }
+            }
+        } finally {
+            single.shutdown();
+        }
+
+        StripJpegEncoder shared = new StripJpegEncoder(ForkJoinPool.commonPool(), StripJpegEncoder.DEFAULT_STRIP_MCU_ROWS);
+        StripJpegEncoder own = new StripJpegEncoder(4);
+        try {
+            // four callers switching sizes and qualities on one encoder
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> callers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int first = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            int k = (first + i) % expected.length;
+                            int s = k / qualities.length;
+                            StripJpegEncoder e = (i & 1) == 0 ? own : shared;
+                            byte[] jpeg = encode(e, frames[s], sizes[s][0], sizes[s][1], qualities[k % qualities.length]);
+                            if (!Arrays.equals(expected[k], jpeg)) throw new AssertionError("frame " + k + " differs");
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }, "caller-" + t);
+                thread.start();
+                callers.add(thread);
+            }
+            for (Thread t : callers) t.join();
+            assertNull(String.valueOf(error.get()), error.get());
+        } finally {
+            own.shutdown();
+        }
+    }
+
+    @Test
+    public void rtpJpegCarriesTheOutput() throws Exception {
+        StripJpegEncoder encoder = new StripJpegEncoder(2);
+        try {
+            byte[] jpeg = encode(encoder, nv21(320, 240, 3), 320, 240, 70);
+            RtpJpegPacketizer p = new RtpJpegPacketizer(7, 0, RtpJpegPacketizer.DEFAULT_MAX_PACKET);
+            RtpJpegDepacketizer d = new RtpJpegDepacketizer();
+            assertTrue(p.setFrame(jpeg, 0, jpeg.length, 0));
+            // 4:2:0 with restart markers
+            assertEquals(65, p.type());
+            byte[] buf = new byte[RtpJpegPacketizer.DEFAULT_MAX_PACKET];
+            byte[] rebuilt = null;
+            int n;
+            while ((n = p.nextPacket(buf, 0)) > 0) rebuilt = d.push(buf, 0, n);
+            assertNotNull(rebuilt);
+            assertArrayEquals(RtspServerTest.pixels(jpeg), RtspServerTest.pixels(rebuilt));
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSizesAreRefused() throws Exception {
+        new StripJpegEncoder(ForkJoinPool.commonPool(), 1).compress(new byte[Nv21.size(10, 10)], 9, 10, 50,
+                new ByteArrayOutputStream());
+    }
+}
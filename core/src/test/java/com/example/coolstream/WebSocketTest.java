@@ -0,0 +1,398 @@
+package com.example.coolstream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * GET /stream.ws against a minimal JVM WebSocket client: handshake, metadata and JPEG
+ * framing, client masking and fragmentation, live settings and ping/pong reaping.
+ */
+public class WebSocketTest {
+    private MjpegHttpServer server;
+    private final FrameSlot slot = new FrameSlot();
+    private final FramePool pool = new FramePool(8, 4096);
+    private final AtomicInteger disconnected = new AtomicInteger();
+    private final List<String> evicted = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    static final class Message {
+        boolean fin;
+        int opcode;
+        byte[] payload;
+    }
+
+    // RFC 6455 client: masks everything it sends, reads whole server frames
+    static final class Client {
+        final Socket s;
+        final DataInputStream in;
+        final OutputStream out;
+        final String head;
+        private final Random random = new Random(7);
+
+        Client(int port, String path, String key, int version) throws IOException {
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            in = new DataInputStream(s.getInputStream());
+            out = s.getOutputStream();
+            String request = "GET " + path + " HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: keep-alive, Upgrade\r\n" +
+                    (key != null ? "Sec-WebSocket-Key: " + key + "\r\n" : "") +
+                    "Sec-WebSocket-Version: " + version + "\r\n\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            head = readHead(in);
+        }
+
+        int status() { return Integer.parseInt(head.substring(9, 12)); }
+
+        void send(boolean fin, int opcode, byte[] payload, boolean masked) throws IOException {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            b.write((fin ? 0x80 : 0) | opcode);
+            int maskBit = masked ? 0x80 : 0;
+            if (payload.length < 126) {
+                b.write(maskBit | payload.length);
+            } else {
+                b.write(maskBit | 126);
+                b.write(payload.length >>> 8);
+                b.write(payload.length);
+            }
+            byte[] mask = new byte[4];
+            random.nextBytes(mask);
+            if (masked) b.write(mask);
+            for (int i = 0; i < payload.length; i++) {
+                b.write(masked ? payload[i] ^ mask[i & 3] : payload[i]);
+            }
+            out.write(b.toByteArray());
+            out.flush();
+        }
+
+        void sendText(String text) throws IOException {
+            send(true, WebSocket.OP_TEXT, text.getBytes(StandardCharsets.UTF_8), true);
+        }
+
+        Message read() throws IOException {
+            Message m = new Message();
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            m.fin = (b0 & 0x80) != 0;
+            m.opcode = b0 & 0x0F;
+            assertEquals("server frames are never masked", 0, b1 & 0x80);
+            long length = b1 & 0x7F;
+            if (length == 126) length = in.readUnsignedShort();
+            else if (length == 127) length = in.readLong();
+            m.payload = new byte[(int) length];
+            in.readFully(m.payload);
+            return m;
+        }
+
+        // next message that is not a ping (pings are answered)
+        Message readData() throws IOException {
+            while (true) {
+                Message m = read();
+                if (m.opcode != WebSocket.OP_PING) return m;
+                send(true, WebSocket.OP_PONG, m.payload, true);
+            }
+        }
+
+        void close() {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    static String readHead(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\r') continue;
+            if (b == '\n' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '\n') break;
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private int start(MjpegHttpServer.IoMode mode) throws Exception {
+        server = new MjpegHttpServer(0, slot, mode, 1);
+        server.setClientListener(new MjpegHttpServer.ClientListener() {
+            @Override public void onClientConnected() {}
+            @Override public void onClientDisconnected() { disconnected.incrementAndGet(); }
+            @Override public void onClientEvicted(String remote, String reason) {
+                synchronized (evicted) { evicted.add(reason); }
+            }
+        });
+        server.start();
+        return server.awaitListening(5, TimeUnit.SECONDS);
+    }
+
+    private Client connect(int port, String path) throws IOException {
+        Client c = new Client(port, path, "dGhlIHNhbXBsZSBub25jZQ==", 13);
+        clients.add(c);
+        assertEquals(c.head, 101, c.status());
+        return c;
+    }
+
+    private long publish(byte[] jpeg, int motion) throws IOException {
+        FrameSlot.Frame f = pool.acquire();
+        f.output().write(jpeg, 0, jpeg.length);
+        f.setMotion(motion);
+        return slot.publish(f, System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        for (Client c : clients) c.close();
+        clients.clear();
+        if (server != null) server.shutdown();
+        server = null;
+        slot.clear();
+        disconnected.set(0);
+        synchronized (evicted) { evicted.clear(); }
+    }
+
+    @Test
+    public void acceptKeyAndBase64() {
+        // the example from RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+        assertEquals("", WebSocket.base64(new byte[0]));
+        assertEquals("Zg==", WebSocket.base64("f".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("Zm8=", WebSocket.base64("fo".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("Zm9vYmFy", WebSocket.base64("foobar".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("/+8=", WebSocket.base64(new byte[]{(byte) 0xFF, (byte) 0xEF}));
+    }
+
+    @Test
+    public void framesArriveAsBinaryMessagesWithMetadata() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            Client c = connect(port, WebSocket.PATH);
+            assertEquals(mode + " " + c.head, "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", header(c.head, "Sec-WebSocket-Accept"));
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 1);
+
+            // 16-bit and 64-bit payload lengths
+            byte[] small = MjpegHttpServerSelectorTest.syntheticJpeg(1);
+            byte[] large = new byte[70_000];
+            new Random(3).nextBytes(large);
+            long before = System.currentTimeMillis();
+            long seq = publish(small, MotionDetector.pack(37, true));
+            Message m = c.readData();
+            assertEquals(WebSocket.OP_BINARY, m.opcode);
+            assertTrue(m.fin);
+            assertMessage(m, seq, 37, true, small, before);
+
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().get(0).getFramesSent() == 1);
+            seq = publish(large, MotionDetector.UNKNOWN);
+            m = c.readData();
+            assertMessage(m, seq, -1, false, large, before);
+            tearDown();
+        }
+    }
+
+    private static void assertMessage(Message m, long seq, int score, boolean motion, byte[] jpeg, long notBeforeMs) {
+        assertEquals(WebSocket.META_LENGTH + jpeg.length, m.payload.length);
+        java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(m.payload);
+        assertEquals(seq, b.getLong());
+        long captured = b.getLong();
+        assertTrue("capture time " + captured, captured >= notBeforeMs - 50 && captured <= System.currentTimeMillis() + 50);
+        assertEquals(score, b.getShort());
+        assertEquals(motion ? WebSocket.FLAG_MOTION : 0, b.get());
+        assertEquals(0, b.get());
+        byte[] body = new byte[jpeg.length];
+        b.get(body);
+        assertArrayEquals(jpeg, body);
+    }
+
+    @Test
+    public void fragmentedControlMessageChangesFpsLive() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            Client c = connect(port, WebSocket.PATH + "?fps=10");
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 1);
+            ClientStats stats = server.getClientStats().get(0);
+            assertEquals(10, stats.maxFps);
+
+            // "fps=2" in two fragments with a ping in between
+            c.send(false, WebSocket.OP_TEXT, "fp".getBytes(StandardCharsets.US_ASCII), true);
+            c.send(true, WebSocket.OP_PING, "hi".getBytes(StandardCharsets.US_ASCII), true);
+            c.send(true, WebSocket.OP_CONTINUATION, "s=2".getBytes(StandardCharsets.US_ASCII), true);
+            Message pong = c.read();
+            assertEquals(mode.toString(), WebSocket.OP_PONG, pong.opcode);
+            assertEquals("hi", new String(pong.payload, StandardCharsets.US_ASCII));
+
+            // applied between frames, without reconnecting
+            publish(MjpegHttpServerSelectorTest.syntheticJpeg(2), MotionDetector.UNKNOWN);
+            MjpegHttpServerSelectorTest.waitFor(() -> stats.maxFps == 2);
+            assertEquals(WebSocket.OP_BINARY, c.readData().opcode);
+
+            c.sendText("fps=0&bogus=1&width=x");
+            MjpegHttpServerSelectorTest.waitFor(() -> {
+                try {
+                    publish(MjpegHttpServerSelectorTest.syntheticJpeg(3), MotionDetector.UNKNOWN);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return stats.maxFps == 0;
+            });
+            assertEquals(1, server.getClientStats().size());
+            tearDown();
+        }
+    }
+
+    // sends the newest frame of s while `during` more frames are published to it
+    static void sendWhilePublishing(ClientStats stats, FrameSlot s, int during) {
+        FrameSlot.Frame f = s.acquireLatest();
+        try {
+            stats.frameStarted(f, System.nanoTime());
+            for (int i = 0; i < during; i++) s.publish(MjpegHttpServerSelectorTest.syntheticJpeg(i));
+            stats.frameFinished(s.latestSeq(), 0);
+        } finally {
+            f.release();
+        }
+    }
+
+    @Test
+    public void restreamCountsDropsOnTheNewSlotsSeqs() throws Exception {
+        StreamMetrics metrics = new StreamMetrics();
+        FrameVariants variants = new FrameVariants(slot);
+        server = new MjpegHttpServer(0, slot, MjpegHttpServer.IoMode.SELECTOR, 1);
+        server.setVariants(variants);
+        server.setMetrics(metrics);
+        ClientStats stats = new ClientStats("test", metrics);
+        assertSame(slot, server.attachStream(stats, StreamProfile.DEFAULT, 0));
+
+        // 40 frames superseded on the primary, which is now at seq 50
+        for (int i = 0; i < 10; i++) slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(i));
+        sendWhilePublishing(stats, slot, 40);
+        assertEquals(39, stats.getFramesDropped());
+
+        // the variant numbers its frames from 1: one superseded there is a drop too
+        FrameSlot variant = server.restream(stats, new StreamProfile(40, 0), 0);
+        assertNotSame(slot, variant);
+        variant.publish(MjpegHttpServerSelectorTest.syntheticJpeg(100));
+        sendWhilePublishing(stats, variant, 2);
+        assertEquals(40, stats.getFramesDropped());
+
+        // and back: the primary's newer frames were never this client's to send, and the
+        // newest of them goes out next
+        for (int i = 0; i < 5; i++) slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(i));
+        assertSame(slot, server.restream(stats, StreamProfile.DEFAULT, 0));
+        assertEquals(0, stats.lastSeq());
+        slot.publish(MjpegHttpServerSelectorTest.syntheticJpeg(200));
+        sendWhilePublishing(stats, slot, 2);
+        assertEquals(41, stats.getFramesDropped());
+        assertEquals(41, metrics.framesDropped.sum());
+    }
+
+    @Test
+    public void unmaskedFrameIsAProtocolError() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            Client c = connect(port, WebSocket.PATH);
+            c.send(true, WebSocket.OP_TEXT, "fps=1".getBytes(StandardCharsets.US_ASCII), false);
+            Message close = c.readData();
+            assertEquals(mode.toString(), WebSocket.OP_CLOSE, close.opcode);
+            assertEquals(WebSocket.CLOSE_PROTOCOL_ERROR, ((close.payload[0] & 0xFF) << 8) | (close.payload[1] & 0xFF));
+            assertEquals(-1, c.in.read());
+            MjpegHttpServerSelectorTest.waitFor(() -> disconnected.get() == 1);
+            tearDown();
+        }
+    }
+
+    @Test
+    public void closeIsEchoed() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            Client c = connect(port, WebSocket.PATH);
+            c.send(true, WebSocket.OP_CLOSE, new byte[]{0x03, (byte) 0xE8}, true);
+            Message close = c.readData();
+            assertEquals(mode.toString(), WebSocket.OP_CLOSE, close.opcode);
+            assertArrayEquals(new byte[]{0x03, (byte) 0xE8}, close.payload);
+            assertEquals(-1, c.in.read());
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().isEmpty());
+            tearDown();
+        }
+    }
+
+    @Test
+    public void clientThatStopsAnsweringPingsIsReaped() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            start(mode);
+            server.setWebSocketPing(100, 300);
+            int port = server.awaitListening(5, TimeUnit.SECONDS);
+            Client silent = connect(port, WebSocket.PATH);
+            Client alive = connect(port, WebSocket.PATH);
+            MjpegHttpServerSelectorTest.waitFor(() -> server.getClientStats().size() == 2);
+
+            // the live client answers every ping for a while; the silent one never does
+            long until = System.currentTimeMillis() + 1000;
+            alive.s.setSoTimeout(200);
+            int pings = 0;
+            while (System.currentTimeMillis() < until) {
+                try {
+                    Message m = alive.read();
+                    if (m.opcode != WebSocket.OP_PING) continue;
+                    pings++;
+                    alive.send(true, WebSocket.OP_PONG, m.payload, true);
+                } catch (java.net.SocketTimeoutException ignored) {
+                }
+            }
+            assertTrue(mode + " pings " + pings, pings >= 5);
+            assertEquals(mode.toString(), 1, server.getWebSocketsReaped());
+            assertEquals(1, server.getClientStats().size());
+            synchronized (evicted) {
+                assertEquals(1, evicted.size());
+                assertTrue(evicted.get(0), evicted.get(0).startsWith("no pong"));
+            }
+
+            // the reaped client sees pings and then the end of the stream
+            silent.s.setSoTimeout(2000);
+            try {
+                while (silent.read().opcode == WebSocket.OP_PING) { }
+                fail("expected the connection to close");
+            } catch (java.io.EOFException | java.net.SocketException expected) {
+            }
+            tearDown();
+        }
+    }
+
+    @Test
+    public void badUpgradesAreRejected() throws Exception {
+        for (MjpegHttpServer.IoMode mode : MjpegHttpServer.IoMode.values()) {
+            int port = start(mode);
+            Client noKey = new Client(port, WebSocket.PATH, null, 13);
+            clients.add(noKey);
+            assertEquals(mode + " " + noKey.head, 400, noKey.status());
+
+            Client oldVersion = new Client(port, WebSocket.PATH, "dGhlIHNhbXBsZSBub25jZQ==", 8);
+            clients.add(oldVersion);
+            assertEquals(426, oldVersion.status());
+            assertEquals("13", header(oldVersion.head, "Sec-WebSocket-Version"));
+
+            assertEquals(2, server.getRequestsRejected());
+            assertTrue(server.getClientStats().isEmpty());
+            tearDown();
+        }
+    }
+
+    private static String header(String head, String name) {
+        for (String line : head.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).equalsIgnoreCase(name)) return line.substring(colon + 1).trim();
+        }
+        return null;
+    }
+}
@@ -15,3 +15,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "CoolStream"
 include(":app")
+include(":core")